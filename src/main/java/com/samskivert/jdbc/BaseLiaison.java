@@ -55,6 +55,12 @@ public abstract class BaseLiaison implements DatabaseLiaison
         return fetchLastInsertedId(conn, table, column);
     }
 
+    // from DatabaseLiaison
+    public boolean supportsMultiRowInsert ()
+    {
+        return false;
+    }
+
     /**
      * Requests the last inserted id for the specified table and column. This is used if a JDBC
      * driver does not support {@code getGeneratedKeys} or an attempt to use that failed.
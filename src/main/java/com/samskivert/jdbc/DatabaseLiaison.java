@@ -61,6 +61,13 @@ public interface DatabaseLiaison
     public int lastInsertedId (Connection conn, Statement istmt, String table, String column)
         throws SQLException;
 
+    /**
+     * Indicates whether or not this database accepts multiple rows in a single insert statement,
+     * e.g. {@code INSERT INTO foo (a, b) VALUES (?, ?), (?, ?), (?, ?)}, and will report the keys
+     * generated for all of those rows via {@link Statement#getGeneratedKeys}.
+     */
+    public boolean supportsMultiRowInsert ();
+
     /**
      * Initializes the column value auto-generator described in {@link #lastInsertedId}. This
      * should be idempotent (meaning the generator may already exist in which case this method
@@ -89,6 +89,12 @@ public class HsqldbLiaison extends BaseLiaison
          }
     }
 
+    @Override // from DatabaseLiaison
+    public boolean supportsMultiRowInsert ()
+    {
+        return true;
+    }
+
     @Override // from DatabaseLiaison
     public boolean isTransientException (SQLException sqe)
     {
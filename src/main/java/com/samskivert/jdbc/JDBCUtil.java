@@ -12,6 +12,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 
@@ -86,6 +87,29 @@ public class JDBCUtil
         });
     }
 
+    /**
+     * Wraps the given connection in a proxied instance that will add the SQL of every statement
+     * prepared or executed via the proxy (or via plain statements created by the proxy) to the
+     * supplied list. This is used to report the queries issued by slow operations.
+     */
+    public static Connection makeRecorder (final Connection conn, final List<String> sql)
+    {
+        return (Connection)Proxy.newProxyInstance(
+            Connection.class.getClassLoader(), PROXY_IFACES, new InvocationHandler() {
+            public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().startsWith("prepare") && args != null &&
+                    args[0] instanceof String) {
+                    sql.add((String)args[0]);
+                }
+                Object result = invokeProxied(conn, method, args);
+                if (result instanceof Statement && !(result instanceof PreparedStatement)) {
+                    result = makeRecorder((Statement)result, sql);
+                }
+                return result;
+            }
+        });
+    }
+
     /**
      * Calls <code>stmt.executeUpdate()</code> on the supplied statement, checking to see that it
      * returns the expected update count and throwing a persistence exception if it does not.
@@ -185,6 +209,113 @@ public class JDBCUtil
         }
     }
 
+    /**
+     * Issues a query with a potentially large number of keys in batches, binding the keys to a
+     * prepared <code>in (?,?,...)</code> clause rather than splicing them into the SQL. Each batch
+     * is rounded up to one of a handful of canonical sizes (see {@link #getBatchBucket}) by
+     * repeating its last key, so that a query over any number of keys results in at most a few
+     * distinct statements for the database to parse and plan. Those statements are prepared once
+     * and reused for every batch of the same size. For example:
+     * <pre>{@code
+     *    Collection<Integer> keys = ...;
+     *    String query = "select NAME from USERS where USER_ID in (#KEYS#)";
+     *    JDBCUtil.batchQuery(conn, query, keys, 500, proc);
+     * }</pre>
+     *
+     * <p> Because the tail batch is padded with duplicate keys, the query must be one for which
+     * duplicate keys in the <code>in</code> clause do not change the results (which is the case
+     * for a simple <code>in</code> clause).
+     *
+     * @param query the SQL query to run for each batch with the string <code>#KEYS#</code> in the
+     * place where the batch of parameter placeholders should be substituted.
+     * @param batchSize the maximum number of keys to bind into a single query.
+     */
+    public static void batchQuery (Connection conn, String query, Collection<?> keys,
+                                   int batchSize, BatchProcessor processor)
+        throws SQLException
+    {
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        // we'll lazily prepare one statement for each bucket size that we need
+        PreparedStatement[] stmts = new PreparedStatement[BATCH_BUCKETS.length+1];
+        try {
+            Object[] batch = new Object[batchSize];
+            Iterator<?> itr = keys.iterator();
+            while (itr.hasNext()) {
+                // group one batch of keys together
+                int count = 0;
+                while (count < batchSize && itr.hasNext()) {
+                    batch[count++] = itr.next();
+                }
+
+                // figure out which canonical statement to use for this batch
+                int bucket = getBatchBucket(count, batchSize);
+                int bidx = bucketIndex(bucket, batchSize);
+                PreparedStatement stmt = stmts[bidx];
+                if (stmt == null) {
+                    stmt = stmts[bidx] = conn.prepareStatement(
+                        query.replace("#KEYS#", placeholders(bucket)));
+                }
+
+                // bind the keys, padding the tail with duplicates of the last key
+                for (int ii = 0; ii < bucket; ii++) {
+                    stmt.setObject(ii+1, batch[Math.min(ii, count-1)]);
+                }
+
+                // issue the query with that batch
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    while (rs.next()) {
+                        processor.process(rs);
+                    }
+                } finally {
+                    rs.close();
+                }
+            }
+
+        } finally {
+            for (PreparedStatement stmt : stmts) {
+                close(stmt);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of parameters that will be bound by {@link
+     * #batchQuery(Connection,String,Collection,int,BatchProcessor)} for a batch of the specified
+     * number of keys. This is the smallest canonical bucket size (1, 4, 16, 64 or 256) that will
+     * contain the batch, or the batch size itself if no smaller bucket will contain it.
+     */
+    public static int getBatchBucket (int count, int batchSize)
+    {
+        for (int bucket : BATCH_BUCKETS) {
+            if (bucket >= batchSize) {
+                break;
+            }
+            if (bucket >= count) {
+                return bucket;
+            }
+        }
+        return batchSize;
+    }
+
+    /**
+     * Returns a comma separated list of <code>count</code> parameter placeholders.
+     */
+    public static String placeholders (int count)
+    {
+        StringBuilder buf = new StringBuilder(count*2);
+        for (int ii = 0; ii < count; ii++) {
+            if (ii > 0) {
+                buf.append(",");
+            }
+            buf.append("?");
+        }
+        return buf.toString();
+    }
+
     /**
      * Calls <code>stmt.executeUpdate()</code> on the supplied statement with the supplied query,
      * checking to see that it returns the expected update count and logging a warning if it does
@@ -643,6 +774,58 @@ public class JDBCUtil
                                ", col=" + column + "].");
     }
 
-    /** Used by {@link #makeCollector}. */
+    /**
+     * Maps a bucket size returned by {@link #getBatchBucket} to a slot in the prepared statement
+     * array used by {@link #batchQuery(Connection,String,Collection,int,BatchProcessor)}.
+     */
+    protected static int bucketIndex (int bucket, int batchSize)
+    {
+        for (int ii = 0; ii < BATCH_BUCKETS.length; ii++) {
+            if (BATCH_BUCKETS[ii] == bucket && bucket < batchSize) {
+                return ii;
+            }
+        }
+        return BATCH_BUCKETS.length;
+    }
+
+    /**
+     * Wraps a plain statement so that the SQL passed to its execute and batch methods is recorded.
+     */
+    protected static Statement makeRecorder (final Statement stmt, final List<String> sql)
+    {
+        return (Statement)Proxy.newProxyInstance(
+            Statement.class.getClassLoader(), STMT_IFACES, new InvocationHandler() {
+            public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if ((name.startsWith("execute") || name.equals("addBatch")) && args != null &&
+                    args[0] instanceof String) {
+                    sql.add((String)args[0]);
+                }
+                return invokeProxied(stmt, method, args);
+            }
+        });
+    }
+
+    /**
+     * Invokes a method on a proxied object, unwrapping any exception thrown by the method so that
+     * callers of the proxy see it as they would from the original object.
+     */
+    protected static Object invokeProxied (Object target, Method method, Object[] args)
+        throws Throwable
+    {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            throw ite.getCause();
+        }
+    }
+
+    /** The canonical sizes into which the tail batch of a prepared batch query is rounded. */
+    protected static final int[] BATCH_BUCKETS = { 1, 4, 16, 64, 256 };
+
+    /** Used by {@link #makeCollector} and {@link #makeRecorder(Connection,List)}. */
     protected static final Class<?>[] PROXY_IFACES = { Connection.class };
+
+    /** Used by {@link #makeRecorder(Statement,List)}. */
+    protected static final Class<?>[] STMT_IFACES = { Statement.class };
 }
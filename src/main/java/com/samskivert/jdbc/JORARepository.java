@@ -7,6 +7,8 @@ package com.samskivert.jdbc;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 import com.samskivert.io.PersistenceException;
 import com.samskivert.jdbc.jora.*;
@@ -15,10 +17,31 @@ import com.samskivert.jdbc.jora.*;
  * The JORA repository simplifies the process of building persistence
  * services that make use of the JORA object relational mapping package.
  *
+ * <p> If a table has been configured with a row cache (see {@link
+ * Table#setCache}), rows loaded by {@link #load(Table,String)}, {@link
+ * #loadAll(Table,String)} and {@link #loadAllByKeys} are cached, primary
+ * key lookups via {@link #load(Table,String)} are served from the cache and
+ * the update and delete methods invalidate the rows they modify.
+ *
  * @see com.samskivert.jdbc.jora.Table
  */
 public abstract class JORARepository extends SimpleRepository
 {
+    /**
+     * Used to report the progress of {@link #insertAll}.
+     */
+    public interface InsertObserver
+    {
+        /**
+         * Called after each chunk of records has been inserted and committed.
+         *
+         * @param offset the index in the source list of the first record in the chunk.
+         * @param count the number of records in the chunk.
+         * @param elapsed the number of milliseconds taken to insert and commit the chunk.
+         */
+        public void chunkInserted (int offset, int count, long elapsed);
+    }
+
     /**
      * Creates and initializes a JORA repository which will access the
      * database identified by the supplied database identifier.
@@ -55,6 +78,65 @@ public abstract class JORARepository extends SimpleRepository
         });
     }
 
+    /**
+     * Inserts a potentially large number of objects into the specified table. The objects are
+     * split into chunks of at most <code>chunkSize</code> records and each chunk is inserted in a
+     * single round trip (as a multi-row insert if the database supports it, otherwise as a JDBC
+     * batch) and committed as its own transaction. If the database does not support multi-row
+     * inserts and a key column is specified, the records of each chunk are instead inserted one
+     * at a time, as drivers need not report the keys generated by a batch. If a chunk fails, the
+     * chunks preceding it will already have been committed.
+     *
+     * @param chunkSize the maximum number of records in a chunk, which must be positive.
+     * @param keyColumn the column whose generated values should be returned, or null.
+     * @param observer if non-null, will be informed of the time taken by each chunk.
+     *
+     * @return the keys generated for each inserted object, in order, or null if no key column was
+     * specified.
+     */
+    protected <T> int[] insertAll (final Table<T> table, List<T> objects, int chunkSize,
+                                   final String keyColumn, InsertObserver observer)
+        throws PersistenceException
+    {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        int[] keys = (keyColumn == null) ? null : new int[objects.size()];
+        for (int offset = 0, count = objects.size(); offset < count; ) {
+            final int end = Math.min(offset + chunkSize, count);
+            final List<T> chunk = objects.subList(offset, end);
+            long start = System.currentTimeMillis();
+            int[] ckeys = executeUpdate(new Operation<int[]>() {
+                public int[] invoke (Connection conn, DatabaseLiaison liaison)
+                    throws SQLException, PersistenceException
+                {
+                    if (!liaison.supportsMultiRowInsert()) {
+                        return table.insert(conn, chunk, false, keyColumn);
+                    }
+                    // respect the database's limit on parameters per statement
+                    int[] ckeys = (keyColumn == null) ? null : new int[chunk.size()];
+                    int rows = table.getMaxRowsPerInsert();
+                    for (int ii = 0, nn = chunk.size(); ii < nn; ii += rows) {
+                        int[] rkeys = table.insert(
+                            conn, chunk.subList(ii, Math.min(ii + rows, nn)), true, keyColumn);
+                        if (rkeys != null) {
+                            System.arraycopy(rkeys, 0, ckeys, ii, rkeys.length);
+                        }
+                    }
+                    return ckeys;
+                }
+            });
+            if (keys != null) {
+                System.arraycopy(ckeys, 0, keys, offset, ckeys.length);
+            }
+            if (observer != null) {
+                observer.chunkInserted(offset, end - offset, System.currentTimeMillis() - start);
+            }
+            offset = end;
+        }
+        return keys;
+    }
+
     /**
      * Updates the supplied object in the specified table.
      *
@@ -63,13 +145,13 @@ public abstract class JORARepository extends SimpleRepository
     protected <T> int update (final Table<T> table, final T object)
         throws PersistenceException
     {
-        return executeUpdate(new Operation<Integer>() {
+        return updated(executeUpdate(new Operation<Integer>() {
             public Integer invoke (Connection conn, DatabaseLiaison liaison)
                 throws SQLException, PersistenceException
             {
                 return table.update(conn, object);
             }
-        });
+        }), table, object, null);
     }
 
     /**
@@ -82,13 +164,13 @@ public abstract class JORARepository extends SimpleRepository
                               final FieldMask mask)
         throws PersistenceException
     {
-        return executeUpdate(new Operation<Integer>() {
+        return updated(executeUpdate(new Operation<Integer>() {
             public Integer invoke (Connection conn, DatabaseLiaison liaison)
                 throws SQLException, PersistenceException
             {
                 return table.update(conn, object, mask);
             }
-        });
+        }), table, object, mask);
     }
 
     /**
@@ -99,14 +181,16 @@ public abstract class JORARepository extends SimpleRepository
                                         final String query)
         throws PersistenceException
     {
-        return execute(new Operation<ArrayList<T>>() {
+        RowCache<T> cache = table.getCache();
+        long generation = (cache == null) ? 0L : cache.getGeneration();
+        return cache(cache, generation, execute(new Operation<ArrayList<T>>() {
             public ArrayList<T> invoke (
                 Connection conn, DatabaseLiaison liaison)
                 throws SQLException, PersistenceException
             {
                 return table.select(conn, query).toArrayList();
             }
-        });
+        }));
     }
 
     /**
@@ -127,6 +211,30 @@ public abstract class JORARepository extends SimpleRepository
         });
     }
 
+    /**
+     * Loads all objects from the specified table whose <code>column</code>
+     * matches any of the supplied keys. The keys are bound to prepared
+     * queries in batches rather than being spliced into the SQL.
+     */
+    protected <T> ArrayList<T> loadAllByKeys (
+        final Table<T> table, final String column, final Collection<?> keys)
+        throws PersistenceException
+    {
+        if (keys.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        RowCache<T> cache = table.getCache();
+        long generation = (cache == null) ? 0L : cache.getGeneration();
+        return cache(cache, generation, execute(new Operation<ArrayList<T>>() {
+            public ArrayList<T> invoke (
+                Connection conn, DatabaseLiaison liaison)
+                throws SQLException, PersistenceException
+            {
+                return table.selectIn(conn, column, keys, KEY_BATCH_SIZE);
+            }
+        }));
+    }
+
     /**
      * Loads all objects from the specified table that match the supplied
      * example.
@@ -171,13 +279,27 @@ public abstract class JORARepository extends SimpleRepository
     protected <T> T load (final Table<T> table, final String query)
         throws PersistenceException
     {
-        return execute(new Operation<T>() {
+        RowCache<T> cache = table.getCache();
+        long generation = 0L;
+        if (cache != null) {
+            String key = table.getCacheKey(query);
+            T row = (key == null) ? null : cache.get(key);
+            if (row != null) {
+                return row;
+            }
+            generation = cache.getGeneration();
+        }
+        T row = execute(new Operation<T>() {
             public T invoke (Connection conn, DatabaseLiaison liaison)
                 throws SQLException, PersistenceException
             {
                 return table.select(conn, query).get();
             }
         });
+        if (cache != null && row != null) {
+            cache.put(row, generation);
+        }
+        return row;
     }
 
     /**
@@ -244,7 +366,7 @@ public abstract class JORARepository extends SimpleRepository
     protected <T> int store (final Table<T> table, final T object)
         throws PersistenceException
     {
-        return executeUpdate(new Operation<Integer>() {
+        return updated(executeUpdate(new Operation<Integer>() {
             public Integer invoke (Connection conn, DatabaseLiaison liaison)
                 throws SQLException, PersistenceException
             {
@@ -254,7 +376,7 @@ public abstract class JORARepository extends SimpleRepository
                 }
                 return -1;
             }
-        });
+        }), table, object, null);
     }
 
     /**
@@ -269,13 +391,13 @@ public abstract class JORARepository extends SimpleRepository
     {
         final FieldMask mask = table.getFieldMask();
         mask.setModified(field);
-        return executeUpdate(new Operation<Integer>() {
+        return updated(executeUpdate(new Operation<Integer>() {
             public Integer invoke (Connection conn, DatabaseLiaison liaison)
                 throws SQLException, PersistenceException
             {
                 return table.update(conn, object, mask);
             }
-        });
+        }), table, object, mask);
     }
 
     /**
@@ -292,13 +414,13 @@ public abstract class JORARepository extends SimpleRepository
         for (int ii = 0; ii < fields.length; ii++) {
             mask.setModified(fields[ii]);
         }
-        return executeUpdate(new Operation<Integer>() {
+        return updated(executeUpdate(new Operation<Integer>() {
             public Integer invoke (Connection conn, DatabaseLiaison liaison)
                 throws SQLException, PersistenceException
             {
                 return table.update(conn, object, mask);
             }
-        });
+        }), table, object, mask);
     }
 
     /**
@@ -309,13 +431,66 @@ public abstract class JORARepository extends SimpleRepository
     protected <T> int delete (final Table<T> table, final T object)
         throws PersistenceException
     {
-        return executeUpdate(new Operation<Integer>() {
+        return invalidate(executeUpdate(new Operation<Integer>() {
             public Integer invoke (Connection conn, DatabaseLiaison liaison)
                 throws SQLException, PersistenceException
             {
                 return table.delete(conn, object);
             }
-        });
+        }), table, object);
+    }
+
+    /**
+     * Adds the supplied freshly loaded rows to the supplied cache (if it is
+     * non-null), unless it has been invalidated since the specified
+     * generation.
+     *
+     * @return the supplied rows.
+     */
+    protected <T> ArrayList<T> cache (
+        RowCache<T> cache, long generation, ArrayList<T> rows)
+    {
+        if (cache != null) {
+            for (T row : rows) {
+                cache.put(row, generation);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Invalidates the cached copy of the supplied object now that the
+     * transaction that modified it has been committed. The table invalidates
+     * the row when it is modified, but a concurrent load may have cached the
+     * old row before our transaction committed.
+     *
+     * @return the supplied result.
+     */
+    protected <T> int invalidate (int result, Table<T> table, T object)
+    {
+        RowCache<T> cache = table.getCache();
+        if (cache != null) {
+            cache.invalidate(object);
+        }
+        return result;
+    }
+
+    /**
+     * Invalidates the cached copy of the supplied object and, if the update
+     * modified any rows, advances the object's change tracking snapshot now
+     * that the transaction that updated it has been committed.
+     *
+     * @param mask the fields that were written, or null if all of them were.
+     *
+     * @return the supplied result.
+     */
+    protected <T> int updated (int result, Table<T> table, T object,
+                               FieldMask mask)
+    {
+        if (result != 0) {
+            table.committed(object, mask);
+        }
+        return invalidate(result, table, object);
     }
 
     /**
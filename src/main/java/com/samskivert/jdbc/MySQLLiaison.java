@@ -26,6 +26,12 @@ public class MySQLLiaison extends BaseLiaison
         return (msg != null && msg.indexOf("Duplicate entry") != -1);
     }
 
+    @Override // from DatabaseLiaison
+    public boolean supportsMultiRowInsert ()
+    {
+        return true;
+    }
+
     @Override // from DatabaseLiaison
     public boolean isTransientException (SQLException sqe)
     {
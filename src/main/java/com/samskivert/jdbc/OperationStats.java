@@ -0,0 +1,199 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.jdbc;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Accumulates timing statistics for repository operations, keyed by database identifier and
+ * operation class. Install an instance via {@link SimpleRepository#setOperationObserver} and
+ * periodically report or {@link #snapshot} its contents, for example:
+ *
+ * <pre>{@code
+ * OperationStats stats = new OperationStats();
+ * SimpleRepository.setOperationObserver(stats);
+ * // ...
+ * for (OperationStats.Stats s : stats.snapshot(true).values()) {
+ *     log.info(s.toString());
+ * }
+ * }</pre>
+ *
+ * <p> Times are tracked in power of two buckets of microseconds, so reported percentiles are
+ * upper bounds accurate to within a factor of two.
+ */
+public class OperationStats
+    implements SimpleRepository.OperationObserver
+{
+    /** The phases of an operation's execution for which times are tracked. */
+    public enum Phase { ACQUIRE, INVOKE, COMMIT };
+
+    /** Statistics for a particular database and operation class. */
+    public static class Stats
+        implements Cloneable
+    {
+        /** The database identifier and operation class name that identify these stats. */
+        public final String dbident, operation;
+
+        /** The number of attempts to execute operations (including retried attempts). */
+        public int count;
+
+        /** The number of attempts that failed (including those that were retried). */
+        public int failures;
+
+        /** The number of attempts that failed with a transient failure and were retried. */
+        public int retries;
+
+        /** The total number of rows returned by operations that returned collections. */
+        public long rows;
+
+        public Stats (String dbident, String operation) {
+            this.dbident = dbident;
+            this.operation = operation;
+        }
+
+        /**
+         * Returns the total time (in microseconds) spent in the specified phase.
+         */
+        public long getTotalTime (Phase phase) {
+            return _totals[phase.ordinal()];
+        }
+
+        /**
+         * Returns the maximum time (in microseconds) spent in the specified phase.
+         */
+        public long getMaxTime (Phase phase) {
+            return _maxes[phase.ordinal()];
+        }
+
+        /**
+         * Returns an upper bound on the time (in microseconds) within which the requested
+         * percentage of attempts completed the specified phase.
+         *
+         * @param percentile a value between 0 and 100.
+         */
+        public long getPercentile (Phase phase, float percentile) {
+            int[] buckets = _buckets[phase.ordinal()];
+            long target = (long)Math.ceil(count * percentile / 100), seen = 0;
+            for (int ii = 0; ii < buckets.length; ii++) {
+                seen += buckets[ii];
+                if (seen >= target && seen > 0) {
+                    return Math.min(1L << ii, getMaxTime(phase));
+                }
+            }
+            return getMaxTime(phase);
+        }
+
+        @Override // from Object
+        public Stats clone () {
+            try {
+                Stats stats = (Stats)super.clone();
+                stats._totals = _totals.clone();
+                stats._maxes = _maxes.clone();
+                stats._buckets = new int[_buckets.length][];
+                for (int ii = 0; ii < _buckets.length; ii++) {
+                    stats._buckets[ii] = _buckets[ii].clone();
+                }
+                return stats;
+            } catch (CloneNotSupportedException cnse) {
+                throw new AssertionError(cnse);
+            }
+        }
+
+        @Override // from Object
+        public String toString () {
+            StringBuilder buf = new StringBuilder();
+            buf.append(dbident).append(" ").append(operation);
+            buf.append(" [count=").append(count).append(", failures=").append(failures);
+            buf.append(", retries=").append(retries).append(", rows=").append(rows);
+            for (Phase phase : Phase.values()) {
+                String name = phase.name().toLowerCase();
+                buf.append(", ").append(name).append("(avg/p50/p99/max)=");
+                buf.append((count == 0) ? 0 : getTotalTime(phase) / count).append("/");
+                buf.append(getPercentile(phase, 50)).append("/");
+                buf.append(getPercentile(phase, 99)).append("/");
+                buf.append(getMaxTime(phase)).append("us");
+            }
+            return buf.append("]").toString();
+        }
+
+        protected void record (Phase phase, long time) {
+            int idx = phase.ordinal();
+            _totals[idx] += time;
+            _maxes[idx] = Math.max(_maxes[idx], time);
+            int bucket = (time <= 1) ? 0 : 64 - Long.numberOfLeadingZeros(time - 1);
+            _buckets[idx][Math.min(bucket, BUCKETS-1)]++;
+        }
+
+        protected long[] _totals = new long[Phase.values().length];
+        protected long[] _maxes = new long[Phase.values().length];
+        protected int[][] _buckets = new int[Phase.values().length][BUCKETS];
+    }
+
+    // from interface SimpleRepository.OperationObserver
+    public void operationExecuted (String dbident, Repository.Operation<?> op, long acquireTime,
+                                   long invokeTime, long commitTime, int rows,
+                                   Throwable failure, boolean retrying)
+    {
+        Stats stats = getStats(dbident, op.getClass().getName());
+        synchronized (stats) {
+            stats.count++;
+            if (failure != null) {
+                stats.failures++;
+            }
+            if (retrying) {
+                stats.retries++;
+            }
+            if (rows > 0) {
+                stats.rows += rows;
+            }
+            stats.record(Phase.ACQUIRE, acquireTime);
+            stats.record(Phase.INVOKE, invokeTime);
+            stats.record(Phase.COMMIT, commitTime);
+        }
+    }
+
+    /**
+     * Returns a copy of the statistics accumulated so far, sorted by key ({@code dbident:class}).
+     *
+     * @param reset if true, the accumulated statistics are cleared.
+     */
+    public Map<String, Stats> snapshot (boolean reset)
+    {
+        Map<String, Stats> snap = new TreeMap<String, Stats>();
+        for (Map.Entry<String, Stats> entry : _stats.entrySet()) {
+            Stats stats = entry.getValue();
+            synchronized (stats) {
+                snap.put(entry.getKey(), stats.clone());
+                if (reset) {
+                    _stats.remove(entry.getKey(), stats);
+                }
+            }
+        }
+        return snap;
+    }
+
+    protected Stats getStats (String dbident, String operation)
+    {
+        String key = dbident + ":" + operation;
+        Stats stats = _stats.get(key);
+        if (stats == null) {
+            Stats nstats = new Stats(dbident, operation);
+            stats = _stats.putIfAbsent(key, nstats);
+            if (stats == null) {
+                stats = nstats;
+            }
+        }
+        return stats;
+    }
+
+    protected ConcurrentMap<String, Stats> _stats = new ConcurrentHashMap<String, Stats>();
+
+    /** Bucket <code>i</code> holds times in (2^(i-1), 2^i] microseconds; the last is unbounded. */
+    protected static final int BUCKETS = 40;
+}
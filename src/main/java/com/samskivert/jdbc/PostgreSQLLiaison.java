@@ -25,6 +25,12 @@ public class PostgreSQLLiaison extends BaseLiaison
         return (msg != null && msg.indexOf("duplicate key") != -1);
     }
 
+    @Override // from DatabaseLiaison
+    public boolean supportsMultiRowInsert ()
+    {
+        return true;
+    }
+
     // from DatabaseLiaison
     public boolean isTransientException (SQLException sqe)
     {
@@ -0,0 +1,429 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.jdbc;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.samskivert.io.PersistenceException;
+import com.samskivert.util.ConfigUtil;
+import com.samskivert.util.PropertiesUtil;
+import com.samskivert.util.StringUtil;
+
+import static com.samskivert.jdbc.Log.log;
+
+/**
+ * A connection provider that maps each database identifier to a primary database and any number
+ * of read-only replicas. Read-write operations (and transactions) always go to the primary.
+ * Read-only operations are routed to whichever healthy replica has the fewest outstanding
+ * connections. A replica whose connection fails is ejected from the rotation for a time, and if
+ * no replicas are healthy, read-only operations fall back to the primary.
+ *
+ * <p> Connections are pooled per database, so many concurrent operations can be serviced. The
+ * configuration properties look like those used by {@link StaticConnectionProvider} with the
+ * addition of a comma separated list of replica URLs:
+ *
+ * <pre>
+ * IDENT.driver=[jdbc driver class]
+ * IDENT.url=[primary jdbc driver url]
+ * IDENT.replicas=[replica jdbc url],[replica jdbc url],...
+ * IDENT.username=[jdbc username]
+ * IDENT.password=[jdbc password]
+ * IDENT.autocommit=[true|false, if unspecified the driver's default is used]
+ * IDENT.eject_millis=[time for which a failed replica is ejected, default 30000]
+ * IDENT.max_idle=[idle connections retained per database, default 8]
+ * </pre>
+ *
+ * As with the static provider, values may also be provided for the <code>default</code>
+ * identifier and will be used for any identifier that does not override them. Replicas use the
+ * same driver and credentials as their primary.
+ */
+public class ReplicatedConnectionProvider implements ConnectionProvider
+{
+    /**
+     * Creates a provider that will load its configuration from the properties file at the
+     * specified path (relative to the classpath).
+     */
+    public ReplicatedConnectionProvider (String propPath)
+        throws IOException
+    {
+        this(ConfigUtil.loadProperties(propPath));
+    }
+
+    /**
+     * Creates a provider that will obtain its configuration from the supplied properties.
+     */
+    public ReplicatedConnectionProvider (Properties props)
+    {
+        _props = props;
+    }
+
+    /**
+     * Removes the specified replica from the read-only rotation for the specified number of
+     * milliseconds. This can be used by a process that monitors replication lag to keep reads
+     * away from replicas that have fallen too far behind.
+     *
+     * @return true if the replica was found and ejected, false if no replica with the specified
+     * URL is configured for the supplied identifier.
+     */
+    public boolean ejectReplica (String ident, String url, long millis)
+        throws PersistenceException
+    {
+        Cluster cluster = getCluster(ident);
+        for (Source replica : cluster.replicas) {
+            if (replica.url.equals(url)) {
+                replica.eject(millis);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the URL of the database to which the supplied connection (which must have been
+     * obtained from this provider and not yet released) is connected.
+     */
+    public String getConnectionURL (Connection conn)
+    {
+        Source source;
+        synchronized (_owners) {
+            source = _owners.get(conn);
+        }
+        return (source == null) ? null : source.url;
+    }
+
+    // from ConnectionProvider
+    public Connection getConnection (String ident, boolean readOnly)
+        throws PersistenceException
+    {
+        Cluster cluster = getCluster(ident);
+        Source source = readOnly ? cluster.selectReplica() : cluster.primary;
+        Connection conn;
+        try {
+            conn = source.acquire();
+        } catch (PersistenceException pe) {
+            if (source == cluster.primary) {
+                throw pe;
+            }
+            // if we failed to connect to a replica, eject it and fall back to the primary
+            log.warning("Failed to connect to replica, ejecting", "ident", ident,
+                        "url", source.url, "error", pe.getCause());
+            source.eject(cluster.ejectMillis);
+            conn = (source = cluster.primary).acquire();
+        }
+        synchronized (_owners) {
+            _owners.put(conn, source);
+        }
+        return conn;
+    }
+
+    // from ConnectionProvider
+    public void releaseConnection (String ident, boolean readOnly, Connection conn)
+    {
+        Source source = removeOwner(conn);
+        if (source == null) {
+            log.warning("Released unknown connection!?", "ident", ident, "conn", conn);
+            StaticConnectionProvider.close(conn, ident);
+        } else {
+            source.release(conn);
+        }
+    }
+
+    // from ConnectionProvider
+    public void connectionFailed (String ident, boolean readOnly, Connection conn,
+                                  SQLException error)
+    {
+        Source source = removeOwner(conn);
+        StaticConnectionProvider.close(conn, ident);
+        if (source == null) {
+            log.warning("Unknown connection failed!?", "ident", ident, "conn", conn);
+            return;
+        }
+        source.failed();
+
+        // eject failed replicas from the rotation so that we don't keep sending them reads
+        Cluster cluster;
+        synchronized (_clusters) {
+            cluster = _clusters.get(ident);
+        }
+        if (cluster != null && source != cluster.primary) {
+            log.info("Ejecting failed replica", "ident", ident, "url", source.url,
+                     "millis", cluster.ejectMillis, "error", error.getMessage());
+            source.eject(cluster.ejectMillis);
+        }
+    }
+
+    // from ConnectionProvider
+    public Connection getTxConnection (String ident)
+        throws PersistenceException
+    {
+        return getCluster(ident).primary.open(false);
+    }
+
+    // from ConnectionProvider
+    public void releaseTxConnection (String ident, Connection conn)
+    {
+        StaticConnectionProvider.close(conn, ident);
+    }
+
+    // from ConnectionProvider
+    public void txConnectionFailed (String ident, Connection conn, SQLException error)
+    {
+        StaticConnectionProvider.close(conn, ident);
+    }
+
+    // from ConnectionProvider
+    public String getURL (String ident)
+    {
+        Properties props = PropertiesUtil.getSubProperties(_props, ident, DEFAULTS_KEY);
+        return props.getProperty("url");
+    }
+
+    // from ConnectionProvider
+    public void shutdown ()
+    {
+        List<Cluster> clusters;
+        synchronized (_clusters) {
+            clusters = new ArrayList<Cluster>(_clusters.values());
+            _clusters.clear();
+        }
+        for (Cluster cluster : clusters) {
+            cluster.primary.closeIdle();
+            for (Source replica : cluster.replicas) {
+                replica.closeIdle();
+            }
+        }
+    }
+
+    protected Cluster getCluster (String ident)
+        throws PersistenceException
+    {
+        synchronized (_clusters) {
+            Cluster cluster = _clusters.get(ident);
+            if (cluster == null) {
+                Properties props = PropertiesUtil.getSubProperties(_props, ident, DEFAULTS_KEY);
+                _clusters.put(ident, cluster = new Cluster(ident, props));
+            }
+            return cluster;
+        }
+    }
+
+    protected Source removeOwner (Connection conn)
+    {
+        synchronized (_owners) {
+            return _owners.remove(conn);
+        }
+    }
+
+    /** The primary and replicas associated with a particular database identifier. */
+    protected static class Cluster
+    {
+        public final Source primary;
+        public final Source[] replicas;
+        public final long ejectMillis;
+
+        public Cluster (String ident, Properties props) throws PersistenceException {
+            String driver = requireProp(ident, props, "driver");
+            String url = requireProp(ident, props, "url");
+            String username = requireProp(ident, props, "username");
+            String password = props.getProperty("password", "");
+            int maxIdle = Integer.parseInt(props.getProperty("max_idle", "8"));
+            ejectMillis = Long.parseLong(props.getProperty("eject_millis", "30000"));
+            String ac = props.getProperty("autocommit");
+            Boolean autoCommit = (ac == null) ? null : Boolean.valueOf(ac);
+
+            Driver jdriver;
+            try {
+                jdriver = (Driver)Class.forName(driver).newInstance();
+            } catch (Exception e) {
+                throw new PersistenceException("Error loading driver [class=" + driver + "].", e);
+            }
+
+            primary = new Source(jdriver, url, username, password, autoCommit, false, maxIdle);
+            String rprop = props.getProperty("replicas", "");
+            String[] rurls = StringUtil.isBlank(rprop) ?
+                new String[0] : StringUtil.parseStringArray(rprop);
+            replicas = new Source[rurls.length];
+            for (int ii = 0; ii < rurls.length; ii++) {
+                replicas[ii] = new Source(jdriver, rurls[ii].trim(), username, password,
+                                          autoCommit, true, maxIdle);
+            }
+        }
+
+        /**
+         * Returns the healthy replica with the fewest outstanding connections, or the primary if
+         * no replicas are healthy.
+         */
+        public Source selectReplica () {
+            long now = System.currentTimeMillis();
+            Source best = null;
+            int bestLoad = Integer.MAX_VALUE;
+            // rotate our starting point so that ties are spread across the replicas
+            int start = (_rotor.getAndIncrement() & Integer.MAX_VALUE);
+            for (int ii = 0; ii < replicas.length; ii++) {
+                Source replica = replicas[(start + ii) % replicas.length];
+                if (!replica.isHealthy(now)) {
+                    continue;
+                }
+                int load = replica.getOutstanding();
+                if (load < bestLoad) {
+                    best = replica;
+                    bestLoad = load;
+                }
+            }
+            return (best == null) ? primary : best;
+        }
+
+        protected static String requireProp (String ident, Properties props, String name)
+            throws PersistenceException {
+            String value = props.getProperty(name);
+            if (StringUtil.isBlank(value)) {
+                throw new PersistenceException("Unable to get connection. No " + name +
+                                               " specified [ident=" + ident + "]");
+            }
+            return value;
+        }
+
+        protected AtomicInteger _rotor = new AtomicInteger();
+    }
+
+    /** A pool of connections to a single database. */
+    protected static class Source
+    {
+        public final String url;
+
+        public Source (Driver driver, String url, String username, String password,
+                       Boolean autoCommit, boolean readOnly, int maxIdle) {
+            this.url = url;
+            _driver = driver;
+            _username = username;
+            _password = password;
+            _autoCommit = autoCommit;
+            _readOnly = readOnly;
+            _maxIdle = maxIdle;
+        }
+
+        public synchronized boolean isHealthy (long now) {
+            return now >= _ejectedUntil;
+        }
+
+        public synchronized int getOutstanding () {
+            return _outstanding;
+        }
+
+        public synchronized void eject (long millis) {
+            _ejectedUntil = System.currentTimeMillis() + millis;
+        }
+
+        /** Returns an idle connection from the pool or opens a new one. */
+        public Connection acquire () throws PersistenceException {
+            synchronized (this) {
+                _outstanding++;
+                int size = _idle.size();
+                if (size > 0) {
+                    return _idle.remove(size-1);
+                }
+            }
+            try {
+                return open(_autoCommit);
+            } catch (PersistenceException pe) {
+                failed();
+                throw pe;
+            }
+        }
+
+        /** Returns a connection to the pool (or closes it if the pool is full). */
+        public void release (Connection conn) {
+            synchronized (this) {
+                _outstanding--;
+                if (_idle.size() < _maxIdle) {
+                    _idle.add(conn);
+                    return;
+                }
+            }
+            StaticConnectionProvider.close(conn, url);
+        }
+
+        /** Notes that an outstanding connection failed (and has already been closed). */
+        public synchronized void failed () {
+            _outstanding--;
+        }
+
+        /** Opens a new connection to this source's database. */
+        public Connection open (Boolean autoCommit) throws PersistenceException {
+            Connection conn;
+            try {
+                Properties props = new Properties();
+                props.put("user", _username);
+                props.put("password", _password);
+                conn = _driver.connect(url, props);
+                if (conn == null) {
+                    throw new SQLException("Driver does not accept URL [url=" + url + "]");
+                }
+            } catch (SQLException sqe) {
+                throw new PersistenceException(
+                    "Error creating database connection [url=" + url +
+                    ", username=" + _username + "].", sqe);
+            }
+
+            try {
+                if (autoCommit != null) {
+                    conn.setAutoCommit(autoCommit);
+                }
+                if (_readOnly) {
+                    conn.setReadOnly(true);
+                }
+            } catch (SQLException sqe) {
+                StaticConnectionProvider.close(conn, url);
+                throw new PersistenceException("Failed to configure connection [url=" + url + "]",
+                                               sqe);
+            }
+            return conn;
+        }
+
+        public void closeIdle () {
+            List<Connection> idle;
+            synchronized (this) {
+                idle = new ArrayList<Connection>(_idle);
+                _idle.clear();
+            }
+            for (Connection conn : idle) {
+                StaticConnectionProvider.close(conn, url);
+            }
+        }
+
+        protected final Driver _driver;
+        protected final String _username, _password;
+        protected final Boolean _autoCommit;
+        protected final boolean _readOnly;
+        protected final int _maxIdle;
+
+        protected List<Connection> _idle = new ArrayList<Connection>();
+        protected int _outstanding;
+        protected long _ejectedUntil;
+    }
+
+    /** Our configuration in the form of a properties object. */
+    protected Properties _props;
+
+    /** A mapping from database identifier to its primary and replicas. */
+    protected Map<String,Cluster> _clusters = new HashMap<String,Cluster>();
+
+    /** Tracks the source from which each outstanding connection was obtained. */
+    protected Map<Connection,Source> _owners = new IdentityHashMap<Connection,Source>();
+
+    /** The key used as defaults for the database definitions. */
+    protected static final String DEFAULTS_KEY = "default";
+}
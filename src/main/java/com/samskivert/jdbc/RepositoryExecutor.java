@@ -0,0 +1,138 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.jdbc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.samskivert.io.PersistenceException;
+import com.samskivert.util.ResultFuture;
+import com.samskivert.util.ResultListener;
+import com.samskivert.util.RunQueue;
+
+/**
+ * Executes {@link Repository.Operation}s asynchronously on a bounded pool of threads, allowing
+ * many independent database operations to be overlapped rather than serialized on a single
+ * invoker thread. Operations are executed via {@link SimpleRepository#execute(Repository.Operation,
+ * boolean, boolean)}, so they get the same transaction handling and transient failure retry as
+ * synchronous operations. For example:
+ *
+ * <pre>{@code
+ * RepositoryExecutor exec = new RepositoryExecutor("dbexec", 8, 1000);
+ * exec.submit(_userRepo, new Repository.Operation<User>() {
+ *     public User invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
+ *         // ...
+ *     }
+ * }).addListener(_omgr, new ResultListener<User>() {
+ *     public void requestCompleted (User user) { ... }
+ *     public void requestFailed (Exception cause) { ... }
+ * });
+ * }</pre>
+ *
+ * <p> The number of threads should not exceed the number of connections that the repositories'
+ * connection provider can supply concurrently, otherwise the extra threads will simply wait on
+ * connections.
+ */
+public class RepositoryExecutor
+{
+    /**
+     * The handle returned for a submitted operation. It may be waited upon like any other {@link
+     * java.util.concurrent.Future} or listeners may be registered to be notified of the result.
+     */
+    public static class Pending<V> extends ResultFuture<V>
+    {
+        @Override // from ResultFuture
+        public Pending<V> addListener (RunQueue queue, ResultListener<V> listener)
+        {
+            super.addListener(queue, listener);
+            return this;
+        }
+
+        protected Pending (Callable<V> callable)
+        {
+            super(callable);
+        }
+    }
+
+    /**
+     * Creates an executor with the specified number of threads that will queue up at most
+     * <code>maxQueued</code> operations before rejecting new submissions.
+     *
+     * @param name a prefix used to name the executor's threads.
+     */
+    public RepositoryExecutor (final String name, int threads, int maxQueued)
+    {
+        this(new ThreadPoolExecutor(
+                 threads, threads, 60L, TimeUnit.SECONDS,
+                 new ArrayBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+                     public Thread newThread (Runnable r) {
+                         Thread thread = new Thread(r, name + "-" + _count.incrementAndGet());
+                         thread.setDaemon(true);
+                         return thread;
+                     }
+                     protected AtomicInteger _count = new AtomicInteger();
+                 }));
+    }
+
+    /**
+     * Creates an executor that will run operations on the supplied executor service. The service
+     * should be bounded to the number of available database connections.
+     */
+    public RepositoryExecutor (ExecutorService exec)
+    {
+        _exec = exec;
+    }
+
+    /**
+     * Submits a read-only operation for execution on the supplied repository.
+     */
+    public <V> Pending<V> submit (SimpleRepository repo, Repository.Operation<V> op)
+    {
+        return submit(repo, op, true);
+    }
+
+    /**
+     * Submits a read-write operation for execution on the supplied repository.
+     */
+    public <V> Pending<V> submitUpdate (SimpleRepository repo, Repository.Operation<V> op)
+    {
+        return submit(repo, op, false);
+    }
+
+    /**
+     * Shuts down this executor. Operations already submitted will be completed.
+     */
+    public void shutdown ()
+    {
+        _exec.shutdown();
+    }
+
+    protected <V> Pending<V> submit (final SimpleRepository repo,
+                                     final Repository.Operation<V> op, final boolean readOnly)
+    {
+        Pending<V> pending = new Pending<V>(new Callable<V>() {
+            public V call () throws Exception {
+                return repo.execute(op, true, readOnly);
+            }
+        });
+        try {
+            _exec.execute(pending);
+        } catch (RejectedExecutionException ree) {
+            pending.setException(new PersistenceException(
+                                     "Operation rejected by repository executor [op=" + op + "]",
+                                     ree));
+        }
+        return pending;
+    }
+
+    protected ExecutorService _exec;
+}
@@ -0,0 +1,238 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.jdbc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import com.samskivert.io.PersistenceException;
+
+/**
+ * Spreads the rows of a repository across a number of databases (shards), each accessed via its
+ * own repository instance configured with a distinct database identifier. Operations on a single
+ * key are routed to the shard that owns the key and multi-key operations are scattered to the
+ * relevant shards, executed in parallel and their results gathered. For example:
+ *
+ * <pre>{@code
+ * List<UserRepository> repos = new ArrayList<UserRepository>();
+ * for (String ident : new String[] { "userdb0", "userdb1", "userdb2" }) {
+ *     repos.add(new UserRepository(provider, ident));
+ * }
+ * ShardedRepository<UserRepository> users = new ShardedRepository<UserRepository>(
+ *     repos, ShardedRepository.MODULO, executor);
+ *
+ * User user = users.getShardFor(userId).loadUser(userId);
+ * List<User> found = users.gather(
+ *     userIds, new ShardedRepository.Gatherer<UserRepository,Integer,User>() {
+ *     public Collection<User> gather (UserRepository repo, List<Integer> keys)
+ *         throws PersistenceException {
+ *         return repo.loadUsersFromId(IntListUtil.unbox(keys)).values();
+ *     }
+ * });
+ * }</pre>
+ *
+ * <p> Note that transactions do not span shards: each shard's portion of a scattered operation
+ * is executed and committed independently.
+ */
+public class ShardedRepository<R extends SimpleRepository>
+{
+    /** Maps a key to the index of the shard that owns it. */
+    public static interface ShardFunction
+    {
+        /**
+         * Returns the index (in <code>[0, shards)</code>) of the shard that owns the supplied key.
+         */
+        public int getShard (Object key, int shards);
+    }
+
+    /** Loads the data for a set of keys from a single shard, see {@link #gather}. */
+    public static interface Gatherer<R, K, V>
+    {
+        /**
+         * Loads the data for the supplied keys (all of which belong to the supplied shard). This
+         * will be called concurrently for different shards.
+         */
+        public Collection<V> gather (R shard, List<K> keys)
+            throws PersistenceException;
+    }
+
+    /**
+     * Assigns numeric keys to shards by their value modulo the number of shards and all other
+     * keys by their hash code modulo the number of shards.
+     */
+    public static final ShardFunction MODULO = new ShardFunction() {
+        public int getShard (Object key, int shards) {
+            long value = (key instanceof Number) ? ((Number)key).longValue() : key.hashCode();
+            return (int)(((value % shards) + shards) % shards);
+        }
+    };
+
+    /**
+     * Creates a sharded repository.
+     *
+     * @param shards the repositories for each shard, in shard index order.
+     * @param function maps keys to shards.
+     * @param executor used to execute the portions of scattered operations in parallel. If null,
+     * they will be executed serially on the calling thread.
+     */
+    public ShardedRepository (List<R> shards, ShardFunction function, Executor executor)
+    {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("Must supply at least one shard.");
+        }
+        _shards = new ArrayList<R>(shards);
+        _function = function;
+        _executor = executor;
+    }
+
+    /**
+     * Returns the number of shards.
+     */
+    public int getShardCount ()
+    {
+        return _shards.size();
+    }
+
+    /**
+     * Returns the repository for the shard with the specified index.
+     */
+    public R getShard (int index)
+    {
+        return _shards.get(index);
+    }
+
+    /**
+     * Returns the repository for the shard that owns the supplied key.
+     */
+    public R getShardFor (Object key)
+    {
+        return _shards.get(_function.getShard(key, _shards.size()));
+    }
+
+    /**
+     * Executes a read-only operation on the shard that owns the supplied key.
+     */
+    public <V> V execute (Object key, Repository.Operation<V> op)
+        throws PersistenceException
+    {
+        return getShardFor(key).execute(op, true, true);
+    }
+
+    /**
+     * Executes a read-write operation on the shard that owns the supplied key.
+     */
+    public <V> V executeUpdate (Object key, Repository.Operation<V> op)
+        throws PersistenceException
+    {
+        return getShardFor(key).execute(op, true, false);
+    }
+
+    /**
+     * Splits the supplied keys into lists by owning shard. The returned list contains one
+     * (possibly empty) list of keys for each shard.
+     */
+    public <K> List<List<K>> partition (Collection<K> keys)
+    {
+        List<List<K>> parts = new ArrayList<List<K>>(_shards.size());
+        for (int ii = 0, nn = _shards.size(); ii < nn; ii++) {
+            parts.add(new ArrayList<K>());
+        }
+        for (K key : keys) {
+            parts.get(_function.getShard(key, _shards.size())).add(key);
+        }
+        return parts;
+    }
+
+    /**
+     * Partitions the supplied keys by shard, calls the gatherer in parallel for each shard that
+     * owns at least one key and returns the merged results. If any shard fails, the first failure
+     * is thrown once all shards have completed.
+     */
+    public <K, V> List<V> gather (Collection<K> keys, Gatherer<R, K, V> gatherer)
+        throws PersistenceException
+    {
+        List<List<K>> parts = partition(keys);
+        List<Integer> shards = new ArrayList<Integer>();
+        for (int ii = 0; ii < parts.size(); ii++) {
+            if (!parts.get(ii).isEmpty()) {
+                shards.add(ii);
+            }
+        }
+        return scatter(shards, parts, gatherer);
+    }
+
+    /**
+     * Calls the gatherer in parallel for every shard (with a null key list) and returns the
+     * merged results. This is useful for queries that cannot be routed by key.
+     */
+    public <V> List<V> gatherAll (Gatherer<R, Object, V> gatherer)
+        throws PersistenceException
+    {
+        List<Integer> shards = new ArrayList<Integer>();
+        for (int ii = 0; ii < _shards.size(); ii++) {
+            shards.add(ii);
+        }
+        return scatter(shards, null, gatherer);
+    }
+
+    protected <K, V> List<V> scatter (
+        List<Integer> shards, final List<List<K>> parts, final Gatherer<R, K, V> gatherer)
+        throws PersistenceException
+    {
+        final List<V> results = new ArrayList<V>();
+        final Exception[] failure = new Exception[1];
+        final CountDownLatch latch = new CountDownLatch(shards.size());
+        for (int ii = 0, nn = shards.size(); ii < nn; ii++) {
+            final int shard = shards.get(ii);
+            Runnable task = new Runnable() {
+                public void run () {
+                    try {
+                        Collection<V> found = gatherer.gather(
+                            _shards.get(shard), (parts == null) ? null : parts.get(shard));
+                        synchronized (results) {
+                            results.addAll(found);
+                        }
+                    } catch (Exception e) {
+                        synchronized (results) {
+                            if (failure[0] == null) {
+                                failure[0] = e;
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            };
+            // run the last (or only) portion on the calling thread
+            if (_executor == null || ii == nn-1) {
+                task.run();
+            } else {
+                _executor.execute(task);
+            }
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException ie) {
+            throw new PersistenceException("Interrupted waiting for shards", ie);
+        }
+        synchronized (results) {
+            if (failure[0] instanceof PersistenceException) {
+                throw (PersistenceException)failure[0];
+            } else if (failure[0] != null) {
+                throw new PersistenceException("Shard operation failed", failure[0]);
+            }
+            return results;
+        }
+    }
+
+    protected List<R> _shards;
+    protected ShardFunction _function;
+    protected Executor _executor;
+}
@@ -6,6 +6,12 @@
 package com.samskivert.jdbc;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 import com.samskivert.io.PersistenceException;
 import com.samskivert.util.StringUtil;
@@ -36,6 +42,50 @@ public class SimpleRepository extends Repository
         _precond = condition;
     }
 
+    /** See {@link #setOperationObserver}. */
+    public static interface OperationObserver
+    {
+        /**
+         * Called after every attempt to execute an operation, successful or not. All times are in
+         * microseconds. This is called on the thread that executed the operation, while it still
+         * holds its database connection, so it should return quickly.
+         *
+         * @param acquireTime the time spent obtaining and preparing a database connection.
+         * @param invokeTime the time spent in {@link Operation#invoke}.
+         * @param commitTime the time spent committing the transaction.
+         * @param rows the number of elements in the operation's result if it is a collection,
+         * map or array, otherwise -1.
+         * @param failure the exception that caused the attempt to fail, or null.
+         * @param retrying true if the attempt failed due to a transient failure and the operation
+         * will be attempted again.
+         */
+        public void operationExecuted (String dbident, Operation<?> op, long acquireTime,
+                                       long invokeTime, long commitTime, int rows,
+                                       Throwable failure, boolean retrying);
+    }
+
+    /**
+     * Configures an observer that will be informed of the timing of every database operation
+     * executed by any simple repository (see {@link OperationStats} for a useful implementation).
+     * No timing information is gathered if no observer is configured (and no slow operation
+     * threshold is set).
+     */
+    public static void setOperationObserver (OperationObserver observer)
+    {
+        _observer = observer;
+    }
+
+    /**
+     * Configures a threshold (in milliseconds) beyond which an operation will be logged as slow,
+     * along with the SQL that it executed. A threshold of zero (the default) disables slow
+     * operation logging. Note that capturing the SQL requires that the connection passed to each
+     * operation be proxied, which adds a small overhead to every operation while enabled.
+     */
+    public static void setSlowOperationThreshold (long millis)
+    {
+        _slowThreshold = millis;
+    }
+
     /**
      * Creates and initializes a simple repository which will access the database identified by the
      * supplied database identifier.
@@ -126,6 +176,15 @@ public class SimpleRepository extends Repository
         boolean attemptedOperation = false;
         Boolean oldAutoCommit = null;
 
+        // note the time if we're gathering timing information
+        OperationObserver observer = _observer;
+        long slowThreshold = _slowThreshold;
+        boolean timed = (observer != null || slowThreshold > 0);
+        long start = timed ? System.nanoTime() : 0L, ready = start, invoked = start, done = start;
+        List<String> sql = (slowThreshold > 0) ? new ArrayList<String>() : null;
+        Throwable failure = null;
+        boolean retrying = false;
+
         // check our pre-condition
         if (_precond != null && !_precond.validate(_dbident, op)) {
             log.warning("Repository operation failed pre-condition check!", "dbident", _dbident,
@@ -158,17 +217,27 @@ public class SimpleRepository extends Repository
 
                 // invoke the operation
                 attemptedOperation = true;
-                rv = op.invoke(conn, liaison);
+                if (timed) {
+                    ready = System.nanoTime();
+                }
+                rv = op.invoke((sql == null) ? conn : JDBCUtil.makeRecorder(conn, sql), liaison);
+                if (timed) {
+                    invoked = System.nanoTime();
+                }
 
                 // commit the transaction
                 if (supportsTransactions) {
                     conn.commit();
                 }
+                if (timed) {
+                    done = System.nanoTime();
+                }
 
                 // return the operation result
                 return rv;
 
             } catch (SQLException sqe) {
+                failure = sqe;
                 if (attemptedOperation) {
                     // back out our changes if something got hosed (but not if the hosage was a
                     // result of losing our connection)
@@ -199,8 +268,10 @@ public class SimpleRepository extends Repository
                 // trace, I'll call printStackTrace() thanksverymuch
                 String msg = StringUtil.split("" + sqe, "\n")[0];
                 log.info("Transient failure executing operation, retrying", "error", msg);
+                retrying = true;
 
             } catch (PersistenceException pe) {
+                failure = pe;
                 // back out our changes if something got hosed
                 try {
                     if (supportsTransactions && !conn.isClosed()) {
@@ -212,6 +283,7 @@ public class SimpleRepository extends Repository
                 throw pe;
 
             } catch (RuntimeException rte) {
+                failure = rte;
                 // back out our changes if something got hosed
                 try {
                     if (supportsTransactions && conn != null && !conn.isClosed()) {
@@ -223,6 +295,22 @@ public class SimpleRepository extends Repository
                 throw rte;
 
             } finally {
+                if (timed) {
+                    // if we failed partway through, attribute the remaining time to that phase
+                    long now = System.nanoTime();
+                    if (failure != null) {
+                        if (!attemptedOperation) {
+                            ready = invoked = done = now;
+                        } else if (invoked == start) {
+                            invoked = done = now;
+                        } else if (done == start) {
+                            done = now;
+                        }
+                    }
+                    noteExecuted(op, observer, slowThreshold, (ready - start) / 1000,
+                                 (invoked - ready) / 1000, (done - invoked) / 1000,
+                                 (failure == null) ? countRows(rv) : -1, failure, retrying, sql);
+                }
                 if (conn != null) {
                     try {
                         // restore our auto-commit settings
@@ -312,6 +400,105 @@ public class SimpleRepository extends Repository
         });
     }
 
+    /**
+     * Issues the supplied query for a potentially large number of keys, binding the keys to
+     * prepared statements in batches of at most {@link #KEY_BATCH_SIZE}. See {@link
+     * JDBCUtil#batchQuery(Connection,String,Collection,int,JDBCUtil.BatchProcessor)}.
+     *
+     * @param query the SQL query with <code>#KEYS#</code> in place of the key placeholders.
+     */
+    protected void batchQuery (final String query, final Collection<?> keys,
+                               final JDBCUtil.BatchProcessor processor)
+        throws PersistenceException
+    {
+        if (keys.isEmpty()) {
+            return;
+        }
+        execute(new Operation<Object>() {
+            public Object invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException, PersistenceException
+            {
+                JDBCUtil.batchQuery(conn, query, keys, KEY_BATCH_SIZE, processor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Like {@link #batchQuery(String,Collection,JDBCUtil.BatchProcessor)} but splits the keys
+     * into as many as <code>parallelism</code> groups and executes each group as a separate
+     * operation on the supplied executor, allowing the batches to run concurrently on multiple
+     * connections (assuming that our connection provider pools connections). The calling thread
+     * blocks until all groups have completed. Calls to the processor are serialized, so it need
+     * not be thread-safe.
+     */
+    protected void batchQuery (final String query, Collection<?> keys,
+                               final JDBCUtil.BatchProcessor processor,
+                               Executor executor, int parallelism)
+        throws PersistenceException
+    {
+        // if there's not enough work to split up, don't bother
+        int batches = (keys.size() + KEY_BATCH_SIZE - 1) / KEY_BATCH_SIZE;
+        int groups = Math.min(parallelism, batches);
+        if (groups <= 1) {
+            batchQuery(query, keys, processor);
+            return;
+        }
+
+        // split our keys into groups containing whole batches
+        int perGroup = ((batches + groups - 1) / groups) * KEY_BATCH_SIZE;
+        List<List<Object>> split = new ArrayList<List<Object>>();
+        List<Object> group = null;
+        for (Object key : keys) {
+            if (group == null || group.size() == perGroup) {
+                split.add(group = new ArrayList<Object>(perGroup));
+            }
+            group.add(key);
+        }
+
+        // serialize access to the caller's processor
+        final JDBCUtil.BatchProcessor sproc = new JDBCUtil.BatchProcessor() {
+            public void process (ResultSet row) throws SQLException {
+                synchronized (this) {
+                    processor.process(row);
+                }
+            }
+        };
+
+        final CountDownLatch latch = new CountDownLatch(split.size());
+        final PersistenceException[] failure = new PersistenceException[1];
+        for (final List<Object> gkeys : split) {
+            executor.execute(new Runnable() {
+                public void run () {
+                    try {
+                        batchQuery(query, gkeys, sproc);
+                    } catch (PersistenceException pe) {
+                        synchronized (failure) {
+                            failure[0] = pe;
+                        }
+                    } catch (RuntimeException re) {
+                        synchronized (failure) {
+                            failure[0] = new PersistenceException("Batch query failed", re);
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException ie) {
+            throw new PersistenceException("Interrupted awaiting batch query", ie);
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
     /**
      * Instructs MySQL to perform table maintenance on the specified table.
      *
@@ -367,6 +554,46 @@ public class SimpleRepository extends Repository
     {
     }
 
+    /**
+     * Reports the timing of an operation to our observer and logs it if it was slow.
+     */
+    protected void noteExecuted (Operation<?> op, OperationObserver observer, long slowThreshold,
+                                 long acquireTime, long invokeTime, long commitTime, int rows,
+                                 Throwable failure, boolean retrying, List<String> sql)
+    {
+        if (observer != null) {
+            try {
+                observer.operationExecuted(_dbident, op, acquireTime, invokeTime, commitTime,
+                                           rows, failure, retrying);
+            } catch (Throwable t) {
+                log.warning("Operation observer choked", "observer", observer, t);
+            }
+        }
+        if (slowThreshold > 0 && (acquireTime + invokeTime + commitTime) / 1000 >= slowThreshold) {
+            log.warning("Slow repository operation", "dbident", _dbident,
+                        "op", op.getClass().getName(), "acquire", (acquireTime / 1000) + "ms",
+                        "invoke", (invokeTime / 1000) + "ms", "commit", (commitTime / 1000) + "ms",
+                        "rows", rows, "failed", (failure != null), "sql", sql);
+        }
+    }
+
+    /**
+     * Returns the number of rows represented by an operation result, or -1 if the result is not
+     * a collection, map or array.
+     */
+    protected static int countRows (Object result)
+    {
+        if (result instanceof Collection<?>) {
+            return ((Collection<?>)result).size();
+        } else if (result instanceof Map<?,?>) {
+            return ((Map<?,?>)result).size();
+        } else if (result instanceof Object[]) {
+            return ((Object[])result).length;
+        } else {
+            return -1;
+        }
+    }
+
     /**
      * Converts a row of a result set to a string, prepending each column with the column name from
      * the result set metadata.
@@ -390,4 +617,10 @@ public class SimpleRepository extends Repository
     protected String _dbident;
 
     protected static PreCondition _precond;
+
+    protected static volatile OperationObserver _observer;
+    protected static volatile long _slowThreshold;
+
+    /** The maximum number of keys bound into a single query by {@link #batchQuery}. */
+    protected static final int KEY_BATCH_SIZE = 256;
 }
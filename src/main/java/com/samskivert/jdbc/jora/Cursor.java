@@ -44,6 +44,13 @@ public class Cursor<V>
                 _table.bindQueryVariables(qbeStmt, _qbeObject, _qbeMask);
                 _result = qbeStmt.executeQuery();
                 _stmt = qbeStmt;
+            } else if (_args != null) {
+                PreparedStatement argStmt = _conn.prepareStatement(_query);
+                for (int ii = 0; ii < _args.length; ii++) {
+                    argStmt.setObject(ii+1, _args[ii]);
+                }
+                _result = argStmt.executeQuery();
+                _stmt = argStmt;
             } else {
                 if (_stmt == null) {
                     _stmt = _conn.createStatement();
@@ -110,6 +117,7 @@ public class Cursor<V>
             throw new IllegalStateException("No current object");
         }
         _table.updateVariables(_result, _currObject);
+        _table.invalidate(_currObject);
     }
 
     /**
@@ -133,6 +141,7 @@ public class Cursor<V>
             throw new IllegalStateException("No current object");
         }
         _result.deleteRow();
+        _table.invalidate(_currObject);
     }
 
     /**
@@ -194,6 +203,13 @@ public class Cursor<V>
         _query = query;
     }
 
+    protected Cursor (Table<V> table, Connection conn, String query,
+                      Object[] args)
+    {
+        this(table, conn, query);
+        _args = args;
+    }
+
     protected Cursor (Table<V> table, Connection conn, V obj,
                       FieldMask mask, boolean like)
     {
@@ -213,6 +229,7 @@ public class Cursor<V>
     protected Statement _stmt;
     protected V _currObject, _qbeObject;
     protected FieldMask _qbeMask;
+    protected Object[] _args;
     protected boolean _like;
 }
 
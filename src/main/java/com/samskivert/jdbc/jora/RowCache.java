@@ -0,0 +1,150 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.jdbc.jora;
+
+import com.samskivert.util.ExpiringReference;
+import com.samskivert.util.LRUHashMap;
+
+/**
+ * A bounded, expiring cache of rows keyed on their primary key, used by a {@link Table} that has
+ * been configured via {@link Table#setCache}. The cache stores private copies of rows and hands
+ * out copies, so callers may freely modify the objects they are given.
+ *
+ * <p> Every invalidation advances a generation counter. Code that loads a row from the database
+ * should note the generation before issuing its query and supply it to {@link #put}, which will
+ * discard the row if it may have been invalidated while it was being loaded.
+ */
+public class RowCache<T>
+{
+    /**
+     * Creates a cache that will hold at most <code>maxSize</code> rows for at most
+     * <code>ttlMillis</code> milliseconds each.
+     */
+    public RowCache (Table<T> table, int maxSize, long ttlMillis)
+    {
+        _table = table;
+        _rows = new LRUHashMap<String, ExpiringReference<T>>(maxSize);
+        _ttl = ttlMillis;
+    }
+
+    /**
+     * Returns a copy of the cached row with the specified key, or null if no valid row is cached.
+     */
+    public T get (String key)
+    {
+        T row;
+        synchronized (this) {
+            ExpiringReference<T> ref = _rows.get(key);
+            row = ExpiringReference.get(ref);
+            if (row == null) {
+                if (ref != null) {
+                    _rows.remove(key);
+                }
+                _misses++;
+                return null;
+            }
+            _hits++;
+        }
+        T copy = _table.copy(row);
+        _table.remember(copy, null);
+        return copy;
+    }
+
+    /**
+     * Returns the current generation of this cache.
+     */
+    public synchronized long getGeneration ()
+    {
+        return _generation;
+    }
+
+    /**
+     * Caches a copy of the supplied row, as long as no invalidation has taken place since the
+     * specified generation.
+     */
+    public void put (T row, long generation)
+    {
+        String key = _table.getCacheKey(row);
+        if (key == null) {
+            return;
+        }
+        T copy = _table.copy(row);
+        synchronized (this) {
+            if (generation == _generation) {
+                _rows.put(key, ExpiringReference.create(copy, _ttl));
+            }
+        }
+    }
+
+    /**
+     * Removes the supplied row from the cache.
+     */
+    public void invalidate (T row)
+    {
+        String key = _table.getCacheKey(row);
+        synchronized (this) {
+            _generation++;
+            if (key != null) {
+                _rows.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Removes all rows from the cache.
+     */
+    public synchronized void clear ()
+    {
+        _generation++;
+        _rows.clear();
+    }
+
+    /**
+     * Returns the number of rows in the cache (some of which may have expired).
+     */
+    public synchronized int size ()
+    {
+        return _rows.size();
+    }
+
+    /**
+     * Returns the number of lookups satisfied from the cache.
+     */
+    public synchronized long getHits ()
+    {
+        return _hits;
+    }
+
+    /**
+     * Returns the number of lookups that were not satisfied from the cache.
+     */
+    public synchronized long getMisses ()
+    {
+        return _misses;
+    }
+
+    /**
+     * Returns the fraction of lookups satisfied from the cache, or zero if no lookups have been
+     * made.
+     */
+    public synchronized float getHitRate ()
+    {
+        long total = _hits + _misses;
+        return (total == 0) ? 0f : _hits / (float)total;
+    }
+
+    @Override // from Object
+    public synchronized String toString ()
+    {
+        return "[table=" + _table.getName() + ", size=" + _rows.size() + ", hits=" + _hits +
+            ", misses=" + _misses + ", generation=" + _generation + "]";
+    }
+
+    protected Table<T> _table;
+    protected LRUHashMap<String, ExpiringReference<T>> _rows;
+    protected long _ttl;
+    protected long _generation, _hits, _misses;
+}
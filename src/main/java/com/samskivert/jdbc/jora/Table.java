@@ -8,8 +8,14 @@ package com.samskivert.jdbc.jora;
 import java.io.Serializable;
 import java.util.*;
 import java.sql.*;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import com.samskivert.jdbc.JDBCUtil;
 import com.samskivert.util.StringUtil;
 
 /**
@@ -90,6 +96,169 @@ public class Table<T>
         return name;
     }
 
+    /**
+     * Configures a cache of rows keyed on this table's primary key. Rows loaded via {@link
+     * com.samskivert.jdbc.JORARepository} will be cached and single row lookups whose condition
+     * is simply a match on the primary key (e.g. <code>where userId = 5</code>) will be served
+     * from the cache. Rows are invalidated when they are updated or deleted via this table or a
+     * cursor obtained from it.
+     *
+     * <p> Rows modified by other means (raw SQL, other processes) will be visible only once their
+     * cached copies expire, so the TTL should be chosen accordingly.
+     *
+     * @param maxSize the maximum number of rows to cache, or zero to disable caching.
+     * @param ttlMillis the number of milliseconds for which a cached row remains valid.
+     */
+    public void setCache (int maxSize, long ttlMillis)
+    {
+        if (maxSize > 0 && primaryKeys == null) {
+            throw new IllegalStateException(
+                "No primary key for table " + name + ".");
+        }
+        _cache = (maxSize > 0) ? new RowCache<T>(this, maxSize, ttlMillis) : null;
+    }
+
+    /**
+     * Returns this table's row cache, or null if caching is not enabled.
+     */
+    public RowCache<T> getCache ()
+    {
+        return _cache;
+    }
+
+    /**
+     * Returns the cache key for the supplied row, which is derived from the values of its primary
+     * key fields, or null if any of those values is null.
+     */
+    public String getCacheKey (T obj)
+    {
+        StringBuilder key = new StringBuilder();
+        try {
+            for (int i = 0; i < primaryKeyIndices.length; i++) {
+                Object value = fields[primaryKeyIndices[i]].field.get(obj);
+                if (value == null) {
+                    return null;
+                }
+                if (i > 0) {
+                    key.append(KEY_SEPARATOR);
+                }
+                key.append(value);
+            }
+        } catch (IllegalAccessException ex) {
+            throw new IllegalAccessError();
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the cache key for the row matched by the supplied condition, if the condition is a
+     * match on exactly this table's primary key columns against integer or string literals (for
+     * example <code>where userId = 5</code> or <code>where a = 'x' and b = 3</code>). Returns null
+     * for any other condition.
+     */
+    public String getCacheKey (String condition)
+    {
+        Matcher m = WHERE_PATTERN.matcher(condition);
+        if (primaryKeys == null || !m.matches()) {
+            return null;
+        }
+        String[] values = new String[primaryKeys.length];
+        Matcher tm = TERM_PATTERN.matcher(m.group(1));
+        int pos = 0, end = m.group(1).length(), count = 0;
+        while (pos < end) {
+            tm.region(pos, end);
+            // all but the first term must be preceded by AND
+            if (!tm.lookingAt() || (pos > 0) != (tm.start(1) > pos)) {
+                return null;
+            }
+            int kidx = -1;
+            for (int i = 0; i < primaryKeys.length; i++) {
+                if (primaryKeys[i].equalsIgnoreCase(tm.group(1))) {
+                    kidx = i;
+                }
+            }
+            if (kidx < 0 || values[kidx] != null) {
+                return null;
+            }
+            String value = tm.group(2);
+            if (value.startsWith("'")) {
+                value = value.substring(1, value.length()-1).replace("''", "'");
+            }
+            values[kidx] = value;
+            count++;
+            pos = tm.end();
+        }
+        if (count != primaryKeys.length) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(values[0]);
+        for (int i = 1; i < values.length; i++) {
+            key.append(KEY_SEPARATOR).append(values[i]);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Creates a copy of the supplied row. Compound fields are copied recursively, all other field
+     * values are shared with the original.
+     */
+    public T copy (T obj)
+    {
+        T copy = newInstance();
+        copy(obj, copy, 0, nFields);
+        return copy;
+    }
+
+    /**
+     * Configures whether this table tracks changes to the objects it loads.
+     * When enabled, a snapshot of each loaded object's column values is
+     * retained (until the object is garbage collected) and {@link
+     * #update(Connection,Object)} writes only the columns whose values differ
+     * from the snapshot, skipping the update entirely if none do. Columns
+     * holding streams, blobs or serialized objects are always written.
+     *
+     * <p> Updating an object does not advance its snapshot, as the
+     * transaction making the update may yet be rolled back (or retried). Once
+     * it has been committed, call {@link #committed} to do so. The update
+     * methods of {@link com.samskivert.jdbc.JORARepository} take care of this.
+     */
+    public void setTrackChanges (boolean track)
+    {
+        _snapshots = track ? new Snapshots() : null;
+    }
+
+    /**
+     * Returns a field mask indicating which fields of the supplied object
+     * differ from the snapshot taken when it was loaded, or null if changes
+     * are not being tracked or no snapshot exists for the object.
+     */
+    public FieldMask getModifiedFields (T obj)
+    {
+        Snapshots snapshots = _snapshots;
+        Object[] snap = (snapshots == null) ? null : snapshots.get(obj);
+        if (snap == null) {
+            return null;
+        }
+        FieldMask mask = getFieldMask();
+        try {
+            diff(obj, snap, 0, nFields, mask);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalAccessError();
+        }
+        return mask;
+    }
+
+    /**
+     * Notes that the fields of the supplied object indicated by the supplied
+     * mask (or all of its fields if the mask is null) have been written to
+     * the database by a transaction that has since been committed, advancing
+     * its change tracking snapshot accordingly.
+     */
+    public void committed (T obj, FieldMask mask)
+    {
+        remember(obj, mask);
+    }
+
     /**
      * Select records from database table according to search condition
      *
@@ -120,6 +289,28 @@ public class Table<T>
         return new Cursor<T>(this, conn, query);
     }
 
+    /**
+     * Select records from database table according to a parameterized search
+     * condition, including the specified (comma separated) extra tables into
+     * the SELECT clause. The query is executed as a prepared statement with
+     * the supplied arguments bound to the <code>?</code> placeholders in the
+     * condition, so the arguments need not be escaped.
+     *
+     * @param tables the (comma separated) names of extra tables to include in
+     * the SELECT clause, or null.
+     * @param condition valid SQL condition expression started with WHERE.
+     * @param args the values to bind to the condition's placeholders.
+     */
+    public final Cursor<T> select (Connection conn, String tables,
+                                   String condition, Object... args)
+    {
+        String query = (tables == null) ?
+            "select " + listOfFields + " from " + name + " " + condition :
+            "select " + qualifiedListOfFields + " from " + name + "," +
+            tables + " " + condition;
+        return new Cursor<T>(this, conn, query, args);
+    }
+
     /**
      * Select records from database table according to search condition
      * including the specified (comma separated) extra tables into the SELECT
@@ -151,6 +342,29 @@ public class Table<T>
         return new Cursor<T>(this, conn, query);
     }
 
+    /**
+     * Select records from database table whose <code>column</code> matches any of the supplied
+     * keys. The keys are bound to prepared <code>in</code> clauses, at most <code>batchSize</code>
+     * keys per query. See {@link
+     * JDBCUtil#batchQuery(Connection,String,Collection,int,JDBCUtil.BatchProcessor)}.
+     *
+     * @param column the (unqualified) name of the column to match against the keys.
+     */
+    public final ArrayList<T> selectIn (Connection conn, String column, Collection<?> keys,
+                                        int batchSize)
+        throws SQLException
+    {
+        final ArrayList<T> rows = new ArrayList<T>();
+        String query = "select " + listOfFields + " from " + name +
+            " where " + column + " in (#KEYS#)";
+        JDBCUtil.batchQuery(conn, query, keys, batchSize, new JDBCUtil.BatchProcessor() {
+            public void process (ResultSet row) throws SQLException {
+                rows.add(load(row));
+            }
+        });
+        return rows;
+    }
+
     /**
      * Select records from database table using <I>obj</I> object as template.
      *
@@ -243,6 +457,84 @@ public class Table<T>
         insertStmt.close();
     }
 
+    /**
+     * Inserts the supplied records into the table, either in a single round trip as one
+     * multi-row <code>insert ... values (...), (...)</code> statement or as a JDBC batch of
+     * single-row inserts, and optionally returns the keys generated for the inserted rows. Note
+     * that if generated keys are requested without a multi-row insert, the records are inserted
+     * one at a time, requiring a round trip per record.
+     * Callers inserting large numbers of rows should split them into bounded chunks (see {@link
+     * #getMaxRowsPerInsert}); this method issues everything it is given at once.
+     *
+     * @param multiRow if true, a single multi-row insert statement will be used, otherwise a
+     * batch of single row inserts (or individual inserts if generated keys are requested). Not
+     * all databases support multi-row inserts.
+     * @param keyColumn the name of the column whose generated values should be returned, or null
+     * if generated keys are not needed.
+     *
+     * @return the keys generated for each of the inserted records in order, or null if no key
+     * column was specified.
+     */
+    public synchronized int[] insert (Connection conn, List<T> objects, boolean multiRow,
+                                      String keyColumn)
+        throws SQLException
+    {
+        int rows = multiRow ? objects.size() : 1;
+        StringBuilder sql = new StringBuilder(
+            "insert into " + name + " (" + listOfFields + ") values ");
+        for (int r = 0; r < rows; r++) {
+            sql.append(r == 0 ? "(?" : ",(?");
+            for (int i = 1; i < nColumns; i++) {
+                sql.append(",?");
+            }
+            sql.append(")");
+        }
+
+        PreparedStatement insertStmt = (keyColumn == null) ?
+            conn.prepareStatement(sql.toString()) :
+            conn.prepareStatement(sql.toString(), Statement.RETURN_GENERATED_KEYS);
+        try {
+            if (multiRow) {
+                int column = 0;
+                for (T obj : objects) {
+                    column = bindUpdateVariables(insertStmt, obj, 0, nFields, column, null);
+                }
+                insertStmt.executeUpdate();
+            } else if (keyColumn != null) {
+                // drivers are not required to report the keys generated by a batch, so we have
+                // to insert the rows one at a time if keys were requested
+                int[] keys = new int[objects.size()];
+                for (int ii = 0; ii < keys.length; ii++) {
+                    bindUpdateVariables(insertStmt, objects.get(ii), null);
+                    insertStmt.executeUpdate();
+                    keys[ii] = readGeneratedKeys(insertStmt, keyColumn, 1)[0];
+                }
+                return keys;
+            } else {
+                for (T obj : objects) {
+                    bindUpdateVariables(insertStmt, obj, null);
+                    insertStmt.addBatch();
+                }
+                insertStmt.executeBatch();
+            }
+            return (keyColumn == null) ? null :
+                readGeneratedKeys(insertStmt, keyColumn, objects.size());
+
+        } finally {
+            insertStmt.close();
+        }
+    }
+
+    /**
+     * Returns the maximum number of rows that should be combined into a single multi-row insert
+     * into this table, given the number of columns in the table and the (conservative) limit on
+     * bound parameters per statement imposed by various databases.
+     */
+    public int getMaxRowsPerInsert ()
+    {
+        return Math.max(1, MAX_INSERT_PARAMETERS / nColumns);
+    }
+
     /**
      * Returns a field mask that can be configured and used to update subsets
      * of entire objects via calls to {@link #update(Connection,Object,FieldMask)}.
@@ -265,7 +557,13 @@ public class Table<T>
     public int update (Connection conn, T obj)
         throws SQLException
     {
-        return update(conn, obj, null);
+        // if we're tracking changes and have a snapshot of this object, only write the columns
+        // that have changed since it was loaded (or skip the update entirely)
+        FieldMask mask = getModifiedFields(obj);
+        if (mask != null && !mask.isModified()) {
+            return 1;
+        }
+        return update(conn, obj, _hasCompound ? null : mask);
     }
 
     /**
@@ -296,6 +594,7 @@ public class Table<T>
         }
         nUpdated = ustmt.executeUpdate();
         ustmt.close();
+        invalidate(obj);
         return nUpdated;
     }
 
@@ -329,6 +628,7 @@ public class Table<T>
                     updateStmt, objects[i], column+1+j);
             }
             updateStmt.addBatch();
+            invalidate(objects[i]);
         }
         int rc[] = updateStmt.executeBatch();
         for (int k = 0; k < rc.length; k++) {
@@ -362,6 +662,8 @@ public class Table<T>
         }
         nDeleted = deleteStmt.executeUpdate();
         deleteStmt.close();
+        invalidate(obj);
+        forget(obj);
         return nDeleted;
     }
 
@@ -392,6 +694,7 @@ public class Table<T>
                     deleteStmt, objects[i], j+1);
             }
             deleteStmt.addBatch();
+            invalidate(objects[i]);
         }
         int rc[] = deleteStmt.executeBatch();
         for (int k = 0; k < rc.length; k++) {
@@ -553,6 +856,7 @@ public class Table<T>
                                                       fd.name+fieldSeparator);
                     fd.inType = fd.outType =
                         FieldDescriptor.tCompound + nComponents;
+                    _hasCompound = true;
 
                     try {
                         fd.constructor =
@@ -600,17 +904,140 @@ public class Table<T>
 
     protected final T load (ResultSet result) throws SQLException
     {
-        T obj;
+        T obj = newInstance();
+        load(obj, 0, nFields, 0, result);
+        remember(obj, null);
+        return obj;
+    }
+
+    /**
+     * Records a snapshot of the supplied object's column values if we are
+     * tracking changes. If a mask is supplied, only the masked fields of an
+     * existing snapshot are updated.
+     */
+    protected final void remember (T obj, FieldMask mask)
+    {
+        Snapshots snapshots = _snapshots;
+        if (snapshots == null) {
+            return;
+        }
+        Object[] snap = (mask == null) ? new Object[nFields] : snapshots.get(obj);
+        if (snap == null) {
+            return;
+        }
+        try {
+            snapshot(obj, snap, 0, nFields, mask);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalAccessError();
+        }
+        if (mask == null) {
+            snapshots.put(obj, snap);
+        }
+    }
+
+    protected final void forget (T obj)
+    {
+        Snapshots snapshots = _snapshots;
+        if (snapshots != null) {
+            snapshots.remove(obj);
+        }
+    }
+
+    protected final void snapshot (
+        Object obj, Object[] snap, int i, int end, FieldMask mask)
+        throws IllegalAccessException
+    {
+        while (i < end) {
+            int idx = i;
+            FieldDescriptor fd = fields[i++];
+            Object value = (obj == null) ? null : fd.field.get(obj);
+            if (fd.isCompound()) {
+                int nComponents = fd.inType - FieldDescriptor.tCompound;
+                snapshot(value, snap, i, i + nComponents, mask);
+                i += nComponents;
+            } else if (mask == null || mask.isModified(idx)) {
+                if (fd.inType >= FieldDescriptor.tStream &&
+                    fd.inType != FieldDescriptor.tAsString) {
+                    value = UNKNOWN; // we can't tell if these have changed
+                } else if (value instanceof byte[]) {
+                    value = ((byte[])value).clone();
+                } else if (value instanceof java.util.Date) {
+                    value = ((java.util.Date)value).clone();
+                }
+                snap[idx] = value;
+            }
+        }
+    }
+
+    protected final void diff (
+        Object obj, Object[] snap, int i, int end, FieldMask mask)
+        throws IllegalAccessException
+    {
+        while (i < end) {
+            int idx = i;
+            FieldDescriptor fd = fields[i++];
+            Object value = (obj == null) ? null : fd.field.get(obj);
+            if (fd.isCompound()) {
+                int nComponents = fd.inType - FieldDescriptor.tCompound;
+                diff(value, snap, i, i + nComponents, mask);
+                i += nComponents;
+            } else {
+                Object ovalue = snap[idx];
+                boolean same = (ovalue == UNKNOWN) ? false :
+                    (ovalue instanceof byte[] && value instanceof byte[]) ?
+                    Arrays.equals((byte[])ovalue, (byte[])value) :
+                    (ovalue == null) ? (value == null) : ovalue.equals(value);
+                if (!same) {
+                    mask.setModified(fd.name);
+                }
+            }
+        }
+    }
+
+    protected final T newInstance ()
+    {
         try {
-            obj = constructor.newInstance(constructorArgs);
+            return constructor.newInstance(constructorArgs);
         }
         catch(IllegalAccessException ex) { throw new IllegalAccessError(); }
         catch(InstantiationException ex) { throw new InstantiationError(); }
         catch(Exception ex) {
             throw new InstantiationError("Exception was thrown by constructor");
         }
-        load(obj, 0, nFields, 0, result);
-        return obj;
+    }
+
+    protected final void copy (Object src, Object dest, int i, int end)
+    {
+        try {
+            while (i < end) {
+                FieldDescriptor fd = fields[i++];
+                Object value = fd.field.get(src);
+                if (fd.isCompound() && value != null) {
+                    Object component =
+                        fd.constructor.newInstance(constructorArgs);
+                    int nComponents = fd.inType - FieldDescriptor.tCompound;
+                    copy(value, component, i, i + nComponents);
+                    value = component;
+                    i += nComponents;
+                } else if (fd.isCompound()) {
+                    i += fd.inType - FieldDescriptor.tCompound;
+                }
+                fd.field.set(dest, value);
+            }
+        }
+        catch(IllegalAccessException ex) { throw new IllegalAccessError(); }
+        catch(InstantiationException ex) { throw new InstantiationError(); }
+        catch(InvocationTargetException ex) {
+            throw new InstantiationError("Exception was thrown by constructor");
+        }
+    }
+
+    protected final void invalidate (T obj)
+    {
+        RowCache<T> cache = _cache;
+        if (cache != null) {
+            cache.invalidate(obj);
+        }
     }
 
     protected final int load (
@@ -864,6 +1291,32 @@ public class Table<T>
         return column;
     }
 
+    /**
+     * Reads the keys generated by the execution of the supplied insert statement.
+     */
+    protected int[] readGeneratedKeys (Statement stmt, String keyColumn, int count)
+        throws SQLException
+    {
+        int[] keys = new int[count];
+        ResultSet rs = stmt.getGeneratedKeys();
+        try {
+            // some drivers return only the generated column (under an arbitrary name), others
+            // return the entire row
+            boolean single = (rs.getMetaData().getColumnCount() == 1);
+            for (int ii = 0; ii < count; ii++) {
+                if (!rs.next()) {
+                    throw new SQLException("Missing generated keys [table=" + name +
+                                           ", column=" + keyColumn + ", expected=" + count +
+                                           ", got=" + ii + "]");
+                }
+                keys[ii] = single ? rs.getInt(1) : rs.getInt(keyColumn);
+            }
+        } finally {
+            rs.close();
+        }
+        return keys;
+    }
+
     protected static Method getSetBypass ()
     {
         try {
@@ -894,11 +1347,82 @@ public class Table<T>
 
     protected Constructor<T> constructor;
 
+    protected volatile RowCache<T> _cache;
+
+    protected volatile Snapshots _snapshots;
+    protected boolean _hasCompound;
+
+    /**
+     * Maps objects (by identity, weakly) to snapshots of their column values.
+     */
+    protected static class Snapshots
+    {
+        public synchronized Object[] get (Object obj) {
+            purge();
+            return _snaps.get(new Key(obj, null));
+        }
+
+        public synchronized void put (Object obj, Object[] snap) {
+            purge();
+            _snaps.put(new Key(obj, _queue), snap);
+        }
+
+        public synchronized void remove (Object obj) {
+            _snaps.remove(new Key(obj, null));
+        }
+
+        protected void purge () {
+            Reference<?> ref;
+            while ((ref = _queue.poll()) != null) {
+                _snaps.remove(ref);
+            }
+        }
+
+        protected static class Key extends WeakReference<Object> {
+            public Key (Object obj, ReferenceQueue<Object> queue) {
+                super(obj, queue);
+                _hash = System.identityHashCode(obj);
+            }
+            @Override public int hashCode () {
+                return _hash;
+            }
+            @Override public boolean equals (Object other) {
+                if (other == this) {
+                    return true;
+                }
+                Object obj = get();
+                return (other instanceof Key) && obj != null && obj == ((Key)other).get();
+            }
+            protected int _hash;
+        }
+
+        protected HashMap<Key, Object[]> _snaps = new HashMap<Key, Object[]>();
+        protected ReferenceQueue<Object> _queue =
+            new ReferenceQueue<Object>();
+    }
+
     protected static final Method setBypass = getSetBypass();
     protected static final Class<Serializable> serializableClass = Serializable.class;
     protected static final Object[] bypassFlag = { Boolean.TRUE };
     protected static final Object[] constructorArgs = {};
 
+    // a conservative limit on the number of parameters bound to a single statement
+    protected static final int MAX_INSERT_PARAMETERS = 30000;
+
     // used to identify byte[] fields
     protected static final byte[] BYTE_PROTO = new byte[0];
+
+    /** Separates the values of multiple primary key columns in a cache key. */
+    protected static final char KEY_SEPARATOR = '\u0000';
+
+    /** Marks snapshot values whose modification cannot be detected. */
+    protected static final Object UNKNOWN = new Object();
+
+    /** Matches a condition that may be a primary key match, see {@link #getCacheKey(String)}. */
+    protected static final Pattern WHERE_PATTERN = Pattern.compile(
+        "\\s*where\\s+(.*?)\\s*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /** Matches a single <code>column = literal</code> term, optionally preceded by AND. */
+    protected static final Pattern TERM_PATTERN = Pattern.compile(
+        "(?:\\s+and\\s+)?(\\w+)\\s*=\\s*(-?\\d+|'(?:[^']|'')*')", Pattern.CASE_INSENSITIVE);
 }
@@ -5,9 +5,6 @@
 
 package com.samskivert.net;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
 
 import java.net.HttpURLConnection;
@@ -15,14 +12,59 @@ import java.net.URL;
 
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.samskivert.util.ServiceWaiter;
 
 /**
- * Contains utility methods for doing a form post.
+ * Contains utility methods for doing a form post. As they always have, these send the low byte of
+ * each character of a submission (which should therefore be URL encoded) and decode responses
+ * using the platform's default character encoding.
  */
 public class HttpPostUtil
 {
+    /**
+     * Returns the poster used to make our posts, which may also be used directly to make posts
+     * asynchronously (with the same character encodings as our posts).
+     */
+    public static synchronized HttpPoster getPoster ()
+    {
+        if (_poster == null) {
+            // our posts supply their own timeouts, those given here apply to direct posts
+            _poster = new HttpPoster("HttpPostUtil", _threads, _maxPerHost, 0, 0) {
+                @Override protected byte[] encodeSubmission (String submission) {
+                    byte[] data = new byte[submission.length()];
+                    for (int ii = 0; ii < data.length; ii++) {
+                        data[ii] = (byte)submission.charAt(ii);
+                    }
+                    return data;
+                }
+                @Override protected String decodeResponse (HttpURLConnection conn, byte[] data) {
+                    return new String(data);
+                }
+            };
+        }
+        return _poster;
+    }
+
+    /**
+     * Configures the number of posts that our poster will make at once, in total and to any one
+     * server, by default {@link #POSTER_THREADS} and {@link #POSTER_MAX_PER_HOST}. Posts beyond
+     * those limits wait their turn. The existing poster, if any, is shut down once the posts made
+     * via it have completed.
+     */
+    public static synchronized void configurePoster (int threads, int maxPerHost)
+    {
+        if (_poster != null) {
+            _poster.shutdown();
+            _poster = null;
+        }
+        _threads = threads;
+        _maxPerHost = maxPerHost;
+    }
+
     /**
      * Return the results of a form post. Note that the http request takes place on another
      * thread, but this thread blocks until the results are returned or it times out. This
@@ -31,7 +73,7 @@ public class HttpPostUtil
      *
      * @param url from which to make the request.
      * @param submission the entire submission eg {@code foo=bar&baz=boo&futz=foo}.
-     * @param timeout time to wait for the response, in seconds, or -1 for forever.
+     * @param timeout time to wait for the response, in seconds, or -1 (or 0) for forever.
      */
     public static String httpPost (URL url, String submission, int timeout)
         throws IOException, ServiceWaiter.TimeoutException
@@ -46,54 +88,47 @@ public class HttpPostUtil
      *
      * @param url from which to make the request.
      * @param submission the entire submission eg {@code foo=bar&baz=boo&futz=foo}.
-     * @param timeout time to wait for the response, in seconds, or -1 for forever.
+     * @param timeout time to wait for the response, in seconds, or -1 (or 0) for forever. A post
+     * that is not waited for is abandoned, freeing its place in our poster, once that long has
+     * passed with no data from the server.
      * @param requestProps additional request properties.
      */
     public static String httpPost (
-        final URL url, final String submission, int timeout, final Map<String, String> requestProps)
+        URL url, String submission, int timeout, Map<String, String> requestProps)
         throws IOException, ServiceWaiter.TimeoutException
     {
-        final ServiceWaiter<String> waiter = new ServiceWaiter<String>(
-            (timeout < 0) ? ServiceWaiter.NO_TIMEOUT : timeout);
-        Thread tt = new Thread() {
-            @Override public void run () {
-                try {
-                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                    conn.setDoInput(true);
-                    conn.setDoOutput(true);
-                    conn.setUseCaches(false);
-                    for (Map.Entry<String, String> entry : requestProps.entrySet()) {
-                        conn.setRequestProperty(entry.getKey(), entry.getValue());
-                    }
-
-                    DataOutputStream out = new DataOutputStream(conn.getOutputStream());
-                    out.writeBytes(submission);
-                    out.flush();
-                    out.close();
-
-                    BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(conn.getInputStream()));
-
-                    StringBuilder buf = new StringBuilder();
-                    for (String s; null != (s = reader.readLine()); ) {
-                        buf.append(s);
-                    }
-                    reader.close();
+        // the connection gives up on the server no sooner than we give up on the connection
+        int millis = (timeout <= 0) ? 0 : (int)Math.min(1000L * timeout, Integer.MAX_VALUE);
+        HttpPoster.Pending post = getPoster().post(url, submission, requestProps, millis);
+        String response;
+        try {
+            response = (timeout <= 0) ? post.get() : post.get(timeout, TimeUnit.SECONDS);
+        } catch (TimeoutException te) {
+            post.cancel(false);
+            throw (ServiceWaiter.TimeoutException)
+                new ServiceWaiter.TimeoutException().initCause(te);
+        } catch (InterruptedException ie) {
+            post.cancel(false);
+            Thread.currentThread().interrupt();
+            throw (ServiceWaiter.TimeoutException)
+                new ServiceWaiter.TimeoutException().initCause(ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            throw (cause instanceof IOException) ? (IOException)cause : new IOException(cause);
+        }
+        // we've always returned the response with its line breaks removed
+        return response.replace("\r", "").replace("\n", "");
+    }
 
-                    waiter.postSuccess(buf.toString()); // yay
+    /** The default number of posts our poster will make at once, in total. */
+    public static final int POSTER_THREADS = 32;
 
-                } catch (IOException e) {
-                    waiter.postFailure(e); // boo
-                }
-            }
-        };
+    /** The default number of posts our poster will make at once to a single server. */
+    public static final int POSTER_MAX_PER_HOST = 8;
 
-        tt.start();
+    /** The poster used by {@link #httpPost}, created on demand. */
+    protected static HttpPoster _poster;
 
-        if (waiter.waitForResponse()) {
-            return waiter.getArgument();
-        } else {
-            throw (IOException) waiter.getError();
-        }
-    }
+    /** The number of posts our poster will make at once, in total and to a single server. */
+    protected static int _threads = POSTER_THREADS, _maxPerHost = POSTER_MAX_PER_HOST;
 }
@@ -0,0 +1,396 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.samskivert.io.StreamUtil;
+import com.samskivert.util.ResultFuture;
+import com.samskivert.util.ResultListener;
+import com.samskivert.util.RunQueue;
+
+/**
+ * Makes HTTP posts asynchronously on a bounded pool of threads, keeping connections alive between
+ * posts to the same server and limiting the number of simultaneous posts to (and hence the number
+ * of connections open to) any one server. Posts beyond that limit wait their turn, so a batch of
+ * posts submitted via {@link #postAll} is sent over a few connections, one post after another,
+ * rather than each post opening its own connection. For example:
+ *
+ * <pre>{@code
+ * HttpPoster poster = new HttpPoster("poster", 16, 4, 5000, 30000);
+ * poster.post(url, "foo=bar&baz=boo").addListener(_omgr, new ResultListener<String>() {
+ *     public void requestCompleted (String response) { ... }
+ *     public void requestFailed (Exception cause) { ... }
+ * });
+ * }</pre>
+ *
+ * <p> Idle connections are kept by the JDK's HTTP keep-alive cache, which retains at most
+ * <code>http.maxConnections</code> (a system property, 5 by default) idle connections per server.
+ * That should be at least as large as the poster's per-server limit, or connections will be
+ * closed rather than reused when all of them are idle at once. A connection is only reused if the
+ * response to the previous post was read in its entirety, which the poster always does, even for
+ * error responses.
+ *
+ * <p> Submissions are sent encoded as UTF-8 and responses are decoded using the character set
+ * specified by their content type, or ISO-8859-1 (the HTTP default) if none is specified. Derived
+ * classes may override {@link #encodeSubmission} and {@link #decodeResponse} to change that.
+ */
+public class HttpPoster
+{
+    /**
+     * The handle returned for a submitted post, which yields the body of the response. It may be
+     * waited upon like any other {@link java.util.concurrent.Future} or listeners may be
+     * registered to be notified of the result.
+     */
+    public static class Pending extends ResultFuture<String>
+    {
+        @Override // from ResultFuture
+        public Pending addListener (RunQueue queue, ResultListener<String> listener)
+        {
+            super.addListener(queue, listener);
+            return this;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return _url.toString();
+        }
+
+        protected Pending (URL url, Callable<String> callable)
+        {
+            super(callable);
+            _url = url;
+        }
+
+        /** The URL to which we're posting. */
+        protected URL _url;
+    }
+
+    /**
+     * Creates a poster.
+     *
+     * @param name a prefix used to name the poster's threads.
+     * @param threads the maximum number of posts that may be in progress at once.
+     * @param maxPerHost the maximum number of posts to a single server that may be in progress at
+     * once.
+     * @param connectTimeout the number of milliseconds to wait for a connection to be established,
+     * or 0 to wait forever.
+     * @param readTimeout the number of milliseconds to wait for data from the server before
+     * failing the post, or 0 to wait forever.
+     */
+    public HttpPoster (final String name, int threads, int maxPerHost, int connectTimeout,
+                       int readTimeout)
+    {
+        _exec = new ThreadPoolExecutor(
+            threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, name + "-" + _count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+                protected AtomicInteger _count = new AtomicInteger();
+            });
+        // there's no need to keep threads around when we're not posting
+        _exec.allowCoreThreadTimeOut(true);
+        _maxPerHost = maxPerHost;
+        _connectTimeout = connectTimeout;
+        _readTimeout = readTimeout;
+    }
+
+    /**
+     * Posts a form submission (e.g. <code>foo=bar&amp;baz=boo</code>) to the specified URL.
+     */
+    public Pending post (URL url, String submission)
+    {
+        return post(url, submission, FORM_PROPS);
+    }
+
+    /**
+     * Posts a submission to the specified URL with the supplied request properties.
+     */
+    public Pending post (URL url, String submission, Map<String, String> requestProps)
+    {
+        return postAll(url, Collections.singletonList(submission), requestProps).get(0);
+    }
+
+    /**
+     * Posts a submission to the specified URL with the supplied request properties, in place of
+     * the poster's timeouts failing the post if a connection cannot be established, or no data
+     * arrives from the server, within the specified number of milliseconds (0 waits forever).
+     */
+    public Pending post (URL url, String submission, Map<String, String> requestProps,
+                         int timeout)
+    {
+        return postAll(url, Collections.singletonList(submission), requestProps,
+                       timeout, timeout).get(0);
+    }
+
+    /**
+     * Posts a batch of form submissions to the specified URL. The submissions are queued up
+     * together, so they will be sent over (at most) the per-server limit of connections, in order,
+     * before any subsequently submitted posts to the same server.
+     */
+    public List<Pending> postAll (URL url, List<String> submissions)
+    {
+        return postAll(url, submissions, FORM_PROPS);
+    }
+
+    /**
+     * Posts a batch of submissions to the specified URL with the supplied request properties. See
+     * {@link #postAll(URL,List)}.
+     */
+    public List<Pending> postAll (URL url, List<String> submissions,
+                                  Map<String, String> requestProps)
+    {
+        return postAll(url, submissions, requestProps, _connectTimeout, _readTimeout);
+    }
+
+    /**
+     * Posts a batch of submissions with the supplied request properties and timeouts.
+     */
+    protected List<Pending> postAll (final URL url, List<String> submissions,
+                                     final Map<String, String> requestProps,
+                                     final int connectTimeout, final int readTimeout)
+    {
+        List<Pending> posts = new ArrayList<Pending>(submissions.size());
+        for (final String submission : submissions) {
+            posts.add(new Pending(url, new Callable<String>() {
+                public String call () throws IOException {
+                    return doPost(url, submission, requestProps, connectTimeout, readTimeout);
+                }
+            }));
+        }
+
+        // queue up the posts that can't be started yet, then start the ones that can
+        String key = getHostKey(url);
+        List<Pending> start = new ArrayList<Pending>();
+        synchronized (_hosts) {
+            Host host = _hosts.get(key);
+            if (host == null) {
+                _hosts.put(key, host = new Host());
+            }
+            for (Pending post : posts) {
+                if (host.active < _maxPerHost) {
+                    host.active++;
+                    start.add(post);
+                } else {
+                    host.waiting.add(post);
+                }
+            }
+        }
+        for (Pending post : start) {
+            execute(key, post);
+        }
+        return posts;
+    }
+
+    /**
+     * Returns the number of posts that are in progress or waiting to be started.
+     */
+    public int getPendingPosts ()
+    {
+        int count = 0;
+        synchronized (_hosts) {
+            for (Host host : _hosts.values()) {
+                count += host.active + host.waiting.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Shuts down this poster. Posts already submitted will be completed, but posts that have yet
+     * to be started will fail.
+     */
+    public void shutdown ()
+    {
+        _exec.shutdown();
+    }
+
+    /**
+     * Starts the supplied post, which has been counted against its server's limit.
+     */
+    protected void execute (final String key, final Pending post)
+    {
+        try {
+            _exec.execute(new Runnable() {
+                public void run () {
+                    try {
+                        post.run();
+                    } finally {
+                        release(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            post.setException(new IOException("Post rejected by poster [url=" + post + "]", ree));
+            release(key);
+        }
+    }
+
+    /**
+     * Called when a post to the specified server completes, to start the next post waiting on
+     * that server (if any).
+     */
+    protected void release (String key)
+    {
+        Pending next;
+        synchronized (_hosts) {
+            Host host = _hosts.get(key);
+            next = host.waiting.poll();
+            if (next == null && --host.active == 0) {
+                _hosts.remove(key);
+            }
+        }
+        if (next != null) {
+            execute(key, next);
+        }
+    }
+
+    /**
+     * Performs a post on the calling thread, returning the body of the response.
+     */
+    protected String doPost (URL url, String submission, Map<String, String> requestProps,
+                             int connectTimeout, int readTimeout)
+        throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        conn.setDoInput(true);
+        conn.setDoOutput(true);
+        conn.setUseCaches(false);
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        for (Map.Entry<String, String> entry : requestProps.entrySet()) {
+            conn.setRequestProperty(entry.getKey(), entry.getValue());
+        }
+
+        // send the submission with a content length (rather than having the connection buffer it
+        // up to determine the length)
+        byte[] data = encodeSubmission(submission);
+        conn.setFixedLengthStreamingMode(data.length);
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(data);
+        } finally {
+            StreamUtil.close(out);
+        }
+
+        // if the server reported an error, read the error response anyway so that the connection
+        // can be reused
+        int code = conn.getResponseCode();
+        if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            InputStream err = conn.getErrorStream();
+            if (err != null) {
+                try {
+                    StreamUtil.toByteArray(err);
+                } finally {
+                    StreamUtil.close(err);
+                }
+            }
+            throw new IOException("Server returned HTTP response code: " + code +
+                                  " for URL: " + url);
+        }
+
+        InputStream in = conn.getInputStream();
+        try {
+            return decodeResponse(conn, StreamUtil.toByteArray(in));
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Encodes a submission for sending. The default implementation uses UTF-8.
+     */
+    protected byte[] encodeSubmission (String submission)
+        throws IOException
+    {
+        return submission.getBytes("UTF-8");
+    }
+
+    /**
+     * Decodes the body of a response. The default implementation uses the character set
+     * specified by the response's content type, see {@link #getCharset}.
+     */
+    protected String decodeResponse (HttpURLConnection conn, byte[] data)
+        throws IOException
+    {
+        return new String(data, getCharset(conn.getContentType()));
+    }
+
+    /**
+     * Returns the character set specified by the supplied content type, or the HTTP default.
+     */
+    protected static String getCharset (String contentType)
+    {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    String charset = param.substring(8).replace("\"", "").trim();
+                    if (charset.length() > 0) {
+                        return charset;
+                    }
+                }
+            }
+        }
+        return "ISO-8859-1";
+    }
+
+    /**
+     * Returns the key that identifies the server to which the supplied URL refers.
+     */
+    protected static String getHostKey (URL url)
+    {
+        int port = (url.getPort() == -1) ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
+    }
+
+    /** Tracks the posts to a single server. */
+    protected static class Host
+    {
+        /** The number of posts that are in progress (or have been handed to the executor). */
+        public int active;
+
+        /** Posts waiting for one of those to complete. */
+        public LinkedList<Pending> waiting = new LinkedList<Pending>();
+    }
+
+    /** Executes our posts. */
+    protected ThreadPoolExecutor _exec;
+
+    /** The servers to which posts are in progress, by key. */
+    protected Map<String, Host> _hosts = new HashMap<String, Host>();
+
+    /** The maximum number of simultaneous posts to a single server. */
+    protected int _maxPerHost;
+
+    /** Our connect and read timeouts, in milliseconds. */
+    protected int _connectTimeout, _readTimeout;
+
+    /** The request properties used for form submissions. */
+    protected static final Map<String, String> FORM_PROPS =
+        Collections.singletonMap("Content-Type", "application/x-www-form-urlencoded");
+}
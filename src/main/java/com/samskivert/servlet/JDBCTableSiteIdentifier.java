@@ -16,6 +16,9 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -28,6 +31,8 @@ import com.samskivert.jdbc.SimpleRepository;
 
 import com.samskivert.util.ArrayUtil;
 import com.samskivert.util.HashIntMap;
+import com.samskivert.util.Interval;
+import com.samskivert.util.RunQueue;
 
 import static com.samskivert.servlet.Log.log;
 
@@ -40,12 +45,13 @@ import static com.samskivert.servlet.Log.log;
  * identifiers to site strings. These are both loaded at construct time and refreshed periodically
  * in the course of normal operation.
  *
- * <p> Note that any of the calls to identify, lookup or enumerate site information can result in
- * the sites table being refreshed from the database which will take relatively much longer than
- * the simple hashtable lookup that the operations normally require. However, this happens only
- * once every 15 minutes and the circumstances in which the site identifier are normally used can
- * generally accomodate the extra 100 milliseconds or so that it is likely to take to reload the
- * (tiny) sites and domains tables from the database.
+ * <p> Refreshing takes place in the background (roughly every 15 minutes, with some jitter so
+ * that a cluster of servers does not hit the database in lockstep, and with a shorter, backed off
+ * retry interval if a refresh fails), on the {@link Interval} timer thread unless a refresh queue
+ * is supplied at construct time. The data may also be reloaded on demand via {@link
+ * #refreshSiteData}. The loaded data is published as an immutable snapshot, so the calls to
+ * identify, lookup or enumerate site information never wait on the database. Call {@link
+ * #shutdown} when the identifier is no longer needed to stop the refresher.
  */
 public class JDBCTableSiteIdentifier implements SiteIdentifier
 {
@@ -68,42 +74,52 @@ public class JDBCTableSiteIdentifier implements SiteIdentifier
 
     /**
      * Creates an identifier that will load data from the supplied connection provider and which
-     * will use the supplied default site id instead of {@link #DEFAULT_SITE_ID}.
+     * will use the supplied default site id instead of {@link #DEFAULT_SITE_ID}. Its periodic
+     * refreshes are performed directly on the {@link Interval} timer thread.
      */
     public JDBCTableSiteIdentifier (ConnectionProvider conprov, int defaultSiteId)
         throws PersistenceException
+    {
+        this(conprov, defaultSiteId, Interval.RUN_DIRECT);
+    }
+
+    /**
+     * Creates an identifier that will load data from the supplied connection provider, using the
+     * supplied default site id, and which will perform its periodic refreshes on the supplied run
+     * queue (which may be {@link Interval#RUN_DIRECT}). If the run queue is null, no periodic
+     * refreshes will be performed.
+     */
+    public JDBCTableSiteIdentifier (
+        ConnectionProvider conprov, int defaultSiteId, RunQueue refreshQueue)
+        throws PersistenceException
     {
         _repo = new SiteIdentifierRepository(conprov);
-        _repo.refreshSiteData();
         _defaultSiteId = defaultSiteId;
+        _data = _repo.loadSiteData();
+
+        if (refreshQueue != null) {
+            _refresher = new Interval(refreshQueue) {
+                @Override public void expired () {
+                    refreshSiteData();
+                }
+            };
+            scheduleRefresh(false);
+        }
     }
 
     // documentation inherited
     public int identifySite (HttpServletRequest req)
     {
-        checkReloadSites();
-        String serverName = req.getServerName();
-
-        // scan for the mapping that matches the specified domain
-        int msize = _mappings.size();
-        for (int i = 0; i < msize; i++) {
-            SiteMapping mapping = _mappings.get(i);
-            if (serverName.endsWith(mapping.domain)) {
-                return mapping.siteId;
-            }
-        }
-
-        // if we matched nothing, return the default id
-        return _defaultSiteId;
+        return _data.domains.identify(req.getServerName(), _defaultSiteId);
     }
 
     // documentation inherited
     public String getSiteString (int siteId)
     {
-        checkReloadSites();
-        Site site = _sitesById.get(siteId);
+        SiteData data = _data;
+        Site site = data.sitesById.get(siteId);
         if (site == null) {
-            site = _sitesById.get(_defaultSiteId);
+            site = data.sitesById.get(_defaultSiteId);
         }
         return (site == null) ? DEFAULT_SITE_STRING : site.siteString;
     }
@@ -111,16 +127,14 @@ public class JDBCTableSiteIdentifier implements SiteIdentifier
     // documentation inherited
     public int getSiteId (String siteString)
     {
-        checkReloadSites();
-        Site site = _sitesByString.get(siteString);
+        Site site = _data.sitesByString.get(siteString);
         return (site == null) ? _defaultSiteId : site.siteId;
     }
 
     // documentation inherited from interface
     public Iterator<Site> enumerateSites ()
     {
-        checkReloadSites();
-        return _sitesById.values().iterator();
+        return Collections.unmodifiableCollection(_data.sitesById.values()).iterator();
     }
 
     /**
@@ -129,7 +143,7 @@ public class JDBCTableSiteIdentifier implements SiteIdentifier
     public Site insertNewSite (String siteString)
         throws PersistenceException
     {
-        if (_sitesByString.containsKey(siteString)) {
+        if (_data.sitesByString.containsKey(siteString)) {
             return null;
         }
 
@@ -138,37 +152,107 @@ public class JDBCTableSiteIdentifier implements SiteIdentifier
         site.siteString = siteString;
         _repo.insertNewSite(site);
 
-        // add it to our two mapping tables, taking care to avoid causing enumerateSites() to choke
-        @SuppressWarnings("unchecked") HashMap<String,Site> newStrings =
-            (HashMap<String,Site>)_sitesByString.clone();
-        HashIntMap<Site> newIds = _sitesById.clone();
-        newIds.put(site.siteId, site);
-        newStrings.put(site.siteString, site);
-        _sitesByString = newStrings;
-        _sitesById = newIds;
-
+        // publish a new snapshot that includes the site, taking care not to clobber a snapshot
+        // published by a concurrent refresh
+        synchronized (this) {
+            _data = _data.withSite(site);
+        }
         return site;
     }
 
     /**
-     * Checks to see if we should reload our sites information from the sites table.
+     * Immediately reloads our site data from the database. This is called periodically on our
+     * refresh queue, if we have one, but may be called by anyone who knows that the tables have
+     * changed.
+     *
+     * @return true if the data was reloaded, false if the reload failed (the failure will have
+     * been logged and our existing data will remain in effect).
      */
-    protected void checkReloadSites ()
+    public boolean refreshSiteData ()
     {
-        long now = System.currentTimeMillis();
-        boolean reload = false;
-        synchronized (this) {
-            reload = (now - _lastReload > RELOAD_INTERVAL);
-            if (reload) {
-                _lastReload = now;
+        boolean success = false;
+        try {
+            SiteData data = _repo.loadSiteData();
+            synchronized (this) {
+                _data = data;
             }
+            success = true;
+        } catch (PersistenceException pe) {
+            log.warning("Error refreshing site data.", "failures", _failures + 1, pe);
         }
-        if (reload) {
-            try {
-                _repo.refreshSiteData();
-            } catch (PersistenceException pe) {
-                log.warning("Error refreshing site data.", pe);
-            }
+        scheduleRefresh(!success);
+        return success;
+    }
+
+    /**
+     * Stops our background refresher. Our existing data remains available.
+     */
+    public synchronized void shutdown ()
+    {
+        _shutdown = true;
+        if (_refresher != null) {
+            _refresher.cancel();
+        }
+    }
+
+    /**
+     * Schedules our next background refresh based on whether or not the last one failed.
+     */
+    protected synchronized void scheduleRefresh (boolean failed)
+    {
+        if (_shutdown || _refresher == null) {
+            return;
+        }
+        long delay;
+        if (failed) {
+            // back off exponentially from our minimum retry interval up to our normal interval
+            delay = Math.min(RETRY_INTERVAL << Math.min(_failures, 16), RELOAD_INTERVAL);
+            _failures++;
+        } else {
+            delay = RELOAD_INTERVAL;
+            _failures = 0;
+        }
+        // add up to +/- 10% jitter so that a group of servers does not refresh in lockstep
+        delay += (long)((_rando.nextDouble() - 0.5) * delay / 5);
+        _refresher.schedule(delay);
+    }
+
+    /**
+     * An immutable snapshot of our site data, which is replaced wholesale when reloaded.
+     */
+    protected static class SiteData
+    {
+        /** The list of domain to site identifier mappings ordered from most specific domain to
+         * least specific. */
+        public final List<SiteMapping> mappings;
+
+        /** Used to efficiently match host names against our domain mappings. */
+        public final DomainTrie domains;
+
+        /** The mapping from integer site identifiers to string site identifiers. */
+        public final HashIntMap<Site> sitesById;
+
+        /** The mapping from string site identifiers to integer site identifiers. */
+        public final HashMap<String,Site> sitesByString;
+
+        public SiteData (List<SiteMapping> mappings, HashIntMap<Site> sitesById,
+                         HashMap<String,Site> sitesByString) {
+            this.mappings = Collections.unmodifiableList(mappings);
+            this.domains = new DomainTrie(mappings);
+            this.sitesById = sitesById;
+            this.sitesByString = sitesByString;
+        }
+
+        /**
+         * Returns a copy of this snapshot with the supplied site added.
+         */
+        public SiteData withSite (Site site) {
+            HashIntMap<Site> ids = sitesById.clone();
+            @SuppressWarnings("unchecked") HashMap<String,Site> strings =
+                (HashMap<String,Site>)sitesByString.clone();
+            ids.put(site.siteId, site);
+            strings.put(site.siteString, site);
+            return new SiteData(mappings, ids, strings);
         }
     }
 
@@ -176,21 +260,21 @@ public class JDBCTableSiteIdentifier implements SiteIdentifier
      * Used to load information from the site database.
      */
     protected class SiteIdentifierRepository extends SimpleRepository
-        implements SimpleRepository.Operation<Object>
+        implements SimpleRepository.Operation<SiteData>
     {
         public SiteIdentifierRepository (ConnectionProvider conprov)
         {
             super(conprov, SITE_IDENTIFIER_IDENT);
         }
 
-        public void refreshSiteData ()
+        public SiteData loadSiteData ()
             throws PersistenceException
         {
             // we are the operation!
-            execute(this);
+            return execute(this);
         }
 
-        public Object invoke (Connection conn, DatabaseLiaison liaison)
+        public SiteData invoke (Connection conn, DatabaseLiaison liaison)
             throws PersistenceException, SQLException
         {
             Statement stmt = conn.createStatement();
@@ -205,8 +289,6 @@ public class JDBCTableSiteIdentifier implements SiteIdentifier
                     sites.put(site.siteId, site);
                     strings.put(site.siteString, site);
                 }
-                _sitesById = sites;
-                _sitesByString = strings;
 
                 // now load up the domain mappings
                 query = "select domain, siteId from domains";
@@ -218,11 +300,9 @@ public class JDBCTableSiteIdentifier implements SiteIdentifier
 
                 // sort the mappings in order of specificity
                 Collections.sort(mappings, SiteMapping.BY_SPECIFICITY);
-                _mappings = mappings;
-//                 Log.info("Loaded site mappings " + StringUtil.toString(_mappings) + ".");
+//                 Log.info("Loaded site mappings " + StringUtil.toString(mappings) + ".");
 
-                // nothing to return
-                return null;
+                return new SiteData(mappings, sites, strings);
 
             } finally {
                 JDBCUtil.close(stmt);
@@ -294,25 +374,130 @@ public class JDBCTableSiteIdentifier implements SiteIdentifier
         protected String _rdomain;
     }
 
+    /**
+     * Maps host names to site identifiers by finding the longest domain suffix (matched on whole
+     * labels, so <code>yahoo.com</code> matches <code>www.yahoo.com</code> but not
+     * <code>myyahoo.com</code>) for which a mapping exists. A trie is built from the mappings with
+     * one level per label, starting from the top level domain, so a lookup costs time
+     * proportional to the number of labels in the host name rather than the number of mappings.
+     * Results are additionally cached per host name. Tries are immutable once built (aside from
+     * their cache), so a new one is built and published whenever the mappings are reloaded.
+     */
+    protected static class DomainTrie
+    {
+        public DomainTrie (List<SiteMapping> mappings) {
+            for (SiteMapping mapping : mappings) {
+                add(mapping.domain, mapping.siteId);
+            }
+        }
+
+        /**
+         * Returns the site id mapped to the longest matching suffix of the supplied host name, or
+         * the supplied default if no mapping matches.
+         */
+        public int identify (String serverName, int defaultSiteId) {
+            if (serverName == null) {
+                return defaultSiteId;
+            }
+            Integer siteId = _cache.get(serverName);
+            if (siteId == null) {
+                siteId = match(normalize(serverName), defaultSiteId);
+                // we don't need true LRU behavior here, just protection from unbounded growth
+                if (_cache.size() >= MAX_CACHED_HOSTS) {
+                    _cache.clear();
+                }
+                _cache.put(serverName, siteId);
+            }
+            return siteId;
+        }
+
+        protected void add (String domain, int siteId) {
+            Node node = _root;
+            String name = normalize(domain);
+            for (int end = name.length(); end > 0; ) {
+                int dot = name.lastIndexOf('.', end-1);
+                String label = name.substring(dot+1, end);
+                if (node.children == null) {
+                    node.children = new HashMap<String, Node>();
+                }
+                Node child = node.children.get(label);
+                if (child == null) {
+                    node.children.put(label, child = new Node());
+                }
+                node = child;
+                end = dot;
+            }
+            // the first mapping for a particular domain wins
+            if (node != _root && node.siteId == NO_SITE) {
+                node.siteId = siteId;
+            }
+        }
+
+        protected int match (String name, int defaultSiteId) {
+            int siteId = defaultSiteId;
+            Node node = _root;
+            for (int end = name.length(); end > 0 && node.children != null; ) {
+                int dot = name.lastIndexOf('.', end-1);
+                node = node.children.get(name.substring(dot+1, end));
+                if (node == null) {
+                    break;
+                }
+                if (node.siteId != NO_SITE) {
+                    siteId = node.siteId;
+                }
+                end = dot;
+            }
+            return siteId;
+        }
+
+        protected static String normalize (String domain) {
+            int start = 0, end = domain.length();
+            while (start < end && domain.charAt(start) == '.') {
+                start++;
+            }
+            while (end > start && domain.charAt(end-1) == '.') {
+                end--;
+            }
+            return domain.substring(start, end).toLowerCase();
+        }
+
+        protected static class Node {
+            public HashMap<String, Node> children;
+            public int siteId = NO_SITE;
+        }
+
+        protected Node _root = new Node();
+        protected ConcurrentHashMap<String, Integer> _cache =
+            new ConcurrentHashMap<String, Integer>();
+
+        protected static final int NO_SITE = Integer.MIN_VALUE;
+        protected static final int MAX_CACHED_HOSTS = 10000;
+    }
+
     /** The repository through which we load up site identifier information. */
     protected SiteIdentifierRepository _repo;
 
     /** The site id to return if we cannot identify the site from our table data. */
     protected int _defaultSiteId;
 
-    /** The list of domain to site identifier mappings ordered from most specific domain to least
-     * specific. */
-    protected volatile ArrayList<SiteMapping> _mappings = new ArrayList<SiteMapping>();
+    /** Our current site data. */
+    protected volatile SiteData _data;
 
-    /** The mapping from integer site identifiers to string site identifiers. */
-    protected volatile HashIntMap<Site> _sitesById = new HashIntMap<Site>();
+    /** Used to periodically reload our site data, or null if we were given no refresh queue. */
+    protected Interval _refresher;
 
-    /** The mapping from string site identifiers to integer site identifiers. */
-    protected volatile HashMap<String,Site> _sitesByString = new HashMap<String,Site>();
+    /** The number of consecutive refreshes that have failed. */
+    protected int _failures;
 
-    /** Used to periodically reload our site data. */
-    protected long _lastReload;
+    /** Set when we have been shut down. */
+    protected boolean _shutdown;
+
+    /** Used to jitter our refresh interval. */
+    protected Random _rando = new Random();
 
     /** Reload our site data every 15 minutes. */
     protected static final long RELOAD_INTERVAL = 15 * 60 * 1000L;
+
+    /** The delay before the first retry of a failed reload, doubled on each failure thereafter. */
+    protected static final long RETRY_INTERVAL = 30 * 1000L;
 }
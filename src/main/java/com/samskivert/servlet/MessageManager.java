@@ -8,10 +8,12 @@ package com.samskivert.servlet;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletRequest;
 
 import com.samskivert.text.MessageUtil;
+import com.samskivert.util.HashIntMap;
 import com.samskivert.util.StringUtil;
 
 import static com.samskivert.servlet.Log.log;
@@ -57,6 +59,27 @@ public class MessageManager
         _siteLoader = siteLoader;
     }
 
+    /**
+     * Enables or disables the caching of resolved messages and their formatters (which is enabled
+     * by default). Messages are cached for each distinct set of resolved bundles (which
+     * corresponds to a site and locale combination); missing messages are cached as well.
+     * Disabling the cache is mainly useful for comparing performance or debugging.
+     */
+    public void setCaching (boolean caching)
+    {
+        _caching = caching;
+        _tables.clear();
+    }
+
+    /**
+     * Clears our cache of resolved messages. This is done automatically when we notice that a
+     * site-specific message bundle has changed.
+     */
+    public void clearCache ()
+    {
+        _tables.clear();
+    }
+
     /**
      * Return true if the specifed path exists in the resource bundle.
      */
@@ -83,10 +106,21 @@ public class MessageManager
      */
     public String getMessage (HttpServletRequest req, String path, Object[] args)
     {
-        String msg = getMessage(req, path, true);
-        // we may cache message formatters later, but for now just use the static convenience
-        // function
-        return MessageFormat.format(MessageUtil.escape(msg), args);
+        MessageTable table = _caching ? resolveMessages(req) : null;
+        if (table == null) {
+            return MessageFormat.format(MessageUtil.escape(getMessage(req, path, true)), args);
+        }
+
+        MessageFormat format = table.formats.get(path);
+        if (format == null) {
+            format = new MessageFormat(MessageUtil.escape(getMessage(req, path, true)));
+            table.cacheFormat(path, format);
+        }
+        // formats are not thread safe, but they format quickly enough that contention is not a
+        // concern
+        synchronized (format) {
+            return format.format(args);
+        }
     }
 
     /**
@@ -125,6 +159,41 @@ public class MessageManager
             return getMessage(req, key, args);
         }
 
+        // check whether we've already resolved this message for this request's bundles
+        MessageTable table = _caching ? resolveMessages(req) : null;
+        if (table != null) {
+            Object cached = table.messages.get(path);
+            if (cached == null) {
+                cached = lookupMessage(req, path);
+                table.cacheMessage(path, (cached == null) ? MISSING : cached);
+            }
+            if (cached != MISSING) {
+                return (String)cached;
+            }
+        } else {
+            String message = lookupMessage(req, path);
+            if (message != null) {
+                return message;
+            }
+        }
+
+        if (reportMissing) {
+            // if there's no translation for this path, complain about it
+            log.warning("Missing translation message", "path", path, "url", getURL(req));
+            return path;
+        }
+
+        return null;
+    }
+
+    /**
+     * Looks up the message with the specified (non-compound) path in the resource bundles most
+     * appropriate for the request and expands any references to other messages that it contains.
+     *
+     * @return the message or null if no bundle contains the path.
+     */
+    protected String lookupMessage (HttpServletRequest req, String path)
+    {
         // load up the matching resource bundles (the array will contain the site-specific
         // resources first and the application resources second); use the locale preferred by the
         // client if possible
@@ -133,47 +202,117 @@ public class MessageManager
         if (bundles != null) {
             int blength = bundles.length;
             for (int i = 0; message == null && i < blength; i++) {
-                try {
-                    if (bundles[i] != null) {
-                        message = bundles[i].getString(path);
-                    }
-                } catch (MissingResourceException mre) {
-                    // no complaints, just try the bundle in the enclosing scope
+                // check containsKey() first to avoid the expense of a MissingResourceException
+                if (bundles[i] != null && bundles[i].containsKey(path)) {
+                    message = bundles[i].getString(path);
                 }
             }
         }
+        return (message == null) ? null : expandReferences(req, path, message);
+    }
 
-        // if we found a message, check it for embedded message links
-        if (message != null) {
-            int oidx = -1;
-            while ((oidx = message.indexOf("{", oidx+1)) != -1) {
-                int cidx = message.indexOf("}", oidx+1);
-                if (cidx == -1) {
-                    // something's funny, just stop fiddling
-                    break;
-                }
-                String ref = message.substring(oidx+1, cidx);
-                // avoid trivial infinite recursion
-                if (ref.equals(path)) {
-                    throw new IllegalStateException(
-                        "Illegal self-referential message " + path + " = " + message + ".");
-                }
-                if (ref.length() > 0 && !Character.isDigit(ref.charAt(0))) {
-                    String refmsg = getMessage(req, ref, true);
-                    message = message.substring(0, oidx) + refmsg + message.substring(cidx+1);
-                    oidx += refmsg.length();
-                }
-            }
+    /**
+     * Replaces any embedded links to other messages (<code>{some.path}</code>) in the supplied
+     * message with their translations. Format arguments (<code>{0}</code>) are left as is.
+     */
+    protected String expandReferences (HttpServletRequest req, String path, String message)
+    {
+        int oidx = message.indexOf('{');
+        if (oidx == -1) {
             return message;
         }
 
-        if (reportMissing) {
-            // if there's no translation for this path, complain about it
-            log.warning("Missing translation message", "path", path, "url", getURL(req));
-            return path;
+        StringBuilder buf = new StringBuilder(message.length());
+        int start = 0;
+        for (; oidx != -1; oidx = message.indexOf('{', oidx+1)) {
+            int cidx = message.indexOf('}', oidx+1);
+            if (cidx == -1) {
+                // something's funny, just stop fiddling
+                break;
+            }
+            String ref = message.substring(oidx+1, cidx);
+            // avoid trivial infinite recursion
+            if (ref.equals(path)) {
+                throw new IllegalStateException(
+                    "Illegal self-referential message " + path + " = " + message + ".");
+            }
+            if (ref.length() > 0 && !Character.isDigit(ref.charAt(0))) {
+                buf.append(message, start, oidx).append(getMessage(req, ref, true));
+                start = oidx = cidx+1;
+                // make sure we don't skip a brace immediately following the reference
+                oidx--;
+            }
         }
+        return buf.append(message, start, message.length()).toString();
+    }
 
-        return null;
+    /**
+     * Returns the table of cached messages for the bundles resolved for the supplied request.
+     */
+    protected MessageTable resolveMessages (HttpServletRequest req)
+    {
+        MessageTable table = null;
+        if (req != null) {
+            table = (MessageTable)req.getAttribute(getMessageCacheName());
+            if (table != null) {
+                return table;
+            }
+        }
+
+        ResourceBundle[] bundles = resolveBundles(req);
+        int siteId = (_siteIdent == null) ? NO_SITE : _siteIdent.identifySite(req);
+        BundleKey key = new BundleKey(siteId, bundles);
+        table = _tables.get(key);
+        if (table == null) {
+            MessageTable otable = _tables.putIfAbsent(key, table = new MessageTable());
+            if (otable != null) {
+                table = otable;
+            }
+        }
+        if (req != null) {
+            req.setAttribute(getMessageCacheName(), table);
+        }
+        return table;
+    }
+
+    /**
+     * Checks (at most every {@link #SITE_BUNDLE_CHECK_INTERVAL} milliseconds per site) whether
+     * the site-specific bundle for the specified site has been modified, and if so flushes the
+     * stale resource bundles and our cached messages.
+     */
+    protected void checkSiteBundle (int siteId, ClassLoader siteLoader)
+    {
+        long now = System.currentTimeMillis();
+        long[] stamps;
+        synchronized (_siteStamps) {
+            stamps = _siteStamps.get(siteId);
+            if (stamps == null) {
+                _siteStamps.put(siteId, stamps = new long[] { 0L, -1L });
+            } else if (now < stamps[0]) {
+                return;
+            }
+            stamps[0] = now + SITE_BUNDLE_CHECK_INTERVAL;
+        }
+
+        long lastModified;
+        try {
+            lastModified = _siteLoader.getLastModified(siteId);
+        } catch (IOException ioe) {
+            return; // no site bundle, nothing to invalidate
+        }
+        synchronized (_siteStamps) {
+            if (stamps[1] == -1L) {
+                stamps[1] = lastModified;
+                return;
+            }
+            if (stamps[1] == lastModified) {
+                return;
+            }
+            stamps[1] = lastModified;
+        }
+        log.info("Site message bundle modified, flushing messages", "siteId", siteId);
+        ResourceBundle.clearCache(siteLoader);
+        clearCache();
     }
 
     /**
@@ -201,6 +340,9 @@ public class MessageManager
             if (_siteLoader != null) {
                 try {
                     siteLoader = _siteLoader.getSiteClassLoader(siteId);
+                    if (siteLoader != null && _caching) {
+                        checkSiteBundle(siteId, siteLoader);
+                    }
                 } catch (IOException ioe) {
                     log.warning("Unable to fetch site-specific classloader", "siteId", siteId,
                                 "error", ioe);
@@ -299,6 +441,74 @@ public class MessageManager
         return BUNDLE_CACHE_PREFIX + _bundlePath;
     }
 
+    /** Used to cache our message table in a request. */
+    protected String getMessageCacheName ()
+    {
+        return MESSAGE_CACHE_PREFIX + _bundlePath;
+    }
+
+    /**
+     * Identifies a particular set of resolved bundles by the site for which they were resolved
+     * (which determines their names) and their locales. Unlike the bundle instances themselves,
+     * which Java may discard and reload at will, these take on a bounded number of values.
+     */
+    protected static class BundleKey
+    {
+        public BundleKey (int siteId, ResourceBundle[] bundles) {
+            _siteId = siteId;
+            _locales = new Locale[(bundles == null) ? 0 : bundles.length];
+            for (int ii = 0; ii < _locales.length; ii++) {
+                _locales[ii] = (bundles[ii] == null) ? null : bundles[ii].getLocale();
+            }
+        }
+
+        @Override // from Object
+        public int hashCode () {
+            return 31 * _siteId + Arrays.hashCode(_locales);
+        }
+
+        @Override // from Object
+        public boolean equals (Object other) {
+            if (!(other instanceof BundleKey)) {
+                return false;
+            }
+            BundleKey okey = (BundleKey)other;
+            return okey._siteId == _siteId && Arrays.equals(okey._locales, _locales);
+        }
+
+        protected int _siteId;
+        protected Locale[] _locales;
+    }
+
+    /**
+     * Caches resolved messages (with references expanded) and message formatters for a
+     * particular set of bundles. Missing messages are recorded as {@link #MISSING}.
+     */
+    protected static class MessageTable
+    {
+        public final ConcurrentHashMap<String, Object> messages =
+            new ConcurrentHashMap<String, Object>();
+
+        public final ConcurrentHashMap<String, MessageFormat> formats =
+            new ConcurrentHashMap<String, MessageFormat>();
+
+        public void cacheMessage (String path, Object message) {
+            // paths may come from the outside world, so don't let a flood of bogus ones grow us
+            // without bound; simply starting over is good enough
+            if (messages.size() >= MAX_CACHED_MESSAGES) {
+                messages.clear();
+            }
+            messages.put(path, message);
+        }
+
+        public void cacheFormat (String path, MessageFormat format) {
+            if (formats.size() >= MAX_CACHED_MESSAGES) {
+                formats.clear();
+            }
+            formats.put(path, format);
+        }
+    }
+
     /** The path, relative to the classpath, to our resource bundles. */
     protected String _bundlePath;
 
@@ -315,7 +525,33 @@ public class MessageManager
     /** The locale to use if we are accessed without an HTTP request. */
     protected Locale _deflocale;
 
+    /** Whether or not we cache resolved messages. */
+    protected boolean _caching = true;
+
+    /** Our cached messages, by the site and locales of each resolved bundle set. */
+    protected ConcurrentHashMap<BundleKey, MessageTable> _tables =
+        new ConcurrentHashMap<BundleKey, MessageTable>();
+
+    /** The time of the next check and last observed modification time of each site's bundle. */
+    protected HashIntMap<long[]> _siteStamps = new HashIntMap<long[]>();
+
+    /** The site id used to key our cached messages when we have no site identifier. */
+    protected static final int NO_SITE = Integer.MIN_VALUE;
+
+    /** Marks messages that are known to be missing from our bundles. */
+    protected static final Object MISSING = new Object();
+
+    /** The maximum number of messages or formats cached per bundle set. */
+    protected static final int MAX_CACHED_MESSAGES = 20000;
+
+    /** How often we check for modifications to site-specific message bundles. */
+    protected static final long SITE_BUNDLE_CHECK_INTERVAL = 30 * 1000L;
+
     /** The attribute name that we use for caching resource bundles in request objects. */
     protected static final String BUNDLE_CACHE_PREFIX =
         "com.samskivert.servlet.MessageManager:CachedResourceBundle:";
+
+    /** The attribute name that we use for caching message tables in request objects. */
+    protected static final String MESSAGE_CACHE_PREFIX =
+        "com.samskivert.servlet.MessageManager:CachedMessages:";
 }
@@ -5,6 +5,7 @@
 
 package com.samskivert.servlet;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -12,12 +13,19 @@ import java.io.InputStream;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 import javax.servlet.http.HttpServletRequest;
 
-import com.samskivert.util.HashIntMap;
+import com.samskivert.io.StreamUtil;
+import com.samskivert.util.Interval;
 
 import static com.samskivert.servlet.Log.log;
 
@@ -37,6 +45,12 @@ import static com.samskivert.servlet.Log.log;
  * returns <code>samskivert</code> as the site identifier for a particular
  * request, site-specific resources will be loaded from
  * <code>/usr/share/java/webapps/site-data/samskivert.jar</code>.
+ *
+ * <p> Site-specific jar files are opened and indexed once and then
+ * checked for modifications periodically on a background thread, so
+ * loading a resource does not touch the file system unless it must be
+ * read from the jar file. Small resources are additionally cached in
+ * memory. Call {@link #shutdown} to stop the background checks.
  */
 public class SiteResourceLoader
 {
@@ -53,6 +67,9 @@ public class SiteResourceLoader
         // keep this stuff around
         _siteIdent = siteIdent;
         _jarPath = siteJarPath;
+
+        // stat our jar files in the background rather than on every load
+        _checker.schedule(CHECK_INTERVAL, true);
     }
 
     /**
@@ -99,24 +116,20 @@ public class SiteResourceLoader
 //          Log.info("Loading site resource [siteId=" + siteId +
 //                   ", path=" + path + "].");
 
-        // synchronize on the lock to ensure that only one thread per site
-        // is concurrently executing
-        synchronized (getLock(siteId)) {
-            SiteResourceBundle bundle = getBundle(siteId);
-
-            // make sure the path has no leading slash
-            if (path.startsWith("/")) {
-                path = path.substring(1);
-            }
-
-            // obtain our resource from the bundle
-            return bundle.getResourceAsStream(path);
+        // make sure the path has no leading slash
+        if (path.startsWith("/")) {
+            path = path.substring(1);
         }
+
+        // obtain our resource from the bundle
+        return getBundle(siteId).getResourceAsStream(path);
     }
 
     /**
      * Returns the last modification time of the site-specific jar file
-     * for the specified site.
+     * for the specified site. This is the modification time observed
+     * when the jar file was last (re)opened, and does not touch the
+     * file system.
      *
      * @exception IOException thrown if an error occurs accessing the
      * site-specific jar file (like it doesn't exist).
@@ -124,11 +137,26 @@ public class SiteResourceLoader
     public long getLastModified (int siteId)
         throws IOException
     {
-        // synchronize on the lock to ensure that only one thread per site
-        // is concurrently executing
-        synchronized (getLock(siteId)) {
-            return getBundle(siteId).getLastModified();
+        return getBundle(siteId).getLastModified();
+    }
+
+    /**
+     * Returns the paths of all of the resources (but not directories)
+     * in the site-specific jar file for the specified site.
+     *
+     * @exception IOException thrown if an error occurs accessing the
+     * site-specific jar file (like it doesn't exist).
+     */
+    public List<String> getResourcePaths (int siteId)
+        throws IOException
+    {
+        List<String> paths = new ArrayList<String>();
+        for (JarEntry entry : getBundle(siteId).getContents().entries.values()) {
+            if (!entry.isDirectory()) {
+                paths.add(entry.getName());
+            }
         }
+        return paths;
     }
 
     /**
@@ -139,63 +167,69 @@ public class SiteResourceLoader
     public ClassLoader getSiteClassLoader (int siteId)
         throws IOException
     {
-        // synchronize on the lock to ensure that only one thread per site
-        // is concurrently executing
-        synchronized (getLock(siteId)) {
-            // see if we've already got one
-            ClassLoader loader = _loaders.get(siteId);
-
-            // create one if we've not
-            if (loader == null) {
-                final SiteResourceBundle bundle = getBundle(siteId);
-                if (bundle == null) {
-                    // no bundle... no classloader.
-                    return null;
-                }
+        final SiteResourceBundle bundle = getBundle(siteId);
+        if (!bundle.exists()) {
+            // no jar file... no classloader.
+            return null;
+        }
 
-                loader = AccessController.doPrivileged(new PrivilegedAction<SiteClassLoader>() {
-                    public SiteClassLoader run () {
-                        return new SiteClassLoader(bundle);
-                    }
-                });
-                _loaders.put(siteId, loader);
-            }
+        // see if we've already got one
+        ClassLoader loader = _loaders.get(siteId);
 
-            return loader;
+        // create one if we've not
+        if (loader == null) {
+            loader = AccessController.doPrivileged(new PrivilegedAction<SiteClassLoader>() {
+                public SiteClassLoader run () {
+                    return new SiteClassLoader(bundle);
+                }
+            });
+            ClassLoader oloader = _loaders.putIfAbsent(siteId, loader);
+            if (oloader != null) {
+                loader = oloader;
+            }
         }
+
+        return loader;
     }
 
-    @Override
-    public String toString ()
+    /**
+     * Checks all of the site-specific jar files that we have opened for
+     * modifications, reopening any that have changed. This is called
+     * periodically on a background thread, so it is not normally
+     * necessary to call it directly.
+     */
+    public void checkForModifications ()
     {
-        return "[jarPath=" + _jarPath + "]";
+        for (SiteResourceBundle bundle : _bundles.values()) {
+            try {
+                bundle.checkForModification();
+            } catch (IOException ioe) {
+                log.warning("Failed to reopen site-specific jar file", "bundle", bundle,
+                            "error", ioe);
+            }
+        }
     }
 
     /**
-     * We synchronize on a per-site basis, but we use a separate lock
-     * object for each site so that the process of loading a bundle for
-     * the first time does not require blocking access to resources from
-     * other sites.
+     * Stops the background checking of our jar files for modifications
+     * and closes them.
      */
-    protected Object getLock (int siteId)
+    public void shutdown ()
     {
-        Object lock = null;
-
-        synchronized (_locks) {
-            lock = _locks.get(siteId);
-
-            // create a lock object if we haven't one already
-            if (lock == null) {
-                _locks.put(siteId, lock = new Object());
-            }
+        _checker.cancel();
+        for (SiteResourceBundle bundle : _bundles.values()) {
+            bundle.close();
         }
+    }
 
-        return lock;
+    @Override
+    public String toString ()
+    {
+        return "[jarPath=" + _jarPath + "]";
     }
 
     /**
-     * Obtains the site-specific jar file for the specified site. This
-     * should only be called when the lock for this site is held.
+     * Obtains the site-specific jar file for the specified site.
      */
     protected SiteResourceBundle getBundle (int siteId)
         throws IOException
@@ -212,8 +246,11 @@ public class SiteResourceLoader
             File file = new File(_jarPath, ident + JAR_EXTENSION);
             // create a handle for this site-specific jar file
             bundle = new SiteResourceBundle(file);
-            // cache our new bundle
-            _bundles.put(siteId, bundle);
+            // cache our new bundle (unless someone beat us to it)
+            SiteResourceBundle obundle = _bundles.putIfAbsent(siteId, bundle);
+            if (obundle != null) {
+                bundle = obundle;
+            }
         }
 
         return bundle;
@@ -223,12 +260,18 @@ public class SiteResourceLoader
      * Encapsulates the information we need to load data from a site
      * resource bundle as well as to determine whether the loaded bundle
      * is up to date.
+     *
+     * <p> The contents of the jar file (an open handle, an index of its
+     * entries and a cache of the bytes of its smaller resources) are
+     * kept in an immutable snapshot which is replaced when the jar file
+     * is modified, so resources can be read without locking.
      */
     public static class SiteResourceBundle
     {
         /** The object through which we load resources from the
-         * site-specific jar file. */
-        public JarFile jarFile;
+         * site-specific jar file (null until it is first opened or if it
+         * does not exist). */
+        public volatile JarFile jarFile;
 
         /** A handle on the site-specific jar file. */
         public File file;
@@ -245,8 +288,6 @@ public class SiteResourceLoader
 
         /**
          * Fetches the specified resource from our site-specific jar file.
-         * The last modified time of the underlying jar file may be
-         * checked to determine whether or not it needs to be reloaded.
          *
          * @return an input stream via which the resource can be read or
          * null if no resource exists with the specified path.
@@ -254,12 +295,32 @@ public class SiteResourceLoader
         public InputStream getResourceAsStream (String path)
             throws IOException
         {
-            // open or reopen our underlying jar file as necessary
-            refreshJarFile();
+            Contents contents = getContents();
+            JarEntry entry = contents.entries.get(path);
+            if (entry == null) {
+                return null;
+            }
 
-            // now load up the resource
-            JarEntry entry = jarFile.getJarEntry(path);
-            return (entry == null) ? null : jarFile.getInputStream(entry);
+            // serve small resources from memory
+            long size = entry.getSize();
+            if (size < 0 || size > MAX_CACHED_RESOURCE_SIZE) {
+                return contents.jarFile.getInputStream(entry);
+            }
+            byte[] data = contents.data.get(path);
+            if (data == null) {
+                InputStream in = contents.jarFile.getInputStream(entry);
+                try {
+                    data = StreamUtil.toByteArray(in);
+                } finally {
+                    StreamUtil.close(in);
+                }
+                if (contents.cachedBytes.addAndGet(data.length) <= MAX_CACHED_BYTES) {
+                    contents.data.put(path, data);
+                } else {
+                    contents.cachedBytes.addAndGet(-data.length);
+                }
+            }
+            return new ByteArrayInputStream(data);
         }
 
         /**
@@ -268,10 +329,17 @@ public class SiteResourceLoader
         public long getLastModified ()
             throws IOException
         {
-            // open or reopen our underlying jar file as necessary
-            refreshJarFile();
+            return getContents().lastModified;
+        }
 
-            return _lastModified;
+        /**
+         * Returns true if our site-specific jar file existed when it was
+         * last checked.
+         */
+        public boolean exists ()
+            throws IOException
+        {
+            return (loadContents().jarFile != null);
         }
 
         @Override public String toString ()
@@ -280,40 +348,147 @@ public class SiteResourceLoader
         }
 
         /**
-         * Reopens our site-specific jar file if it has been modified
-         * since it was last opened.
+         * Returns our current contents, opening our jar file if this is
+         * the first time we've been accessed.
+         *
+         * @exception FileNotFoundException thrown if the jar file did not
+         * exist when last checked.
          */
-        protected void refreshJarFile ()
+        protected Contents getContents ()
             throws IOException
         {
-            // ensure that the file exists
-            if (!file.exists()) {
+            Contents contents = loadContents();
+            if (contents.jarFile == null) {
                 String errmsg = "No site-specific jar file " +
                     "[path=" + file.getPath() + "].";
                 throw new FileNotFoundException(errmsg);
             }
+            return contents;
+        }
 
-            // determine whether or not we need to create a new jarfile
-            // instance
-            if (file.lastModified() > _lastModified) {
-                // make a note of the last modified time
-                _lastModified = file.lastModified();
+        /**
+         * Returns our current contents, opening our jar file (or noting
+         * that it does not exist) if this is the first time we've been
+         * accessed.
+         */
+        protected Contents loadContents ()
+            throws IOException
+        {
+            Contents contents = _contents;
+            if (contents == null) {
+                synchronized (this) {
+                    if ((contents = _contents) == null) {
+                        _contents = contents = open();
+                        jarFile = contents.jarFile;
+                    }
+                }
+            }
+            return contents;
+        }
 
-                // close our old jar file if we've got one
-                if (jarFile != null) {
-                    jarFile.close();
+        /**
+         * Reopens our site-specific jar file if it has been modified
+         * (or created or removed) since it was last opened.
+         */
+        protected void checkForModification ()
+            throws IOException
+        {
+            Contents contents = _contents;
+            if (contents == null || file.lastModified() == contents.lastModified) {
+                return; // never opened or not modified
+            }
+            Contents ncontents = open();
+            synchronized (this) {
+                _contents = ncontents;
+                jarFile = ncontents.jarFile;
+                // readers may still be using our previous jar file, so
+                // we wait until it's been superseded once more to close it
+                if (_previous != null) {
+                    _previous.close();
                 }
+                _previous = contents;
+            }
+            log.info("Reopened modified site bundle", "path", file.getPath());
+        }
 
-                log.info("Opened site bundle", "path", file.getPath());
+        /**
+         * Closes our jar files.
+         */
+        protected synchronized void close ()
+        {
+            if (_contents != null) {
+                _contents.close();
+            }
+            if (_previous != null) {
+                _previous.close();
+            }
+        }
 
-                // and open a new one
-                jarFile = new JarFile(file);
+        /**
+         * Opens and indexes our jar file, or notes that it does not
+         * exist.
+         */
+        protected Contents open ()
+            throws IOException
+        {
+            Contents contents = new Contents();
+            // note that lastModified() returns zero if the file does not
+            // exist, so a subsequently created file will be noticed
+            contents.lastModified = file.lastModified();
+            if (file.exists()) {
+                contents.jarFile = new JarFile(file);
+                for (Enumeration<JarEntry> iter = contents.jarFile.entries();
+                     iter.hasMoreElements(); ) {
+                    JarEntry entry = iter.nextElement();
+                    contents.entries.put(entry.getName(), entry);
+                }
+                log.info("Opened site bundle", "path", file.getPath(),
+                         "entries", contents.entries.size());
             }
+            return contents;
         }
 
-        /** The last modified time of the jar file at the time that we
-         * opened it for reading. */
-        protected long _lastModified;
+        /** The current contents of our jar file. */
+        protected volatile Contents _contents;
+
+        /** Our previous contents, which will be closed on our next
+         * modification. */
+        protected Contents _previous;
+    }
+
+    /**
+     * The contents of a site-specific jar file as of a particular
+     * modification time.
+     */
+    protected static class Contents
+    {
+        /** The object through which we load resources from the jar file,
+         * or null if it does not exist. */
+        public JarFile jarFile;
+
+        /** The last modified time of the jar file when it was opened. */
+        public long lastModified;
+
+        /** The entries in the jar file, by path. */
+        public HashMap<String, JarEntry> entries = new HashMap<String, JarEntry>();
+
+        /** The bytes of small resources that have been loaded. */
+        public ConcurrentHashMap<String, byte[]> data =
+            new ConcurrentHashMap<String, byte[]>();
+
+        /** The total size of the resources in {@link #data}. */
+        public AtomicLong cachedBytes = new AtomicLong();
+
+        public void close () {
+            if (jarFile != null) {
+                try {
+                    jarFile.close();
+                } catch (IOException ioe) {
+                    log.warning("Failed to close jar file", "jar", jarFile.getName(),
+                                "error", ioe);
+                }
+            }
+        }
     }
 
     protected static class SiteClassLoader extends ClassLoader
@@ -348,15 +523,20 @@ public class SiteResourceLoader
     /** The path to our site-specific jar files. */
     protected String _jarPath;
 
-    /** We synchronize on a per-site basis. */
-    protected HashIntMap<Object> _locks = new HashIntMap<Object>();
-
     /** The table of site-specific jar file information. */
-    protected HashIntMap<SiteResourceBundle> _bundles =
-        new HashIntMap<SiteResourceBundle>();
+    protected ConcurrentHashMap<Integer, SiteResourceBundle> _bundles =
+        new ConcurrentHashMap<Integer, SiteResourceBundle>();
 
     /** The table of site-specific class loaders. */
-    protected HashIntMap<ClassLoader> _loaders = new HashIntMap<ClassLoader>();
+    protected ConcurrentHashMap<Integer, ClassLoader> _loaders =
+        new ConcurrentHashMap<Integer, ClassLoader>();
+
+    /** Periodically checks our jar files for modifications. */
+    protected Interval _checker = new Interval(Interval.RUN_DIRECT) {
+        @Override public void expired () {
+            checkForModifications();
+        }
+    };
 
     /** The default path to the site-specific jar files. This won't be
      * used without logging a complaint first. */
@@ -366,4 +546,13 @@ public class SiteResourceLoader
     /** The file extension to be appended to the string site identifier to
      * obtain the file name of the site-specific jar file. */
     protected static final String JAR_EXTENSION = ".jar";
+
+    /** How often we check our jar files for modifications. */
+    protected static final long CHECK_INTERVAL = 10 * 1000L;
+
+    /** Resources no larger than this are cached in memory. */
+    protected static final int MAX_CACHED_RESOURCE_SIZE = 64 * 1024;
+
+    /** The maximum number of bytes of resources cached per jar file. */
+    protected static final long MAX_CACHED_BYTES = 4 * 1024 * 1024;
 }
@@ -5,6 +5,9 @@
 
 package com.samskivert.servlet.user;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -15,7 +18,9 @@ import com.samskivert.jdbc.ConnectionProvider;
 import com.samskivert.servlet.RedirectException;
 import com.samskivert.servlet.util.CookieUtil;
 import com.samskivert.servlet.util.RequestUtils;
+import com.samskivert.util.ExpiringReference;
 import com.samskivert.util.Interval;
+import com.samskivert.util.LRUHashMap;
 import com.samskivert.util.RunQueue;
 import com.samskivert.util.StringUtil;
 import com.samskivert.util.Tuple;
@@ -80,6 +85,19 @@ public class UserManager
      * The <code>%R</code> will be replaced with the URL encoded URL the user is currently
      * requesting (complete with query parameters) so that the login code can redirect the user
      * back to this request once they are authenticated.
+     *
+     * <li><code>session_cache.size</code>: The maximum number of session to user mappings to
+     * cache in memory (defaults to 1000). Zero disables the cache.
+     *
+     * <li><code>session_cache.ttl</code>: The number of seconds for which a cached session to
+     * user mapping remains valid (defaults to 60). Sessions are invalidated immediately when
+     * modified via this user manager, but changes made directly via the repository (or by other
+     * servers) will be seen only once the cached mapping expires.
+     *
+     * <li><code>session_refresh.flush_interval</code>: If non-zero (and a run queue is supplied
+     * to {@link #init(Properties,ConnectionProvider,RunQueue)}), refreshes of cached sessions are
+     * buffered in memory and written to the database in batches every this many seconds, rather
+     * than with an update per refresh. Defaults to zero.
      * </ul>
      *
      * @param config the user manager configuration properties.
@@ -119,22 +137,52 @@ public class UserManager
             _userAuthCookie = authCook;
         }
 
+        // create our session cache
+        int cacheSize = getIntProperty(config, "session_cache.size", DEFAULT_SESSION_CACHE_SIZE);
+        if (cacheSize > 0) {
+            _sessionCache = new LRUHashMap<String, ExpiringReference<User>>(cacheSize);
+            _sessionCacheTTL = 1000L * getIntProperty(
+                config, "session_cache.ttl", DEFAULT_SESSION_CACHE_TTL);
+        }
+
         if (USERMGR_DEBUG) {
             log.info("UserManager initialized", "acook", _userAuthCookie, "login", _loginURL);
         }
 
-        // register a cron job to prune the session table every hour
+        // register a cron job to prune the session table every hour; we prune in chunks and
+        // pause between them so as not to lock up the session table for long periods
         if (pruneQueue != null) {
             _pruner = new Interval(pruneQueue) {
                 @Override public void expired () {
                     try {
-                        _repository.pruneSessions();
+                        int chunk = UserRepository.PRUNE_CHUNK_SIZE;
+                        if (_repository.pruneSessions(chunk) == chunk) {
+                            _pruneChunker.schedule(PRUNE_CHUNK_PAUSE);
+                        } else {
+                            clearSessionCache();
+                        }
                     } catch (PersistenceException pe) {
                         log.warning("Error pruning session table.", pe);
                     }
                 }
             };
+            _pruneChunker = new Interval(pruneQueue) {
+                @Override public void expired () {
+                    _pruner.expired();
+                }
+            };
             _pruner.schedule(SESSION_PRUNE_INTERVAL, true);
+
+            // flush buffered session refreshes periodically
+            int flushSecs = getIntProperty(config, "session_refresh.flush_interval", 0);
+            if (flushSecs > 0 && _sessionCache != null) {
+                _refresher = new Interval(pruneQueue) {
+                    @Override public void expired () {
+                        flushSessionRefreshes();
+                    }
+                };
+                _refresher.schedule(flushSecs * 1000L, true);
+            }
         }
     }
 
@@ -143,6 +191,12 @@ public class UserManager
         // cancel our session table pruning thread
         if (_pruner != null) {
             _pruner.cancel();
+            _pruneChunker.cancel();
+        }
+        // write out any buffered session refreshes
+        if (_refresher != null) {
+            _refresher.cancel();
+            flushSessionRefreshes();
         }
     }
 
@@ -177,7 +231,37 @@ public class UserManager
     public User loadUser (String authcode)
         throws PersistenceException
     {
-        User user = (authcode == null) ? null : _repository.loadUserBySession(authcode);
+        if (authcode == null) {
+            return null;
+        }
+
+        // check our cache
+        User user = null;
+        if (_sessionCache != null) {
+            synchronized (_sessionCache) {
+                ExpiringReference<User> ref = _sessionCache.get(authcode);
+                user = ExpiringReference.get(ref);
+                if (user == null && ref != null) {
+                    _sessionCache.remove(authcode);
+                }
+                if (user == null) {
+                    _sessionMisses++;
+                } else {
+                    _sessionHits++;
+                }
+            }
+            if (user != null) {
+                return _repository.copyUser(user);
+            }
+        }
+
+        user = _repository.loadUserBySession(authcode);
+        if (user != null && _sessionCache != null) {
+            User cached = _repository.copyUser(user);
+            synchronized (_sessionCache) {
+                _sessionCache.put(authcode, ExpiringReference.create(cached, _sessionCacheTTL));
+            }
+        }
         if (USERMGR_DEBUG) {
             log.info("Loaded user by authcode", "code", authcode, "user", user);
         }
@@ -315,6 +399,7 @@ public class UserManager
         if (authcode == null) {
             return;
         }
+        invalidateSession(authcode);
 
         // set them up the bomb
         Cookie c = new Cookie(_userAuthCookie, "x");
@@ -342,9 +427,146 @@ public class UserManager
     public boolean refreshSession (String sessionKey, int expireDays)
         throws PersistenceException
     {
+        // if we're buffering refreshes and know this session to be valid, queue it up
+        if (_refresher != null && isSessionCached(sessionKey)) {
+            _repository.queueSessionRefresh(sessionKey, expireDays);
+            return true;
+        }
+        invalidateSession(sessionKey);
         return _repository.refreshSession(sessionKey, expireDays);
     }
 
+    /**
+     * Writes any modified fields of the supplied user to the repository (see {@link
+     * UserRepository#updateUser}) and flushes any cached sessions for that user. Code that
+     * updates users loaded via this manager should use this method rather than updating them
+     * directly via the repository, so that subsequent requests see the changes.
+     *
+     * @return true if the record was updated, false if no fields were modified.
+     */
+    public boolean updateUser (User user)
+        throws PersistenceException
+    {
+        try {
+            return _repository.updateUser(user);
+        } finally {
+            invalidateUser(user.userId);
+        }
+    }
+
+    /**
+     * Removes the specified session from our session cache.
+     */
+    public void invalidateSession (String authcode)
+    {
+        if (_sessionCache != null) {
+            synchronized (_sessionCache) {
+                _sessionCache.remove(authcode);
+            }
+        }
+    }
+
+    /**
+     * Removes all cached sessions for the specified user.
+     */
+    public void invalidateUser (int userId)
+    {
+        if (_sessionCache == null) {
+            return;
+        }
+        synchronized (_sessionCache) {
+            // the cache does not support removal via its views, so collect the keys first
+            List<String> authcodes = new ArrayList<String>();
+            for (Map.Entry<String, ExpiringReference<User>> entry : _sessionCache.entrySet()) {
+                User user = entry.getValue().getValue();
+                if (user == null || user.userId == userId) {
+                    authcodes.add(entry.getKey());
+                }
+            }
+            for (String authcode : authcodes) {
+                _sessionCache.remove(authcode);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of session lookups that were satisfied by our session cache and the
+     * number that required a database query, in that order.
+     */
+    public long[] getSessionCacheStats ()
+    {
+        if (_sessionCache == null) {
+            return new long[2];
+        }
+        synchronized (_sessionCache) {
+            return new long[] { _sessionHits, _sessionMisses };
+        }
+    }
+
+    /**
+     * Returns the fraction of session lookups that were satisfied by our session cache.
+     */
+    public float getSessionCacheHitRate ()
+    {
+        long[] stats = getSessionCacheStats();
+        long total = stats[0] + stats[1];
+        return (total == 0) ? 0f : stats[0] / (float)total;
+    }
+
+    /**
+     * Returns true if a valid mapping for the specified session is in our session cache.
+     */
+    protected boolean isSessionCached (String authcode)
+    {
+        if (_sessionCache == null) {
+            return false;
+        }
+        synchronized (_sessionCache) {
+            return ExpiringReference.get(_sessionCache.get(authcode)) != null;
+        }
+    }
+
+    /**
+     * Writes any buffered session refreshes to the database.
+     */
+    protected void flushSessionRefreshes ()
+    {
+        try {
+            _repository.flushSessionRefreshes();
+        } catch (PersistenceException pe) {
+            log.warning("Error flushing session refreshes.", pe);
+        }
+    }
+
+    /**
+     * Clears our entire session cache.
+     */
+    protected void clearSessionCache ()
+    {
+        if (_sessionCache != null) {
+            synchronized (_sessionCache) {
+                _sessionCache.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the integer value of the specified configuration property, or the supplied default
+     * if it is not set or invalid.
+     */
+    protected static int getIntProperty (Properties config, String key, int defval)
+    {
+        String value = config.getProperty(key);
+        if (!StringUtil.isBlank(value)) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfe) {
+                log.warning("Invalid user manager config", "key", key, "value", value);
+            }
+        }
+        return defval;
+    }
+
     /**
      * Called by the user manager to create the user repository. Derived classes can override this
      * and create a specialized repository if they so desire.
@@ -364,6 +586,21 @@ public class UserManager
     /** The interval for user session pruning. */
     protected Interval _pruner;
 
+    /** Used to continue pruning sessions after a pause when there are many to prune. */
+    protected Interval _pruneChunker;
+
+    /** The interval that flushes buffered session refreshes, or null. */
+    protected Interval _refresher;
+
+    /** Maps session authcodes to (copies of) the users that own them, or null. */
+    protected LRUHashMap<String, ExpiringReference<User>> _sessionCache;
+
+    /** The number of milliseconds for which a cached session remains valid. */
+    protected long _sessionCacheTTL;
+
+    /** Session cache effectiveness statistics. */
+    protected long _sessionHits, _sessionMisses;
+
     /** The URL for the user login page. */
     protected String _loginURL;
 
@@ -376,6 +613,15 @@ public class UserManager
     /** Prune the session table every hour. */
     protected static final long SESSION_PRUNE_INTERVAL = 60L * 60L * 1000L;
 
+    /** The default maximum number of cached sessions. */
+    protected static final int DEFAULT_SESSION_CACHE_SIZE = 1000;
+
+    /** The default number of seconds for which a cached session remains valid. */
+    protected static final int DEFAULT_SESSION_CACHE_TTL = 60;
+
+    /** The number of milliseconds to pause between pruning chunks. */
+    protected static final long PRUNE_CHUNK_PAUSE = 1000L;
+
     /** Indicates how long (in days) that a "persisting" session token should last. */
     protected static final int PERSIST_EXPIRE_DAYS = 30;
 
@@ -7,12 +7,16 @@ package com.samskivert.servlet.user;
 
 import java.sql.Connection;
 import java.sql.Date;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.samskivert.io.PersistenceException;
 import com.samskivert.jdbc.ConnectionProvider;
@@ -22,6 +26,7 @@ import com.samskivert.jdbc.JORARepository;
 import com.samskivert.jdbc.jora.FieldMask;
 import com.samskivert.jdbc.jora.Table;
 import com.samskivert.util.HashIntMap;
+import com.samskivert.util.IntListUtil;
 import com.samskivert.util.StringUtil;
 
 import com.samskivert.servlet.SiteIdentifier;
@@ -47,7 +52,20 @@ public class UserRepository extends JORARepository
      */
     public UserRepository (ConnectionProvider provider)
     {
-        super(provider, USER_REPOSITORY_IDENT);
+        this(provider, USER_REPOSITORY_IDENT);
+    }
+
+    /**
+     * Creates the repository and opens the user database identified by the supplied database
+     * identifier. This is useful when spreading users across multiple databases with a {@link
+     * com.samskivert.jdbc.ShardedRepository}.
+     *
+     * @param provider the database connection provider.
+     * @param dbident the identifier of the database to be accessed.
+     */
+    public UserRepository (ConnectionProvider provider, String dbident)
+    {
+        super(provider, dbident);
     }
 
     /**
@@ -106,11 +124,17 @@ public class UserRepository extends JORARepository
      * @return the user associated with the specified session or null of no session exists with the
      * supplied identifier.
      */
-    public User loadUserBySession (String sessionKey)
+    public User loadUserBySession (final String sessionKey)
         throws PersistenceException
     {
-        User user = load(_utable, "sessions", "where authcode = '" + sessionKey + "' " +
-                         "AND sessions.userId = users.userId");
+        User user = execute(new Operation<User>() {
+            public User invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException, PersistenceException
+            {
+                return _utable.select(conn, "sessions", "where authcode = ? " +
+                                      "AND sessions.userId = users.userId", sessionKey).get();
+            }
+        });
         if (user != null) {
             user.setDirtyMask(_utable.getFieldMask());
         }
@@ -127,8 +151,7 @@ public class UserRepository extends JORARepository
     {
         HashIntMap<User> data = new HashIntMap<User>();
         if (userIds.length > 0) {
-            String query = "where userId in (" + genIdString(userIds) + ")";
-            for (User user : loadAll(_utable, query)) {
+            for (User user : loadAllByKeys(_utable, "userId", IntListUtil.asList(userIds))) {
                 user.setDirtyMask(_utable.getFieldMask());
                 data.put(user.userId, user);
             }
@@ -166,6 +189,17 @@ public class UserRepository extends JORARepository
         return users;
     }
 
+    /**
+     * Creates a copy of the supplied user record with its own (clean) dirty mask. This is used by
+     * callers that cache user records so that they can hand out private copies.
+     */
+    public User copyUser (User user)
+    {
+        User copy = _utable.copy(user);
+        copy.setDirtyMask(_utable.getFieldMask());
+        return copy;
+    }
+
     /**
      * Updates a user that was previously fetched from the repository.  Only fields that have been
      * modified since it was loaded will be written to the database and those fields will
@@ -297,9 +331,7 @@ public class UserRepository extends JORARepository
     public boolean refreshSession (String sessionKey, int expireDays)
         throws PersistenceException
     {
-        Calendar cal = Calendar.getInstance();
-        cal.add(Calendar.DATE, expireDays);
-        Date expires = new Date(cal.getTime().getTime());
+        Date expires = computeExpires(expireDays);
 
         // attempt to update an existing session row, returning true if we found and updated it
         return (update("update sessions set expires = '" + expires + "' " +
@@ -307,12 +339,145 @@ public class UserRepository extends JORARepository
     }
 
     /**
-     * Prunes any expired sessions from the sessions table.
+     * Queues up a refresh of the supplied session key, which will be written to the database on
+     * the next call to {@link #flushSessionRefreshes}. Unlike {@link #refreshSession}, this does
+     * not verify that the session exists, so it should only be used for sessions that are known
+     * to be valid. Multiple refreshes of the same session between flushes are coalesced.
+     */
+    public void queueSessionRefresh (String sessionKey, int expireDays)
+    {
+        Date expires = computeExpires(expireDays);
+        synchronized (_refreshLock) {
+            _pendingRefreshes.put(sessionKey, expires);
+        }
+    }
+
+    /**
+     * Writes all queued session refreshes to the database using batched updates, committing every
+     * {@link #REFRESH_BATCH_SIZE} sessions so as to keep each transaction short. If a batch
+     * fails, it and all subsequent refreshes are requeued (unless superseded by a more recent
+     * refresh) and the failure is thrown.
+     *
+     * @return the number of sessions refreshed.
+     */
+    public int flushSessionRefreshes ()
+        throws PersistenceException
+    {
+        Map<String, Date> pending;
+        synchronized (_refreshLock) {
+            if (_pendingRefreshes.isEmpty()) {
+                return 0;
+            }
+            pending = _pendingRefreshes;
+            _pendingRefreshes = new HashMap<String, Date>();
+        }
+
+        final List<Map.Entry<String, Date>> entries =
+            new ArrayList<Map.Entry<String, Date>>(pending.entrySet());
+        int offset = 0, refreshed = 0;
+        try {
+            for (; offset < entries.size(); offset += REFRESH_BATCH_SIZE) {
+                final List<Map.Entry<String, Date>> batch = entries.subList(
+                    offset, Math.min(offset + REFRESH_BATCH_SIZE, entries.size()));
+                refreshed += executeUpdate(new Operation<Integer>() {
+                    public Integer invoke (Connection conn, DatabaseLiaison liaison)
+                        throws PersistenceException, SQLException
+                    {
+                        PreparedStatement stmt = conn.prepareStatement(
+                            "update sessions set expires = ? where authcode = ?");
+                        try {
+                            for (Map.Entry<String, Date> entry : batch) {
+                                stmt.setDate(1, entry.getValue());
+                                stmt.setString(2, entry.getKey());
+                                stmt.addBatch();
+                            }
+                            int count = 0;
+                            for (int modified : stmt.executeBatch()) {
+                                count += Math.max(modified, 0);
+                            }
+                            return count;
+                        } finally {
+                            JDBCUtil.close(stmt);
+                        }
+                    }
+                });
+            }
+
+        } catch (PersistenceException pe) {
+            synchronized (_refreshLock) {
+                for (Map.Entry<String, Date> entry : entries.subList(offset, entries.size())) {
+                    if (!_pendingRefreshes.containsKey(entry.getKey())) {
+                        _pendingRefreshes.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            throw pe;
+        }
+        return refreshed;
+    }
+
+    /**
+     * Prunes any expired sessions from the sessions table. The sessions are deleted in chunks of
+     * {@link #PRUNE_CHUNK_SIZE}, each in its own transaction, so that the sessions table is never
+     * locked for long. See {@link #pruneSessions(int)} for a way to throttle pruning.
      */
     public void pruneSessions ()
         throws PersistenceException
     {
-        update("delete from sessions where expires <= CURRENT_DATE()");
+        while (pruneSessions(PRUNE_CHUNK_SIZE) == PRUNE_CHUNK_SIZE) {
+            // keep on pruning
+        }
+    }
+
+    /**
+     * Prunes at most <code>maxSessions</code> expired sessions from the sessions table. The
+     * expired sessions with the lowest authcodes are located and then deleted with a single
+     * statement bounded by that range of authcodes.
+     *
+     * @return the number of sessions pruned. If this is equal to <code>maxSessions</code>, more
+     * expired sessions may remain.
+     */
+    public int pruneSessions (final int maxSessions)
+        throws PersistenceException
+    {
+        return executeUpdate(new Operation<Integer>() {
+            public Integer invoke (Connection conn, DatabaseLiaison liaison)
+                throws PersistenceException, SQLException
+            {
+                String first = null, last = null;
+                Date today = computeExpires(0);
+                PreparedStatement stmt = conn.prepareStatement(
+                    "select authcode from sessions where expires <= ? order by authcode");
+                try {
+                    stmt.setMaxRows(maxSessions);
+                    stmt.setDate(1, today);
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        last = rs.getString(1);
+                        if (first == null) {
+                            first = last;
+                        }
+                    }
+                } finally {
+                    JDBCUtil.close(stmt);
+                }
+                if (first == null) {
+                    return 0;
+                }
+
+                PreparedStatement pstmt = conn.prepareStatement(
+                    "delete from sessions where authcode >= ? and authcode <= ? " +
+                    "and expires <= ?");
+                try {
+                    pstmt.setString(1, first);
+                    pstmt.setString(2, last);
+                    pstmt.setDate(3, today);
+                    return pstmt.executeUpdate();
+                } finally {
+                    JDBCUtil.close(pstmt);
+                }
+            }
+        });
     }
 
     /**
@@ -369,6 +534,17 @@ public class UserRepository extends JORARepository
         return names.toArray(new String[names.size()]);
     }
 
+    /**
+     * Returns the date on which a session refreshed now for the specified number of days will
+     * expire.
+     */
+    protected Date computeExpires (int expireDays)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.add(Calendar.DATE, expireDays);
+        return new Date(cal.getTime().getTime());
+    }
+
     /**
      * Configures the supplied user record with the provided information in preparation for
      * inserting the record into the database for the first time.
@@ -438,29 +614,11 @@ public class UserRepository extends JORARepository
         }
 
         // do the query
-        final String ids = genIdString(userIds);
         final HashIntMap<String> map = new HashIntMap<String>();
-        execute(new Operation<Object>() {
-            public Object invoke (Connection conn, DatabaseLiaison liaison)
-                throws PersistenceException, SQLException
-            {
-                Statement stmt = conn.createStatement();
-                try {
-                    String query = "select userId, " + column + " from users " +
-                        "where userId in (" + ids + ")";
-                    ResultSet rs = stmt.executeQuery(query);
-                    while (rs.next()) {
-                        int userId = rs.getInt(1);
-                        String name = rs.getString(2);
-                        map.put(userId, name);
-                    }
-
-                    // nothing to return
-                    return null;
-
-                } finally {
-                    JDBCUtil.close(stmt);
-                }
+        String query = "select userId, " + column + " from users where userId in (#KEYS#)";
+        batchQuery(query, IntListUtil.asList(userIds), new JDBCUtil.BatchProcessor() {
+            public void process (ResultSet row) throws SQLException {
+                map.put(row.getInt(1), row.getString(2));
             }
         });
 
@@ -499,4 +657,17 @@ public class UserRepository extends JORARepository
 
     /** A wrapper that provides access to the userstable. */
     protected Table<User> _utable;
+
+    /** Session refreshes waiting to be written by {@link #flushSessionRefreshes}. */
+    protected Map<String, Date> _pendingRefreshes = new HashMap<String, Date>();
+
+    /** Guards {@link #_pendingRefreshes}, which is replaced on every flush. */
+    protected final Object _refreshLock = new Object();
+
+    /** The number of sessions refreshed per transaction by {@link #flushSessionRefreshes}. */
+    protected static final int REFRESH_BATCH_SIZE = 100;
+
+    /** The number of sessions deleted per transaction by {@link #pruneSessions()} and by the
+     * periodic pruning in {@link UserManager}. */
+    protected static final int PRUNE_CHUNK_SIZE = 1000;
 }
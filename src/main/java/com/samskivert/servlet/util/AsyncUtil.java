@@ -0,0 +1,93 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import javax.servlet.ServletRequest;
+
+import static com.samskivert.servlet.Log.log;
+
+/**
+ * Provides access to the asynchronous request processing introduced in version 3.0 of the servlet
+ * API, while remaining compatible with older containers (and with the older API against which this
+ * library is compiled).
+ */
+public class AsyncUtil
+{
+    /**
+     * Returns true if the servlet container supports asynchronous processing of the supplied
+     * request. It will not if the container implements a version of the servlet API prior to 3.0
+     * or if the servlet or any filter handling the request is not configured with
+     * <code>&lt;async-supported&gt;true&lt;/async-supported&gt;</code>.
+     */
+    public static boolean isAsyncSupported (ServletRequest req)
+    {
+        if (_startAsync == null) {
+            return false;
+        }
+        try {
+            return (Boolean)_isAsyncSupported.invoke(req);
+        } catch (Exception e) {
+            log.warning("Unable to determine async support", "req", req, unwrap(e));
+            return false;
+        }
+    }
+
+    /**
+     * Puts the supplied request into asynchronous mode, so that its response need not be complete
+     * when the servlet returns from its service method.
+     *
+     * @return a runnable that must be run once the response is complete, or null if the servlet
+     * container does not support asynchronous processing of the request (see {@link
+     * #isAsyncSupported}), in which case the request is left in its normal, synchronous mode.
+     */
+    public static Runnable startAsync (ServletRequest req)
+    {
+        if (!isAsyncSupported(req)) {
+            return null;
+        }
+        final Object actx;
+        try {
+            actx = _startAsync.invoke(req);
+        } catch (Exception e) {
+            log.warning("Unable to start async request", "req", req, unwrap(e));
+            return null;
+        }
+        return new Runnable() {
+            public void run () {
+                try {
+                    _complete.invoke(actx);
+                } catch (Exception e) {
+                    // this happens if the request timed out before we completed it
+                    log.warning("Unable to complete async request", "actx", actx, unwrap(e));
+                }
+            }
+        };
+    }
+
+    protected static Throwable unwrap (Exception e)
+    {
+        return (e instanceof InvocationTargetException) ? e.getCause() : e;
+    }
+
+    /** ServletRequest.isAsyncSupported(), startAsync() and AsyncContext.complete(), or null if
+     * we're running in a pre-3.0 container. */
+    protected static Method _isAsyncSupported, _startAsync, _complete;
+
+    static {
+        try {
+            Method isAsyncSupported = ServletRequest.class.getMethod("isAsyncSupported");
+            Method startAsync = ServletRequest.class.getMethod("startAsync");
+            _complete = startAsync.getReturnType().getMethod("complete");
+            _isAsyncSupported = isAsyncSupported;
+            _startAsync = startAsync;
+        } catch (NoSuchMethodException nsme) {
+            // no async support for us
+        }
+    }
+}
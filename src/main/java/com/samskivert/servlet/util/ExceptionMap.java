@@ -5,9 +5,14 @@
 
 package com.samskivert.servlet.util;
 
-import java.io.*;
-import java.util.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.samskivert.io.StreamUtil;
 import com.samskivert.util.ConfigUtil;
 
 import static com.samskivert.servlet.Log.log;
@@ -64,11 +69,11 @@ public class ExceptionMap
         // only initialize ourselves once
         if (_keys != null) {
             return;
-        } else {
-            _keys = new ArrayList<Class<?>>();
-            _values = new ArrayList<String>();
         }
 
+        List<Class<?>> keys = new ArrayList<Class<?>>();
+        List<String> values = new ArrayList<String>();
+
         // first try loading the properties file without a leading slash
         ClassLoader cld = ExceptionMap.class.getClassLoader();
         InputStream config = ConfigUtil.getStream(PROPS_NAME, cld);
@@ -81,11 +86,12 @@ public class ExceptionMap
                 // we'll do some serious jiggery pokery to leverage the parsing
                 // implementation provided by java.util.Properties. god bless
                 // method overloading
-                final ArrayList<String> classes = new ArrayList<String>();
+                final List<String> classes = new ArrayList<String>();
+                final List<String> messages = new ArrayList<String>();
                 Properties loader = new Properties() {
                     @Override public Object put (Object key, Object value) {
                         classes.add((String)key);
-                        _values.add((String)value);
+                        messages.add((String)value);
                         return key;
                     }
                 };
@@ -93,25 +99,26 @@ public class ExceptionMap
 
                 // now cruise through and resolve the exceptions named as
                 // keys and throw out any that don't appear to exist
-                for (int i = 0; i < classes.size(); i++) {
-                    String exclass = classes.get(i);
+                for (int ii = 0; ii < classes.size(); ii++) {
+                    String exclass = classes.get(ii);
                     try {
-                        Class<?> cl = Class.forName(exclass);
-                        // replace the string with the class object
-                        _keys.add(cl);
-
+                        keys.add(Class.forName(exclass));
+                        values.add(messages.get(ii));
                     } catch (Throwable t) {
                         log.warning("Unable to resolve exception class.", "class", exclass,
                                     "error", t);
-                        _values.remove(i);
-                        i--; // back on up a notch
                     }
                 }
 
             } catch (IOException ioe) {
                 log.warning("Error reading exception mapping file: " + ioe);
+            } finally {
+                StreamUtil.close(config);
             }
         }
+
+        _values = values.toArray(new String[values.size()]);
+        _keys = keys.toArray(new Class<?>[keys.size()]);
     }
 
     /**
@@ -126,19 +133,51 @@ public class ExceptionMap
      */
     public static String getMessage (Throwable ex)
     {
-        String msg = DEFAULT_ERROR_MSG;
-        for (int i = 0; i < _keys.size(); i++) {
-            Class<?> cl = _keys.get(i);
-            if (cl.isInstance(ex)) {
-                msg = _values.get(i);
-                break;
+        // the mappings never change, so we resolve each exception class
+        // only once
+        Class<?> exclass = ex.getClass();
+        String msg = _resolved.get(exclass);
+        if (msg == null) {
+            msg = resolveMessage(exclass);
+            // there are only so many exception classes, but just in case
+            if (_resolved.size() >= MAX_RESOLVED) {
+                _resolved.clear();
             }
+            _resolved.put(exclass, msg);
         }
-        return msg.replace(MESSAGE_MARKER, ex.getMessage());
+        if (msg.indexOf(MESSAGE_MARKER) == -1) {
+            return msg;
+        }
+        String exmsg = ex.getMessage();
+        return msg.replace(MESSAGE_MARKER, (exmsg == null) ? "" : exmsg);
     }
 
-    protected static List<Class<?>> _keys;
-    protected static List<String> _values;
+    /**
+     * Returns the message for the first mapping of which the supplied
+     * class is a subclass, or the default message if there is no such
+     * mapping.
+     */
+    protected static String resolveMessage (Class<?> exclass)
+    {
+        Class<?>[] keys = _keys;
+        for (int ii = 0; ii < keys.length; ii++) {
+            if (keys[ii].isAssignableFrom(exclass)) {
+                return _values[ii];
+            }
+        }
+        return DEFAULT_ERROR_MSG;
+    }
+
+    /** The mapped exception classes, in order of precedence. Assigned
+     * after {@link #_values}, and never changed thereafter. */
+    protected static volatile Class<?>[] _keys;
+
+    /** The messages for the mapped exception classes. */
+    protected static String[] _values;
+
+    /** The message for every exception class that we've resolved. */
+    protected static ConcurrentHashMap<Class<?>, String> _resolved =
+        new ConcurrentHashMap<Class<?>, String>();
 
     // initialize ourselves
     static { init(); }
@@ -146,4 +185,7 @@ public class ExceptionMap
     protected static final String PROPS_NAME = "exceptionmap.properties";
     protected static final String DEFAULT_ERROR_MSG = "Error: {m}";
     protected static final String MESSAGE_MARKER = "{m}";
+
+    /** The maximum number of exception classes whose messages we'll remember. */
+    protected static final int MAX_RESOLVED = 1000;
 }
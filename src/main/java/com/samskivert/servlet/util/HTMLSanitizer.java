@@ -0,0 +1,167 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.samskivert.util.StringUtil;
+
+/**
+ * Restricts the HTML in untrusted text to a set of allowed tags. Every tag (a <code>&lt;</code>
+ * and the first following <code>&gt;</code> with no <code>&lt;</code> between them) that matches
+ * one of the allowed tag patterns is passed through unchanged and every other <code>&lt;</code>
+ * and <code>&gt;</code> is escaped. The text is processed in a single pass, using patterns that
+ * are compiled once when the sanitizer is created, so a sanitizer should be created once and
+ * reused; sanitizers are immutable and may be shared between threads.
+ *
+ * <p> Tag patterns are case insensitive and must match an entire tag. A pattern that could match
+ * something other than a single tag (one containing a <code>&lt;</code> or <code>&gt;</code>
+ * other than at its start and end) will never match.
+ */
+public class HTMLSanitizer
+{
+    /** Allows no HTML at all. */
+    public static final HTMLSanitizer NONE = new HTMLSanitizer();
+
+    /**
+     * Returns a shared sanitizer that allows the specified classes of tags.
+     *
+     * @param allowFormatting enables &lt;i&gt;, &lt;b&gt;, &lt;u&gt;, &lt;font&gt;, &lt;br&gt;,
+     * &lt;p&gt;, and &lt;hr&gt;.
+     * @param allowImages enables &lt;img ...&gt;.
+     * @param allowLinks enables &lt;a href ...&gt;.
+     */
+    public static HTMLSanitizer getPolicy (
+        boolean allowFormatting, boolean allowImages, boolean allowLinks)
+    {
+        return _policies[(allowFormatting ? 1 : 0) | (allowImages ? 2 : 0) | (allowLinks ? 4 : 0)];
+    }
+
+    /**
+     * Creates a sanitizer that allows tags matching any of the supplied regular expressions.
+     */
+    public HTMLSanitizer (String... tagRegexes)
+    {
+        if (tagRegexes.length > 0) {
+            StringBuilder buf = new StringBuilder();
+            for (String regex : tagRegexes) {
+                if (buf.length() > 0) {
+                    buf.append("|");
+                }
+                buf.append("(?:").append(regex).append(")");
+            }
+            _allowed = Pattern.compile(buf.toString(), Pattern.CASE_INSENSITIVE);
+        }
+    }
+
+    /**
+     * Returns the supplied text with all disallowed HTML escaped. Blank (or null) text is
+     * returned unmodified.
+     */
+    public String sanitize (String src)
+    {
+        if (StringUtil.isBlank(src)) {
+            return src;
+        }
+        // we'll need a bit more space than the source if there's anything to escape
+        StringBuilder buf = new StringBuilder(src.length() + 16);
+        try {
+            sanitize(src, buf);
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe); // StringBuilder doesn't throw
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Appends the supplied text to the supplied target with all disallowed HTML escaped.
+     */
+    public void sanitize (CharSequence src, Appendable out)
+        throws IOException
+    {
+        Matcher m = (_allowed == null) ? null : _allowed.matcher(src);
+        int length = src.length(), start = 0;
+        for (int ii = 0; ii < length; ii++) {
+            char c = src.charAt(ii);
+            if (c == '>') {
+                out.append(src, start, ii).append("&gt;");
+                start = ii+1;
+
+            } else if (c == '<') {
+                out.append(src, start, ii);
+                int end = (m == null) ? -1 : findTagEnd(src, ii);
+                if (end != -1 && m.region(ii, end).matches()) {
+                    out.append(src, ii, end);
+                    ii = end-1;
+                } else {
+                    out.append("&lt;");
+                }
+                start = ii+1;
+            }
+        }
+        out.append(src, start, length);
+    }
+
+    /**
+     * Returns the index just past the end of the tag that starts at the supplied position, or -1
+     * if the opening bracket is not closed before another is opened.
+     */
+    protected static int findTagEnd (CharSequence src, int start)
+    {
+        for (int ii = start+1, nn = src.length(); ii < nn; ii++) {
+            char c = src.charAt(ii);
+            if (c == '>') {
+                return ii+1;
+            } else if (c == '<') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /** Matches any allowed tag, or null if no tags are allowed. */
+    protected Pattern _allowed;
+
+    /** Our shared sanitizers, indexed by a bitmask of the classes of tags they allow. */
+    protected static final HTMLSanitizer[] _policies = new HTMLSanitizer[8];
+
+    /** The tag patterns that are allowed by {@link #getPolicy} for each class of tags. */
+    protected static final String[] FORMATTING_TAGS = {
+        "<b>", "</b>", "<i>", "</i>", "<u>", "</u>",
+        "<font [^\"<>!-]*(\"[^\"<>!-]*\"[^\"<>!-]*)*>", "</font>",
+        "<br>", "</br>", "<br/>", "<p>", "</p>", "<hr>", "</hr>", "<hr/>",
+    };
+    // until I find a way to disallow "---", no - can be in a url
+    protected static final String[] IMAGE_TAGS = {
+        "<img [^\"<>!-]*(\"[^\"<>!-]*\"[^\"<>!-]*)*>", "</img>",
+    };
+    // TODO: these regexes should probably be checked to make sure that javascript can't live
+    // inside a link
+    protected static final String[] LINK_TAGS = {
+        "<a href=[^\"<>!-]*(\"[^\"<>!-]*\"[^\"<>!-]*)*>", "</a>",
+    };
+
+    static {
+        for (int ii = 0; ii < _policies.length; ii++) {
+            List<String> allow = new ArrayList<String>();
+            if ((ii & 1) != 0) {
+                Collections.addAll(allow, FORMATTING_TAGS);
+            }
+            if ((ii & 2) != 0) {
+                Collections.addAll(allow, IMAGE_TAGS);
+            }
+            if ((ii & 4) != 0) {
+                Collections.addAll(allow, LINK_TAGS);
+            }
+            _policies[ii] = new HTMLSanitizer(allow.toArray(new String[allow.size()]));
+        }
+    }
+}
@@ -5,7 +5,7 @@
 
 package com.samskivert.servlet.util;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,26 +20,60 @@ public class HTMLUtil
      * Converts instances of {@code <, >, & and "} into their
      * entified equivalents: {@code &lt;, &gt;, &amp; and &quot;}.
      * These characters are mentioned in the HTML spec as being common
-     * candidates for entification.
+     * candidates for entification. Text that is already entified is not
+     * entified again, so text can safely be run through this repeatedly.
      *
      * @return the entified string.
      */
     public static String entify (String text)
     {
-        // this could perhaps be done more efficiently, but this function
-        // is not likely to be called on large quantities of text
-        // (first we turn the entified versions normal so that if text is
-        // repeatedly run through this it doesn't keep changing successive
-        // &'s into "&amp;".
-        text = text.replace("&quot;", "\"");
-        text = text.replace("&gt;", ">");
-        text = text.replace("&lt;", "<");
-        text = text.replace("&amp;", "&");
-        text = text.replace("&", "&amp;");
-        text = text.replace("<", "&lt;");
-        text = text.replace(">", "&gt;");
-        text = text.replace("\"", "&quot;");
-        return text;
+        // most text needs no entification at all, in which case we can
+        // avoid creating a new string
+        if (!needsEntification(text)) {
+            return text;
+        }
+        StringBuilder buf = new StringBuilder(text.length() + 16);
+        try {
+            entify(text, buf);
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe); // StringBuilder doesn't throw
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Writes the supplied text to the supplied target, entified as
+     * described in {@link #entify(String)}.
+     */
+    public static void entify (CharSequence text, Appendable out)
+        throws IOException
+    {
+        int start = 0;
+        for (int ii = 0, nn = text.length(); ii < nn; ii++) {
+            String entity;
+            int skip = 0;
+            switch (text.charAt(ii)) {
+            case '<': entity = "&lt;"; break;
+            case '>': entity = "&gt;"; break;
+            case '"': entity = "&quot;"; break;
+            case '&':
+                // entities that we'd have generated pass through unchanged
+                entity = "&amp;";
+                for (String known : ENTITIES) {
+                    if (regionMatches(text, ii, known)) {
+                        entity = known;
+                        skip = known.length() - 1;
+                        break;
+                    }
+                }
+                break;
+            default: continue;
+            }
+            out.append(text, start, ii).append(entity);
+            ii += skip;
+            start = ii+1;
+        }
+        out.append(text, start, text.length());
     }
 
     /**
@@ -145,7 +179,7 @@ public class HTMLUtil
      */
     public static String restrictHTML (String src)
     {
-        return restrictHTML(src, new String[0]);
+        return HTMLSanitizer.NONE.sanitize(src);
     }
 
     /**
@@ -160,69 +194,65 @@ public class HTMLUtil
     public static String restrictHTML (String src, boolean allowFormatting,
         boolean allowImages, boolean allowLinks)
     {
-        // TODO: these regexes should probably be checked to make
-        // sure that javascript can't live inside a link
-        ArrayList<String> allow = new ArrayList<String>();
-        if (allowFormatting) {
-            allow.add("<b>"); allow.add("</b>");
-            allow.add("<i>"); allow.add("</i>");
-            allow.add("<u>"); allow.add("</u>");
-            allow.add("<font [^\"<>!-]*(\"[^\"<>!-]*\"[^\"<>!-]*)*>");
-                allow.add("</font>");
-            allow.add("<br>"); allow.add("</br>"); allow.add("<br/>");
-            allow.add("<p>"); allow.add("</p>");
-            allow.add("<hr>"); allow.add("</hr>"); allow.add("<hr/>");
-        }
-        if (allowImages) {
-            // Until I find a way to disallow "---", no - can be in a url
-            allow.add("<img [^\"<>!-]*(\"[^\"<>!-]*\"[^\"<>!-]*)*>");
-                allow.add("</img>");
-        }
-        if (allowLinks) {
-            allow.add("<a href=[^\"<>!-]*(\"[^\"<>!-]*\"[^\"<>!-]*)*>");
-                allow.add("</a>");
-        }
-        return restrictHTML(src, allow.toArray(new String[allow.size()]));
+        return HTMLSanitizer.getPolicy(allowFormatting, allowImages, allowLinks).sanitize(src);
     }
 
     /**
-     * Restrict HTML from the specified string except for the specified
-     * regular expressions.
+     * Restrict HTML from the specified string except for tags that match
+     * the specified regular expressions. This compiles the expressions
+     * anew on every call; callers that repeatedly use the same
+     * expressions should create and reuse an {@link HTMLSanitizer}.
      */
     public static String restrictHTML (String src, String[] regexes)
     {
-        if (StringUtil.isBlank(src)) {
-            return src;
-        }
+        return new HTMLSanitizer(regexes).sanitize(src);
+    }
 
-        ArrayList<String> list = new ArrayList<String>();
-        list.add(src);
-        for (String regexe : regexes) {
-            Pattern p = Pattern.compile(regexe, Pattern.CASE_INSENSITIVE);
-            for (int jj=0; jj < list.size(); jj += 2) {
-                String piece = list.get(jj);
-                Matcher m = p.matcher(piece);
-                if (m.find()) {
-                    list.set(jj, piece.substring(0, m.start()));
-                    list.add(jj + 1, piece.substring(m.start(), m.end()));
-                    list.add(jj + 2, piece.substring(m.end()));
+    /**
+     * Returns true if the supplied text contains characters that would be
+     * modified by {@link #entify}.
+     */
+    protected static boolean needsEntification (CharSequence text)
+    {
+        for (int ii = 0, nn = text.length(); ii < nn; ii++) {
+            char c = text.charAt(ii);
+            if (c == '<' || c == '>' || c == '"') {
+                return true;
+            }
+            if (c == '&') {
+                // an existing entity is left as is
+                boolean known = false;
+                for (String entity : ENTITIES) {
+                    if (regionMatches(text, ii, entity)) {
+                        known = true;
+                        ii += entity.length() - 1;
+                        break;
+                    }
+                }
+                if (!known) {
+                    return true;
                 }
             }
         }
+        return false;
+    }
 
-        // now, the even elements of list contain untrusted text, the
-        // odd elements contain stuff that matched a regex
-        StringBuilder buf = new StringBuilder();
-        for (int jj=0, nn = list.size(); jj < nn; jj++) {
-            String s = list.get(jj);
-            if (jj % 2 == 0) {
-                s = s.replace("<", "&lt;");
-                s = s.replace(">", "&gt;");
+    protected static boolean regionMatches (CharSequence text, int offset, String match)
+    {
+        int length = match.length();
+        if (offset + length > text.length()) {
+            return false;
+        }
+        for (int ii = 0; ii < length; ii++) {
+            if (text.charAt(offset + ii) != match.charAt(ii)) {
+                return false;
             }
-            buf.append(s);
         }
-        return buf.toString();
+        return true;
     }
 
+    /** The entities that {@link #entify} generates (and hence leaves alone). */
+    protected static final String[] ENTITIES = { "&amp;", "&lt;", "&gt;", "&quot;" };
+
     protected static final Pattern URL_PAT = Pattern.compile("^http://\\S+", Pattern.MULTILINE);
 }
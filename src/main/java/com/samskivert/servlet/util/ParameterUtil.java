@@ -16,12 +16,13 @@ import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
-import com.samskivert.util.ArrayIntSet;
 import com.samskivert.util.IntSet;
 import com.samskivert.util.StringUtil;
 
 /**
- * Utility functions for fetching and manipulating request parameters (form fields).
+ * Utility functions for fetching and manipulating request parameters (form fields). The typed
+ * accessors parse each parameter only once per request, caching the result in the request's
+ * {@link RequestParameters}, which may also be used directly.
  */
 public class ParameterUtil
 {
@@ -75,7 +76,7 @@ public class ParameterUtil
         HttpServletRequest req, String name, String invalidDataMessage)
         throws DataValidationException
     {
-        return parseFloatParameter(getParameter(req, name, false), invalidDataMessage);
+        return RequestParameters.get(req).requireFloat(name, invalidDataMessage);
     }
 
     /**
@@ -87,7 +88,7 @@ public class ParameterUtil
         HttpServletRequest req, String name, String invalidDataMessage)
         throws DataValidationException
     {
-        return parseIntParameter(getParameter(req, name, false), invalidDataMessage);
+        return RequestParameters.get(req).requireInt(name, invalidDataMessage);
     }
 
     /**
@@ -99,9 +100,8 @@ public class ParameterUtil
                                            String invalidDataMessage, ParameterValidator validator)
         throws DataValidationException
     {
-        String value = getParameter(req, name, false);
-        validator.validateParameter(name, value);
-        return parseIntParameter(value, invalidDataMessage);
+        validator.validateParameter(name, getParameter(req, name, false));
+        return RequestParameters.get(req).requireInt(name, invalidDataMessage);
     }
 
     /**
@@ -113,8 +113,7 @@ public class ParameterUtil
                                            String invalidDataMessage)
         throws DataValidationException
     {
-        return requireIntParameter(
-            req, name, invalidDataMessage, new IntRangeValidator(low, high, invalidDataMessage));
+        return RequestParameters.get(req).requireInt(name, low, high, invalidDataMessage);
     }
 
     /**
@@ -126,16 +125,7 @@ public class ParameterUtil
         HttpServletRequest req, String name, String invalidDataMessage)
         throws DataValidationException
     {
-        IntSet ints = new ArrayIntSet();
-        String[] values = req.getParameterValues(name);
-        if (values != null) {
-            for (int ii = 0; ii < values.length; ii++) {
-                if (!StringUtil.isBlank(values[ii])) {
-                    ints.add(parseIntParameter(values[ii], invalidDataMessage));
-                }
-            }
-        }
-        return ints;
+        return RequestParameters.get(req).requireInts(name, invalidDataMessage);
     }
 
     /**
@@ -174,11 +164,10 @@ public class ParameterUtil
         HttpServletRequest req, String name, int defval, String invalidDataMessage)
         throws DataValidationException
     {
-        String value = getParameter(req, name, false);
-        if (StringUtil.isBlank(value)) {
+        if (!isSet(req, name)) {
             return defval;
         }
-        return parseIntParameter(value, invalidDataMessage);
+        return RequestParameters.get(req).requireInt(name, invalidDataMessage);
     }
 
     /**
@@ -190,11 +179,10 @@ public class ParameterUtil
         HttpServletRequest req, String name, long defval, String invalidDataMessage)
         throws DataValidationException
     {
-        String value = getParameter(req, name, false);
-        if (StringUtil.isBlank(value)) {
+        if (!isSet(req, name)) {
             return defval;
         }
-        return parseLongParameter(value, invalidDataMessage);
+        return RequestParameters.get(req).requireLong(name, invalidDataMessage);
     }
 
     /**
@@ -238,7 +226,7 @@ public class ParameterUtil
         HttpServletRequest req, String name, String invalidDataMessage)
         throws DataValidationException
     {
-        return parseDateParameter(getParameter(req, name, false), invalidDataMessage);
+        return RequestParameters.get(req).requireDate(name, invalidDataMessage);
     }
 
     /**
@@ -261,12 +249,12 @@ public class ParameterUtil
         HttpServletRequest req, String name, String invalidDataMessage)
         throws DataValidationException
     {
-        String value = getParameter(req, name, false);
-        if (StringUtil.isBlank(value) ||
-            DATE_TEMPLATE.equalsIgnoreCase(value)) {
+        RequestParameters params = RequestParameters.get(req);
+        Object value = params.parsedDate(name);
+        if (value == RequestParameters.BLANK) {
             return null;
         }
-        return parseDateParameter(value, invalidDataMessage);
+        return params.requireDate(name, invalidDataMessage);
     }
 
     /**
@@ -319,7 +307,10 @@ public class ParameterUtil
 
     /**
      * Internal method to parse integer values.
+     *
+     * @deprecated Use {@link RequestParameters}, which parses each parameter once per request.
      */
+    @Deprecated
     protected static int parseIntParameter (String value, String invalidDataMessage)
         throws DataValidationException
     {
@@ -332,7 +323,10 @@ public class ParameterUtil
 
     /**
      * Internal method to parse long values.
+     *
+     * @deprecated Use {@link RequestParameters}, which parses each parameter once per request.
      */
+    @Deprecated
     protected static long parseLongParameter (String value, String invalidDataMessage)
         throws DataValidationException
     {
@@ -345,7 +339,10 @@ public class ParameterUtil
 
     /**
      * Internal method to parse a float value.
+     *
+     * @deprecated Use {@link RequestParameters}, which parses each parameter once per request.
      */
+    @Deprecated
     protected static float parseFloatParameter (String value, String invalidDataMessage)
         throws DataValidationException
     {
@@ -358,7 +355,10 @@ public class ParameterUtil
 
     /**
      * Internal method to parse a date.
+     *
+     * @deprecated Use {@link RequestParameters}, which parses each parameter once per request.
      */
+    @Deprecated
     protected static Date parseDateParameter (String value, String invalidDataMessage)
         throws DataValidationException
     {
@@ -371,7 +371,12 @@ public class ParameterUtil
         }
     }
 
-    /** Makes sure integers are within a range. */
+    /**
+     * Makes sure integers are within a range.
+     *
+     * @deprecated Use {@link RequestParameters#requireInt(String,int,int,String)}.
+     */
+    @Deprecated
     protected static class IntRangeValidator implements ParameterValidator
     {
         public IntRangeValidator (int low, int high, String outOfRangeError) {
@@ -396,6 +401,6 @@ public class ParameterUtil
         protected String _err;
     }
 
-    /** We use this to parse dates in requireDateParameter(). */
+    /** We use this to parse dates in requireDateParameter() and {@link RequestParameters}. */
     protected static final SimpleDateFormat _dparser = new SimpleDateFormat("yyyy-MM-dd");
 }
@@ -0,0 +1,405 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet.util;
+
+import java.text.ParsePosition;
+import java.util.Date;
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.samskivert.util.ArrayIntSet;
+import com.samskivert.util.IntSet;
+import com.samskivert.util.StringUtil;
+
+/**
+ * A typed view of the parameters of a single request. Each parameter is parsed at most once per
+ * type and the result (valid or not) is remembered for the rest of the request, so logic can read
+ * the same parameter repeatedly at no further cost. The view is stored in the request, so every
+ * caller of {@link #get} for the same request shares it, as do the {@link ParameterUtil} methods.
+ *
+ * <p> The <code>getXXX</code> methods never throw exceptions: malformed or out of range values
+ * simply yield the supplied default, and {@link #isValidInt} and friends can be used to
+ * distinguish those cases from missing values. The <code>requireXXX</code> methods throw a {@link
+ * DataValidationException} if the value is missing or malformed, as the {@link ParameterUtil}
+ * methods always have. Parameter values are trimmed before they are parsed.
+ *
+ * <p> A view is not thread safe, but then neither is the request to which it belongs.
+ */
+public class RequestParameters
+{
+    /**
+     * Returns the parameter view for the supplied request, creating it if necessary.
+     */
+    public static RequestParameters get (HttpServletRequest req)
+    {
+        RequestParameters params = (RequestParameters)req.getAttribute(ATTR_NAME);
+        // a forwarded or included request may be a wrapper with different parameters that
+        // nonetheless shares its attributes with the original request
+        if (params == null || params._req != req) {
+            params = new RequestParameters(req);
+            req.setAttribute(ATTR_NAME, params);
+        }
+        return params;
+    }
+
+    /**
+     * Creates a parameter view for the supplied request. Generally {@link #get} should be used
+     * instead so that the view is shared by all code handling the request.
+     */
+    public RequestParameters (HttpServletRequest req)
+    {
+        _req = req;
+    }
+
+    /**
+     * Returns the trimmed value of the specified parameter or null if it is not set.
+     */
+    public String get (String name)
+    {
+        String value = _req.getParameter(name);
+        return (value == null) ? null : value.trim();
+    }
+
+    /**
+     * Returns true if the specified parameter is set to a non-blank value.
+     */
+    public boolean isSet (String name)
+    {
+        return !StringUtil.isBlank(_req.getParameter(name));
+    }
+
+    /**
+     * Returns true if the specified parameter is set to a well-formed integer.
+     */
+    public boolean isValidInt (String name)
+    {
+        return parsedInt(name) != INVALID;
+    }
+
+    /**
+     * Returns the value of the specified parameter as an integer, or <code>defval</code> if it is
+     * not set or is not a well-formed integer.
+     */
+    public int getInt (String name, int defval)
+    {
+        Object value = parsedInt(name);
+        return (value == INVALID) ? defval : (Integer)value;
+    }
+
+    /**
+     * Returns the value of the specified parameter as an integer, or <code>defval</code> if it is
+     * not set, is not a well-formed integer or is not between <code>low</code> and
+     * <code>high</code> (inclusive).
+     */
+    public int getInt (String name, int low, int high, int defval)
+    {
+        int value = getInt(name, defval);
+        return (value >= low && value <= high) ? value : defval;
+    }
+
+    /**
+     * Returns the value of the specified parameter as an integer.
+     *
+     * @exception DataValidationException thrown with the supplied message if the parameter is not
+     * set or is not a well-formed integer.
+     */
+    public int requireInt (String name, String invalidDataMessage)
+        throws DataValidationException
+    {
+        Object value = parsedInt(name);
+        if (value == INVALID) {
+            throw new DataValidationException(invalidDataMessage);
+        }
+        return (Integer)value;
+    }
+
+    /**
+     * Returns the value of the specified parameter as an integer.
+     *
+     * @exception DataValidationException thrown with the supplied message if the parameter is not
+     * set, is not a well-formed integer or is not between <code>low</code> and <code>high</code>
+     * (inclusive).
+     */
+    public int requireInt (String name, int low, int high, String invalidDataMessage)
+        throws DataValidationException
+    {
+        int value = requireInt(name, invalidDataMessage);
+        if (value < low || value > high) {
+            throw new DataValidationException(invalidDataMessage);
+        }
+        return value;
+    }
+
+    /**
+     * Returns true if the specified parameter is set to a well-formed long.
+     */
+    public boolean isValidLong (String name)
+    {
+        return parsedLong(name) != INVALID;
+    }
+
+    /**
+     * Returns the value of the specified parameter as a long, or <code>defval</code> if it is not
+     * set or is not a well-formed long.
+     */
+    public long getLong (String name, long defval)
+    {
+        Object value = parsedLong(name);
+        return (value == INVALID) ? defval : (Long)value;
+    }
+
+    /**
+     * Returns the value of the specified parameter as a long.
+     *
+     * @exception DataValidationException thrown with the supplied message if the parameter is not
+     * set or is not a well-formed long.
+     */
+    public long requireLong (String name, String invalidDataMessage)
+        throws DataValidationException
+    {
+        Object value = parsedLong(name);
+        if (value == INVALID) {
+            throw new DataValidationException(invalidDataMessage);
+        }
+        return (Long)value;
+    }
+
+    /**
+     * Returns the value of the specified parameter as a float, or <code>defval</code> if it is not
+     * set or is not a well-formed float.
+     */
+    public float getFloat (String name, float defval)
+    {
+        Object value = parsedFloat(name);
+        return (value == INVALID) ? defval : (Float)value;
+    }
+
+    /**
+     * Returns the value of the specified parameter as a float.
+     *
+     * @exception DataValidationException thrown with the supplied message if the parameter is not
+     * set or is not a well-formed float.
+     */
+    public float requireFloat (String name, String invalidDataMessage)
+        throws DataValidationException
+    {
+        Object value = parsedFloat(name);
+        if (value == INVALID) {
+            throw new DataValidationException(invalidDataMessage);
+        }
+        return (Float)value;
+    }
+
+    /**
+     * Returns the value of the specified parameter as a date (formatted like so: 2001-12-25), or
+     * null if it is not set, is set to {@link ParameterUtil#DATE_TEMPLATE} or is not a well-formed
+     * date.
+     */
+    public Date getDate (String name)
+    {
+        Object value = parsedDate(name);
+        return (value instanceof Date) ? new Date(((Date)value).getTime()) : null;
+    }
+
+    /**
+     * Returns the value of the specified parameter as a date (formatted like so: 2001-12-25).
+     *
+     * @exception DataValidationException thrown with the supplied message if the parameter is not
+     * set or is not a well-formed date.
+     */
+    public Date requireDate (String name, String invalidDataMessage)
+        throws DataValidationException
+    {
+        Object value = parsedDate(name);
+        if (!(value instanceof Date)) {
+            throw new DataValidationException(invalidDataMessage);
+        }
+        return new Date(((Date)value).getTime());
+    }
+
+    /**
+     * Returns all of the non-blank values of the specified parameter as integers.
+     *
+     * @exception DataValidationException thrown with the supplied message if any value is not a
+     * well-formed integer.
+     */
+    public IntSet requireInts (String name, String invalidDataMessage)
+        throws DataValidationException
+    {
+        if (_intSets == null) {
+            _intSets = new HashMap<String, Object>();
+        }
+        Object value = _intSets.get(name);
+        if (value == null) {
+            value = parseInts(_req.getParameterValues(name));
+            _intSets.put(name, value);
+        }
+        if (value == INVALID) {
+            throw new DataValidationException(invalidDataMessage);
+        }
+        // the caller may modify the set, so they get their own copy
+        return ((ArrayIntSet)value).clone();
+    }
+
+    /**
+     * Returns the parsed integer value of the specified parameter, or {@link #INVALID}.
+     */
+    protected Object parsedInt (String name)
+    {
+        if (_ints == null) {
+            _ints = new HashMap<String, Object>();
+        }
+        Object value = _ints.get(name);
+        if (value == null) {
+            Long lvalue = parseLong(get(name), Integer.MIN_VALUE, Integer.MAX_VALUE);
+            value = (lvalue == null) ? INVALID : Integer.valueOf(lvalue.intValue());
+            _ints.put(name, value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the parsed long value of the specified parameter, or {@link #INVALID}.
+     */
+    protected Object parsedLong (String name)
+    {
+        if (_longs == null) {
+            _longs = new HashMap<String, Object>();
+        }
+        Object value = _longs.get(name);
+        if (value == null) {
+            Long lvalue = parseLong(get(name), Long.MIN_VALUE, Long.MAX_VALUE);
+            value = (lvalue == null) ? INVALID : lvalue;
+            _longs.put(name, value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the parsed float value of the specified parameter, or {@link #INVALID}.
+     */
+    protected Object parsedFloat (String name)
+    {
+        if (_floats == null) {
+            _floats = new HashMap<String, Object>();
+        }
+        Object value = _floats.get(name);
+        if (value == null) {
+            String svalue = get(name);
+            try {
+                value = (svalue == null) ? INVALID : Float.valueOf(svalue);
+            } catch (NumberFormatException nfe) {
+                value = INVALID;
+            }
+            _floats.put(name, value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the parsed date value of the specified parameter, {@link #BLANK} if it is blank or
+     * the date template, or {@link #INVALID}.
+     */
+    protected Object parsedDate (String name)
+    {
+        if (_dates == null) {
+            _dates = new HashMap<String, Object>();
+        }
+        Object value = _dates.get(name);
+        if (value == null) {
+            String svalue = get(name);
+            if (StringUtil.isBlank(svalue) ||
+                ParameterUtil.DATE_TEMPLATE.equalsIgnoreCase(svalue)) {
+                value = BLANK;
+            } else {
+                // parsing with a position reports failure without an exception
+                Date date;
+                synchronized (ParameterUtil._dparser) {
+                    date = ParameterUtil._dparser.parse(svalue, new ParsePosition(0));
+                }
+                value = (date == null) ? INVALID : date;
+            }
+            _dates.put(name, value);
+        }
+        return value;
+    }
+
+    /**
+     * Parses the non-blank values in the supplied array into a set, returning {@link #INVALID} if
+     * any of them is malformed.
+     */
+    protected static Object parseInts (String[] values)
+    {
+        ArrayIntSet ints = new ArrayIntSet();
+        if (values != null) {
+            for (String value : values) {
+                if (StringUtil.isBlank(value)) {
+                    continue;
+                }
+                // as ever, these values are not trimmed
+                Long lvalue = parseLong(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+                if (lvalue == null) {
+                    return INVALID;
+                }
+                ints.add(lvalue.intValue());
+            }
+        }
+        return ints;
+    }
+
+    /**
+     * Parses a decimal integer exactly as {@link Long#parseLong(String)} would, but returns null
+     * rather than throwing an exception if the value is malformed or outside the supplied range.
+     */
+    protected static Long parseLong (String value, long min, long max)
+    {
+        int length = (value == null) ? 0 : value.length(), ii = 0;
+        if (length == 0) {
+            return null;
+        }
+        boolean negative = false;
+        char first = value.charAt(0);
+        if (first == '-' || first == '+') {
+            negative = (first == '-');
+            if (length == 1) {
+                return null;
+            }
+            ii++;
+        }
+        // accumulate negatively, which lets us represent Long.MIN_VALUE
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE, multmin = limit / 10;
+        long result = 0;
+        for (; ii < length; ii++) {
+            int digit = Character.digit(value.charAt(ii), 10);
+            if (digit < 0 || result < multmin) {
+                return null;
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return null;
+            }
+            result -= digit;
+        }
+        result = negative ? result : -result;
+        return (result < min || result > max) ? null : Long.valueOf(result);
+    }
+
+    /** The request whose parameters we provide. */
+    protected HttpServletRequest _req;
+
+    /** Our parsed values, by type, created on demand. */
+    protected HashMap<String, Object> _ints, _longs, _floats, _dates, _intSets;
+
+    /** Marks a value that is missing or malformed. */
+    protected static final Object INVALID = new Object();
+
+    /** Marks a date that was left blank. */
+    protected static final Object BLANK = new Object();
+
+    /** The request attribute in which we're stored. */
+    protected static final String ATTR_NAME = RequestParameters.class.getName();
+}
@@ -0,0 +1,456 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.samskivert.util.StringUtil;
+
+/**
+ * Collects the body of a response so that it can be sent with a <code>Content-Length</code>, an
+ * <code>ETag</code> and, if the client will accept it, gzip compression. Bodies that grow beyond
+ * the configured maximum are streamed to the client as they are generated instead (in which case
+ * they are sent without a length or an ETag).
+ *
+ * <p> A buffer is meant to be reused for many responses (though by only one thread at a time):
+ * its byte buffer, character encoder and deflater are all retained between responses. A response
+ * is handled by calling {@link #start}, writing the body to the returned writer, flushing said
+ * writer and calling {@link #finish}. {@link #release} must then be called whether or not the
+ * response was successfully finished.
+ */
+public class ResponseBuffer
+{
+    /**
+     * Creates a response buffer.
+     *
+     * @param maxBuffered the maximum number of bytes of a response that will be buffered, beyond
+     * which the response will be streamed to the client.
+     * @param gzipThreshold the minimum size in bytes of a response for it to be compressed, or -1
+     * if responses should never be compressed.
+     */
+    public ResponseBuffer (int maxBuffered, int gzipThreshold)
+    {
+        _maxBuffered = maxBuffered;
+        _gzipThreshold = gzipThreshold;
+        _buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, Math.max(maxBuffered, 1))];
+    }
+
+    /**
+     * Prepares to collect the body of a response.
+     *
+     * @param encoding the character encoding with which the response is to be encoded.
+     *
+     * @return a writer to which the response body should be written. It must be flushed (but not
+     * closed) before {@link #finish} is called.
+     */
+    public Writer start (HttpServletRequest req, HttpServletResponse rsp, String encoding)
+        throws UnsupportedEncodingException
+    {
+        _req = req;
+        _rsp = rsp;
+        _count = 0;
+        _target = null;
+        _gzipping = false;
+        _finished = false;
+        // encoders are relatively expensive to create, so we keep ours if the encoding matches
+        if (_writer == null || !encoding.equalsIgnoreCase(_encoding)) {
+            _writer = new OutputStreamWriter(_sink, encoding);
+            _encoding = encoding;
+        }
+        return _writer;
+    }
+
+    /**
+     * Sends the response body to the client, if it has not already been streamed to them.
+     *
+     * @param cacheable if true, an ETag will be computed for the response and, if the client
+     * supplied a matching <code>If-None-Match</code> header, the body will not be sent and a
+     * <code>304 Not Modified</code> status will be sent instead.
+     */
+    public void finish (boolean cacheable)
+        throws IOException
+    {
+        _finished = true;
+        if (_target != null) {
+            // we've been streaming, so we just need to wrap things up
+            if (_gzipping) {
+                _gzip.finish();
+            } else {
+                _target.flush();
+            }
+            return;
+        }
+
+        boolean gzip = shouldGzip(_count);
+        if (cacheable) {
+            String etag = computeETag(gzip);
+            _rsp.setHeader("ETag", etag);
+            if (matches(_req.getHeader("If-None-Match"), etag)) {
+                _rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+
+        OutputStream out = _rsp.getOutputStream();
+        if (gzip) {
+            if (_zbytes == null) {
+                _zbytes = new ByteArrayOutputStream(_count / 4);
+            }
+            startGzip(_zbytes);
+            _gzip.write(_buffer, 0, _count);
+            _gzip.finish();
+            _rsp.setContentLength(_zbytes.size());
+            _zbytes.writeTo(out);
+        } else {
+            _rsp.setContentLength(_count);
+            out.write(_buffer, 0, _count);
+        }
+        out.flush();
+    }
+
+    /**
+     * Discards any unsent response data and clears our references to the request and response.
+     */
+    public void release ()
+    {
+        // if the response was abandoned, our writer may still hold characters that were never
+        // flushed, which must not find their way into the next response
+        if (!_finished) {
+            _writer = null;
+        }
+        _req = null;
+        _rsp = null;
+        _target = null;
+        _count = 0;
+        if (_zbytes != null) {
+            // don't hang onto a huge compressed buffer if an enormous response came through
+            if (_zbytes.size() > _maxBuffered) {
+                _zbytes = null;
+            } else {
+                _zbytes.reset();
+            }
+        }
+        if (_gzip != null) {
+            _gzip.reset();
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently buffered.
+     */
+    public int size ()
+    {
+        return _count;
+    }
+
+    /**
+     * Returns true if the response should be compressed, given the client's stated preferences
+     * and the supplied response size.
+     */
+    protected boolean shouldGzip (int size)
+    {
+        if (_gzipThreshold < 0) {
+            return false;
+        }
+        // whether or not we compress, the response varies based on what the client accepts
+        _rsp.addHeader("Vary", "Accept-Encoding");
+        if (size < _gzipThreshold || _rsp.containsHeader("Content-Encoding")) {
+            return false;
+        }
+        return acceptsGzip(_req.getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * Notes that the response is to be compressed and starts a gzip stream that writes to the
+     * supplied output stream, creating our deflater if necessary.
+     */
+    protected void startGzip (OutputStream out)
+        throws IOException
+    {
+        if (_gzip == null) {
+            _gzip = new GzipStream();
+        }
+        _gzip.begin(out);
+        _rsp.setHeader("Content-Encoding", "gzip");
+        _gzipping = true;
+    }
+
+    /**
+     * Called when the response outgrows our buffer. Sends the buffered data and arranges for
+     * subsequent data to be written directly to the client.
+     *
+     * @param size the size to which the response has grown.
+     */
+    protected void overflow (int size)
+        throws IOException
+    {
+        OutputStream out = _rsp.getOutputStream();
+        if (shouldGzip(size)) {
+            startGzip(out);
+            _target = _gzip;
+        } else {
+            _target = out;
+        }
+        _target.write(_buffer, 0, _count);
+        _count = 0;
+    }
+
+    /**
+     * Computes a strong ETag for the buffered response. The same body has a different ETag when
+     * compressed, as required by HTTP.
+     */
+    protected String computeETag (boolean gzip)
+    {
+        if (_digest == null) {
+            try {
+                _digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new AssertionError(nsae); // MD5 is always supported
+            }
+        }
+        _digest.update(_buffer, 0, _count);
+        return "\"" + StringUtil.hexlate(_digest.digest()) + (gzip ? "-gz\"" : "\"");
+    }
+
+    /**
+     * Returns true if the supplied <code>Accept-Encoding</code> header allows gzip encoding.
+     */
+    protected static boolean acceptsGzip (String accept)
+    {
+        if (accept == null) {
+            return false;
+        }
+        for (String coding : accept.split(",")) {
+            int sidx = coding.indexOf(';');
+            String name = (sidx == -1 ? coding : coding.substring(0, sidx)).trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equalsIgnoreCase("x-gzip")) {
+                continue;
+            }
+            // a quality of zero means that the client explicitly refuses gzip
+            int qidx = coding.indexOf("q=", sidx);
+            if (sidx == -1 || qidx == -1) {
+                return true;
+            }
+            try {
+                return Float.parseFloat(coding.substring(qidx + 2).trim()) > 0;
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the supplied <code>If-None-Match</code> header matches the supplied ETag.
+     */
+    protected static boolean matches (String ifNoneMatch, String etag)
+    {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        ifNoneMatch = ifNoneMatch.trim();
+        return ifNoneMatch.equals("*") || ifNoneMatch.indexOf(etag) != -1;
+    }
+
+    /** Receives the encoded response, buffering it until it outgrows our buffer. */
+    protected class Sink extends OutputStream
+    {
+        @Override
+        public void write (int b)
+            throws IOException
+        {
+            if (_target != null) {
+                _target.write(b);
+            } else if (_count < _buffer.length) {
+                _buffer[_count++] = (byte)b;
+            } else {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            if (_target != null) {
+                _target.write(b, off, len);
+                return;
+            }
+
+            int needed = _count + len;
+            if (needed > _maxBuffered) {
+                overflow(needed);
+                _target.write(b, off, len);
+                return;
+            }
+
+            if (needed > _buffer.length) {
+                byte[] nbuffer = new byte[Math.min(Math.max(_buffer.length * 2, needed),
+                                                   _maxBuffered)];
+                System.arraycopy(_buffer, 0, nbuffer, 0, _count);
+                _buffer = nbuffer;
+            }
+            System.arraycopy(b, off, _buffer, _count, len);
+            _count = needed;
+        }
+
+        @Override
+        public void flush ()
+            throws IOException
+        {
+            // while we're buffering there's nothing to flush, afterwards we pass flushes along
+            if (_target != null) {
+                _target.flush();
+            }
+        }
+
+        @Override
+        public void close ()
+        {
+            // we're reused, so we're never closed
+        }
+    }
+
+    /** Writes gzip format data using a reusable deflater. */
+    protected static class GzipStream extends OutputStream
+    {
+        /**
+         * Starts a new gzip stream which will be written to the supplied output stream.
+         */
+        public void begin (OutputStream out)
+            throws IOException
+        {
+            _out = out;
+            _out.write(GZIP_HEADER);
+        }
+
+        /**
+         * Compresses any remaining data, writes the gzip trailer and flushes the underlying
+         * stream (but does not close it). The stream must be {@link #reset} before reuse.
+         */
+        public void finish ()
+            throws IOException
+        {
+            _deflater.finish();
+            while (!_deflater.finished()) {
+                int count = _deflater.deflate(_zbuffer, 0, _zbuffer.length);
+                _out.write(_zbuffer, 0, count);
+            }
+            writeInt((int)_crc.getValue());
+            writeInt(_deflater.getTotalIn());
+            _out.flush();
+        }
+
+        /**
+         * Prepares this stream for reuse, discarding any pending data.
+         */
+        public void reset ()
+        {
+            _deflater.reset();
+            _crc.reset();
+            _out = null;
+        }
+
+        @Override
+        public void write (int b)
+            throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len)
+            throws IOException
+        {
+            _crc.update(b, off, len);
+            _deflater.setInput(b, off, len);
+            while (!_deflater.needsInput()) {
+                int count = _deflater.deflate(_zbuffer, 0, _zbuffer.length);
+                _out.write(_zbuffer, 0, count);
+            }
+        }
+
+        @Override
+        public void flush ()
+            throws IOException
+        {
+            _out.flush();
+        }
+
+        protected void writeInt (int value)
+            throws IOException
+        {
+            // gzip uses little endian integers
+            _out.write(value & 0xFF);
+            _out.write((value >> 8) & 0xFF);
+            _out.write((value >> 16) & 0xFF);
+            _out.write((value >> 24) & 0xFF);
+        }
+
+        protected OutputStream _out;
+        protected Deflater _deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        protected CRC32 _crc = new CRC32();
+        protected byte[] _zbuffer = new byte[8 * 1024];
+    }
+
+    /** The request and response we're currently handling. */
+    protected HttpServletRequest _req;
+    protected HttpServletResponse _rsp;
+
+    /** The maximum number of bytes we'll buffer. */
+    protected int _maxBuffered;
+
+    /** The minimum size of a response we'll compress, or -1. */
+    protected int _gzipThreshold;
+
+    /** The buffered response. */
+    protected byte[] _buffer;
+    protected int _count;
+
+    /** Receives the encoded response. */
+    protected Sink _sink = new Sink();
+
+    /** Encodes the response into our sink, and the encoding it uses. */
+    protected Writer _writer;
+    protected String _encoding;
+
+    /** The stream to which we write the response once we've given up buffering. */
+    protected OutputStream _target;
+
+    /** Whether we're compressing the current response. */
+    protected boolean _gzipping;
+
+    /** Whether {@link #finish} was called for the current response. */
+    protected boolean _finished;
+
+    /** Compresses responses, if so configured. Created on demand. */
+    protected GzipStream _gzip;
+
+    /** Holds compressed responses so that we can report their length. Created on demand. */
+    protected ByteArrayOutputStream _zbytes;
+
+    /** Used to compute ETags. Created on demand. */
+    protected MessageDigest _digest;
+
+    /** The size of our buffer when we're first created; it grows as needed. */
+    protected static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    /** The header for a gzip stream compressed with deflate, having no name or timestamp. */
+    protected static final byte[] GZIP_HEADER = {
+        0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+}
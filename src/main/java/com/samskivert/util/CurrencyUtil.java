@@ -55,7 +55,10 @@ public class CurrencyUtil
      */
     protected static String currency (double value, NumberFormat nformat)
     {
-        return nformat.format(value);
+        // number formats are not thread safe and our dollar formatter is shared
+        synchronized (nformat) {
+            return nformat.format(value);
+        }
     }
 
     /** A number format for formatting dollars. */
@@ -0,0 +1,115 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import static com.samskivert.util.UtilLog.log;
+
+/**
+ * A {@link FutureTask} to which {@link ResultListener}s may be added, to be notified of its
+ * result on a {@link RunQueue} of their choosing. It may also be waited upon like any other
+ * {@link java.util.concurrent.Future}.
+ */
+public class ResultFuture<V> extends FutureTask<V>
+{
+    /**
+     * Creates a future that will yield the result of the supplied callable when run.
+     */
+    public ResultFuture (Callable<V> callable)
+    {
+        super(callable);
+    }
+
+    /**
+     * Arranges for the supplied listener to be notified of our result on the supplied run queue.
+     * If we have already completed, the notification is posted immediately.
+     *
+     * @return this future, for call chaining.
+     */
+    public ResultFuture<V> addListener (RunQueue queue, ResultListener<V> listener)
+    {
+        boolean notify;
+        synchronized (this) {
+            notify = _listeners == null;
+            if (!notify) {
+                _listeners.add(new Notifier<V>(queue, listener));
+            }
+        }
+        if (notify) {
+            new Notifier<V>(queue, listener).dispatch(this);
+        }
+        return this;
+    }
+
+    @Override // from FutureTask, exposed so that a future that cannot be run can be failed
+    public void setException (Throwable cause)
+    {
+        super.setException(cause);
+    }
+
+    @Override // from FutureTask
+    protected void done ()
+    {
+        List<Notifier<V>> listeners;
+        synchronized (this) {
+            listeners = _listeners;
+            _listeners = null;
+        }
+        for (Notifier<V> notifier : listeners) {
+            try {
+                notifier.dispatch(this);
+            } catch (Throwable t) {
+                log.warning("Failed to dispatch result", "listener", notifier._listener, t);
+            }
+        }
+    }
+
+    /** Delivers the result of a future to a listener on a run queue. */
+    protected static class Notifier<V> implements Runnable
+    {
+        public Notifier (RunQueue queue, ResultListener<V> listener) {
+            _queue = queue;
+            _listener = listener;
+        }
+
+        public void dispatch (ResultFuture<V> future) {
+            _future = future;
+            _queue.postRunnable(this);
+        }
+
+        public void run () {
+            V result;
+            try {
+                result = _future.get();
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                _listener.requestFailed((cause instanceof Exception) ?
+                                        (Exception)cause : ee);
+                return;
+            } catch (Exception e) {
+                _listener.requestFailed(e);
+                return;
+            }
+            try {
+                _listener.requestCompleted(result);
+            } catch (Throwable t) {
+                log.warning("Result listener choked", "listener", _listener, t);
+            }
+        }
+
+        protected RunQueue _queue;
+        protected ResultListener<V> _listener;
+        protected ResultFuture<V> _future;
+    }
+
+    /** Our registered listeners, or null once we've completed. */
+    protected List<Notifier<V>> _listeners = new ArrayList<Notifier<V>>();
+}
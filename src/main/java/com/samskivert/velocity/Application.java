@@ -5,18 +5,32 @@
 
 package com.samskivert.velocity;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.velocity.app.Velocity;
+import org.apache.velocity.runtime.RuntimeSingleton;
 
 import com.samskivert.servlet.HttpErrorException;
+import com.samskivert.servlet.JDBCTableSiteIdentifier;
 import com.samskivert.servlet.MessageManager;
 import com.samskivert.servlet.RedirectException;
+import com.samskivert.servlet.Site;
 import com.samskivert.servlet.SiteIdentifier;
 import com.samskivert.servlet.SiteIdentifiers;
 import com.samskivert.servlet.SiteResourceLoader;
@@ -52,6 +66,28 @@ public class Application
      */
     public static final String VELOCITY_ATTR_KEY = "!application!";
 
+    /**
+     * Reports the results of {@link #warmTemplates}.
+     */
+    public static class WarmupReport
+    {
+        /** The number of templates that were successfully loaded. */
+        public int loaded;
+
+        /** The names of the templates that failed to load. */
+        public List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+
+        /** The number of milliseconds that warmup took. */
+        public long elapsed;
+
+        @Override // from Object
+        public String toString ()
+        {
+            return "[loaded=" + loaded + ", failed=" + failed.size() +
+                ", elapsed=" + elapsed + "ms]";
+        }
+    }
+
     /**
      * Performs initializations common to all applications. Applications should override {@link
      * #willInit} to perform initializations that need to take place before the common
@@ -117,6 +153,149 @@ public class Application
         didInit(config);
     }
 
+    /**
+     * Called by the dispatcher servlet once Velocity has been initialized. If the {@link
+     * #WARM_TEMPLATES_KEY} parameter is set, the templates with the extensions it lists are
+     * loaded into Velocity's resource cache, so that the first requests after startup need not
+     * pay to parse them.
+     *
+     * @param siteKeyed true if templates are loaded via the site resource manager, in which case
+     * each template is loaded for every site.
+     */
+    protected void willStartServing (ServletConfig config, boolean siteKeyed)
+    {
+        String extensions = getInitParameter(config, WARM_TEMPLATES_KEY);
+        if (StringUtil.isBlank(extensions)) {
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        String tparam = getInitParameter(config, WARM_THREADS_KEY);
+        if (!StringUtil.isBlank(tparam)) {
+            try {
+                threads = Math.max(Integer.parseInt(tparam.trim()), 1);
+            } catch (NumberFormatException nfe) {
+                log.warning("Invalid servlet parameter", "key", WARM_THREADS_KEY, "value", tparam);
+            }
+        }
+        WarmupReport report = warmTemplates(
+            getTemplateNames(StringUtil.split(extensions, ","), siteKeyed), threads);
+        log.info("Warmed up templates", "report", report);
+        for (String name : report.failed) {
+            log.warning("Failed to warm template", "name", name);
+        }
+    }
+
+    /**
+     * Enumerates the names of all templates with the specified extensions in the servlet context
+     * (excluding <code>WEB-INF</code>) and, if we have a site resource loader, in each site's jar
+     * file. When templates are site keyed, names are prefixed with each site's id (a template in
+     * the servlet context may be loaded on behalf of any site).
+     */
+    protected Set<String> getTemplateNames (String[] extensions, boolean siteKeyed)
+    {
+        Set<String> paths = new TreeSet<String>();
+        collectTemplatePaths("/", extensions, paths);
+        if (!siteKeyed) {
+            return paths;
+        }
+
+        Set<String> names = new TreeSet<String>();
+        List<Integer> siteIds = new ArrayList<Integer>();
+        siteIds.add(SiteIdentifier.DEFAULT_SITE_ID);
+        for (Iterator<Site> iter = _siteIdent.enumerateSites(); iter.hasNext(); ) {
+            siteIds.add(iter.next().siteId);
+        }
+        for (int siteId : siteIds) {
+            for (String path : paths) {
+                names.add(siteId + ":" + path);
+            }
+            if (_siteLoader == null || siteId == SiteIdentifier.DEFAULT_SITE_ID) {
+                continue;
+            }
+            try {
+                for (String path : _siteLoader.getResourcePaths(siteId)) {
+                    if (hasExtension(path, extensions)) {
+                        names.add(siteId + ":/" + path);
+                    }
+                }
+            } catch (IOException ioe) {
+                // no site-specific jar file, no site-specific templates
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Loads the named templates into Velocity's resource cache using the specified number of
+     * threads.
+     */
+    protected WarmupReport warmTemplates (Set<String> names, int threads)
+    {
+        final WarmupReport report = new WarmupReport();
+        long start = System.currentTimeMillis();
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (final String name : names) {
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call () {
+                    try {
+                        RuntimeSingleton.getTemplate(name);
+                        return true;
+                    } catch (Exception e) {
+                        report.failed.add(name);
+                        return false;
+                    }
+                }
+            });
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            for (Future<Boolean> result : exec.invokeAll(tasks)) {
+                if (result.get()) {
+                    report.loaded++;
+                }
+            }
+        } catch (Exception e) {
+            log.warning("Template warmup interrupted", e);
+        } finally {
+            exec.shutdown();
+        }
+        report.elapsed = System.currentTimeMillis() - start;
+        return report;
+    }
+
+    /**
+     * Recursively adds the paths of resources in the servlet context under the specified path
+     * that have one of the specified extensions to the supplied set.
+     */
+    protected void collectTemplatePaths (String path, String[] extensions, Set<String> paths)
+    {
+        Set<?> children = _context.getResourcePaths(path);
+        if (children == null) {
+            return;
+        }
+        for (Object child : children) {
+            String cpath = (String)child;
+            if (cpath.endsWith("/")) {
+                if (!cpath.startsWith("/WEB-INF/") && !cpath.startsWith("/META-INF/")) {
+                    collectTemplatePaths(cpath, extensions, paths);
+                }
+            } else if (hasExtension(cpath, extensions)) {
+                paths.add(cpath);
+            }
+        }
+    }
+
+    protected static boolean hasExtension (String path, String[] extensions)
+    {
+        for (String ext : extensions) {
+            if (path.endsWith(ext.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Called prior to initializing Velocity to allow the application to specify custom
      * configuration properties.
@@ -205,10 +384,16 @@ public class Application
 
     /**
      * This should be overridden by the application implementation to perform any necessary
-     * cleanup.
+     * cleanup. Overriding implementations should call <code>super.shutdown()</code>.
      */
     public void shutdown ()
     {
+        if (_siteLoader != null) {
+            _siteLoader.shutdown();
+        }
+        if (_siteIdent instanceof JDBCTableSiteIdentifier) {
+            ((JDBCTableSiteIdentifier)_siteIdent).shutdown();
+        }
     }
 
     /**
@@ -316,4 +501,12 @@ public class Application
     /** The servlet parameter key specifying the path to the site-specific translated message
      * resources. */
     protected static final String SITE_MESSAGE_BUNDLE_PATH_KEY = "site_messages_path";
+
+    /** The servlet parameter key specifying a comma separated list of the extensions (e.g.
+     * <code>.wm</code>) of the templates to be loaded at startup. */
+    protected static final String WARM_TEMPLATES_KEY = "warm_templates";
+
+    /** The servlet parameter key specifying the number of threads to use when loading templates
+     * at startup, defaulting to the number of processors. */
+    protected static final String WARM_THREADS_KEY = "warm_threads";
 }
@@ -0,0 +1,169 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.parser.node.Node;
+
+/**
+ * Pluggable directive that handles the #cache() statement in VTL. Cache is like {@link
+ * ImportDirective #import()} except that the rendered output of the imported template is cached
+ * and reused by subsequent requests. It is meant for expensive fragments that render identically
+ * for many requests, like navigation and footers. It is used like so:
+ *
+ * <pre>
+ * #cache("/footer.wm")
+ * #cache("/nav.wm" 600 $section $user.isAdmin())
+ * </pre>
+ *
+ * The first argument is the path to the template, the optional second argument is the number of
+ * seconds for which the rendered output should be cached and any further arguments are values on
+ * which the output depends. The output is cached separately for every site (when site-specific
+ * resource loading is in use), every request locale and every distinct combination of said
+ * values, which must therefore have sensible <code>equals</code> and <code>hashCode</code>
+ * implementations.
+ *
+ * <p> The cache is shared by all templates rendered by a Velocity engine and may be obtained via
+ * {@link #getCache} to inspect its statistics. Its size and the default time to live of its
+ * fragments may be configured via the <code>fragment_cache.max_size</code> (in characters) and
+ * <code>fragment_cache.ttl</code> (in seconds) Velocity properties.
+ */
+public class CacheDirective extends ImportDirective
+{
+    /** The Velocity property that configures the maximum number of characters to cache. */
+    public static final String MAX_SIZE_KEY = "fragment_cache.max_size";
+
+    /** The Velocity property that configures the default time to live in seconds. */
+    public static final String TTL_KEY = "fragment_cache.ttl";
+
+    /**
+     * Returns the fragment cache used by the supplied Velocity runtime, creating it if necessary.
+     */
+    public static FragmentCache getCache (RuntimeServices rsvc)
+    {
+        synchronized (rsvc) {
+            FragmentCache cache = (FragmentCache)rsvc.getApplicationAttribute(CACHE_KEY);
+            if (cache == null) {
+                cache = new FragmentCache(rsvc.getInt(MAX_SIZE_KEY, DEFAULT_MAX_SIZE));
+                rsvc.setApplicationAttribute(CACHE_KEY, cache);
+            }
+            return cache;
+        }
+    }
+
+    @Override
+    public String getName ()
+    {
+        return "cache";
+    }
+
+    @Override
+    public void init (RuntimeServices rs, InternalContextAdapter context, Node node)
+        throws TemplateInitException
+    {
+        super.init(rs, context, node);
+        _cache = getCache(rs);
+        _defaultTTL = rs.getInt(TTL_KEY, DEFAULT_TTL) * 1000L;
+    }
+
+    /**
+     * Renders the cached template, loading and rendering it if necessary.
+     */
+    @Override
+    public boolean render (InternalContextAdapter context, Writer writer, Node node)
+        throws IOException, ResourceNotFoundException, ParseErrorException,
+               MethodInvocationException
+    {
+        String path = getTemplatePath(context, node);
+        if (path == null) {
+            return false;
+        }
+
+        long ttl = _defaultTTL;
+        int args = node.jjtGetNumChildren();
+        if (args > 1) {
+            Object value = node.jjtGetChild(1).value(context);
+            if (!(value instanceof Number)) {
+                rsvc.getLog().error("#cache() error : invalid time to live '" + value + "'");
+                return false;
+            }
+            ttl = ((Number)value).longValue() * 1000L;
+        }
+
+        // the key is the path (which includes the site id), the locale and the vary values
+        Object[] key = new Object[Math.max(args, 2)];
+        key[0] = path;
+        key[1] = getLocale(context);
+        for (int ii = 2; ii < args; ii++) {
+            key[ii] = node.jjtGetChild(ii).value(context);
+        }
+        Object ckey = Arrays.asList(key);
+
+        String text = _cache.get(ckey);
+        if (text == null) {
+            Template t = loadTemplate(context, path);
+            if (t == null) {
+                return false;
+            }
+            StringWriter out = new StringWriter();
+            boolean rendered = renderTemplate(context, out, path, t);
+            text = out.toString();
+            // only cache complete renderings
+            if (!rendered) {
+                writer.write(text);
+                return false;
+            }
+            if (ttl > 0) {
+                _cache.put(ckey, text, ttl);
+            }
+        }
+        writer.write(text);
+        return true;
+    }
+
+    /**
+     * Returns the locale of the request being rendered, or null if the template is not being
+     * rendered on behalf of a request.
+     */
+    protected Locale getLocale (InternalContextAdapter context)
+    {
+        Object ctx = context.getInternalUserContext();
+        if (ctx instanceof InvocationContext) {
+            InvocationContext ictx = (InvocationContext)ctx;
+            if (ictx.getRequest() != null) {
+                return ictx.getRequest().getLocale();
+            }
+        }
+        return null;
+    }
+
+    /** The cache shared by all of our engine's cache directives. */
+    protected FragmentCache _cache;
+
+    /** The default time to live of a cached fragment, in milliseconds. */
+    protected long _defaultTTL;
+
+    /** The application attribute under which our cache is stored. */
+    protected static final String CACHE_KEY = FragmentCache.class.getName();
+
+    /** The default maximum number of characters to cache. */
+    protected static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    /** The default time to live of a cached fragment, in seconds. */
+    protected static final int DEFAULT_TTL = 300;
+}
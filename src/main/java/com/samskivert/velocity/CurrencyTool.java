@@ -5,15 +5,37 @@
 
 package com.samskivert.velocity;
 
+import java.text.NumberFormat;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.samskivert.util.CurrencyUtil;
 
 /**
- * Provides handy currency functions for use in velocity.
+ * Provides handy currency functions for use in velocity. Currency tools are thread safe, and a
+ * shared instance for a particular locale can be obtained via {@link #getTool}.
  */
 public class CurrencyTool
 {
+    /**
+     * Returns a shared currency tool for the specified locale.
+     */
+    public static CurrencyTool getTool (Locale locale)
+    {
+        CurrencyTool tool = _tools.get(locale);
+        if (tool == null) {
+            tool = new CurrencyTool(locale);
+            // locales come from request headers, so don't let a stream of bogus ones fill us up
+            if (_tools.size() < MAX_CACHED_TOOLS) {
+                CurrencyTool otool = _tools.putIfAbsent(locale, tool);
+                if (otool != null) {
+                    tool = otool;
+                }
+            }
+        }
+        return tool;
+    }
+
     /**
      * Creates a new CurrencyTool which will used the supplied request to look up the locale with
      * which to do currency formatting in.
@@ -21,6 +43,7 @@ public class CurrencyTool
     public CurrencyTool (Locale locale)
     {
         _locale = locale;
+        _format = NumberFormat.getCurrencyInstance(locale);
     }
 
     /**
@@ -45,7 +68,9 @@ public class CurrencyTool
      */
     public String currency (double value)
     {
-        return CurrencyUtil.currency(value, _locale);
+        synchronized (_format) {
+            return _format.format(value);
+        }
     }
 
     /**
@@ -54,7 +79,7 @@ public class CurrencyTool
      */
     public String currencyPennies (double value)
     {
-        return CurrencyUtil.currencyPennies(value, _locale);
+        return currency(value / 100.0);
     }
 
     /**
@@ -74,4 +99,14 @@ public class CurrencyTool
 
     /** The locale in which we are providing currency functionality. */
     protected Locale _locale;
+
+    /** Formats currency in our locale. */
+    protected NumberFormat _format;
+
+    /** Shared tools, by locale. */
+    protected static ConcurrentHashMap<Locale, CurrencyTool> _tools =
+        new ConcurrentHashMap<Locale, CurrencyTool>();
+
+    /** The maximum number of locales for which we cache tools. */
+    protected static final int MAX_CACHED_TOOLS = 256;
 }
@@ -6,14 +6,15 @@
 package com.samskivert.velocity;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -37,7 +38,9 @@ import com.samskivert.servlet.MessageManager;
 import com.samskivert.servlet.RedirectException;
 import com.samskivert.servlet.SiteIdentifier;
 import com.samskivert.servlet.SiteResourceLoader;
+import com.samskivert.servlet.util.AsyncUtil;
 import com.samskivert.servlet.util.FriendlyException;
+import com.samskivert.servlet.util.ResponseBuffer;
 
 import com.samskivert.util.ConfigUtil;
 import com.samskivert.util.StringUtil;
@@ -147,6 +150,26 @@ public class DispatcherServlet extends HttpServlet
         if (_charset == null) {
             _charset = "UTF-8";
         }
+
+        // determine how we'll deliver our responses
+        _bufferSize = getIntParameter(config, BUFFER_SIZE_KEY, DEFAULT_BUFFER_SIZE);
+        _gzipThreshold = getIntParameter(config, GZIP_THRESHOLD_KEY, -1);
+        _etags = "true".equalsIgnoreCase(config.getInitParameter(ETAGS_KEY));
+        _async = "true".equalsIgnoreCase(config.getInitParameter(ASYNC_KEY));
+
+        // give the application a chance to prepare (e.g. warm up templates) now that Velocity is
+        // ready to go
+        _app.willStartServing(config, _usingSiteLoading);
+
+        // configure the tools that we make available to every request and arrange to hear
+        // about exceptions thrown while merging templates
+        _tools = createTools();
+        _cartridge.addEventHandler(this);
+
+        // if requested, locate all of our logic up front
+        if ("true".equalsIgnoreCase(config.getInitParameter(PRELOAD_LOGIC_KEY))) {
+            preloadLogic(getLogicPackage(config));
+        }
     }
 
     /**
@@ -190,6 +213,30 @@ public class DispatcherServlet extends HttpServlet
         }
     }
 
+    /**
+     * Scans the logic package for logic classes and registers an instance of each with our logic
+     * registry. If the scan succeeds, the registry is marked complete, so that requests for paths
+     * with no logic need not attempt to load a logic class.
+     */
+    protected void preloadLogic (String logicPkg)
+    {
+        if (logicPkg.endsWith(".")) {
+            logicPkg = logicPkg.substring(0, logicPkg.length()-1);
+        }
+        if (StringUtil.isBlank(logicPkg)) {
+            log.warning("Can't preload logic without a logic package.");
+            return;
+        }
+        try {
+            int count = _logic.scan(logicPkg, _app.getClass().getClassLoader());
+            _logic.setComplete(true);
+            log.info("Preloaded logic", "package", logicPkg, "count", count);
+        } catch (IOException ioe) {
+            log.warning("Failed to preload logic, will resolve on demand", "package", logicPkg,
+                        ioe);
+        }
+    }
+
     protected String getLogicPackage (ServletConfig config) {
         String logicPkg = config.getInitParameter(LOGIC_PKG_KEY);
         return StringUtil.isBlank(logicPkg) ? "" : logicPkg;
@@ -230,8 +277,9 @@ public class DispatcherServlet extends HttpServlet
         // provided, wire up our site resource manager
         configureResourceManager(config, props);
 
-        // wire up our #import directive
-        props.setProperty("userdirective", ImportDirective.class.getName());
+        // wire up our #import and #cache directives
+        props.setProperty("userdirective", ImportDirective.class.getName() + "," +
+                          CacheDirective.class.getName());
 
         // configure the servlet context logger
         props.put(RuntimeSingleton.RUNTIME_LOG_LOGSYSTEM_CLASS,
@@ -261,7 +309,8 @@ public class DispatcherServlet extends HttpServlet
     /**
      * Loads up the template appropriate for this request, locates and invokes any associated logic
      * class and finally returns the prepared template which will be merged with the prepared
-     * context.
+     * context. Null is returned if the response has already been sent, or if the logic deferred
+     * its work and the request is being completed asynchronously (see {@link #ASYNC_KEY}).
      */
     public Template handleRequest (HttpServletRequest req, HttpServletResponse rsp, Context ctx)
         throws Exception
@@ -270,11 +319,8 @@ public class DispatcherServlet extends HttpServlet
         Logic logic = null;
 
         // listen for exceptions so that we can report them
-        EventCartridge ec = ictx.getEventCartridge();
-        if (ec == null) {
-            ec = new EventCartridge();
-            ec.attachToContext(ictx);
-            ec.addEventHandler(this);
+        if (ictx.getEventCartridge() == null) {
+            _cartridge.attachToContext(ictx);
         }
 
         // if our application failed to initialize, fail with a 500 response
@@ -326,29 +372,9 @@ public class DispatcherServlet extends HttpServlet
             // tool wishes to make use of it
             ictx.put(APPLICATION_KEY, _app);
 
-            // if the application provides a message manager, we want create a
-            // translation tool and stuff that into the context
-            MessageManager msgmgr = _app.getMessageManager();
-            if (msgmgr != null) {
-                I18nTool i18n = new I18nTool(req, msgmgr);
-                ictx.put(I18NTOOL_KEY, i18n);
-            }
-
-            // create a form tool for use by the template
-            FormTool form = new FormTool(req);
-            ictx.put(FORMTOOL_KEY, form);
-
-            // create a new string tool for use by the template
-            StringTool string = new StringTool();
-            ictx.put(STRINGTOOL_KEY, string);
-
-            // create a new data tool for use by the tempate
-            DataTool datatool = new DataTool();
-            ictx.put(DATATOOL_KEY, datatool);
-
-            // create a curreny tool set up to use the correct locale
-            CurrencyTool ctool = new CurrencyTool(req.getLocale());
-            ictx.put(CURRENCYTOOL_KEY, ctool);
+            // make our tools available to the logic and template; they'll be created only if
+            // they're actually used
+            ictx.setToolFactories(_tools);
 
             // allow the application to prepare the context
             _app.prepareContext(ictx);
@@ -368,6 +394,31 @@ public class DispatcherServlet extends HttpServlet
             error = e;
         }
 
+        // if the logic deferred some of its work, hand that off to be completed asynchronously if
+        // we can, otherwise just do it now
+        if (error == null && ictx.isDeferred()) {
+            if (_async && dispatchAsync(ictx, logic, tmpl)) {
+                return null;
+            }
+            error = invokeDeferred(ictx);
+        }
+
+        return handleResult(ictx, logic, error) ? tmpl : null;
+    }
+
+    /**
+     * Handles the outcome of invoking the logic for a request. If an error occurred, the
+     * application is allowed to convert it to something more appropriate and it is then either
+     * sent as the response (redirects and HTTP errors) or inserted into the context.
+     *
+     * @return true if the template should be merged, false if the response has been sent.
+     */
+    protected boolean handleResult (InvocationContext ictx, Logic logic, Exception error)
+        throws IOException
+    {
+        HttpServletRequest req = ictx.getRequest();
+        HttpServletResponse rsp = ictx.getResponse();
+
         // if an error occurred processing the template, allow the application
         // to convert it to something more appropriate and then handle it
         String errmsg = null;
@@ -378,7 +429,7 @@ public class DispatcherServlet extends HttpServlet
 
         } catch (RedirectException re) {
             rsp.sendRedirect(re.getRedirectURL());
-            return null;
+            return false;
 
         } catch (HttpErrorException hee) {
             String msg = hee.getErrorMessage();
@@ -387,7 +438,7 @@ public class DispatcherServlet extends HttpServlet
             } else {
                 rsp.sendError(hee.getErrorCode());
             }
-            return null;
+            return false;
 
         } catch (FriendlyException fe) {
             // grab the error message, we'll deal with it shortly
@@ -408,7 +459,103 @@ public class DispatcherServlet extends HttpServlet
             ictx.put(ERROR_KEY, errmsg);
         }
 
-        return tmpl;
+        return true;
+    }
+
+    /**
+     * Invokes the logic to which a request has been deferred (and any logic to which that logic
+     * defers) on the calling thread.
+     *
+     * @return the exception thrown by the deferred logic, or null.
+     */
+    protected Exception invokeDeferred (InvocationContext ictx)
+    {
+        while (ictx.isDeferred()) {
+            Logic deferred = ictx.takeDeferred();
+            try {
+                deferred.invoke(_app, ictx);
+            } catch (Exception e) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts the request into asynchronous mode and arranges for the logic to which it has been
+     * deferred to be invoked on its executor, after which the template is merged and the response
+     * completed, all without occupying the request thread.
+     *
+     * @return true if the request was dispatched, false if the container does not support
+     * asynchronous processing of the request.
+     */
+    protected boolean dispatchAsync (InvocationContext ictx, Logic logic, Template tmpl)
+    {
+        Runnable onComplete = startAsync(ictx.getRequest());
+        if (onComplete == null) {
+            return false;
+        }
+        new DeferredRequest(ictx, logic, tmpl, onComplete).schedule();
+        return true;
+    }
+
+    /**
+     * Puts the supplied request into asynchronous mode, returning a runnable that completes it, or
+     * null if asynchronous processing is not supported. The default implementation uses {@link
+     * AsyncUtil}.
+     */
+    protected Runnable startAsync (HttpServletRequest req)
+    {
+        return AsyncUtil.startAsync(req);
+    }
+
+    /**
+     * Creates the factories for the tools that are made available in the context of every
+     * request. Tools are created when first referenced, so derived classes can add tools here
+     * without burdening requests that don't use them.
+     */
+    protected Map<String, InvocationContext.ToolFactory> createTools ()
+    {
+        Map<String, InvocationContext.ToolFactory> tools =
+            new HashMap<String, InvocationContext.ToolFactory>();
+
+        // if the application provides a message manager, we want a translation tool
+        final MessageManager msgmgr = (_app == null) ? null : _app.getMessageManager();
+        if (msgmgr != null) {
+            tools.put(I18NTOOL_KEY, new InvocationContext.ToolFactory() {
+                public Object create (InvocationContext ctx) {
+                    return new I18nTool(ctx.getRequest(), msgmgr);
+                }
+            });
+        }
+
+        // a form tool for use by the template
+        tools.put(FORMTOOL_KEY, new InvocationContext.ToolFactory() {
+            public Object create (InvocationContext ctx) {
+                return new FormTool(ctx.getRequest());
+            }
+        });
+
+        // the string and data tools are stateless, so everyone can share them
+        tools.put(STRINGTOOL_KEY, new InvocationContext.ToolFactory() {
+            public Object create (InvocationContext ctx) {
+                return STRING_TOOL;
+            }
+        });
+        tools.put(DATATOOL_KEY, new InvocationContext.ToolFactory() {
+            public Object create (InvocationContext ctx) {
+                return DATA_TOOL;
+            }
+        });
+
+        // a currency tool set up to use the correct locale
+        tools.put(CURRENCYTOOL_KEY, new InvocationContext.ToolFactory() {
+            public Object create (InvocationContext ctx) {
+                return CurrencyTool.getTool(ctx.getRequest().getLocale());
+            }
+        });
+
+        return tools;
     }
 
     /**
@@ -515,7 +662,10 @@ public class DispatcherServlet extends HttpServlet
     }
 
     /**
-     * Merges the template with the context.
+     * Merges the template with the context. The response is buffered (up to the configured
+     * <code>buffer_size</code>) so that it can be sent with a <code>Content-Length</code>, gzip
+     * compressed (if a <code>gzip_threshold</code> is configured and the client accepts it) and
+     * given an ETag (if <code>etags</code> are enabled and {@link #isCacheable} agrees).
      *
      * @param template template object returned by the {@link #handleRequest} method.
      * @param context the context for this request.
@@ -525,19 +675,26 @@ public class DispatcherServlet extends HttpServlet
                UnsupportedEncodingException, IOException, Exception
     {
         HttpServletResponse response = context.getResponse();
-        ServletOutputStream output = response.getOutputStream();
         // ASSUMPTION: response.setContentType() has been called.
         String encoding = response.getCharacterEncoding();
 
+        ResponseBuffer buffer = (ResponseBuffer)_bufferPool.get();
+        if (buffer == null) {
+            buffer = new ResponseBuffer(_bufferSize, _gzipThreshold);
+        }
         VelocityWriter vw = null;
         try {
+            Writer out = buffer.start(context.getRequest(), response, encoding);
             vw = (VelocityWriter)_writerPool.get();
             if (vw == null) {
-                vw = new VelocityWriter(new OutputStreamWriter(output, encoding), 4 * 1024, true);
+                vw = new VelocityWriter(out, 4 * 1024, true);
             } else {
-                vw.recycle(new OutputStreamWriter(output, encoding));
+                vw.recycle(out);
             }
             template.merge(context, vw);
+            // flush our writers into the buffer (but don't close them, they're reused)
+            vw.flush();
+            buffer.finish(_etags && isCacheable(context));
 
         } catch (IOException ioe) {
             // the client probably crashed or aborted the connection ungracefully, so use log.info
@@ -545,23 +702,47 @@ public class DispatcherServlet extends HttpServlet
                      "error", ioe);
 
         } finally {
+            // if the merge failed, anything left in the buffer is discarded which leaves the
+            // response uncommitted (unless it overflowed) so that an error can be reported
+            buffer.release();
+            _bufferPool.put(buffer);
             if (vw != null) {
-                try {
-                    // flush and put back into the pool don't close to allow us to play nicely with
-                    // others.
-                    vw.flush();
-                } catch (IOException e) {
-                    // do nothing
-                }
-
-                // Clear the VelocityWriter's reference to its internal OutputStreamWriter to allow
-                // the latter to be GC'd while vw is pooled.
+                // Clear the VelocityWriter's reference to the buffer's writer while it is pooled.
                 vw.recycle(null);
                 _writerPool.put(vw);
             }
         }
     }
 
+    /**
+     * Returns true if the response to the supplied request may be cached by the client and so
+     * should be given an ETag (assuming ETags are enabled via the <code>etags</code> servlet
+     * parameter). The default implementation allows caching of <code>GET</code> requests whose
+     * responses have not set a <code>Cache-Control</code> header.
+     */
+    protected boolean isCacheable (InvocationContext context)
+    {
+        return "GET".equals(context.getRequest().getMethod()) &&
+            !context.getResponse().containsHeader("Cache-Control");
+    }
+
+    /**
+     * Returns the value of the specified integer servlet parameter, or the supplied default if it
+     * is unset or invalid.
+     */
+    protected static int getIntParameter (ServletConfig config, String key, int defval)
+    {
+        String value = config.getInitParameter(key);
+        if (!StringUtil.isBlank(value)) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfe) {
+                log.warning("Invalid servlet parameter", "key", key, "value", value);
+            }
+        }
+        return defval;
+    }
+
     /**
      * This method is called to select the appropriate logic for this request URI.
      *
@@ -575,16 +756,10 @@ public class DispatcherServlet extends HttpServlet
         Logic logic = _logic.get(lclass);
 
         if (logic == null) {
-            logic = instantiateLogic(path, lclass);
-
-            // if something failed, use a dummy in it's place so that we don't sit around all day
-            // freaking out about our inability to instantiate the proper logic class
-            if (logic == null) {
-                logic = new DummyLogic();
-            }
-
-            // cache the resolved logic instance
-            _logic.put(lclass, logic);
+            // if something failed, the registry will use a dummy in its place so that we don't
+            // sit around all day freaking out about our inability to instantiate the proper logic
+            // class (though it forgets about such failures if it is flooded with them)
+            logic = _logic.register(lclass, instantiateLogic(path, lclass));
         }
 
         return logic;
@@ -607,11 +782,108 @@ public class DispatcherServlet extends HttpServlet
         return null;
     }
 
+    /**
+     * Completes a request whose logic deferred its work, on the executors to which it was
+     * deferred.
+     */
+    protected class DeferredRequest implements Runnable
+    {
+        public DeferredRequest (InvocationContext ictx, Logic logic, Template tmpl,
+                                Runnable onComplete) {
+            _ictx = ictx;
+            _logic = logic;
+            _tmpl = tmpl;
+            _onComplete = onComplete;
+        }
+
+        /**
+         * Queues the deferred logic up for invocation on its executor. If that fails, an error is
+         * sent and the request completed.
+         */
+        public void schedule () {
+            try {
+                _ictx._executor.execute(this);
+            } catch (RejectedExecutionException ree) {
+                log.warning("Deferred logic rejected", "uri", _ictx.getRequest().getRequestURI(),
+                            "logic", _ictx._deferred);
+                sendError(_ictx.getResponse(), HttpServletResponse.SC_SERVICE_UNAVAILABLE, null);
+                _onComplete.run();
+            } catch (RuntimeException re) {
+                log.warning("Failed to schedule deferred logic",
+                            "uri", _ictx.getRequest().getRequestURI(), "logic", _ictx._deferred,
+                            re);
+                sendError(_ictx.getResponse(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                          null);
+                _onComplete.run();
+            }
+        }
+
+        public void run () {
+            boolean complete = true;
+            try {
+                Logic deferred = _ictx.takeDeferred();
+                Exception error = null;
+                try {
+                    deferred.invoke(_app, _ictx);
+                } catch (Exception e) {
+                    error = e;
+                }
+
+                // the deferred logic may have deferred work of its own
+                if (error == null && _ictx.isDeferred()) {
+                    complete = false;
+                    schedule();
+                } else if (handleResult(_ictx, _logic, error)) {
+                    mergeTemplate(_tmpl, _ictx);
+                }
+
+            } catch (Exception e) {
+                log.warning("Deferred request failed", "uri", _ictx.getRequest().getRequestURI(),
+                            e);
+                sendError(_ictx.getResponse(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                          e.getMessage());
+
+            } finally {
+                if (complete) {
+                    _onComplete.run();
+                }
+            }
+        }
+
+        protected InvocationContext _ictx;
+        protected Logic _logic;
+        protected Template _tmpl;
+        protected Runnable _onComplete;
+    }
+
+    /**
+     * Sends an error response, if the response has not already been committed.
+     */
+    protected static void sendError (HttpServletResponse rsp, int code, String message)
+    {
+        try {
+            if (message == null) {
+                rsp.sendError(code);
+            } else {
+                rsp.sendError(code, message);
+            }
+        } catch (Exception e) {
+            log.info("Failed to send error response", "code", code, "error", e);
+        }
+    }
+
     /** The application being served by this dispatcher servlet. */
     protected Application _app;
 
     /** A table of resolved logic instances. */
-    protected HashMap<String,Logic> _logic = new HashMap<String,Logic>();
+    protected LogicRegistry _logic = new LogicRegistry();
+
+    /** The factories for the tools made available to every request. */
+    protected Map<String, InvocationContext.ToolFactory> _tools;
+
+    /** Reports exceptions thrown during template evaluation to us. This is shared by all
+     * requests, which is safe because we do not need the runtime services. */
+    protected EventCartridge _cartridge = new EventCartridge();
 
     /** The character set in which serve our responses. */
     protected String _charset;
@@ -622,6 +894,27 @@ public class DispatcherServlet extends HttpServlet
     /** Our default content type. */
     protected String _defaultContentType;
 
+    /** The maximum number of bytes of a response that we'll buffer. */
+    protected int _bufferSize = DEFAULT_BUFFER_SIZE;
+
+    /** The minimum size of a response that we'll compress, or -1 if we never compress. */
+    protected int _gzipThreshold = -1;
+
+    /** Whether or not we compute ETags for cacheable responses. */
+    protected boolean _etags;
+
+    /** Whether or not we process requests whose logic defers its work asynchronously. */
+    protected boolean _async;
+
+    /** A pool of response buffers. */
+    protected SimplePool _bufferPool = new SimplePool(40);
+
+    /** The string tool shared by all requests. */
+    protected static final StringTool STRING_TOOL = new StringTool();
+
+    /** The data tool shared by all requests. */
+    protected static final DataTool DATA_TOOL = new DataTool();
+
     /** A pool of VelocityWriter instances. */
     protected static SimplePool _writerPool = new SimplePool(40);
 
@@ -656,9 +949,35 @@ public class DispatcherServlet extends HttpServlet
     /** The servlet parameter key specifying the base logic package. */
     protected static final String LOGIC_PKG_KEY = "logic_package";
 
+    /** The servlet parameter key that, if set to true, causes all logic in the logic package to
+     * be located and instantiated at startup. */
+    protected static final String PRELOAD_LOGIC_KEY = "preload_logic";
+
     /** The servlet parameter key specifying the default character set. */
     protected static final String CHARSET_KEY = "charset";
 
+    /** The servlet parameter key specifying the maximum number of bytes of a response to buffer.
+     * Larger responses are streamed to the client without a length or ETag. */
+    protected static final String BUFFER_SIZE_KEY = "buffer_size";
+
+    /** The servlet parameter key specifying the minimum size in bytes of a response that will be
+     * gzip compressed for clients that accept it. If unset, responses are never compressed. */
+    protected static final String GZIP_THRESHOLD_KEY = "gzip_threshold";
+
+    /** The servlet parameter key that, if set to true, causes ETags to be computed for cacheable
+     * responses (see {@link #isCacheable}). */
+    protected static final String ETAGS_KEY = "etags";
+
+    /** The servlet parameter key that, if set to true, causes requests whose logic defers its work
+     * (see {@link InvocationContext#defer}) to be processed asynchronously, freeing the request
+     * thread while that work is done. This requires a servlet 3.0 container, and that this servlet
+     * (and any filters that handle its requests) be configured with
+     * <code>&lt;async-supported&gt;true&lt;/async-supported&gt;</code>. */
+    protected static final String ASYNC_KEY = "async";
+
+    /** The default maximum number of bytes of a response to buffer. */
+    protected static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
     /** The default content type for responses. */
     protected static final String DEFAULT_CONTENT_TYPE = "text/html";
 
@@ -5,6 +5,8 @@
 
 package com.samskivert.velocity;
 
+import java.io.IOException;
+
 import javax.servlet.http.HttpServletRequest;
 
 import com.samskivert.servlet.util.HTMLUtil;
@@ -24,6 +26,11 @@ import com.samskivert.util.StringUtil;
  *
  * If the servlet was invoked with a value for "name", it will be
  * automatically filled into the "name" form field when it is requested.
+ *
+ * <p> Code that generates forms outside of a template can use the
+ * variants of the input, option and textarea methods that take an {@link
+ * Appendable} to write form elements (and entify their values) directly
+ * to a response writer rather than creating a string for each element.
  */
 public class FormTool
 {
@@ -303,14 +310,40 @@ public class FormTool
         String name, String value, String item, Object selectedValue)
     {
         StringBuilder buf = new StringBuilder();
-        buf.append("<option value=\"").append(value).append("\"");
-        if (selectedValue.equals(value)) {
-            buf.append(" selected");
+        try {
+            fixedOption(buf, name, value, item, selectedValue);
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe); // StringBuilder doesn't throw
         }
-        buf.append(">").append(item).append("</option>");
         return buf.toString();
     }
 
+    /**
+     * Writes an option entry for a select menu with the specified name,
+     * value, item, and default selected value to the supplied target.
+     */
+    public void option (Appendable out, String name, String value,
+                        String item, Object defaultValue)
+        throws IOException
+    {
+        fixedOption(out, name, value, item, getValue(name, defaultValue));
+    }
+
+    /**
+     * Writes an option entry for a select menu with the specified name,
+     * value, item, and selected value to the supplied target.
+     */
+    public void fixedOption (Appendable out, String name, String value,
+                             String item, Object selectedValue)
+        throws IOException
+    {
+        out.append("<option value=\"").append(value).append("\"");
+        if (selectedValue.equals(value)) {
+            out.append(" selected");
+        }
+        out.append(">").append(item).append("</option>");
+    }
+
     /**
      * Creates a radio button with the specified name and value.
      */
@@ -352,18 +385,62 @@ public class FormTool
     public String fixedTextarea (String name, String extra, Object value)
     {
         StringBuilder buf = new StringBuilder();
-        buf.append("<textarea name=\"").append(name).append("\"");
-        if (!StringUtil.isBlank(extra)) {
-            buf.append(" ").append(extra);
-        }
-        buf.append(">");
-        if (value != null) {
-            buf.append(value);
+        try {
+            writeTextarea(buf, name, extra, value, false);
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe); // StringBuilder doesn't throw
         }
-        buf.append("</textarea>");
         return buf.toString();
     }
 
+    /**
+     * Writes a text area with the specified name, optional extra
+     * parameters, and default text to the supplied target. The text is
+     * entified as it is written.
+     */
+    public void textarea (Appendable out, String name, String extra,
+                          Object defaultValue)
+        throws IOException
+    {
+        writeTextarea(out, name, extra, getRawValue(name, defaultValue), true);
+    }
+
+    /**
+     * Writes a text area with the specified name, optional extra
+     * parameters and the specified text to the supplied target.
+     */
+    public void fixedTextarea (Appendable out, String name, String extra,
+                               Object value)
+        throws IOException
+    {
+        writeTextarea(out, name, extra, value, false);
+    }
+
+    /**
+     * Writes an input form field with the specified type, name,
+     * defaultValue and extra attributes to the supplied target. The value
+     * is entified as it is written.
+     */
+    public void input (Appendable out, String type, String name,
+                       String extra, Object defaultValue)
+        throws IOException
+    {
+        writeInput(out, type, name, getRawValue(name, defaultValue), true,
+                   extra);
+    }
+
+    /**
+     * Writes an input form field with the specified type, name, value and
+     * extra attributes to the supplied target. The value is not fetched
+     * from the request parameters but is always the value supplied.
+     */
+    public void fixedInput (Appendable out, String type, String name,
+                            Object value, String extra)
+        throws IOException
+    {
+        writeInput(out, type, name, value, false, extra);
+    }
+
     /**
      * Generates an input form field with the specified type, name,
      * defaultValue and extra attributes.
@@ -383,21 +460,79 @@ public class FormTool
         String type, String name, Object value, String extra)
     {
         StringBuilder buf = new StringBuilder();
-        buf.append("<input type=\"").append(type).append("\"");
-        buf.append(" name=\"").append(name).append("\"");
-        buf.append(" value=\"").append(value).append("\"");
-        if (!StringUtil.isBlank(extra)) {
-            buf.append(" ").append(extra);
+        try {
+            writeInput(buf, type, name, value, false, extra);
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe); // StringBuilder doesn't throw
         }
-        buf.append(getCloseBrace());
         return buf.toString();
     }
 
+    /**
+     * Writes an input form field, entifying its value if requested.
+     */
+    protected void writeInput (Appendable out, String type, String name,
+                               Object value, boolean entify, String extra)
+        throws IOException
+    {
+        out.append("<input type=\"").append(type).append("\"");
+        out.append(" name=\"").append(name).append("\"");
+        out.append(" value=\"");
+        writeValue(out, value, entify);
+        out.append("\"");
+        if (!StringUtil.isBlank(extra)) {
+            out.append(" ").append(extra);
+        }
+        out.append(getCloseBrace());
+    }
+
+    /**
+     * Writes a text area, entifying its text if requested.
+     */
+    protected void writeTextarea (Appendable out, String name, String extra,
+                                  Object value, boolean entify)
+        throws IOException
+    {
+        out.append("<textarea name=\"").append(name).append("\"");
+        if (!StringUtil.isBlank(extra)) {
+            out.append(" ").append(extra);
+        }
+        out.append(">");
+        if (value != null) {
+            writeValue(out, value, entify);
+        }
+        out.append("</textarea>");
+    }
+
+    /**
+     * Writes the supplied value, entifying it if requested.
+     */
+    protected void writeValue (Appendable out, Object value, boolean entify)
+        throws IOException
+    {
+        String svalue = String.valueOf(value);
+        if (entify) {
+            HTMLUtil.entify(svalue, out);
+        } else {
+            out.append(svalue);
+        }
+    }
+
     /**
      * Fetches the requested value from the servlet request and entifies
      * it appropriately.
      */
     protected String getValue (String name, Object defaultValue)
+    {
+        return HTMLUtil.entify(getRawValue(name, defaultValue));
+    }
+
+    /**
+     * Fetches the requested value from the servlet request, or the
+     * supplied default if the request has no value. The value is not
+     * entified.
+     */
+    protected String getRawValue (String name, Object defaultValue)
     {
         String value = getParameter(name);
         if (StringUtil.isBlank(value)) {
@@ -407,7 +542,7 @@ public class FormTool
                 value = String.valueOf(defaultValue);
             }
         }
-        return HTMLUtil.entify(value);
+        return value;
     }
 
     /**
@@ -0,0 +1,185 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds rendered template fragments on behalf of the {@link CacheDirective}. Each fragment
+ * expires after a time to live and the total size of the cached fragments is bounded. When adding
+ * a fragment would exceed that bound, expired fragments are purged and, if that does not free
+ * enough space, the cache is cleared and starts over.
+ *
+ * <p> The cache also tracks its hits and misses and the number of characters of output that it
+ * has supplied, which is to say, the output that did not need to be rendered.
+ */
+public class FragmentCache
+{
+    /**
+     * Creates a fragment cache.
+     *
+     * @param maxSize the maximum number of characters of rendered output to cache.
+     */
+    public FragmentCache (int maxSize)
+    {
+        _maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached fragment with the supplied key or null if no unexpired fragment is
+     * cached.
+     */
+    public String get (Object key)
+    {
+        Fragment frag = _frags.get(key);
+        if (frag != null && frag.expires > System.currentTimeMillis()) {
+            _hits.incrementAndGet();
+            _saved.addAndGet(frag.text.length());
+            return frag.text;
+        }
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the supplied fragment.
+     *
+     * @param ttl the number of milliseconds for which the fragment should be retained.
+     */
+    public void put (Object key, String text, long ttl)
+    {
+        int size = text.length();
+        if (size > _maxSize) {
+            return; // we'd just have to throw it away again
+        }
+        if (_size.get() + size > _maxSize) {
+            makeRoom(size);
+        }
+        Fragment ofrag = _frags.put(key, new Fragment(text, System.currentTimeMillis() + ttl));
+        _size.addAndGet(size - ((ofrag == null) ? 0 : ofrag.text.length()));
+    }
+
+    /**
+     * Removes all cached fragments.
+     */
+    public void clear ()
+    {
+        for (Map.Entry<Object, Fragment> entry : _frags.entrySet()) {
+            remove(entry);
+        }
+    }
+
+    /**
+     * Returns the number of cached fragments.
+     */
+    public int size ()
+    {
+        return _frags.size();
+    }
+
+    /**
+     * Returns the total number of characters in the cached fragments.
+     */
+    public long getCachedChars ()
+    {
+        return _size.get();
+    }
+
+    /**
+     * Returns the number of lookups that found a cached fragment.
+     */
+    public long getHits ()
+    {
+        return _hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that did not find a cached fragment.
+     */
+    public long getMisses ()
+    {
+        return _misses.get();
+    }
+
+    /**
+     * Returns the fraction of lookups that found a cached fragment.
+     */
+    public float getHitRate ()
+    {
+        long hits = _hits.get(), total = hits + _misses.get();
+        return (total == 0) ? 0f : (hits / (float)total);
+    }
+
+    /**
+     * Returns the total number of characters of output supplied by the cache.
+     */
+    public long getCharsSaved ()
+    {
+        return _saved.get();
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[fragments=" + size() + ", chars=" + getCachedChars() + ", hits=" + getHits() +
+            ", misses=" + getMisses() + ", saved=" + getCharsSaved() + "]";
+    }
+
+    /**
+     * Purges expired fragments and, if that doesn't free up enough room for a fragment of the
+     * specified size, clears the cache.
+     */
+    protected void makeRoom (int size)
+    {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Object, Fragment> entry : _frags.entrySet()) {
+            if (entry.getValue().expires <= now) {
+                remove(entry);
+            }
+        }
+        if (_size.get() + size > _maxSize) {
+            clear();
+        }
+    }
+
+    /**
+     * Removes the supplied entry, unless its fragment has been replaced in the meanwhile.
+     */
+    protected void remove (Map.Entry<Object, Fragment> entry)
+    {
+        if (_frags.remove(entry.getKey(), entry.getValue())) {
+            _size.addAndGet(-entry.getValue().text.length());
+        }
+    }
+
+    /** A cached fragment. */
+    protected static class Fragment
+    {
+        public final String text;
+        public final long expires;
+
+        public Fragment (String text, long expires) {
+            this.text = text;
+            this.expires = expires;
+        }
+    }
+
+    /** Our cached fragments. */
+    protected ConcurrentHashMap<Object, Fragment> _frags =
+        new ConcurrentHashMap<Object, Fragment>();
+
+    /** The maximum number of characters we'll cache. */
+    protected int _maxSize;
+
+    /** The number of characters currently cached. */
+    protected AtomicLong _size = new AtomicLong();
+
+    /** Our statistics. */
+    protected AtomicLong _hits = new AtomicLong(), _misses = new AtomicLong();
+    protected AtomicLong _saved = new AtomicLong();
+}
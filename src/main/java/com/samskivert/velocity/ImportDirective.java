@@ -57,18 +57,35 @@ public class ImportDirective extends Directive
         InternalContextAdapter context, Writer writer, Node node)
         throws IOException, ResourceNotFoundException, ParseErrorException,
                MethodInvocationException
+    {
+        String path = getTemplatePath(context, node);
+        if (path == null) {
+            return false;
+        }
+        Template t = loadTemplate(context, path);
+        return (t != null) && renderTemplate(context, writer, path, t);
+    }
+
+    /**
+     * Obtains the path to the imported template from the first argument to the directive,
+     * prefixed with the site identifier if we're using site-specific resource loading.
+     *
+     * @return the path or null if no valid path was supplied or we have recursed too deeply.
+     */
+    protected String getTemplatePath (InternalContextAdapter context, Node node)
+        throws MethodInvocationException
     {
         // make sure an argument was supplied to the directive
         if (node.jjtGetChild(0) == null) {
-            rsvc.getLog().error("#import() error :  null argument");
-            return false;
+            rsvc.getLog().error("#" + getName() + "() error :  null argument");
+            return null;
         }
 
         // make sure that argument has a value
         Object value = node.jjtGetChild(0).value(context);
         if (value == null) {
-            rsvc.getLog().error("#import() error :  null argument");
-            return false;
+            rsvc.getLog().error("#" + getName() + "() error :  null argument");
+            return null;
         }
 
         // obtain the path to the desired template
@@ -81,18 +98,7 @@ public class ImportDirective extends Directive
         if (templateStack.length >= maxlen) {
             rsvc.getLog().error("Max recursion depth reached (" + maxlen + "). "  +
                                 "File stack: " + StringUtil.toString(templateStack) + ".");
-            return false;
-        }
-
-        // inherit the current encoding if there is a current template,
-        // otherwise use the configured encoding
-        String encoding = null;
-        Resource current = context.getCurrentResource();
-        if (current != null) {
-            encoding = current.getEncoding();
-        } else {
-            encoding = (String)
-                rsvc.getProperty(RuntimeConstants.INPUT_ENCODING);
+            return null;
         }
 
         // adjust the template path with the site information in the current
@@ -106,40 +112,74 @@ public class ImportDirective extends Directive
             try {
                 siteId = ((Integer)siteIdVal).intValue();
             } catch (Exception e) {
-                rsvc.getLog().error("#import() error: No siteId information in context.");
+                rsvc.getLog().error("#" + getName() +
+                                    "() error: No siteId information in context.");
             }
             path = siteId + ":" + path;
         }
 
+        return path;
+    }
+
+    /**
+     * Locates the template with the specified path.
+     *
+     * @return the template or null if it could not be loaded for some reason other than its not
+     * existing or failing to parse.
+     */
+    protected Template loadTemplate (InternalContextAdapter context, String path)
+        throws ResourceNotFoundException, ParseErrorException
+    {
+        // inherit the current encoding if there is a current template,
+        // otherwise use the configured encoding
+        String encoding = null;
+        Resource current = context.getCurrentResource();
+        if (current != null) {
+            encoding = current.getEncoding();
+        } else {
+            encoding = (String)
+                rsvc.getProperty(RuntimeConstants.INPUT_ENCODING);
+        }
+
         // locate the requested template
-        Template t = null;
         try {
-            t = rsvc.getTemplate(path, encoding);
+            return rsvc.getTemplate(path, encoding);
 
         } catch (ResourceNotFoundException rnfe) {
-            rsvc.getLog().error("#import(): cannot find template '" + path +
+            rsvc.getLog().error("#" + getName() + "(): cannot find template '" + path +
                                 "', called from template " + context.getCurrentTemplateName() +
                                 " at (" + getLine() + ", " + getColumn() + ")");
             throw rnfe;
 
         } catch (ParseErrorException pee) {
-            rsvc.getLog().error("#import(): syntax error in #import()-ed template '" + path +
-                                "', called from template " + context.getCurrentTemplateName() +
+            rsvc.getLog().error("#" + getName() + "(): syntax error in #" + getName() +
+                                "()-ed template '" + path + "', called from template " +
+                                context.getCurrentTemplateName() +
                                 " at (" + getLine() + ", " + getColumn() + ")");
             throw pee;
 
         } catch (Exception e) {
-            rsvc.getLog().error("#import(): Error [path=" + path + ", error=" + e + "].");
-            return false;
+            rsvc.getLog().error("#" + getName() + "(): Error [path=" + path +
+                                ", error=" + e + "].");
+            return null;
         }
+    }
 
-        // finally render the template
+    /**
+     * Renders the supplied template to the supplied writer.
+     *
+     * @return true if the template was rendered successfully, false otherwise.
+     */
+    protected boolean renderTemplate (
+        InternalContextAdapter context, Writer writer, String path, Template t)
+        throws MethodInvocationException
+    {
         try {
             context.pushCurrentTemplateName(path);
             ((SimpleNode)t.getData()).render(context, writer);
 
         } catch (Throwable th) {
-            rsvc.getLog().error("Exception rendering #import(" + path + "): " + th);
+            rsvc.getLog().error("Exception rendering #" + getName() + "(" + path + "): " + th);
             // we want to pass method invocation exceptions through
             if (th instanceof MethodInvocationException) {
                 throw (MethodInvocationException)th;
@@ -6,6 +6,10 @@
 package com.samskivert.velocity;
 
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -22,6 +26,17 @@ import com.samskivert.util.StringUtil;
  */
 public class InvocationContext extends VelocityContext
 {
+    /**
+     * Creates the value for a context key on demand. See {@link #setToolFactories}.
+     */
+    public static interface ToolFactory
+    {
+        /**
+         * Creates the value (generally a tool) to be bound to a key in the supplied context.
+         */
+        public Object create (InvocationContext ctx);
+    }
+
     /**
      * Constructs a new invocation context instance with the supplied http request and response
      * objects.
@@ -32,6 +47,18 @@ public class InvocationContext extends VelocityContext
         _rsp = rsp;
     }
 
+    /**
+     * Configures factories for values that will be bound into this context the first time that
+     * they are looked up. This allows tools to be made available to every template without
+     * creating them for templates that do not use them. A value that is explicitly put into the
+     * context takes precedence over a factory for the same key. The supplied map is not copied or
+     * modified and may be shared by many contexts.
+     */
+    public void setToolFactories (Map<String, ToolFactory> tools)
+    {
+        _tools = tools;
+    }
+
     /**
      * Returns the http request object associated with this invocation.
      */
@@ -48,6 +75,49 @@ public class InvocationContext extends VelocityContext
         return _rsp;
     }
 
+    /**
+     * Defers the remainder of the work of handling this request to the supplied logic, which will
+     * be invoked on the supplied executor (which may be an {@link com.samskivert.util.Invoker})
+     * once the current logic returns. This allows logic that must do something slow, like waiting
+     * on a remote repository, to do so without tying up one of the servlet container's request
+     * threads. The template is merged once the deferred logic completes, and any exception that
+     * it throws is handled just as if it had been thrown by the original logic.
+     *
+     * <p> The work is only actually handed off if the {@link DispatcherServlet} is configured to
+     * process requests asynchronously and the servlet container supports it. Otherwise the
+     * deferred logic is invoked immediately, on the request thread. The deferred logic may itself
+     * defer further work.
+     */
+    public void defer (Executor executor, Logic logic)
+    {
+        if (executor == null) {
+            throw new IllegalArgumentException("Deferred logic requires an executor");
+        }
+        _executor = executor;
+        _deferred = logic;
+    }
+
+    /**
+     * Returns true if the logic handling this request has deferred work via {@link #defer} that
+     * has yet to be performed.
+     */
+    public boolean isDeferred ()
+    {
+        return (_deferred != null);
+    }
+
+    /**
+     * Returns the logic to which this request has been deferred, or null, and clears it so that
+     * the logic may defer further work of its own.
+     */
+    protected Logic takeDeferred ()
+    {
+        Logic deferred = _deferred;
+        _deferred = null;
+        _executor = null;
+        return deferred;
+    }
+
     /**
      * Fetches a Velocity template that can be used for later formatting. The template is read with
      * the specified encoding or the default encoding if encoding is null.
@@ -129,6 +199,82 @@ public class InvocationContext extends VelocityContext
         return buf.toString();
     }
 
+    @Override // from VelocityContext
+    public Object internalGet (String key)
+    {
+        Object value = super.internalGet(key);
+        if (value == null && _tools != null && !isRemoved(key)) {
+            ToolFactory factory = _tools.get(key);
+            if (factory != null && (value = factory.create(this)) != null) {
+                super.internalPut(key, value);
+            }
+        }
+        return value;
+    }
+
+    @Override // from VelocityContext
+    public boolean internalContainsKey (Object key)
+    {
+        return super.internalContainsKey(key) ||
+            (_tools != null && _tools.containsKey(key) && !isRemoved(key));
+    }
+
+    @Override // from VelocityContext
+    public Object[] internalGetKeys ()
+    {
+        if (_tools == null) {
+            return super.internalGetKeys();
+        }
+        Set<Object> keys = new HashSet<Object>();
+        for (Object key : super.internalGetKeys()) {
+            keys.add(key);
+        }
+        for (String key : _tools.keySet()) {
+            if (!isRemoved(key)) {
+                keys.add(key);
+            }
+        }
+        return keys.toArray();
+    }
+
+    @Override // from VelocityContext
+    public Object internalRemove (Object key)
+    {
+        if (_tools != null && _tools.containsKey(key)) {
+            // make sure a removed tool is not recreated on the next lookup
+            if (_removed == null) {
+                _removed = new HashSet<Object>();
+            }
+            _removed.add(key);
+        }
+        return super.internalRemove(key);
+    }
+
+    @Override // from VelocityContext
+    public Object internalPut (String key, Object value)
+    {
+        if (_removed != null) {
+            _removed.remove(key);
+        }
+        return super.internalPut(key, value);
+    }
+
+    protected boolean isRemoved (Object key)
+    {
+        return (_removed != null && _removed.contains(key));
+    }
+
     protected HttpServletRequest _req;
     protected HttpServletResponse _rsp;
+
+    /** Factories for values that are created on demand, or null. */
+    protected Map<String, ToolFactory> _tools;
+
+    /** The logic to which the request has been deferred and the executor on which to invoke it,
+     * or null. */
+    protected Logic _deferred;
+    protected Executor _executor;
+
+    /** Keys for which a factory exists but that have been removed from this context, or null. */
+    protected Set<Object> _removed;
 }
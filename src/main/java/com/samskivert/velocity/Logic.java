@@ -14,6 +14,9 @@ import com.samskivert.servlet.util.ExceptionMap;
  * WebMacro architecture and should perform all of the logic involved in
  * handling a particular request.
  *
+ * <p> Logic that must perform slow operations can hand them off to another thread via {@link
+ * InvocationContext#defer}, allowing the request thread to be freed while they are performed.
+ *
  * @see DispatcherServlet
  */
 public interface Logic
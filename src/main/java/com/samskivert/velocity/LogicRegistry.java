@@ -0,0 +1,226 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static com.samskivert.servlet.Log.log;
+
+/**
+ * Maps logic class names to shared logic instances on behalf of the {@link DispatcherServlet}.
+ * Lookups are lock-free. Class names for which no logic exists map to a shared {@link DummyLogic},
+ * but only a bounded number of such misses are remembered, so requests for bogus URLs cannot grow
+ * the registry without bound.
+ *
+ * <p> The registry can be populated in advance by {@link #scan scanning} the logic package. If
+ * it is then marked {@link #setComplete complete}, any class name not found by the scan is
+ * known to have no logic and the dispatcher need never resort to reflection while handling a
+ * request.
+ */
+public class LogicRegistry
+{
+    /** The logic used for class names that have no logic. */
+    public static final Logic DUMMY = new DummyLogic();
+
+    /**
+     * Returns the logic registered for the specified class name, {@link #DUMMY} if the class name
+     * is known to have no logic, or null if the class name has not been resolved.
+     */
+    public Logic get (String lclass)
+    {
+        Logic logic = _logic.get(lclass);
+        if (logic == null && (_complete || _misses.containsKey(lclass))) {
+            logic = DUMMY;
+        }
+        return logic;
+    }
+
+    /**
+     * Registers the result of resolving the specified class name.
+     *
+     * @param logic the resolved logic, or null if no logic could be resolved.
+     *
+     * @return the logic that should be used for the class name, which may have been registered
+     * by another thread in the meanwhile, or {@link #DUMMY} if the supplied logic was null.
+     */
+    public Logic register (String lclass, Logic logic)
+    {
+        if (logic == null) {
+            // misses are cheap to recompute, so when we fill up we simply start over
+            if (_misses.size() >= MAX_MISSES) {
+                _misses.clear();
+            }
+            _misses.put(lclass, Boolean.TRUE);
+            return DUMMY;
+        }
+        Logic ologic = _logic.putIfAbsent(lclass, logic);
+        return (ologic == null) ? logic : ologic;
+    }
+
+    /**
+     * Indicates whether or not the registry contains all of the logic that exists. If so,
+     * unregistered class names will resolve to {@link #DUMMY} without further ado.
+     */
+    public void setComplete (boolean complete)
+    {
+        _complete = complete;
+    }
+
+    /**
+     * Returns true if this registry has been marked complete.
+     */
+    public boolean isComplete ()
+    {
+        return _complete;
+    }
+
+    /**
+     * Returns the number of logic instances registered.
+     */
+    public int size ()
+    {
+        return _logic.size();
+    }
+
+    /**
+     * Clears all registered logic and remembered misses.
+     */
+    public void clear ()
+    {
+        _logic.clear();
+        _misses.clear();
+    }
+
+    /**
+     * Locates all concrete {@link Logic} implementations with public no-argument constructors in
+     * the specified package (and its subpackages) that are visible to the supplied class loader,
+     * instantiates them and registers them. Packages are found in directories and jar files on
+     * the classpath; other sorts of class path entries are skipped.
+     *
+     * @return the number of logic instances registered.
+     */
+    public int scan (String pkg, ClassLoader loader)
+        throws IOException
+    {
+        String path = pkg.replace('.', '/');
+        int count = 0;
+        for (Enumeration<URL> iter = loader.getResources(path); iter.hasMoreElements(); ) {
+            URL url = iter.nextElement();
+            if ("file".equals(url.getProtocol())) {
+                count += scanDirectory(new File(decode(url.getPath())), pkg, loader);
+            } else if ("jar".equals(url.getProtocol())) {
+                count += scanJar(url, path + "/", loader);
+            } else {
+                log.info("Not scanning unsupported logic source", "url", url);
+            }
+        }
+        return count;
+    }
+
+    protected int scanDirectory (File dir, String pkg, ClassLoader loader)
+    {
+        int count = 0;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return count;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                count += scanDirectory(file, pkg + "." + name, loader);
+            } else if (name.endsWith(CLASS_SUFFIX)) {
+                String cname = name.substring(0, name.length() - CLASS_SUFFIX.length());
+                count += maybeRegister(pkg + "." + cname, loader);
+            }
+        }
+        return count;
+    }
+
+    protected int scanJar (URL url, String prefix, ClassLoader loader)
+        throws IOException
+    {
+        URLConnection conn = url.openConnection();
+        if (!(conn instanceof JarURLConnection)) {
+            return 0;
+        }
+        JarURLConnection jconn = (JarURLConnection)conn;
+        // we don't want a cached (and shared) jar file which we must not close
+        jconn.setUseCaches(false);
+        JarFile jar = jconn.getJarFile();
+        int count = 0;
+        try {
+            for (Enumeration<JarEntry> iter = jar.entries(); iter.hasMoreElements(); ) {
+                String name = iter.nextElement().getName();
+                if (name.startsWith(prefix) && name.endsWith(CLASS_SUFFIX)) {
+                    String cname = name.substring(0, name.length() - CLASS_SUFFIX.length());
+                    count += maybeRegister(cname.replace('/', '.'), loader);
+                }
+            }
+        } finally {
+            jar.close();
+        }
+        return count;
+    }
+
+    protected int maybeRegister (String cname, ClassLoader loader)
+    {
+        // skip inner and anonymous classes, which are not reachable via a URL
+        if (cname.indexOf('$') != -1) {
+            return 0;
+        }
+        try {
+            Class<?> clazz = Class.forName(cname, false, loader);
+            int mods = clazz.getModifiers();
+            if (!Logic.class.isAssignableFrom(clazz) || clazz.isInterface() ||
+                Modifier.isAbstract(mods) || !Modifier.isPublic(mods)) {
+                return 0;
+            }
+            clazz.getConstructor(); // make sure there's a public no-argument constructor
+            register(cname, (Logic)clazz.newInstance());
+            return 1;
+
+        } catch (NoSuchMethodException nsme) {
+            // not instantiable by the dispatcher, so not logic
+        } catch (Throwable t) {
+            log.warning("Unable to instantiate scanned logic", "class", cname, t);
+        }
+        return 0;
+    }
+
+    protected static String decode (String path)
+    {
+        try {
+            return URLDecoder.decode(path, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new AssertionError(uee); // UTF-8 is always supported
+        }
+    }
+
+    /** Our resolved logic instances, by class name. */
+    protected ConcurrentHashMap<String, Logic> _logic = new ConcurrentHashMap<String, Logic>();
+
+    /** Class names that are known to have no logic. */
+    protected ConcurrentHashMap<String, Boolean> _misses = new ConcurrentHashMap<String, Boolean>();
+
+    /** Whether we contain all logic that exists. */
+    protected volatile boolean _complete;
+
+    /** The maximum number of misses that we remember. */
+    protected static final int MAX_MISSES = 1000;
+
+    protected static final String CLASS_SUFFIX = ".class";
+}
@@ -55,7 +55,10 @@ public class StringTool
      */
     public String percent (float value)
     {
-        return _percFormat.format(value);
+        // a single string tool is shared by all requests and number formats are not thread safe
+        synchronized (_percFormat) {
+            return _percFormat.format(value);
+        }
     }
 
     /**
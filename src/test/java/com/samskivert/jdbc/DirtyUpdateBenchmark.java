@@ -0,0 +1,165 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.samskivert.io.PersistenceException;
+import com.samskivert.jdbc.jora.Table;
+
+/**
+ * Estimates the number of bytes sent to the database when updating rows that have had a single
+ * field modified, with and without {@link Table#setTrackChanges change tracking}. The estimate
+ * counts the SQL text plus the size of each bound parameter, which approximates what a database
+ * driver puts on the wire and what a statement based binlog records.
+ */
+public class DirtyUpdateBenchmark
+{
+    public static class Account
+    {
+        public int accountId;
+        public String username;
+        public String email;
+        public String realName;
+        public String profile;
+        public long created;
+        public long lastLogin;
+        public int flags;
+        public int loginCount;
+    }
+
+    public static class AccountRepository extends JORARepository
+    {
+        public AccountRepository (ConnectionProvider provider) {
+            super(provider, "benchdb");
+        }
+
+        @Override protected void migrateSchema (Connection conn, DatabaseLiaison liaison)
+            throws SQLException, PersistenceException {
+            JDBCUtil.createTableIfMissing(conn, "ACCOUNTS", new String[] {
+                "accountId integer primary key", "username varchar(64)", "email varchar(128)",
+                "realName varchar(128)", "profile varchar(4096)", "created bigint",
+                "lastLogin bigint", "flags integer", "loginCount integer" }, "");
+        }
+
+        @Override protected void createTables () {
+            _atable = new Table<Account>(Account.class, "ACCOUNTS", "accountId");
+        }
+
+        protected Table<Account> _atable;
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        final AccountRepository repo = new AccountRepository(
+            StaticConnectionProvider.forTest("dirtybench"));
+
+        List<Account> accounts = new ArrayList<Account>();
+        StringBuilder profile = new StringBuilder();
+        while (profile.length() < 1024) {
+            profile.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+        }
+        for (int ii = 0; ii < rows; ii++) {
+            Account acct = new Account();
+            acct.accountId = ii;
+            acct.username = "user" + ii;
+            acct.email = "user" + ii + "@example.com";
+            acct.realName = "Example User " + ii;
+            acct.profile = profile.toString();
+            acct.created = acct.lastLogin = System.currentTimeMillis();
+            accounts.add(acct);
+        }
+        repo.insertAll(repo._atable, accounts, 500, null, null);
+
+        for (boolean track : new boolean[] { false, true }) {
+            repo._atable.setTrackChanges(track);
+            final List<Account> loaded = repo.loadAll(repo._atable, "");
+            final long[] bytes = new long[1];
+            long start = System.nanoTime();
+            repo.executeUpdate(new Repository.Operation<Void>() {
+                public Void invoke (Connection conn, DatabaseLiaison liaison)
+                    throws SQLException, PersistenceException {
+                    Connection mconn = meter(conn, bytes);
+                    for (Account acct : loaded) {
+                        // a typical "record a login" update, plus one that changes nothing
+                        acct.lastLogin = System.currentTimeMillis();
+                        acct.loginCount++;
+                        repo._atable.update(mconn, acct);
+                        repo._atable.update(mconn, acct);
+                    }
+                    return null;
+                }
+            });
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            System.out.println((track ? "Tracked:   " : "Untracked: ") + bytes[0] + " bytes for " +
+                               (2 * rows) + " updates (" + (bytes[0] / (2 * rows)) +
+                               " per update) in " + elapsed + "ms");
+        }
+    }
+
+    /**
+     * Returns a connection that adds the size of the SQL and bound parameters of every prepared
+     * statement that it executes to <code>bytes[0]</code>.
+     */
+    protected static Connection meter (final Connection conn, final long[] bytes)
+    {
+        return (Connection)Proxy.newProxyInstance(
+            Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+            new InvocationHandler() {
+            public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+                Object result = invokeProxied(conn, method, args);
+                if (result instanceof PreparedStatement) {
+                    bytes[0] += ((String)args[0]).length();
+                    result = meter((PreparedStatement)result, bytes);
+                }
+                return result;
+            }
+        });
+    }
+
+    protected static PreparedStatement meter (final PreparedStatement stmt, final long[] bytes)
+    {
+        return (PreparedStatement)Proxy.newProxyInstance(
+            PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+            new InvocationHandler() {
+            public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().startsWith("set") && args != null && args.length == 2) {
+                    Object value = args[1];
+                    if (value instanceof String) {
+                        bytes[0] += ((String)value).length();
+                    } else if (value instanceof byte[]) {
+                        bytes[0] += ((byte[])value).length;
+                    } else if (value instanceof Integer) {
+                        bytes[0] += 4;
+                    } else {
+                        bytes[0] += 8;
+                    }
+                }
+                return invokeProxied(stmt, method, args);
+            }
+        });
+    }
+
+    protected static Object invokeProxied (Object target, Method method, Object[] args)
+        throws Throwable
+    {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            throw ite.getCause();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests various {@link JDBCUtil} routines against an in-memory HSQLDB database.
+ */
+public class JDBCUtilTest
+{
+    @BeforeClass
+    public static void setUpJDBCDriver ()
+        throws Exception
+    {
+        Class.forName("org.hsqldb.jdbcDriver");
+    }
+
+    @Test
+    public void testBatchBuckets ()
+    {
+        assertEquals(1, JDBCUtil.getBatchBucket(1, 500));
+        assertEquals(4, JDBCUtil.getBatchBucket(3, 500));
+        assertEquals(64, JDBCUtil.getBatchBucket(17, 500));
+        assertEquals(500, JDBCUtil.getBatchBucket(257, 500));
+        assertEquals(100, JDBCUtil.getBatchBucket(65, 100));
+        assertEquals(100, JDBCUtil.getBatchBucket(100, 100));
+    }
+
+    @Test
+    public void testPreparedBatchQuery ()
+        throws Exception
+    {
+        Connection conn = DriverManager.getConnection("jdbc:hsqldb:mem:jdbcutil", "sa", "");
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("create table items (id integer primary key, name varchar(32))");
+            for (int ii = 0; ii < 1000; ii++) {
+                stmt.executeUpdate("insert into items values (" + ii + ", 'item" + ii + "')");
+            }
+            stmt.close();
+
+            // look up every third item, which will require a padded tail batch
+            List<Integer> keys = new ArrayList<Integer>();
+            for (int ii = 0; ii < 1000; ii += 3) {
+                keys.add(ii);
+            }
+            final List<Integer> found = new ArrayList<Integer>();
+            JDBCUtil.batchQuery(conn, "select id, name from items where id in (#KEYS#)", keys,
+                                100, new JDBCUtil.BatchProcessor() {
+                public void process (ResultSet row) throws SQLException {
+                    assertEquals("item" + row.getInt(1), row.getString(2));
+                    found.add(row.getInt(1));
+                }
+            });
+            Collections.sort(found);
+            assertEquals(keys, found);
+
+        } finally {
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.io.PersistenceException;
+import com.samskivert.jdbc.jora.RowCache;
+import com.samskivert.jdbc.jora.Table;
+import com.samskivert.util.ResultListener;
+import com.samskivert.util.RunQueue;
+
+/**
+ * Tests {@link JORARepository} against an in-memory HSQLDB database.
+ */
+public class JORARepositoryTest
+{
+    public static class Widget
+    {
+        public Integer widgetId;
+        public String name;
+        public int weight;
+
+        public Widget () {
+        }
+
+        public Widget (String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    public static class WidgetRepository extends JORARepository
+    {
+        public WidgetRepository (ConnectionProvider provider) {
+            super(provider, "widgetdb");
+        }
+
+        @Override protected void migrateSchema (Connection conn, DatabaseLiaison liaison)
+            throws SQLException, PersistenceException {
+            JDBCUtil.createTableIfMissing(conn, "WIDGETS", new String[] {
+                "widgetId integer generated by default as identity (start with 1) primary key",
+                "name varchar(64)", "weight integer" }, "");
+        }
+
+        @Override protected void createTables () {
+            _wtable = new Table<Widget>(Widget.class, "WIDGETS", "widgetId");
+        }
+
+        protected Table<Widget> _wtable;
+    }
+
+    @Test
+    public void testInsertAll ()
+        throws Exception
+    {
+        WidgetRepository repo = new WidgetRepository(
+            StaticConnectionProvider.forTest("jorainsert"));
+
+        List<Widget> widgets = new ArrayList<Widget>();
+        for (int ii = 0; ii < 25; ii++) {
+            widgets.add(new Widget("widget" + ii, ii));
+        }
+        final List<Integer> chunks = new ArrayList<Integer>();
+        int[] keys = repo.insertAll(repo._wtable, widgets, 10, "widgetId",
+                                    new JORARepository.InsertObserver() {
+            public void chunkInserted (int offset, int count, long elapsed) {
+                chunks.add(count);
+            }
+        });
+
+        assertEquals(3, chunks.size());
+        assertEquals(5, (int)chunks.get(2));
+        assertEquals(25, keys.length);
+        for (int ii = 0; ii < keys.length; ii++) {
+            Widget w = repo.load(repo._wtable, "where widgetId = " + keys[ii]);
+            assertNotNull(w);
+            assertEquals("widget" + ii, w.name);
+        }
+
+        try {
+            repo.insertAll(repo._wtable, widgets, 0, null, null);
+            fail();
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInsertWithoutMultiRow ()
+        throws Exception
+    {
+        // databases without multi-row inserts must insert rows singly to report their keys
+        final WidgetRepository repo = new WidgetRepository(
+            StaticConnectionProvider.forTest("jorasingle"));
+        final List<Widget> widgets = new ArrayList<Widget>();
+        for (int ii = 0; ii < 5; ii++) {
+            widgets.add(new Widget("single" + ii, ii));
+        }
+        int[] keys = repo.executeUpdate(new Repository.Operation<int[]>() {
+            public int[] invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException, PersistenceException {
+                return repo._wtable.insert(conn, widgets, false, "widgetId");
+            }
+        });
+
+        assertEquals(5, keys.length);
+        for (int ii = 0; ii < keys.length; ii++) {
+            for (int jj = 0; jj < ii; jj++) {
+                assertTrue(keys[ii] != keys[jj]);
+            }
+            Widget w = repo.load(repo._wtable, "where widgetId = " + keys[ii]);
+            assertNotNull(w);
+            assertEquals("single" + ii, w.name);
+        }
+
+        // without a key column the rows are inserted as a batch
+        assertNull(repo.executeUpdate(new Repository.Operation<int[]>() {
+            public int[] invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException, PersistenceException {
+                return repo._wtable.insert(conn, widgets, false, null);
+            }
+        }));
+        assertEquals(10, repo.loadAll(repo._wtable, "where name like 'single%'").size());
+    }
+
+    @Test
+    public void testPreparedSelect ()
+        throws Exception
+    {
+        final WidgetRepository repo = new WidgetRepository(
+            StaticConnectionProvider.forTest("joraprep"));
+        repo.insertAll(repo._wtable, Collections.singletonList(new Widget("it's", 7)), 10,
+                       null, null);
+        Widget w = repo.execute(new Repository.Operation<Widget>() {
+            public Widget invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException, PersistenceException {
+                return repo._wtable.select(conn, null, "where name = ?", "it's").get();
+            }
+        });
+        assertEquals(7, w.weight);
+    }
+
+    @Test
+    public void testAsyncExecute ()
+        throws Exception
+    {
+        final WidgetRepository repo = new WidgetRepository(
+            StaticConnectionProvider.forTest("joraasync"));
+        RepositoryExecutor exec = new RepositoryExecutor("test", 2, 10);
+        try {
+            RepositoryExecutor.Pending<Integer> pending = exec.submitUpdate(
+                repo, new Repository.Operation<Integer>() {
+                public Integer invoke (Connection conn, DatabaseLiaison liaison)
+                    throws SQLException, PersistenceException {
+                    List<Widget> widgets = Collections.singletonList(new Widget("async", 1));
+                    return repo._wtable.insert(conn, widgets, false, "widgetId")[0];
+                }
+            });
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            final int[] result = new int[1];
+            pending.addListener(DIRECT, new ResultListener<Integer>() {
+                public void requestCompleted (Integer key) {
+                    result[0] = key;
+                    latch.countDown();
+                }
+                public void requestFailed (Exception cause) {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(pending.get().intValue(), result[0]);
+            assertEquals("async", repo.load(repo._wtable, "where widgetId = " + result[0]).name);
+
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testOperationStats ()
+        throws Exception
+    {
+        final WidgetRepository repo = new WidgetRepository(
+            StaticConnectionProvider.forTest("jorastats"));
+        OperationStats stats = new OperationStats();
+        SimpleRepository.setOperationObserver(stats);
+        // also exercise the SQL recording connection proxy used to report slow operations
+        SimpleRepository.setSlowOperationThreshold(1000L);
+        try {
+            repo.insertAll(repo._wtable, Collections.singletonList(new Widget("timed", 2)), 10,
+                           null, null);
+            assertEquals(1, repo.loadAll(repo._wtable, "where name = 'timed'").size());
+        } finally {
+            SimpleRepository.setOperationObserver(null);
+            SimpleRepository.setSlowOperationThreshold(0L);
+        }
+
+        Map<String, OperationStats.Stats> snap = stats.snapshot(true);
+        assertFalse(snap.isEmpty());
+        int count = 0;
+        long rows = 0;
+        for (OperationStats.Stats s : snap.values()) {
+            assertEquals("widgetdb", s.dbident);
+            assertEquals(0, s.failures);
+            assertTrue(s.getPercentile(OperationStats.Phase.INVOKE, 99) <=
+                       s.getMaxTime(OperationStats.Phase.INVOKE));
+            count += s.count;
+            rows += s.rows;
+        }
+        assertTrue(count >= 2);
+        assertTrue(rows >= 1);
+        assertTrue(stats.snapshot(false).isEmpty());
+    }
+
+    @Test
+    public void testRowCache ()
+        throws Exception
+    {
+        WidgetRepository repo = new WidgetRepository(
+            StaticConnectionProvider.forTest("joracache"));
+        repo._wtable.setCache(100, 60000L);
+        RowCache<Widget> cache = repo._wtable.getCache();
+
+        int[] keys = repo.insertAll(repo._wtable, Collections.singletonList(new Widget("a", 1)),
+                                    10, "widgetId", null);
+        String query = "where widgetId = " + keys[0];
+        assertEquals(String.valueOf(keys[0]), repo._wtable.getCacheKey(query));
+        assertNull(repo._wtable.getCacheKey("where widgetId = " + keys[0] + " or 1 = 1"));
+        assertNull(repo._wtable.getCacheKey("where name = 'a'"));
+
+        // the first load misses and populates the cache, the second is a hit
+        Widget w = repo.load(repo._wtable, query);
+        assertEquals(0, cache.getHits());
+        Widget cw = repo.load(repo._wtable, query);
+        assertEquals(1, cache.getHits());
+        assertNotSame(w, cw);
+        assertEquals("a", cw.name);
+
+        // modifying a returned object does not affect the cache
+        cw.weight = 99;
+        assertEquals(1, repo.load(repo._wtable, query).weight);
+
+        // updates invalidate the cached row
+        cw.name = "b";
+        repo.updateField(repo._wtable, cw, "name");
+        assertEquals(0, cache.size());
+        assertEquals("b", repo.load(repo._wtable, query).name);
+        assertEquals("b", repo.load(repo._wtable, query).name);
+        assertEquals(3, cache.getHits());
+
+        // as do deletes
+        repo.delete(repo._wtable, cw);
+        assertNull(repo.load(repo._wtable, query));
+
+        // loadAll populates the cache
+        repo.insertAll(repo._wtable, Collections.singletonList(new Widget("c", 3)), 10, null, null);
+        Widget c = repo.loadAll(repo._wtable, "where name = 'c'").get(0);
+        assertEquals("c", repo.load(repo._wtable, "where widgetId = " + c.widgetId).name);
+        assertEquals(4, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testChangeTracking ()
+        throws Exception
+    {
+        final WidgetRepository repo = new WidgetRepository(
+            StaticConnectionProvider.forTest("joratrack"));
+        repo._wtable.setTrackChanges(true);
+        int[] keys = repo.insertAll(repo._wtable, Collections.singletonList(new Widget("a", 1)),
+                                    10, "widgetId", null);
+        final Widget w = repo.load(repo._wtable, "where widgetId = " + keys[0]);
+
+        // an unmodified object issues no update at all
+        final List<String> sql = new ArrayList<String>();
+        Repository.Operation<Integer> update = new Repository.Operation<Integer>() {
+            public Integer invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException, PersistenceException {
+                return repo._wtable.update(JDBCUtil.makeRecorder(conn, sql), w);
+            }
+        };
+        assertEquals(1, (int)repo.executeUpdate(update));
+        assertTrue(sql.isEmpty());
+
+        // a modified object updates only the modified columns
+        w.weight = 5;
+        assertEquals(1, (int)repo.executeUpdate(update));
+        assertEquals(1, sql.size());
+        assertTrue(sql.get(0), sql.get(0).contains("weight=?"));
+        assertFalse(sql.get(0), sql.get(0).contains("name=?"));
+
+        assertEquals(5, repo.load(repo._wtable, "where widgetId = " + keys[0]).weight);
+
+        // the snapshot only advances once the repository has committed the update
+        assertTrue(repo._wtable.getModifiedFields(w).isModified());
+        assertEquals(1, repo.update(repo._wtable, w));
+        assertFalse(repo._wtable.getModifiedFields(w).isModified());
+    }
+
+    @Test
+    public void testChangeTrackingRollback ()
+        throws Exception
+    {
+        final WidgetRepository repo = new WidgetRepository(
+            StaticConnectionProvider.forTest("jorarollback"));
+        repo._wtable.setTrackChanges(true);
+        int[] keys = repo.insertAll(repo._wtable, Collections.singletonList(new Widget("a", 1)),
+                                    10, "widgetId", null);
+        String query = "where widgetId = " + keys[0];
+        final Widget w = repo.load(repo._wtable, query);
+
+        // updates made by transactions that are rolled back are written again by the next update
+        w.weight = 5;
+        failAfter(repo, new Repository.Operation<Integer>() {
+            public Integer invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException, PersistenceException {
+                return repo._wtable.update(conn, w);
+            }
+        });
+        assertEquals(1, repo.load(repo._wtable, query).weight);
+        assertEquals(1, repo.update(repo._wtable, w));
+        assertEquals(5, repo.load(repo._wtable, query).weight);
+
+        // as are those made in a batch
+        w.weight = 7;
+        failAfter(repo, new Repository.Operation<Integer>() {
+            public Integer invoke (Connection conn, DatabaseLiaison liaison)
+                throws SQLException, PersistenceException {
+                return repo._wtable.update(conn, new Widget[] { w });
+            }
+        });
+        assertEquals(5, repo.load(repo._wtable, query).weight);
+        assertEquals(1, repo.update(repo._wtable, w));
+        assertEquals(7, repo.load(repo._wtable, query).weight);
+    }
+
+    /**
+     * Invokes the supplied operation and then fails, rolling back its transaction.
+     */
+    protected static void failAfter (JORARepository repo, final Repository.Operation<?> op)
+    {
+        try {
+            repo.executeUpdate(new Repository.Operation<Object>() {
+                public Object invoke (Connection conn, DatabaseLiaison liaison)
+                    throws SQLException, PersistenceException {
+                    op.invoke(conn, liaison);
+                    throw new PersistenceException("rollback");
+                }
+            });
+            fail();
+        } catch (PersistenceException pe) {
+            assertEquals("rollback", pe.getMessage());
+        }
+    }
+
+    /** Runs posted runnables immediately on the posting thread. */
+    protected static final RunQueue DIRECT = new RunQueue() {
+        public void postRunnable (Runnable r) {
+            r.run();
+        }
+        public boolean isDispatchThread () {
+            return true;
+        }
+        public boolean isRunning () {
+            return true;
+        }
+    };
+}
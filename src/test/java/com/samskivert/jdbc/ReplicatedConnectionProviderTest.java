@@ -0,0 +1,146 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link ReplicatedConnectionProvider} using separate in-memory HSQLDB databases to stand
+ * in for a primary and its replicas.
+ */
+public class ReplicatedConnectionProviderTest
+{
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        Properties props = new Properties();
+        props.setProperty("default.driver", "org.hsqldb.jdbcDriver");
+        props.setProperty("default.username", "sa");
+        props.setProperty("test.url", PRIMARY);
+        props.setProperty("test.replicas", REPLICA1 + "," + REPLICA2);
+        props.setProperty("test.eject_millis", "60000");
+        _provider = new ReplicatedConnectionProvider(props);
+
+        // label each database so that we can tell where a read was routed
+        for (String url : new String[] { PRIMARY, REPLICA1, REPLICA2 }) {
+            Connection conn = new ReplicatedConnectionProvider.Source(
+                new org.hsqldb.jdbcDriver(), url, "sa", "", null, false, 1).open(null);
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("drop table origin if exists");
+            stmt.executeUpdate("create table origin (url varchar(64))");
+            stmt.executeUpdate("insert into origin values ('" + url + "')");
+            stmt.close();
+            conn.close();
+        }
+    }
+
+    @After
+    public void tearDown ()
+    {
+        _provider.shutdown();
+    }
+
+    @Test
+    public void testRouting ()
+        throws Exception
+    {
+        // writes always go to the primary
+        Connection wconn = _provider.getConnection("test", false);
+        assertEquals(PRIMARY, origin(wconn));
+        _provider.releaseConnection("test", false, wconn);
+
+        // concurrent reads are spread across the replicas by outstanding load
+        Connection r1 = _provider.getConnection("test", true);
+        Connection r2 = _provider.getConnection("test", true);
+        assertFalse(origin(r1).equals(origin(r2)));
+        assertFalse(PRIMARY.equals(origin(r1)));
+        assertFalse(PRIMARY.equals(origin(r2)));
+        assertTrue(r1.isReadOnly());
+
+        // releasing one replica's connection makes it the least loaded
+        String freed = origin(r1);
+        _provider.releaseConnection("test", true, r1);
+        Connection r3 = _provider.getConnection("test", true);
+        assertEquals(freed, origin(r3));
+        _provider.releaseConnection("test", true, r2);
+        _provider.releaseConnection("test", true, r3);
+    }
+
+    @Test
+    public void testEjection ()
+        throws Exception
+    {
+        // fail a connection to one replica, which should eject it
+        Connection r1 = _provider.getConnection("test", true);
+        String failed = origin(r1);
+        _provider.connectionFailed("test", true, r1, new SQLException("Lost connection"));
+        for (int ii = 0; ii < 4; ii++) {
+            Connection conn = _provider.getConnection("test", true);
+            String url = origin(conn);
+            assertFalse(failed.equals(url));
+            assertFalse(PRIMARY.equals(url));
+            _provider.releaseConnection("test", true, conn);
+        }
+
+        // eject the other replica as if it were lagging; reads should fall back to the primary
+        String other = failed.equals(REPLICA1) ? REPLICA2 : REPLICA1;
+        assertTrue(_provider.ejectReplica("test", other, 60000L));
+        Connection conn = _provider.getConnection("test", true);
+        assertEquals(PRIMARY, origin(conn));
+        _provider.releaseConnection("test", true, conn);
+    }
+
+    @Test
+    public void testAutoCommit ()
+        throws Exception
+    {
+        // the autocommit property is honoured just as the static provider honours it
+        Properties props = new Properties();
+        props.setProperty("default.driver", "org.hsqldb.jdbcDriver");
+        props.setProperty("default.username", "sa");
+        props.setProperty("default.autocommit", "false");
+        props.setProperty("test.url", PRIMARY);
+        props.setProperty("test.replicas", REPLICA1);
+        ReplicatedConnectionProvider provider = new ReplicatedConnectionProvider(props);
+        try {
+            for (boolean readOnly : new boolean[] { false, true }) {
+                Connection conn = provider.getConnection("test", readOnly);
+                assertFalse(conn.getAutoCommit());
+                provider.releaseConnection("test", readOnly, conn);
+            }
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    protected String origin (Connection conn)
+        throws SQLException
+    {
+        Statement stmt = conn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("select url from origin");
+            assertTrue(rs.next());
+            assertEquals(_provider.getConnectionURL(conn), rs.getString(1));
+            return rs.getString(1);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    protected ReplicatedConnectionProvider _provider;
+
+    protected static final String PRIMARY = "jdbc:hsqldb:mem:rcp_primary";
+    protected static final String REPLICA1 = "jdbc:hsqldb:mem:rcp_replica1";
+    protected static final String REPLICA2 = "jdbc:hsqldb:mem:rcp_replica2";
+}
@@ -0,0 +1,171 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.io.PersistenceException;
+import com.samskivert.jdbc.jora.Table;
+
+/**
+ * Tests {@link ShardedRepository} using separate in-memory HSQLDB databases as shards.
+ */
+public class ShardedRepositoryTest
+{
+    public static class Item
+    {
+        public int itemId;
+        public String name;
+
+        public Item () {
+        }
+
+        public Item (int itemId, String name) {
+            this.itemId = itemId;
+            this.name = name;
+        }
+    }
+
+    public static class ItemRepository extends JORARepository
+    {
+        public ItemRepository (ConnectionProvider provider, String dbident) {
+            super(provider, dbident);
+        }
+
+        public void insertItem (Item item) throws PersistenceException {
+            insert(_itable, item);
+        }
+
+        public List<Item> loadItems (Collection<Integer> itemIds) throws PersistenceException {
+            return loadAllByKeys(_itable, "itemId", itemIds);
+        }
+
+        public List<Item> loadAllItems () throws PersistenceException {
+            return loadAll(_itable, "");
+        }
+
+        @Override protected void migrateSchema (Connection conn, DatabaseLiaison liaison)
+            throws SQLException, PersistenceException {
+            JDBCUtil.createTableIfMissing(conn, "ITEMS", new String[] {
+                "itemId integer primary key", "name varchar(64)" }, "");
+        }
+
+        @Override protected void createTables () {
+            _itable = new Table<Item>(Item.class, "ITEMS", "itemId");
+        }
+
+        protected Table<Item> _itable;
+    }
+
+    @Before
+    public void setUp ()
+    {
+        Properties props = new Properties();
+        props.setProperty("default.driver", "org.hsqldb.jdbcDriver");
+        props.setProperty("default.username", "sa");
+        props.setProperty("default.password", "");
+        List<ItemRepository> repos = new ArrayList<ItemRepository>();
+        for (int ii = 0; ii < SHARDS; ii++) {
+            props.setProperty("items" + ii + ".url", "jdbc:hsqldb:mem:shard" + ii);
+        }
+        ConnectionProvider provider = new StaticConnectionProvider(props);
+        for (int ii = 0; ii < SHARDS; ii++) {
+            repos.add(new ItemRepository(provider, "items" + ii));
+        }
+        _exec = Executors.newFixedThreadPool(SHARDS);
+        _items = new ShardedRepository<ItemRepository>(repos, ShardedRepository.MODULO, _exec);
+    }
+
+    @After
+    public void tearDown ()
+    {
+        _exec.shutdown();
+    }
+
+    @Test
+    public void testRoutingAndGather ()
+        throws Exception
+    {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int ii = 0; ii < 30; ii++) {
+            _items.getShardFor(ii).insertItem(new Item(ii, "item" + ii));
+            ids.add(ii);
+        }
+
+        // each shard holds only the items it owns
+        for (int ii = 0; ii < SHARDS; ii++) {
+            List<Item> items = _items.getShard(ii).loadAllItems();
+            assertEquals(10, items.size());
+            for (Item item : items) {
+                assertEquals(ii, item.itemId % SHARDS);
+            }
+        }
+
+        // a scattered load finds every requested item exactly once
+        List<Integer> wanted = ids.subList(5, 25);
+        List<Item> found = _items.gather(
+            wanted, new ShardedRepository.Gatherer<ItemRepository, Integer, Item>() {
+            public Collection<Item> gather (ItemRepository repo, List<Integer> keys)
+                throws PersistenceException {
+                return repo.loadItems(keys);
+            }
+        });
+        Collections.sort(found, new Comparator<Item>() {
+            public int compare (Item a, Item b) {
+                return a.itemId - b.itemId;
+            }
+        });
+        assertEquals(wanted.size(), found.size());
+        for (int ii = 0; ii < found.size(); ii++) {
+            assertEquals(wanted.get(ii).intValue(), found.get(ii).itemId);
+            assertEquals("item" + wanted.get(ii), found.get(ii).name);
+        }
+
+        // a query of all shards merges their results
+        assertEquals(30, _items.gatherAll(
+            new ShardedRepository.Gatherer<ItemRepository, Object, Item>() {
+            public Collection<Item> gather (ItemRepository repo, List<Object> keys)
+                throws PersistenceException {
+                return repo.loadAllItems();
+            }
+        }).size());
+    }
+
+    @Test
+    public void testFailure ()
+        throws Exception
+    {
+        try {
+            _items.gather(Collections.singletonList(1),
+                          new ShardedRepository.Gatherer<ItemRepository, Integer, Item>() {
+                public Collection<Item> gather (ItemRepository repo, List<Integer> keys)
+                    throws PersistenceException {
+                    throw new PersistenceException("Oops");
+                }
+            });
+            fail("Shard failure was not reported");
+        } catch (PersistenceException pe) {
+            assertEquals("Oops", pe.getMessage());
+        }
+    }
+
+    protected ExecutorService _exec;
+    protected ShardedRepository<ItemRepository> _items;
+
+    protected static final int SHARDS = 3;
+}
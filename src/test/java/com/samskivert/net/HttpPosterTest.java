@@ -0,0 +1,268 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.io.StreamUtil;
+import com.samskivert.util.RunQueue;
+import com.samskivert.util.ServiceWaiter;
+
+/**
+ * Tests {@link HttpPoster} and {@link HttpPostUtil} against an in-process HTTP server.
+ */
+public class HttpPosterTest
+{
+    @Before
+    public void startServer ()
+        throws IOException
+    {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.setExecutor(_serverExec);
+        // echoes the submission, upper cased, after an optional delay
+        _server.createContext("/echo", new HttpHandler() {
+            public void handle (HttpExchange exchange) throws IOException {
+                int now = _active.incrementAndGet();
+                synchronized (_ports) {
+                    _peak = Math.max(_peak, now);
+                    _ports.add(exchange.getRemoteAddress().getPort());
+                }
+                try {
+                    String query = exchange.getRequestURI().getQuery();
+                    if (query != null) {
+                        Thread.sleep(Long.parseLong(query));
+                    }
+                    String body = new String(
+                        StreamUtil.toByteArray(exchange.getRequestBody()), "UTF-8");
+                    respond(exchange, 200, body.toUpperCase());
+                } catch (InterruptedException ie) {
+                    respond(exchange, 500, "interrupted");
+                } finally {
+                    _active.decrementAndGet();
+                }
+            }
+        });
+        // reports the number of bytes submitted
+        _server.createContext("/length", new HttpHandler() {
+            public void handle (HttpExchange exchange) throws IOException {
+                byte[] body = StreamUtil.toByteArray(exchange.getRequestBody());
+                respond(exchange, 200, String.valueOf(body.length));
+            }
+        });
+        _server.createContext("/error", new HttpHandler() {
+            public void handle (HttpExchange exchange) throws IOException {
+                StreamUtil.toByteArray(exchange.getRequestBody());
+                respond(exchange, 500, "oops");
+            }
+        });
+        _server.start();
+    }
+
+    @After
+    public void stopServer ()
+    {
+        _server.stop(0);
+        _serverExec.shutdownNow();
+    }
+
+    @Test
+    public void testPost ()
+        throws Exception
+    {
+        HttpPoster poster = new HttpPoster("test", 4, 2, 1000, 5000);
+        try {
+            ServiceWaiter<String> waiter = new ServiceWaiter<String>(5);
+            poster.post(url("/echo"), "h\u00e9llo=world").addListener(INLINE, waiter);
+            assertTrue(waiter.waitForResponse());
+            assertEquals("H\u00c9LLO=WORLD", waiter.getArgument());
+            assertEquals("12", poster.post(url("/length"), "h\u00e9llo=world").get());
+        } finally {
+            poster.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatch ()
+        throws Exception
+    {
+        // a batch of posts is made over no more than the per-server limit of connections
+        HttpPoster poster = new HttpPoster("test", 8, 3, 1000, 5000);
+        try {
+            List<String> submissions = new ArrayList<String>();
+            for (int ii = 0; ii < 30; ii++) {
+                submissions.add("post" + ii);
+            }
+            List<HttpPoster.Pending> posts = poster.postAll(url("/echo?10"), submissions);
+            for (int ii = 0; ii < posts.size(); ii++) {
+                assertEquals("POST" + ii, posts.get(ii).get());
+            }
+            assertTrue("peak " + _peak, _peak <= 3);
+            assertTrue("connections " + _ports, _ports.size() <= 3);
+            awaitIdle(poster);
+        } finally {
+            poster.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailures ()
+        throws Exception
+    {
+        HttpPoster poster = new HttpPoster("test", 4, 2, 1000, 200);
+        try {
+            // error responses fail
+            try {
+                poster.post(url("/error"), "a=b").get();
+                fail();
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof IOException);
+                assertTrue(ee.getCause().getMessage().contains("500"));
+            }
+
+            // slow responses time out
+            ServiceWaiter<String> waiter = new ServiceWaiter<String>(5);
+            poster.post(url("/echo?1000"), "a=b").addListener(INLINE, waiter);
+            assertFalse(waiter.waitForResponse());
+            assertTrue(waiter.getError() instanceof SocketTimeoutException);
+
+            // as do those given a shorter timeout of their own
+            try {
+                poster.post(url("/echo?1000"), "a=b", HttpPoster.FORM_PROPS, 100).get();
+                fail();
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof SocketTimeoutException);
+            }
+
+            // posts made after shutdown fail
+            poster.shutdown();
+            try {
+                poster.post(url("/echo"), "a=b").get();
+                fail();
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof IOException);
+            }
+            awaitIdle(poster);
+        } finally {
+            poster.shutdown();
+        }
+    }
+
+    @Test
+    public void testHttpPostUtil ()
+        throws Exception
+    {
+        assertEquals("A=BC=D", HttpPostUtil.httpPost(url("/echo"), "a=b\nc=d", 5));
+        // submissions are sent a byte per character, as they always have been
+        assertEquals("11", HttpPostUtil.httpPost(url("/length"), "h\u00e9llo=world", 5));
+        // a zero timeout waits forever
+        assertEquals("A=B", HttpPostUtil.httpPost(url("/echo?100"), "a=b", 0));
+        try {
+            HttpPostUtil.httpPost(url("/echo?2000"), "a=b", 1);
+            fail();
+        } catch (ServiceWaiter.TimeoutException te) {
+            // expected
+        }
+        // the abandoned post gives up on the server shortly thereafter
+        awaitIdle(HttpPostUtil.getPoster());
+        try {
+            HttpPostUtil.httpPost(url("/error"), "a=b", 5);
+            fail();
+        } catch (IOException ioe) {
+            // expected
+        }
+
+        // an interrupted wait gives up on the post, but leaves the thread interrupted
+        Thread.currentThread().interrupt();
+        try {
+            HttpPostUtil.httpPost(url("/echo?2000"), "a=b", 5);
+            fail();
+        } catch (ServiceWaiter.TimeoutException te) {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void testConfigurePoster ()
+        throws Exception
+    {
+        HttpPostUtil.configurePoster(4, 1);
+        try {
+            assertEquals(1, HttpPostUtil.getPoster()._maxPerHost);
+            assertEquals("A=B", HttpPostUtil.httpPost(url("/echo"), "a=b", 5));
+        } finally {
+            HttpPostUtil.configurePoster(
+                HttpPostUtil.POSTER_THREADS, HttpPostUtil.POSTER_MAX_PER_HOST);
+        }
+    }
+
+    protected static void awaitIdle (HttpPoster poster)
+        throws InterruptedException
+    {
+        // a post's server slot is released just after its result is delivered
+        for (int ii = 0; ii < 100 && poster.getPendingPosts() > 0; ii++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, poster.getPendingPosts());
+    }
+
+    protected URL url (String path)
+        throws IOException
+    {
+        return new URL("http://127.0.0.1:" + _server.getAddress().getPort() + path);
+    }
+
+    protected static void respond (HttpExchange exchange, int code, String body)
+        throws IOException
+    {
+        byte[] data = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(code, data.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(data);
+        out.close();
+    }
+
+    protected HttpServer _server;
+    protected ExecutorService _serverExec = Executors.newCachedThreadPool();
+
+    /** The number of requests being handled, the peak thereof and the client ports seen. */
+    protected AtomicInteger _active = new AtomicInteger();
+    protected int _peak;
+    protected Set<Integer> _ports = Collections.synchronizedSet(new HashSet<Integer>());
+
+    /** Runs results on the thread that delivers them. */
+    protected static final RunQueue INLINE = new RunQueue() {
+        public void postRunnable (Runnable r) {
+            r.run();
+        }
+        public boolean isDispatchThread () {
+            return true;
+        }
+        public boolean isRunning () {
+            return true;
+        }
+    };
+}
@@ -0,0 +1,81 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Compares the cost of identifying a site by scanning the domain mappings linearly (as {@link
+ * JDBCTableSiteIdentifier} once did) against looking it up in a {@link
+ * JDBCTableSiteIdentifier.DomainTrie}, with and without the per-host result cache.
+ */
+public class DomainMatchBenchmark
+{
+    public static void main (String[] args)
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 200000;
+
+        ArrayList<JDBCTableSiteIdentifier.SiteMapping> mappings =
+            new ArrayList<JDBCTableSiteIdentifier.SiteMapping>();
+        for (int ii = 0; ii < count; ii++) {
+            mappings.add(new JDBCTableSiteIdentifier.SiteMapping(ii, "site" + ii + ".example.com"));
+        }
+        Collections.sort(mappings, JDBCTableSiteIdentifier.SiteMapping.BY_SPECIFICITY);
+
+        // mostly hits, plus some misses which are the worst case for a linear scan
+        Random rando = new Random(42);
+        String[] hosts = new String[1000];
+        for (int ii = 0; ii < hosts.length; ii++) {
+            hosts[ii] = (ii % 10 == 0) ? ("www.unknown" + ii + ".org") :
+                ("www.site" + rando.nextInt(count) + ".example.com");
+        }
+
+        for (int pass = 0; pass < 3; pass++) {
+            long start = System.nanoTime(), sum = 0;
+            for (int ii = 0; ii < lookups; ii++) {
+                sum += linear(mappings, hosts[ii % hosts.length]);
+            }
+            report("Linear", start, lookups, sum);
+
+            JDBCTableSiteIdentifier.DomainTrie trie =
+                new JDBCTableSiteIdentifier.DomainTrie(mappings);
+            start = System.nanoTime();
+            sum = 0;
+            for (int ii = 0; ii < lookups; ii++) {
+                sum += trie.match(hosts[ii % hosts.length], -1);
+            }
+            report("Trie", start, lookups, sum);
+
+            start = System.nanoTime();
+            sum = 0;
+            for (int ii = 0; ii < lookups; ii++) {
+                sum += trie.identify(hosts[ii % hosts.length], -1);
+            }
+            report("Cached", start, lookups, sum);
+        }
+    }
+
+    protected static int linear (ArrayList<JDBCTableSiteIdentifier.SiteMapping> mappings,
+                                 String serverName)
+    {
+        for (int ii = 0, nn = mappings.size(); ii < nn; ii++) {
+            JDBCTableSiteIdentifier.SiteMapping mapping = mappings.get(ii);
+            if (serverName.endsWith(mapping.domain)) {
+                return mapping.siteId;
+            }
+        }
+        return -1;
+    }
+
+    protected static void report (String what, long start, int lookups, long sum)
+    {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(what + ": " + (elapsed / lookups) + "ns per lookup (" + sum + ")");
+    }
+}
@@ -0,0 +1,126 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A fake request for use by tests and benchmarks. It answers the request methods for which it
+ * has been configured and throws {@link UnsupportedOperationException} for all others.
+ */
+public class FakeRequest implements InvocationHandler
+{
+    /** The request's parameters. */
+    public Map<String, String[]> params = new HashMap<String, String[]>();
+
+    /** The number of times the request's parameters have been looked up. */
+    public int lookups;
+
+    /** The request's headers, by lower cased name. */
+    public Map<String, String> headers = new HashMap<String, String>();
+
+    /** The request's attributes. */
+    public Map<String, Object> attrs = new HashMap<String, Object>();
+
+    /** The request's method. */
+    public String method = "GET";
+
+    /** The servlet path of the request (its URI less the empty context path). */
+    public String path = "/";
+
+    /** The request's character encoding. */
+    public String characterEncoding = "UTF-8";
+
+    /** The server name reported by the request. */
+    public String serverName;
+
+    /** The locale reported by the request. */
+    public Locale locale = Locale.getDefault();
+
+    public FakeRequest param (String name, String... values) {
+        params.put(name, values);
+        return this;
+    }
+
+    public FakeRequest method (String method) {
+        this.method = method;
+        return this;
+    }
+
+    public FakeRequest header (String name, String value) {
+        headers.put(name.toLowerCase(), value);
+        return this;
+    }
+
+    public FakeRequest path (String path) {
+        this.path = path;
+        return this;
+    }
+
+    public FakeRequest serverName (String serverName) {
+        this.serverName = serverName;
+        return this;
+    }
+
+    public FakeRequest locale (Locale locale) {
+        this.locale = locale;
+        return this;
+    }
+
+    /**
+     * Returns a request backed by this fake.
+     */
+    public HttpServletRequest request () {
+        return (HttpServletRequest)Proxy.newProxyInstance(
+            HttpServletRequest.class.getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class }, this);
+    }
+
+    public Object invoke (Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getParameter")) {
+            lookups++;
+            String[] values = params.get(args[0]);
+            return (values == null) ? null : values[0];
+        } else if (name.equals("getParameterValues")) {
+            lookups++;
+            return params.get(args[0]);
+        } else if (name.equals("getAttribute")) {
+            return attrs.get(args[0]);
+        } else if (name.equals("setAttribute")) {
+            attrs.put((String)args[0], args[1]);
+            return null;
+        } else if (name.equals("removeAttribute")) {
+            attrs.remove(args[0]);
+            return null;
+        } else if (name.equals("getHeader")) {
+            return headers.get(((String)args[0]).toLowerCase());
+        } else if (name.equals("getMethod")) {
+            return method;
+        } else if (name.equals("getServletPath") || name.equals("getRequestURI")) {
+            return path;
+        } else if (name.equals("getContextPath")) {
+            return "";
+        } else if (name.equals("getCharacterEncoding")) {
+            return characterEncoding;
+        } else if (name.equals("setCharacterEncoding")) {
+            characterEncoding = (String)args[0];
+            return null;
+        } else if (name.equals("getServerName")) {
+            return serverName;
+        } else if (name.equals("getLocale")) {
+            return locale;
+        }
+        throw new UnsupportedOperationException(name);
+    }
+}
@@ -0,0 +1,86 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A fake response for use by tests and benchmarks, which records what is done to it and writes
+ * the response body to a supplied stream. It throws {@link UnsupportedOperationException} for
+ * the response methods that it does not support.
+ */
+public class FakeResponse implements InvocationHandler
+{
+    /** The headers set on the response. */
+    public Map<String, String> headers = new HashMap<String, String>();
+
+    /** The status set on the response (or sent as an error). */
+    public int status = HttpServletResponse.SC_OK;
+
+    /** The content length set on the response, or -1. */
+    public int length = -1;
+
+    /** The content type set on the response. */
+    public String contentType;
+
+    /** The stream to which the response body is written. */
+    public OutputStream body;
+
+    public FakeResponse (OutputStream body) {
+        this.body = body;
+    }
+
+    /**
+     * Returns a response backed by this fake.
+     */
+    public HttpServletResponse response () {
+        return (HttpServletResponse)Proxy.newProxyInstance(
+            HttpServletResponse.class.getClassLoader(),
+            new Class<?>[] { HttpServletResponse.class }, this);
+    }
+
+    public Object invoke (Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("setHeader")) {
+            headers.put((String)args[0], (String)args[1]);
+        } else if (name.equals("addHeader")) {
+            String ovalue = headers.get(args[0]);
+            headers.put((String)args[0], (ovalue == null) ? (String)args[1] :
+                        (ovalue + ", " + args[1]));
+        } else if (name.equals("containsHeader")) {
+            return headers.containsKey(args[0]);
+        } else if (name.equals("setContentLength")) {
+            length = (Integer)args[0];
+        } else if (name.equals("setStatus") || name.equals("sendError")) {
+            status = (Integer)args[0];
+        } else if (name.equals("setContentType")) {
+            contentType = (String)args[0];
+        } else if (name.equals("getCharacterEncoding")) {
+            return "UTF-8";
+        } else if (name.equals("getOutputStream")) {
+            return new ServletOutputStream() {
+                @Override public void write (int b) throws IOException {
+                    body.write(b);
+                }
+                @Override public void write (byte[] b, int off, int len) throws IOException {
+                    body.write(b, off, len);
+                }
+            };
+        } else {
+            throw new UnsupportedOperationException(name);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,123 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.io.PersistenceException;
+import com.samskivert.jdbc.ConnectionProvider;
+import com.samskivert.jdbc.JDBCUtil;
+import com.samskivert.jdbc.StaticConnectionProvider;
+
+/**
+ * Tests {@link JDBCTableSiteIdentifier}.
+ */
+public class JDBCTableSiteIdentifierTest
+{
+    @Test
+    public void testDomainTrie ()
+    {
+        ArrayList<JDBCTableSiteIdentifier.SiteMapping> mappings =
+            new ArrayList<JDBCTableSiteIdentifier.SiteMapping>();
+        mappings.add(new JDBCTableSiteIdentifier.SiteMapping(1, "yahoo.com"));
+        mappings.add(new JDBCTableSiteIdentifier.SiteMapping(2, "mail.yahoo.com"));
+        mappings.add(new JDBCTableSiteIdentifier.SiteMapping(3, ".samskivert.com"));
+        mappings.add(new JDBCTableSiteIdentifier.SiteMapping(4, "yahoo.com"));
+        JDBCTableSiteIdentifier.DomainTrie trie = new JDBCTableSiteIdentifier.DomainTrie(mappings);
+
+        assertEquals(1, trie.identify("yahoo.com", -1));
+        assertEquals(1, trie.identify("www.yahoo.com", -1));
+        assertEquals(2, trie.identify("mail.yahoo.com", -1));
+        assertEquals(2, trie.identify("us.mail.yahoo.com", -1));
+        assertEquals(1, trie.identify("WWW.Yahoo.COM.", -1));
+        assertEquals(3, trie.identify("samskivert.com", -1));
+        assertEquals(3, trie.identify("www.samskivert.com", -1));
+
+        // matches happen only on whole labels
+        assertEquals(-1, trie.identify("myyahoo.com", -1));
+        assertEquals(-1, trie.identify("com", -1));
+        assertEquals(-1, trie.identify("", -1));
+        assertEquals(-1, trie.identify(null, -1));
+
+        // cached results are returned on subsequent lookups
+        assertEquals(2, trie.identify("us.mail.yahoo.com", -1));
+    }
+
+    @Test
+    public void testRefresh ()
+        throws Exception
+    {
+        ConnectionProvider conprov = StaticConnectionProvider.forTest("sitetest");
+        update(conprov, "create table sites (siteId integer, siteString varchar(64))",
+               "create table domains (domain varchar(128), siteId integer)",
+               "insert into sites values (1, 'yahoo')",
+               "insert into domains values ('yahoo.com', 1)");
+
+        JDBCTableSiteIdentifier ident = new JDBCTableSiteIdentifier(conprov, 0);
+        try {
+            assertEquals(1, ident.identifySite(request("www.yahoo.com")));
+            assertEquals(0, ident.identifySite(request("www.samskivert.com")));
+            assertEquals("yahoo", ident.getSiteString(1));
+
+            // new data is not visible until a refresh
+            update(conprov, "insert into sites values (2, 'samskivert')",
+                   "insert into domains values ('samskivert.com', 2)");
+            assertEquals(0, ident.identifySite(request("www.samskivert.com")));
+            assertTrue(ident.refreshSiteData());
+            assertEquals(2, ident.identifySite(request("www.samskivert.com")));
+            assertEquals(2, ident.getSiteId("samskivert"));
+
+            // the default constructors refresh in the background on the interval thread
+            update(conprov, "insert into sites values (3, 'threerings')",
+                   "insert into domains values ('threerings.net', 3)");
+            assertNotNull(ident._refresher);
+            ident._refresher.schedule(1);
+            for (int ii = 0; ii < 500 && ident.getSiteId("threerings") != 3; ii++) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, ident.identifySite(request("www.threerings.net")));
+
+            // a failed refresh leaves the existing data in place
+            update(conprov, "drop table domains");
+            assertFalse(ident.refreshSiteData());
+            assertEquals(1, ident.identifySite(request("www.yahoo.com")));
+            assertEquals(2, ident.identifySite(request("www.samskivert.com")));
+
+        } finally {
+            ident.shutdown();
+            update(conprov, "drop table sites", "drop table domains if exists");
+        }
+    }
+
+    protected static void update (ConnectionProvider conprov, String... sql)
+        throws PersistenceException, SQLException
+    {
+        Connection conn = conprov.getConnection(
+            JDBCTableSiteIdentifier.SITE_IDENTIFIER_IDENT, false);
+        Statement stmt = conn.createStatement();
+        try {
+            for (String query : sql) {
+                stmt.executeUpdate(query);
+            }
+        } finally {
+            JDBCUtil.close(stmt);
+            conprov.releaseConnection(JDBCTableSiteIdentifier.SITE_IDENTIFIER_IDENT, false, conn);
+        }
+    }
+
+    protected static HttpServletRequest request (String serverName)
+    {
+        return new FakeRequest().serverName(serverName).request();
+    }
+}
@@ -0,0 +1,84 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet;
+
+import java.util.ListResourceBundle;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.samskivert.text.MessageUtil;
+
+/**
+ * Measures the rate at which {@link MessageManager} translates the messages on a large page,
+ * with and without message caching. Each simulated page view gets a fresh request and translates
+ * a mix of plain messages, messages that reference other messages, compound keys, messages
+ * formatted with arguments and the occasional missing message.
+ */
+public class MessageManagerBenchmark
+{
+    public static void main (String[] args)
+    {
+        int messages = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        int pages = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+
+        final Object[][] contents = new Object[messages][];
+        for (int ii = 0; ii < messages; ii++) {
+            String text;
+            switch (ii % 4) {
+            case 0: text = "Some plain message text for message number " + ii + "."; break;
+            case 1: text = "A message that links to {m.msg" + (ii-1) + "} and {m.msg0}."; break;
+            case 2: text = "A message with an argument: {0}."; break;
+            default: text = "Dear {m.msg0}, your {0} has {1} items."; break;
+            }
+            contents[ii] = new Object[] { "m.msg" + ii, text };
+        }
+        final ResourceBundle[] bundles = new ResourceBundle[] { null, new ListResourceBundle() {
+            @Override protected Object[][] getContents () {
+                return contents;
+            }
+        }};
+
+        MessageManager msgmgr = new MessageManager("bench", Locale.US, null) {
+            @Override protected ResourceBundle[] resolveBundles (HttpServletRequest req) {
+                return bundles;
+            }
+        };
+
+        Object[] fargs = new Object[] { "cart", 3 };
+        for (int pass = 0; pass < 3; pass++) {
+            for (boolean caching : new boolean[] { false, true }) {
+                msgmgr.setCaching(caching);
+                long start = System.nanoTime(), translations = 0, chars = 0;
+                for (int pp = 0; pp < pages; pp++) {
+                    HttpServletRequest req = new FakeRequest().request();
+                    for (int ii = 0; ii < messages; ii++) {
+                        String msg;
+                        switch (ii % 4) {
+                        case 2:
+                            msg = msgmgr.getMessage(req, MessageUtil.compose(
+                                                        "m.msg" + ii, "m.msg" + (ii-2)));
+                            break;
+                        case 3: msg = msgmgr.getMessage(req, "m.msg" + ii, fargs); break;
+                        default: msg = msgmgr.getMessage(req, "m.msg" + ii); break;
+                        }
+                        chars += msg.length();
+                        translations++;
+                    }
+                    if (pp % 100 == 0) {
+                        msgmgr.exists(req, "m.missing" + pp % 10);
+                        translations++;
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.println((caching ? "Cached:   " : "Uncached: ") +
+                                   (translations * 1000000000L / elapsed) + " translations/sec (" +
+                                   chars + " chars)");
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet;
+
+import java.util.ListResourceBundle;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.text.MessageUtil;
+
+/**
+ * Tests {@link MessageManager}.
+ */
+public class MessageManagerTest
+{
+    public static class TestBundle extends ListResourceBundle
+    {
+        @Override protected Object[][] getContents () {
+            return new Object[][] {
+                { "m.hello", "Hello {0}!" },
+                { "m.name", "Bob" },
+                { "m.greet", "{m.name} says {m.welcome}" },
+                { "m.welcome", "welcome to {m.site}{m.site}" },
+                { "m.site", "Site" },
+                { "m.braces", "{m.name}{0}{m.name}" },
+                { "m.broken", "{m.name} {oops" },
+                { "m.self", "Me {m.self}" },
+            };
+        }
+    }
+
+    public static class TestManager extends MessageManager
+    {
+        public int lookups;
+
+        public TestManager () {
+            super("test", Locale.US, null);
+        }
+
+        @Override protected ResourceBundle[] resolveBundles (HttpServletRequest req) {
+            return _bundles;
+        }
+
+        @Override protected String lookupMessage (HttpServletRequest req, String path) {
+            lookups++;
+            return super.lookupMessage(req, path);
+        }
+
+        protected ResourceBundle[] _bundles = new ResourceBundle[] { null, new TestBundle() };
+    }
+
+    @Test
+    public void testMessages ()
+    {
+        for (boolean caching : new boolean[] { false, true }) {
+            TestManager msgmgr = new TestManager();
+            msgmgr.setCaching(caching);
+            for (int ii = 0; ii < 2; ii++) {
+                assertEquals("Bob", msgmgr.getMessage(null, "m.name"));
+                assertEquals("Bob says welcome to SiteSite", msgmgr.getMessage(null, "m.greet"));
+                assertEquals("Bob{0}Bob", msgmgr.getMessage(null, "m.braces"));
+                assertEquals("Bob {oops", msgmgr.getMessage(null, "m.broken"));
+                assertEquals("Hello Bob!", msgmgr.getMessage(
+                                 null, "m.hello", new Object[] { "Bob" }));
+                assertEquals("Hello Site!", msgmgr.getMessage(
+                                 null, MessageUtil.compose("m.hello", "m.site")));
+                assertEquals("Hello |x|!", msgmgr.getMessage(
+                                 null, MessageUtil.tcompose("m.hello", "|x|")));
+                assertFalse(msgmgr.exists(null, "m.missing"));
+                assertEquals("m.missing", msgmgr.getMessage(null, "m.missing"));
+                try {
+                    msgmgr.getMessage(null, "m.self");
+                    fail("Self-referential message not detected");
+                } catch (IllegalStateException ise) {
+                    // expected
+                }
+            }
+
+            // with caching, each message (including the missing one) is looked up only once,
+            // except for the self-referential message which fails to resolve each time
+            if (caching) {
+                assertEquals(10, msgmgr.lookups);
+            }
+        }
+    }
+
+    @Test
+    public void testReloadedBundles ()
+    {
+        // bundles that are discarded and reloaded share the messages cached for their forebears
+        TestManager msgmgr = new TestManager();
+        for (int ii = 0; ii < 10; ii++) {
+            msgmgr._bundles = new ResourceBundle[] { null, new TestBundle() };
+            assertEquals("Bob", msgmgr.getMessage(null, "m.name"));
+        }
+        assertEquals(1, msgmgr._tables.size());
+        assertEquals(1, msgmgr.lookups);
+    }
+}
@@ -0,0 +1,151 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.io.StreamUtil;
+
+/**
+ * Tests {@link SiteResourceLoader}.
+ */
+public class SiteResourceLoaderTest
+{
+    @Before
+    public void setUp ()
+        throws Exception
+    {
+        _jarDir = new File(getClass().getResource("/servlet/srl/site1.jar").toURI()).
+            getParentFile();
+        _tmpDir = File.createTempFile("srltest", "");
+        _tmpDir.delete();
+        _tmpDir.mkdir();
+    }
+
+    @After
+    public void tearDown ()
+    {
+        for (File file : _tmpDir.listFiles()) {
+            file.delete();
+        }
+        _tmpDir.delete();
+    }
+
+    @Test
+    public void testLoad ()
+        throws IOException
+    {
+        SiteResourceLoader loader = new SiteResourceLoader(IDENT, _jarDir.getPath());
+        try {
+            // load everything twice to exercise our in-memory cache
+            for (int ii = 0; ii < 2; ii++) {
+                assertEquals("This is the site1 header.\n", read(loader, 1, "/header.txt"));
+                assertEquals("This is the site2 footer.\n", read(loader, 2, "footer.txt"));
+                assertNull(loader.getResourceAsStream(1, "body.txt"));
+                ClassLoader cloader = loader.getSiteClassLoader(1);
+                assertSame(cloader, loader.getSiteClassLoader(1));
+                assertEquals("This is the site1 footer.\n",
+                             StreamUtil.toString(cloader.getResourceAsStream("footer.txt")));
+            }
+            try {
+                loader.getResourceAsStream(3, "header.txt");
+                fail("Loaded resource from nonexistent jar file");
+            } catch (FileNotFoundException fnfe) {
+                // expected
+            }
+            assertNull(loader.getSiteClassLoader(3));
+        } finally {
+            loader.shutdown();
+        }
+    }
+
+    @Test
+    public void testModification ()
+        throws IOException
+    {
+        File site3 = new File(_tmpDir, "site3.jar");
+        SiteResourceLoader loader = new SiteResourceLoader(IDENT, _tmpDir.getPath());
+        try {
+            // the jar doesn't exist yet
+            try {
+                loader.getResourceAsStream(3, "header.txt");
+                fail("Loaded resource from nonexistent jar file");
+            } catch (FileNotFoundException fnfe) {
+                // expected
+            }
+            assertNull(loader.getSiteClassLoader(3));
+
+            // modifications are only noticed when we check for them
+            copy(new File(_jarDir, "site1.jar"), site3, 1000000L);
+            loader.checkForModifications();
+            assertEquals("This is the site1 header.\n", read(loader, 3, "header.txt"));
+            assertEquals(1000000L, loader.getLastModified(3));
+            assertNotNull(loader.getSiteClassLoader(3));
+
+            copy(new File(_jarDir, "site2.jar"), site3, 2000000L);
+            assertEquals("This is the site1 header.\n", read(loader, 3, "header.txt"));
+            loader.checkForModifications();
+            assertEquals("This is the site2 header.\n", read(loader, 3, "header.txt"));
+            assertEquals(2000000L, loader.getLastModified(3));
+
+        } finally {
+            loader.shutdown();
+        }
+    }
+
+    protected static String read (SiteResourceLoader loader, int siteId, String path)
+        throws IOException
+    {
+        InputStream in = loader.getResourceAsStream(siteId, path);
+        try {
+            return StreamUtil.toString(in);
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    protected static void copy (File source, File dest, long lastModified)
+        throws IOException
+    {
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = new FileOutputStream(dest);
+        try {
+            StreamUtil.copy(in, out);
+        } finally {
+            StreamUtil.close(in);
+            StreamUtil.close(out);
+        }
+        dest.setLastModified(lastModified);
+    }
+
+    protected File _jarDir, _tmpDir;
+
+    protected static final SiteIdentifier IDENT = new SiteIdentifier() {
+        public int identifySite (HttpServletRequest req) {
+            return DEFAULT_SITE_ID;
+        }
+        public String getSiteString (int siteId) {
+            return "site" + siteId;
+        }
+        public int getSiteId (String siteString) {
+            return Integer.parseInt(siteString.substring(4));
+        }
+        public Iterator<Site> enumerateSites () {
+            throw new UnsupportedOperationException();
+        }
+    };
+}
@@ -0,0 +1,48 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet.util;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link ExceptionMap} using the mappings in the test <code>exceptionmap.properties</code>.
+ */
+public class ExceptionMapTest
+{
+    @Test
+    public void testMessages ()
+    {
+        // the unresolvable class is skipped without disturbing the mappings that follow it
+        assertEquals(3, ExceptionMap._keys.length);
+
+        for (int ii = 0; ii < 2; ii++) {
+            assertEquals("Oops: bad", ExceptionMap.getMessage(new FriendlyException("bad")));
+            assertEquals("The database is unavailable.",
+                         ExceptionMap.getMessage(new SQLException("x")));
+            assertEquals("The database is unavailable.",
+                         ExceptionMap.getMessage(new SQLTransientException("x")));
+            assertEquals("Runtime trouble: x",
+                         ExceptionMap.getMessage(new IllegalStateException("x")));
+            assertEquals("Runtime trouble: y",
+                         ExceptionMap.getMessage(new IllegalStateException("y")));
+            assertEquals("Runtime trouble: ", ExceptionMap.getMessage(new RuntimeException()));
+            assertEquals("Error: x", ExceptionMap.getMessage(new IOException("x")));
+        }
+        // each exception class was resolved once and remembered (other tests may have resolved
+        // other classes)
+        Class<?>[] classes = { FriendlyException.class, SQLException.class,
+                               SQLTransientException.class, IllegalStateException.class,
+                               RuntimeException.class, IOException.class };
+        for (Class<?> exclass : classes) {
+            assertTrue(exclass.getName(), ExceptionMap._resolved.containsKey(exclass));
+        }
+    }
+}
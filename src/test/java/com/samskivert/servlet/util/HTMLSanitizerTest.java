@@ -0,0 +1,147 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.util.StringUtil;
+
+/**
+ * Tests {@link HTMLSanitizer}, largely by comparing its output with that of the regular
+ * expression splitting that {@link HTMLUtil#restrictHTML} once used.
+ */
+public class HTMLSanitizerTest
+{
+    @Test
+    public void testBasics ()
+        throws IOException
+    {
+        assertEquals("&lt;b&gt;hi&lt;/b&gt;", HTMLUtil.restrictHTML("<b>hi</b>"));
+        assertEquals("<b>hi</B> &lt;script&gt;", HTMLUtil.restrictHTML(
+                         "<b>hi</B> <script>", true, false, false));
+        assertEquals("&lt;<i> <i> &gt;", HTMLUtil.restrictHTML(
+                         "<<i> <i> >", true, false, false));
+        assertEquals("<a href=\"http://x.com/\">x</a>", HTMLUtil.restrictHTML(
+                         "<a href=\"http://x.com/\">x</a>", false, false, true));
+        assertEquals("  ", HTMLUtil.restrictHTML("  "));
+        assertNull(HTMLUtil.restrictHTML(null));
+
+        // sanitizers can also append to an existing buffer
+        StringBuilder buf = new StringBuilder("x: ");
+        HTMLSanitizer.getPolicy(true, false, false).sanitize("<u>1 < 2</u>", buf);
+        assertEquals("x: <u>1 &lt; 2</u>", buf.toString());
+    }
+
+    @Test
+    public void testDifferential ()
+    {
+        Random rando = new Random(1234);
+        for (int policy = 0; policy < 8; policy++) {
+            boolean fmt = (policy & 1) != 0, img = (policy & 2) != 0, link = (policy & 4) != 0;
+            String[] regexes = legacyRegexes(fmt, img, link);
+            for (int ii = 0; ii < 2000; ii++) {
+                String src = randomPost(rando, 1 + rando.nextInt(40));
+                assertEquals(src, legacyRestrictHTML(src, regexes),
+                             HTMLUtil.restrictHTML(src, fmt, img, link));
+            }
+        }
+    }
+
+    /**
+     * Returns a random post built from an assortment of HTML fragments.
+     */
+    public static String randomPost (Random rando, int pieces)
+    {
+        StringBuilder buf = new StringBuilder();
+        for (int ii = 0; ii < pieces; ii++) {
+            buf.append(PIECES[rando.nextInt(PIECES.length)]);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Returns the regular expressions that were used by {@link HTMLUtil#restrictHTML(String,
+     * boolean, boolean, boolean)} before it used {@link HTMLSanitizer}.
+     */
+    public static String[] legacyRegexes (
+        boolean allowFormatting, boolean allowImages, boolean allowLinks)
+    {
+        ArrayList<String> allow = new ArrayList<String>();
+        if (allowFormatting) {
+            allow.add("<b>"); allow.add("</b>");
+            allow.add("<i>"); allow.add("</i>");
+            allow.add("<u>"); allow.add("</u>");
+            allow.add("<font [^\"<>!-]*(\"[^\"<>!-]*\"[^\"<>!-]*)*>");
+                allow.add("</font>");
+            allow.add("<br>"); allow.add("</br>"); allow.add("<br/>");
+            allow.add("<p>"); allow.add("</p>");
+            allow.add("<hr>"); allow.add("</hr>"); allow.add("<hr/>");
+        }
+        if (allowImages) {
+            allow.add("<img [^\"<>!-]*(\"[^\"<>!-]*\"[^\"<>!-]*)*>");
+                allow.add("</img>");
+        }
+        if (allowLinks) {
+            allow.add("<a href=[^\"<>!-]*(\"[^\"<>!-]*\"[^\"<>!-]*)*>");
+                allow.add("</a>");
+        }
+        return allow.toArray(new String[allow.size()]);
+    }
+
+    /**
+     * The implementation of {@link HTMLUtil#restrictHTML(String, String[])} before it used
+     * {@link HTMLSanitizer}.
+     */
+    public static String legacyRestrictHTML (String src, String[] regexes)
+    {
+        if (StringUtil.isBlank(src)) {
+            return src;
+        }
+
+        ArrayList<String> list = new ArrayList<String>();
+        list.add(src);
+        for (String regexe : regexes) {
+            Pattern p = Pattern.compile(regexe, Pattern.CASE_INSENSITIVE);
+            for (int jj=0; jj < list.size(); jj += 2) {
+                String piece = list.get(jj);
+                Matcher m = p.matcher(piece);
+                if (m.find()) {
+                    list.set(jj, piece.substring(0, m.start()));
+                    list.add(jj + 1, piece.substring(m.start(), m.end()));
+                    list.add(jj + 2, piece.substring(m.end()));
+                }
+            }
+        }
+
+        StringBuilder buf = new StringBuilder();
+        for (int jj=0, nn = list.size(); jj < nn; jj++) {
+            String s = list.get(jj);
+            if (jj % 2 == 0) {
+                s = s.replace("<", "&lt;");
+                s = s.replace(">", "&gt;");
+            }
+            buf.append(s);
+        }
+        return buf.toString();
+    }
+
+    protected static final String[] PIECES = {
+        "Hello ", "world", " ", "\n", "&amp;", "<", ">", "<<", ">>", "\"", "-", "!",
+        "<b>", "</b>", "<B>", "<i>", "</I>", "<u>", "</u>", "<p>", "</p>", "<br>", "<br/>",
+        "<BR/>", "<hr>", "</hr>", "<hr/>", "<font ", "<font color=\"red\">", "<font size=3>",
+        "<font color=\"<b>\">", "<font a=\"x>", "</font>", "<img src=\"http://x.com/a.png\">",
+        "<img src=x.png>", "<img src=\"a--b.png\">", "</img>", "<a href=\"http://x.com/\">",
+        "<A HREF=foo>", "<a href=\"javascript:alert(1)\">", "<a onclick=\"x\">", "</a>",
+        "<script>", "</script>", "<b", "<i <b>>", "<!-- comment -->", "<a href=",
+    };
+}
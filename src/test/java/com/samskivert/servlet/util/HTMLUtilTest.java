@@ -0,0 +1,66 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link HTMLUtil}.
+ */
+public class HTMLUtilTest
+{
+    @Test
+    public void testEntify ()
+        throws IOException
+    {
+        assertEquals("&lt;a href=&quot;x&quot;&gt;&amp;&lt;/a&gt;",
+                     HTMLUtil.entify("<a href=\"x\">&</a>"));
+        assertEquals("&amp;lt; &amp; &lt;", HTMLUtil.entify("&amp;lt; &amp; &lt;"));
+        String plain = "nothing to see here";
+        assertSame(plain, HTMLUtil.entify(plain));
+
+        StringWriter out = new StringWriter();
+        HTMLUtil.entify("1 < 2", out);
+        assertEquals("1 &lt; 2", out.toString());
+
+        // make sure we match the old repeated replacement approach
+        Random rando = new Random(42);
+        for (int ii = 0; ii < 20000; ii++) {
+            StringBuilder buf = new StringBuilder();
+            for (int pp = rando.nextInt(12); pp >= 0; pp--) {
+                buf.append(PIECES[rando.nextInt(PIECES.length)]);
+            }
+            String text = buf.toString();
+            assertEquals(text, legacyEntify(text), HTMLUtil.entify(text));
+        }
+    }
+
+    /**
+     * The implementation of {@link HTMLUtil#entify(String)} before it was done in a single pass.
+     */
+    protected static String legacyEntify (String text)
+    {
+        text = text.replace("&quot;", "\"");
+        text = text.replace("&gt;", ">");
+        text = text.replace("&lt;", "<");
+        text = text.replace("&amp;", "&");
+        text = text.replace("&", "&amp;");
+        text = text.replace("<", "&lt;");
+        text = text.replace(">", "&gt;");
+        text = text.replace("\"", "&quot;");
+        return text;
+    }
+
+    protected static final String[] PIECES = {
+        "&", "&amp;", "&lt;", "&gt;", "&quot;", "&amp", "amp;", "lt;", "quot;", "&q", "<", ">",
+        "\"", "x", " ", "&#39;",
+    };
+}
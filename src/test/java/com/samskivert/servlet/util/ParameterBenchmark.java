@@ -0,0 +1,114 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet.util;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.samskivert.servlet.FakeRequest;
+import com.samskivert.util.ArrayIntSet;
+import com.samskivert.util.IntSet;
+
+/**
+ * Measures the parameter handling of a typical logic class, which reads a few parameters more
+ * than once and falls back to a default for a malformed one, comparing parsing on every read (as
+ * {@link ParameterUtil} once did) with the request-scoped {@link RequestParameters}.
+ */
+public class ParameterBenchmark
+{
+    public static void main (String[] args)
+        throws Exception
+    {
+        int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 500000;
+        FakeRequest fake = new FakeRequest().
+            param("page", "3").param("itemId", "123456").param("sort", "newest").
+            param("ids", "5", "10", "15", "20", "25").param("from", "2012-01-15");
+        HttpServletRequest req = fake.request();
+
+        for (int pass = 0; pass < 3; pass++) {
+            long start = System.nanoTime(), sum = 0;
+            for (int ii = 0; ii < requests; ii++) {
+                sum += legacyLogic(req);
+            }
+            report("Parse every read:", start, requests, sum);
+
+            start = System.nanoTime();
+            sum = 0;
+            for (int ii = 0; ii < requests; ii++) {
+                fake.attrs.clear(); // every request starts afresh
+                sum += cachedLogic(req);
+            }
+            report("Request cached:  ", start, requests, sum);
+        }
+    }
+
+    protected static long legacyLogic (HttpServletRequest req)
+        throws Exception
+    {
+        long sum = 0;
+        for (int ii = 0; ii < 3; ii++) { // once to validate, once to load, once to render
+            sum += legacyInt(req.getParameter("page").trim(), "m.bad");
+            sum += legacyInt(req.getParameter("itemId").trim(), "m.bad");
+            IntSet ids = new ArrayIntSet();
+            for (String value : req.getParameterValues("ids")) {
+                ids.add(legacyInt(value, "m.bad"));
+            }
+            sum += ids.size();
+            int sort;
+            try {
+                sort = legacyInt(req.getParameter("sort").trim(), "m.bad");
+            } catch (DataValidationException dve) {
+                sort = 0;
+            }
+            sum += sort;
+            synchronized (_dparser) {
+                try {
+                    sum += _dparser.parse(req.getParameter("from").trim()).getTime() % 7;
+                } catch (ParseException pe) {
+                    throw new DataValidationException("m.date");
+                }
+            }
+        }
+        return sum;
+    }
+
+    protected static long cachedLogic (HttpServletRequest req)
+        throws Exception
+    {
+        long sum = 0;
+        for (int ii = 0; ii < 3; ii++) {
+            RequestParameters params = RequestParameters.get(req);
+            sum += ParameterUtil.requireIntParameter(req, "page", "m.bad");
+            sum += params.requireInt("itemId", "m.bad");
+            sum += ParameterUtil.getIntParameters(req, "ids", "m.bad").size();
+            sum += params.getInt("sort", 0);
+            Date from = ParameterUtil.getDateParameter(req, "from", "m.date");
+            sum += from.getTime() % 7;
+        }
+        return sum;
+    }
+
+    protected static int legacyInt (String value, String invalidDataMessage)
+        throws DataValidationException
+    {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            throw new DataValidationException(invalidDataMessage);
+        }
+    }
+
+    protected static void report (String what, long start, int requests, long sum)
+    {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(what + " " + (elapsed / requests) + "ns per request (" + sum + ")");
+    }
+
+    protected static final SimpleDateFormat _dparser = new SimpleDateFormat("yyyy-MM-dd");
+}
@@ -0,0 +1,128 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet.util;
+
+import java.text.SimpleDateFormat;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.servlet.FakeRequest;
+import com.samskivert.util.ArrayIntSet;
+import com.samskivert.util.IntSet;
+
+/**
+ * Tests {@link RequestParameters} and the {@link ParameterUtil} methods that use it.
+ */
+public class RequestParametersTest
+{
+    @Test
+    public void testParseLong ()
+    {
+        String[] values = { "0", "5", " 7", "+3", "-3", "-", "+", "", "abc", "1x", "2147483647",
+                            "2147483648", "-2147483648", "-2147483649", "9223372036854775807",
+                            "9223372036854775808", "-9223372036854775808", "00012", "\u0661\u0662",
+                            "--1", "1.0" };
+        for (String value : values) {
+            Long expect;
+            try {
+                expect = Long.parseLong(value);
+            } catch (NumberFormatException nfe) {
+                expect = null;
+            }
+            assertEquals(value, expect,
+                         RequestParameters.parseLong(value, Long.MIN_VALUE, Long.MAX_VALUE));
+            Integer iexpect;
+            try {
+                iexpect = Integer.parseInt(value);
+            } catch (NumberFormatException nfe) {
+                iexpect = null;
+            }
+            Long ivalue = RequestParameters.parseLong(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            assertEquals(value, iexpect, (ivalue == null) ? null : ivalue.intValue());
+        }
+    }
+
+    @Test
+    public void testTypedValues ()
+        throws Exception
+    {
+        FakeRequest fake = new FakeRequest().param("page", " 12 ").param("bogus", "12a").
+            param("big", "3000000000").param("price", "1.5").param("when", "2001-12-25").
+            param("template", ParameterUtil.DATE_TEMPLATE).param("ids", "3", "", "1", "2");
+        HttpServletRequest req = fake.request();
+        RequestParameters params = RequestParameters.get(req);
+        assertSame(params, RequestParameters.get(req));
+
+        // values are parsed once and then remembered
+        for (int ii = 0; ii < 3; ii++) {
+            assertEquals(12, params.getInt("page", -1));
+            assertEquals(12, ParameterUtil.requireIntParameter(req, "page", "m.bad"));
+        }
+        assertEquals(1, fake.lookups);
+
+        assertTrue(params.isValidInt("page"));
+        assertFalse(params.isValidInt("bogus"));
+        assertFalse(params.isValidInt("missing"));
+        assertEquals(-1, params.getInt("bogus", -1));
+        assertEquals(-1, params.getInt("big", -1));
+        assertEquals(3000000000L, params.getLong("big", -1));
+        assertEquals(-1, params.getInt("page", 1, 10, -1));
+        assertEquals(1.5f, params.getFloat("price", 0f), 0f);
+        assertEquals(new SimpleDateFormat("yyyy-MM-dd").parse("2001-12-25"),
+                     params.getDate("when"));
+        assertNull(params.getDate("template"));
+        assertNull(params.getDate("page"));
+
+        // ParameterUtil behaves as it always has
+        assertEquals(5, ParameterUtil.getIntParameter(req, "missing", 5, "m.bad"));
+        assertBad(req, "bogus");
+        assertBad(req, "missing");
+        try {
+            ParameterUtil.requireIntParameter(req, "page", 1, 10, "m.range");
+            fail();
+        } catch (DataValidationException dve) {
+            assertEquals("m.range", dve.getMessage());
+        }
+        assertEquals(12, ParameterUtil.requireIntParameter(req, "page", 1, 20, "m.range"));
+        IntSet ids = ParameterUtil.getIntParameters(req, "ids", "m.bad");
+        assertEquals(new ArrayIntSet(new int[] { 1, 2, 3 }), ids);
+        ids.add(4); // our copy is our own
+        assertEquals(3, ParameterUtil.getIntParameters(req, "ids", "m.bad").size());
+        assertEquals(0, ParameterUtil.getIntParameters(req, "missing", "m.bad").size());
+        assertNull(ParameterUtil.getDateParameter(req, "template", "m.bad"));
+        assertNull(ParameterUtil.getDateParameter(req, "missing", "m.bad"));
+        try {
+            ParameterUtil.getDateParameter(req, "page", "m.date");
+            fail();
+        } catch (DataValidationException dve) {
+            assertEquals("m.date", dve.getMessage());
+        }
+        try {
+            ParameterUtil.requireDateParameter(req, "template", "m.date");
+            fail();
+        } catch (DataValidationException dve) {
+            assertEquals("m.date", dve.getMessage());
+        }
+
+        // a wrapper with its own parameters that shares our attributes gets its own view
+        FakeRequest wrapper = new FakeRequest().param("page", "3");
+        wrapper.attrs = fake.attrs;
+        assertEquals(3, ParameterUtil.requireIntParameter(wrapper.request(), "page", "m.bad"));
+    }
+
+    protected static void assertBad (HttpServletRequest req, String name)
+    {
+        try {
+            ParameterUtil.requireIntParameter(req, name, "m.bad");
+            fail();
+        } catch (DataValidationException dve) {
+            assertEquals("m.bad", dve.getMessage());
+        }
+    }
+}
@@ -0,0 +1,177 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.servlet.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.io.StreamUtil;
+import com.samskivert.servlet.FakeRequest;
+import com.samskivert.servlet.FakeResponse;
+
+/**
+ * Tests {@link ResponseBuffer}.
+ */
+public class ResponseBufferTest
+{
+    /**
+     * Creates a fake request with the supplied headers and method.
+     */
+    protected static HttpServletRequest request (String method, String... headers)
+    {
+        FakeRequest req = new FakeRequest().method(method);
+        for (int ii = 0; ii < headers.length; ii += 2) {
+            req.header(headers[ii], headers[ii+1]);
+        }
+        return req.request();
+    }
+
+    @Test
+    public void testPlain ()
+        throws IOException
+    {
+        ResponseBuffer buffer = new ResponseBuffer(1024, 100);
+        for (int ii = 0; ii < 2; ii++) {
+            // small responses are not compressed even if the client allows it
+            FakeResponse rec = send(buffer, request("GET", "Accept-Encoding", "gzip"),
+                                "h\u00e9llo", 1, false);
+            assertEquals(6, rec.length);
+            assertEquals("h\u00e9llo", new String(body(rec), "UTF-8"));
+            assertNull(rec.headers.get("Content-Encoding"));
+            assertEquals("Accept-Encoding", rec.headers.get("Vary"));
+            assertNull(rec.headers.get("ETag"));
+        }
+    }
+
+    @Test
+    public void testGzip ()
+        throws IOException
+    {
+        ResponseBuffer buffer = new ResponseBuffer(1024, 100);
+        for (int ii = 0; ii < 2; ii++) {
+            FakeResponse rec = send(
+                buffer, request("GET", "Accept-Encoding", "deflate, gzip;q=0.5"),
+                "0123456789", 50, false);
+            assertEquals("gzip", rec.headers.get("Content-Encoding"));
+            assertEquals(body(rec).length, rec.length);
+            assertEquals(repeat("0123456789", 50), gunzip(body(rec)));
+        }
+
+        // clients that don't accept gzip don't get it
+        FakeResponse rec = send(buffer, request("GET", "Accept-Encoding", "gzip;q=0"),
+                            "0123456789", 50, false);
+        assertNull(rec.headers.get("Content-Encoding"));
+        assertEquals(500, rec.length);
+    }
+
+    @Test
+    public void testOverflow ()
+        throws IOException
+    {
+        // a response that outgrows the buffer is streamed, with or without compression
+        ResponseBuffer buffer = new ResponseBuffer(1024, 100);
+        for (String accept : new String[] { "gzip", "identity" }) {
+            FakeResponse rec = send(buffer, request("GET", "Accept-Encoding", accept),
+                                "0123456789", 1000, true);
+            assertEquals(-1, rec.length);
+            assertNull(rec.headers.get("ETag"));
+            String expect = repeat("0123456789", 1000);
+            if (accept.equals("gzip")) {
+                assertEquals("gzip", rec.headers.get("Content-Encoding"));
+                assertEquals(expect, gunzip(body(rec)));
+            } else {
+                assertEquals(expect, new String(body(rec), "UTF-8"));
+            }
+        }
+    }
+
+    @Test
+    public void testETag ()
+        throws IOException
+    {
+        ResponseBuffer buffer = new ResponseBuffer(1024, -1);
+        FakeResponse rec = send(buffer, request("GET"), "hello", 1, true);
+        String etag = rec.headers.get("ETag");
+        assertNotNull(etag);
+        assertEquals(HttpServletResponse.SC_OK, rec.status);
+
+        // a matching request gets a 304 and no body
+        rec = send(buffer, request("GET", "If-None-Match", "\"abc\", " + etag), "hello", 1, true);
+        assertEquals(etag, rec.headers.get("ETag"));
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, rec.status);
+        assertEquals(0, body(rec).length);
+
+        // a different response gets a different tag
+        rec = send(buffer, request("GET", "If-None-Match", etag), "hullo", 1, true);
+        assertFalse(etag.equals(rec.headers.get("ETag")));
+        assertEquals(HttpServletResponse.SC_OK, rec.status);
+    }
+
+    @Test
+    public void testAbandoned ()
+        throws IOException
+    {
+        // characters written to an abandoned response don't end up in the next one
+        ResponseBuffer buffer = new ResponseBuffer(1024, -1);
+        FakeResponse rec = new FakeResponse(new ByteArrayOutputStream());
+        try {
+            buffer.start(request("GET"), rec.response(), "UTF-8").write("secret");
+        } finally {
+            buffer.release();
+        }
+        rec = send(buffer, request("GET"), "hello", 1, false);
+        assertEquals("hello", new String(body(rec), "UTF-8"));
+        assertEquals(5, rec.length);
+    }
+
+    protected static FakeResponse send (ResponseBuffer buffer, HttpServletRequest req, String text,
+                                    int repeat, boolean cacheable)
+        throws IOException
+    {
+        FakeResponse rec = new FakeResponse(new ByteArrayOutputStream());
+        try {
+            Writer out = buffer.start(req, rec.response(), "UTF-8");
+            for (int ii = 0; ii < repeat; ii++) {
+                out.write(text);
+            }
+            out.flush();
+            buffer.finish(cacheable);
+        } finally {
+            buffer.release();
+        }
+        return rec;
+    }
+
+    protected static byte[] body (FakeResponse rec)
+    {
+        return ((ByteArrayOutputStream)rec.body).toByteArray();
+    }
+
+    protected static String gunzip (byte[] data)
+        throws IOException
+    {
+        return new String(StreamUtil.toByteArray(
+                              new GZIPInputStream(new ByteArrayInputStream(data))), "UTF-8");
+    }
+
+    protected static String repeat (String text, int count)
+    {
+        StringBuilder buf = new StringBuilder();
+        for (int ii = 0; ii < count; ii++) {
+            buf.append(text);
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,110 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.velocity.app.Velocity;
+import org.apache.velocity.app.VelocityEngine;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.servlet.Site;
+import com.samskivert.servlet.SiteIdentifier;
+import com.samskivert.servlet.SiteResourceLoader;
+
+/**
+ * Tests the template warmup support in {@link Application}.
+ */
+public class ApplicationTest
+{
+    @Test
+    public void testTemplateNames ()
+        throws Exception
+    {
+        final Map<String, Set<String>> resources = new HashMap<String, Set<String>>();
+        resources.put("/", paths("/index.wm", "/WEB-INF/", "/sub/"));
+        resources.put("/WEB-INF/", paths("/WEB-INF/secret.wm"));
+        resources.put("/sub/", paths("/sub/page.wm", "/sub/style.css"));
+
+        Application app = new Application();
+        app._context = (ServletContext)Proxy.newProxyInstance(
+            ServletContext.class.getClassLoader(), new Class<?>[] { ServletContext.class },
+            new InvocationHandler() {
+            public Object invoke (Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getResourcePaths")) {
+                    return resources.get(args[0]);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        String[] exts = new String[] { ".wm", " .txt" };
+        assertEquals(paths("/index.wm", "/sub/page.wm"), app.getTemplateNames(exts, false));
+
+        File jarDir = new File(getClass().getResource("/servlet/srl/site1.jar").toURI());
+        app._siteIdent = IDENT;
+        app._siteLoader = new SiteResourceLoader(IDENT, jarDir.getParent());
+        try {
+            assertEquals(paths("-1:/index.wm", "-1:/sub/page.wm",
+                               "1:/index.wm", "1:/sub/page.wm", "1:/footer.txt", "1:/header.txt",
+                               "2:/index.wm", "2:/sub/page.wm", "2:/footer.txt", "2:/header.txt"),
+                         app.getTemplateNames(exts, true));
+        } finally {
+            app._siteLoader.shutdown();
+        }
+    }
+
+    @Test
+    public void testWarmTemplates ()
+        throws Exception
+    {
+        Velocity.setProperty(VelocityEngine.VM_LIBRARY, "");
+        Velocity.setProperty(VelocityEngine.RESOURCE_LOADER, "classpath");
+        Velocity.setProperty("classpath." + VelocityEngine.RESOURCE_LOADER + ".class",
+                             ClasspathResourceLoader.class.getName());
+        Velocity.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, VelocityUtil._logger);
+        Velocity.init();
+
+        Application.WarmupReport report = new Application().warmTemplates(
+            new TreeSet<String>(Arrays.asList("velocity/test.tmpl", "velocity/missing.tmpl")), 2);
+        assertEquals(1, report.loaded);
+        assertEquals(Arrays.asList("velocity/missing.tmpl"), report.failed);
+    }
+
+    protected static Set<String> paths (String... paths)
+    {
+        return new HashSet<String>(Arrays.asList(paths));
+    }
+
+    protected static final SiteIdentifier IDENT = new SiteIdentifier() {
+        public int identifySite (HttpServletRequest req) {
+            return DEFAULT_SITE_ID;
+        }
+        public String getSiteString (int siteId) {
+            return "site" + siteId;
+        }
+        public int getSiteId (String siteString) {
+            return Integer.parseInt(siteString.substring(4));
+        }
+        public Iterator<Site> enumerateSites () {
+            return Arrays.asList(new Site(1, "site1"), new Site(2, "site2")).iterator();
+        }
+    };
+}
@@ -0,0 +1,97 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.samskivert.servlet.FakeResponse;
+
+/**
+ * Loads a {@link DispatcherServlet} with concurrent requests whose logic waits on a slow
+ * repository, processing them synchronously and asynchronously. A fake container creates request
+ * threads as needed (as a container would, up to its limit) and we report the peak number of busy
+ * request threads, the number of request threads created and the peak number of threads in the
+ * JVM. Synchronously, a request thread is needed for every request that is waiting on the
+ * repository. Asynchronously, request threads are freed as soon as the logic defers its work and
+ * the only threads waiting on the repository are those of the executor to which the work is
+ * deferred, so thread usage stays flat as the load increases.
+ */
+public class AsyncDispatchBenchmark
+{
+    public static void main (String[] args)
+        throws Exception
+    {
+        long delay = (args.length > 0) ? Long.parseLong(args[0]) : 100L;
+        int repoThreads = (args.length > 1) ? Integer.parseInt(args[1]) : 32;
+
+        AsyncDispatchTest.SlowRepository repo = new AsyncDispatchTest.SlowRepository(delay);
+        ExecutorService repoExec = Executors.newFixedThreadPool(repoThreads);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int requests : new int[] { 50, 100, 200, 400 }) {
+                for (boolean async : new boolean[] { false, true }) {
+                    AsyncDispatchTest.TestDispatcher servlet = new AsyncDispatchTest.TestDispatcher(
+                        new AsyncDispatchTest.NameLogic(repo, repoExec), async);
+                    measure(servlet, requests, async);
+                }
+            }
+        }
+        repoExec.shutdown();
+    }
+
+    protected static void measure (final AsyncDispatchTest.TestDispatcher servlet,
+                                   final int requests, boolean async)
+        throws Exception
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        ThreadPoolExecutor container = (ThreadPoolExecutor)Executors.newCachedThreadPool();
+        final AtomicInteger busy = new AtomicInteger(), peakBusy = new AtomicInteger();
+        final CountDownLatch returned = new CountDownLatch(requests);
+        threads.resetPeakThreadCount();
+
+        long start = System.nanoTime();
+        for (int ii = 0; ii < requests; ii++) {
+            final int userId = ii;
+            container.execute(new Runnable() {
+                public void run () {
+                    int now = busy.incrementAndGet();
+                    synchronized (peakBusy) {
+                        peakBusy.set(Math.max(peakBusy.get(), now));
+                    }
+                    try {
+                        servlet.process(AsyncDispatchTest.request(userId),
+                                        new FakeResponse(new ByteArrayOutputStream()).response());
+                    } catch (Exception e) {
+                        e.printStackTrace(System.err);
+                    } finally {
+                        busy.decrementAndGet();
+                        returned.countDown();
+                    }
+                }
+            });
+        }
+        returned.await();
+        if (async) {
+            servlet.awaitCompleted(requests);
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000L;
+        System.out.println((async ? "Async " : "Sync  ") + requests + " requests: " + elapsed +
+                           "ms, peak busy request threads " + peakBusy.get() +
+                           ", request threads created " + container.getLargestPoolSize() +
+                           ", peak JVM threads " + threads.getPeakThreadCount());
+
+        // get rid of our request threads so that they don't inflate the next measurement
+        container.shutdown();
+        container.awaitTermination(10, TimeUnit.SECONDS);
+    }
+}
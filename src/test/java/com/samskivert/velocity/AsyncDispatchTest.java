@@ -0,0 +1,287 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.velocity.Template;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.servlet.FakeRequest;
+import com.samskivert.servlet.FakeResponse;
+import com.samskivert.servlet.util.AsyncUtil;
+import com.samskivert.servlet.util.FriendlyException;
+
+/**
+ * Tests the asynchronous processing of requests whose logic defers its work.
+ */
+public class AsyncDispatchTest
+{
+    /** A stand-in for a repository whose queries are slow. */
+    public static class SlowRepository
+    {
+        public final AtomicInteger active = new AtomicInteger(), peak = new AtomicInteger();
+
+        public SlowRepository (long delay) {
+            _delay = delay;
+        }
+
+        /** If set, queries wait until it is opened before proceeding. */
+        public volatile CountDownLatch gate;
+
+        public String loadName (int userId) throws InterruptedException {
+            if (gate != null) {
+                gate.await();
+            }
+            int now = active.incrementAndGet();
+            while (true) {
+                int opeak = peak.get();
+                if (now <= opeak || peak.compareAndSet(opeak, now)) {
+                    break;
+                }
+            }
+            try {
+                Thread.sleep(_delay);
+            } finally {
+                active.decrementAndGet();
+            }
+            return "user" + userId;
+        }
+
+        protected long _delay;
+    }
+
+    /** Looks up the name of the requested user, deferring the lookup to the supplied executor. */
+    public static class NameLogic implements Logic
+    {
+        public NameLogic (SlowRepository repo, Executor executor) {
+            _repo = repo;
+            _executor = executor;
+        }
+
+        public void invoke (Application app, InvocationContext ctx) {
+            final int userId = Integer.parseInt(ctx.getRequest().getParameter("id"));
+            ctx.defer(_executor, new Logic() {
+                public void invoke (Application app, InvocationContext ctx) throws Exception {
+                    ctx.put("name", _repo.loadName(userId));
+                }
+            });
+        }
+
+        protected SlowRepository _repo;
+        protected Executor _executor;
+    }
+
+    /** A dispatcher that serves a single template and logic without a servlet container. */
+    public static class TestDispatcher extends DispatcherServlet
+    {
+        /** Whether our fake container supports asynchronous processing. */
+        public boolean asyncSupported = true;
+
+        /** The number of requests that have been completed asynchronously. */
+        public final AtomicInteger completed = new AtomicInteger();
+
+        public TestDispatcher (Logic logic, boolean async) throws Exception {
+            _app = new Application();
+            _tools = createTools();
+            _cartridge.addEventHandler(this);
+            _defaultContentType = DEFAULT_CONTENT_TYPE;
+            _async = async;
+            _testLogic = logic;
+            _template = VelocityUtil.createEngine().getTemplate("velocity/async.tmpl", "UTF-8");
+        }
+
+        /** Processes a request, as the container would. */
+        public void process (HttpServletRequest req, HttpServletResponse rsp) throws Exception {
+            doRequest(req, rsp);
+        }
+
+        @Override protected Template selectTemplate (int siteId, InvocationContext ctx) {
+            return _template;
+        }
+
+        @Override protected Logic resolveLogic (String path) {
+            return _testLogic;
+        }
+
+        @Override protected String chooseCharacterEncoding (HttpServletRequest req) {
+            return "UTF-8";
+        }
+
+        @Override protected Runnable startAsync (HttpServletRequest req) {
+            if (!asyncSupported) {
+                return null;
+            }
+            return new Runnable() {
+                public void run () {
+                    synchronized (completed) {
+                        completed.incrementAndGet();
+                        completed.notifyAll();
+                    }
+                }
+            };
+        }
+
+        /** Waits until the specified number of requests have been completed asynchronously. */
+        public void awaitCompleted (int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000L;
+            synchronized (completed) {
+                while (completed.get() < count && System.currentTimeMillis() < deadline) {
+                    completed.wait(100L);
+                }
+            }
+            assertEquals(count, completed.get());
+        }
+
+        protected Logic _testLogic;
+        protected Template _template;
+    }
+
+    /**
+     * Creates a fake request for the name of the specified user.
+     */
+    public static HttpServletRequest request (int userId)
+    {
+        return new FakeRequest().path("/name.wm").param("id", String.valueOf(userId)).request();
+    }
+
+    @After
+    public void shutdown ()
+    {
+        _repoExec.shutdownNow();
+    }
+
+    @Test(timeout=10000)
+    public void testAsync ()
+        throws Exception
+    {
+        SlowRepository repo = new SlowRepository(10L);
+        TestDispatcher servlet = new TestDispatcher(new NameLogic(repo, _repoExec), true);
+
+        // a single "container" thread dispatches every request while the repository is held
+        // shut, which it could not do if any request waited on the repository, and only the
+        // repository's threads are ever waiting on it
+        int requests = 40;
+        repo.gate = new CountDownLatch(1);
+        List<ByteArrayOutputStream> bodies = new ArrayList<ByteArrayOutputStream>();
+        for (int ii = 0; ii < requests; ii++) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            servlet.process(request(ii), new FakeResponse(body).response());
+            bodies.add(body);
+        }
+        assertEquals(0, servlet.completed.get());
+        repo.gate.countDown();
+        servlet.awaitCompleted(requests);
+        assertTrue(repo.peak.get() <= REPO_THREADS);
+
+        for (int ii = 0; ii < requests; ii++) {
+            assertEquals("Hello user" + ii, bodies.get(ii).toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void testSync ()
+        throws Exception
+    {
+        // if async processing is disabled or unsupported, the deferred logic is invoked on the
+        // request thread and the response is complete when the request returns
+        SlowRepository repo = new SlowRepository(10L);
+        for (boolean async : new boolean[] { false, true }) {
+            TestDispatcher servlet = new TestDispatcher(new NameLogic(repo, _repoExec), async);
+            servlet.asyncSupported = false;
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            servlet.process(request(7), new FakeResponse(body).response());
+            assertEquals("Hello user7", body.toString("UTF-8"));
+            assertEquals(0, servlet.completed.get());
+        }
+    }
+
+    @Test
+    public void testErrors ()
+        throws Exception
+    {
+        // errors thrown by (repeatedly) deferred logic are reported as usual
+        TestDispatcher servlet = new TestDispatcher(new Logic() {
+            public void invoke (Application app, InvocationContext ctx) {
+                ctx.defer(_repoExec, new Logic() {
+                    public void invoke (Application app, InvocationContext ctx) {
+                        ctx.put("name", "nobody");
+                        ctx.defer(_repoExec, new Logic() {
+                            public void invoke (Application app, InvocationContext ctx)
+                                throws Exception {
+                                throw new FriendlyException("not found");
+                            }
+                        });
+                    }
+                });
+            }
+        }, true);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        servlet.process(request(1), new FakeResponse(body).response());
+        servlet.awaitCompleted(1);
+        assertEquals("Hello nobody (not found)", body.toString("UTF-8"));
+
+        // work that can't be scheduled gets a 503
+        final Executor full = new Executor() {
+            public void execute (Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        };
+        servlet = new TestDispatcher(new NameLogic(new SlowRepository(0L), full), true);
+        FakeResponse rec = new FakeResponse(body);
+        servlet.process(request(1), rec.response());
+        servlet.awaitCompleted(1);
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, rec.status);
+
+        // as does work that fails to be scheduled for any other reason, even when rescheduled
+        final Executor broken = new Executor() {
+            public void execute (Runnable command) {
+                throw new IllegalStateException("broken");
+            }
+        };
+        servlet = new TestDispatcher(new Logic() {
+            public void invoke (Application app, InvocationContext ctx) {
+                ctx.defer(_repoExec, new Logic() {
+                    public void invoke (Application app, InvocationContext ctx) {
+                        ctx.defer(broken, new Logic() {
+                            public void invoke (Application app, InvocationContext ctx) {
+                                fail();
+                            }
+                        });
+                    }
+                });
+            }
+        }, true);
+        rec = new FakeResponse(body);
+        servlet.process(request(1), rec.response());
+        servlet.awaitCompleted(1);
+        assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, rec.status);
+    }
+
+    @Test
+    public void testUnsupported ()
+    {
+        // we're compiled and tested against a pre-3.0 servlet API
+        assertNull(AsyncUtil.startAsync(request(1)));
+    }
+
+    protected ExecutorService _repoExec = Executors.newFixedThreadPool(REPO_THREADS);
+
+    protected static final int REPO_THREADS = 4;
+}
@@ -0,0 +1,97 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.io.StringWriter;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link CacheDirective} and {@link FragmentCache}.
+ */
+public class CacheDirectiveTest
+{
+    public static class Counter
+    {
+        public int next () {
+            return ++_count;
+        }
+        protected int _count;
+    }
+
+    @Test
+    public void testCaching ()
+        throws Exception
+    {
+        VelocityEngine engine = new VelocityEngine();
+        engine.setProperty(VelocityEngine.VM_LIBRARY, "");
+        engine.setProperty(VelocityEngine.RESOURCE_LOADER, "classpath");
+        engine.setProperty("classpath." + VelocityEngine.RESOURCE_LOADER + ".class",
+                           ClasspathResourceLoader.class.getName());
+        engine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, VelocityUtil._logger);
+        engine.setProperty("userdirective", CacheDirective.class.getName());
+        engine.init();
+
+        Counter counter = new Counter();
+        // the first fragment is cached, the second expires immediately
+        assertEquals("A [1 home] B\nC [2 home] D\n", merge(engine, counter, "home"));
+        assertEquals("A [1 home] B\nC [3 home] D\n", merge(engine, counter, "home"));
+        assertEquals("A [4 about] B\nC [5 about] D\n", merge(engine, counter, "about"));
+
+        FragmentCache cache = (FragmentCache)engine.getApplicationAttribute(
+            FragmentCache.class.getName());
+        assertEquals(1, cache.getHits());
+        assertEquals(5, cache.getMisses());
+        assertEquals("[1 home]".length(), cache.getCharsSaved());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testBounds ()
+    {
+        FragmentCache cache = new FragmentCache(10);
+        cache.put("a", "12345", 60000L);
+        cache.put("b", "1234", 60000L);
+        assertEquals("12345", cache.get("a"));
+        assertEquals(9, cache.getCachedChars());
+
+        // a fragment bigger than the whole cache is not cached
+        cache.put("c", "12345678901", 60000L);
+        assertNull(cache.get("c"));
+        assertEquals(2, cache.size());
+
+        // expired fragments make way for new fragments
+        cache.put("d", "1", 0L);
+        cache.put("e", "1", 60000L);
+        assertEquals(3, cache.size());
+        assertNull(cache.get("d"));
+        assertEquals("1", cache.get("e"));
+        assertEquals(10, cache.getCachedChars());
+
+        // and if that's not enough, the cache is cleared
+        cache.put("f", "123", 60000L);
+        assertEquals(1, cache.size());
+        assertNull(cache.get("a"));
+        assertEquals("123", cache.get("f"));
+        assertEquals(3, cache.getCachedChars());
+        assertEquals(0.5f, cache.getHitRate(), 0.001f);
+    }
+
+    protected static String merge (VelocityEngine engine, Counter counter, String section)
+        throws Exception
+    {
+        VelocityContext ctx = new VelocityContext();
+        ctx.put("counter", counter);
+        ctx.put("section", section);
+        StringWriter writer = new StringWriter();
+        engine.mergeTemplate("velocity/cached.tmpl", "UTF-8", ctx, writer);
+        return writer.toString();
+    }
+}
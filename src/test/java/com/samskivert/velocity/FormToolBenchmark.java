@@ -0,0 +1,96 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+
+import com.samskivert.servlet.FakeRequest;
+
+/**
+ * Measures the bytes allocated to write a form with twenty fields to a response writer, comparing
+ * the {@link FormTool} methods that return strings with the variants that write to an {@link
+ * Appendable}. Requires a JVM that provides <code>com.sun.management.ThreadMXBean</code>.
+ */
+public class FormToolBenchmark
+{
+    public static void main (String[] args)
+        throws IOException
+    {
+        int forms = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        FakeRequest req = new FakeRequest();
+        for (int ii = 0; ii < FIELDS; ii++) {
+            // half of the values need entification
+            req.param("field" + ii, (ii % 2 == 0) ? "value " + ii : "\"value\" & <" + ii + ">");
+        }
+        FormTool form = new FormTool(req.request());
+        String[] names = new String[FIELDS];
+        for (int ii = 0; ii < FIELDS; ii++) {
+            names[ii] = "field" + ii;
+        }
+        NullWriter out = new NullWriter();
+
+        for (int pass = 0; pass < 3; pass++) {
+            long before = allocated(), start = System.nanoTime();
+            for (int ff = 0; ff < forms; ff++) {
+                for (int ii = 0; ii < FIELDS; ii += 4) {
+                    out.write(form.text(names[ii], "size=\"20\"", ""));
+                    out.write(form.option(names[ii+1], "x", "Item", ""));
+                    out.write(form.textarea(names[ii+2], "", ""));
+                    out.write(form.hidden(names[ii+3]));
+                }
+            }
+            report("Strings:   ", before, start, forms);
+
+            before = allocated();
+            start = System.nanoTime();
+            for (int ff = 0; ff < forms; ff++) {
+                for (int ii = 0; ii < FIELDS; ii += 4) {
+                    form.input(out, "text", names[ii], "size=\"20\"", "");
+                    form.option(out, names[ii+1], "x", "Item", "");
+                    form.textarea(out, names[ii+2], "", "");
+                    form.input(out, "hidden", names[ii+3], "", "");
+                }
+            }
+            report("Appendable:", before, start, forms);
+        }
+    }
+
+    protected static long allocated ()
+    {
+        com.sun.management.ThreadMXBean tmx =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        return tmx.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    protected static void report (String what, long before, long start, int forms)
+    {
+        long bytes = allocated() - before, elapsed = System.nanoTime() - start;
+        System.out.println(what + " " + (bytes / forms) + " bytes, " + (elapsed / forms) +
+                           "ns per form");
+    }
+
+    /** Discards everything written to it, like a response writer that never fills up. */
+    protected static class NullWriter extends Writer
+    {
+        @Override public void write (char[] buf, int off, int len) {}
+        @Override public void write (String str, int off, int len) {}
+        @Override public Writer append (CharSequence csq, int start, int end) {
+            return this;
+        }
+        @Override public Writer append (CharSequence csq) {
+            return this;
+        }
+        @Override public Writer append (char c) {
+            return this;
+        }
+        @Override public void flush () {}
+        @Override public void close () {}
+    }
+
+    protected static final int FIELDS = 20;
+}
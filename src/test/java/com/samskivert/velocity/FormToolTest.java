@@ -0,0 +1,51 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.servlet.FakeRequest;
+
+/**
+ * Tests {@link FormTool}.
+ */
+public class FormToolTest
+{
+    @Test
+    public void testStreaming ()
+        throws IOException
+    {
+        FormTool form = new FormTool(new FakeRequest().param("name", "Bob \"the <Builder>\"").
+                                     param("color", "red").param("bio", "Fixes & builds").
+                                     request());
+
+        assertEquals("<input type=\"text\" name=\"name\" value=\"Bob &quot;the &lt;Builder&gt;" +
+                     "&quot;\" size=\"5\" />", form.text("name", "size=\"5\""));
+        assertEquals("<option value=\"red\" selected>Red</option>",
+                     form.option("color", "red", "Red", "blue"));
+        assertEquals("<textarea name=\"bio\">Fixes &amp; builds</textarea>",
+                     form.textarea("bio", "", null));
+
+        // the streaming variants generate exactly the same thing
+        StringWriter out = new StringWriter();
+        form.input(out, "text", "name", "size=\"5\"", null);
+        form.input(out, "text", "missing", "", "<default>");
+        form.fixedInput(out, "hidden", "action", "go", "");
+        form.option(out, "color", "red", "Red", "blue");
+        form.option(out, "color", "blue", "Blue", "blue");
+        form.textarea(out, "bio", "rows=\"4\"", null);
+        form.fixedTextarea(out, "other", "", "<b>raw</b>");
+        assertEquals(form.text("name", "size=\"5\"") + form.text("missing", "", "<default>") +
+                     form.action("go") + form.option("color", "red", "Red", "blue") +
+                     form.option("color", "blue", "Blue", "blue") +
+                     form.textarea("bio", "rows=\"4\"", null) +
+                     form.fixedTextarea("other", "", "<b>raw</b>"), out.toString());
+    }
+}
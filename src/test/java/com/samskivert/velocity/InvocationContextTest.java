@@ -0,0 +1,63 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link InvocationContext}.
+ */
+public class InvocationContextTest
+{
+    @Test
+    public void testToolFactories ()
+        throws Exception
+    {
+        final int[] created = new int[1];
+        Map<String, InvocationContext.ToolFactory> tools =
+            new HashMap<String, InvocationContext.ToolFactory>();
+        tools.put("tool", new InvocationContext.ToolFactory() {
+            public Object create (InvocationContext ctx) {
+                created[0]++;
+                return "tool" + created[0];
+            }
+        });
+        tools.put("other", new InvocationContext.ToolFactory() {
+            public Object create (InvocationContext ctx) {
+                return "other";
+            }
+        });
+
+        InvocationContext ctx = new InvocationContext(null, null);
+        ctx.setToolFactories(tools);
+        ctx.put("other", "mine");
+        assertEquals(0, created[0]);
+        assertTrue(ctx.containsKey("tool"));
+        Object[] keys = ctx.getKeys();
+        Arrays.sort(keys);
+        assertEquals(Arrays.asList("other", "tool"), Arrays.asList(keys));
+
+        // tools are created once, when first used, and explicitly put values take precedence
+        StringWriter writer = new StringWriter();
+        VelocityUtil.createEngine().evaluate(ctx, writer, "test", "$tool $tool $other");
+        assertEquals("tool1 tool1 mine", writer.toString());
+        assertEquals(1, created[0]);
+
+        // removed tools stay removed until put back
+        ctx.remove("tool");
+        assertNull(ctx.get("tool"));
+        assertFalse(ctx.containsKey("tool"));
+        ctx.put("tool", "again");
+        assertEquals("again", ctx.get("tool"));
+        assertEquals(1, created[0]);
+    }
+}
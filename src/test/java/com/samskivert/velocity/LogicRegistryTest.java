@@ -0,0 +1,57 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.samskivert.velocity.logic.home;
+import com.samskivert.velocity.logic.sub.view;
+
+/**
+ * Tests {@link LogicRegistry}.
+ */
+public class LogicRegistryTest
+{
+    @Test
+    public void testRegister ()
+    {
+        LogicRegistry registry = new LogicRegistry();
+        assertNull(registry.get("foo.bar"));
+        Logic logic = new home();
+        assertSame(logic, registry.register("foo.bar", logic));
+        assertSame(logic, registry.register("foo.bar", new home()));
+        assertSame(logic, registry.get("foo.bar"));
+
+        // misses resolve to the dummy logic, but are not remembered without bound
+        assertSame(LogicRegistry.DUMMY, registry.register("foo.missing", null));
+        assertSame(LogicRegistry.DUMMY, registry.get("foo.missing"));
+        for (int ii = 0; ii < LogicRegistry.MAX_MISSES; ii++) {
+            registry.register("foo.bogus" + ii, null);
+        }
+        assertTrue(registry._misses.size() <= LogicRegistry.MAX_MISSES);
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testScan ()
+        throws Exception
+    {
+        LogicRegistry registry = new LogicRegistry();
+        ClassLoader loader = getClass().getClassLoader();
+        assertEquals(2, registry.scan("com.samskivert.velocity.logic", loader));
+        assertTrue(registry.get("com.samskivert.velocity.logic.home") instanceof home);
+        assertTrue(registry.get("com.samskivert.velocity.logic.sub.view") instanceof view);
+        assertNull(registry.get("com.samskivert.velocity.logic.base"));
+
+        // once complete, unknown classes resolve to the dummy logic
+        registry.setComplete(true);
+        assertSame(LogicRegistry.DUMMY, registry.get("com.samskivert.velocity.logic.base"));
+
+        // packages in jar files are scanned as well (junit contains no logic, of course)
+        assertEquals(0, registry.scan("org.junit.runner", loader));
+    }
+}
@@ -0,0 +1,140 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.io.VelocityWriter;
+
+import com.samskivert.servlet.FakeRequest;
+import com.samskivert.servlet.FakeResponse;
+import com.samskivert.servlet.util.ResponseBuffer;
+
+/**
+ * Measures the throughput of rendering a template into a response, comparing the writer that
+ * {@link DispatcherServlet#mergeTemplate} once created for every request with the pooled {@link
+ * ResponseBuffer} that it now uses, with and without compression and ETags.
+ */
+public class ResponseWriterBenchmark
+{
+    public static void main (String[] args)
+        throws Exception
+    {
+        int pages = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        int rows = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+
+        VelocityEngine engine = VelocityUtil.createEngine();
+        Template template = engine.getTemplate("velocity/bench.tmpl", "UTF-8");
+        VelocityContext ctx = new VelocityContext();
+        ctx.put("title", "Benchmark");
+        List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+        for (int ii = 0; ii < rows; ii++) {
+            Map<String, Object> item = new HashMap<String, Object>();
+            item.put("id", ii);
+            item.put("name", "Item " + ii);
+            item.put("description", "A fine item that is number " + ii + " in our catalog");
+            item.put("price", "$" + (ii * 3) + ".99");
+            items.add(item);
+        }
+        ctx.put("rows", items);
+
+        HttpServletRequest plain = new FakeRequest().request();
+        HttpServletRequest gzip = new FakeRequest().header("Accept-Encoding", "gzip").request();
+        ResponseBuffer unzipped = new ResponseBuffer(256 * 1024, -1);
+        ResponseBuffer zipped = new ResponseBuffer(256 * 1024, 1024);
+        for (int pass = 0; pass < 3; pass++) {
+            measureOld(template, ctx, pages);
+            measure("Buffered:        ", template, ctx, pages, unzipped, plain, false);
+            measure("Buffered + ETag: ", template, ctx, pages, unzipped, plain, true);
+            measure("Buffered + gzip: ", template, ctx, pages, zipped, gzip, false);
+        }
+    }
+
+    protected static void measureOld (Template template, VelocityContext ctx, int pages)
+        throws Exception
+    {
+        CountingStream out = new CountingStream();
+        VelocityWriter vw = null;
+        long start = System.nanoTime();
+        for (int ii = 0; ii < pages; ii++) {
+            // this is what the dispatcher once did, pooling VelocityWriters but creating a new
+            // OutputStreamWriter (and hence encoder) for every request
+            if (vw == null) {
+                vw = new VelocityWriter(new OutputStreamWriter(out, "UTF-8"), 4 * 1024, true);
+            } else {
+                vw.recycle(new OutputStreamWriter(out, "UTF-8"));
+            }
+            template.merge(ctx, vw);
+            vw.flush();
+            vw.recycle(null);
+        }
+        report("Per-request:     ", start, pages, out.count);
+    }
+
+    protected static void measure (String what, Template template, VelocityContext ctx, int pages,
+                                   ResponseBuffer buffer, HttpServletRequest req,
+                                   boolean cacheable)
+        throws Exception
+    {
+        CountingStream out = new CountingStream();
+        FakeResponse rec = new FakeResponse(out);
+        HttpServletResponse rsp = rec.response();
+        VelocityWriter vw = null;
+        long start = System.nanoTime();
+        for (int ii = 0; ii < pages; ii++) {
+            rec.headers.clear();
+            try {
+                Writer writer = buffer.start(req, rsp, "UTF-8");
+                if (vw == null) {
+                    vw = new VelocityWriter(writer, 4 * 1024, true);
+                } else {
+                    vw.recycle(writer);
+                }
+                template.merge(ctx, vw);
+                vw.flush();
+                buffer.finish(cacheable);
+            } finally {
+                buffer.release();
+                vw.recycle(null);
+            }
+        }
+        report(what, start, pages, out.count);
+    }
+
+    protected static void report (String what, long start, int pages, long bytes)
+    {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(what + " " + (elapsed / pages) + "ns per page, " +
+                           (bytes / pages) + " bytes per page sent");
+    }
+
+    /** Discards what is written to it, counting the bytes. */
+    protected static class CountingStream extends OutputStream
+    {
+        public long count;
+
+        @Override public void write (int b) {
+            count++;
+        }
+
+        @Override public void write (byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.velocity.app.event.EventCartridge;
+
+import com.samskivert.servlet.FakeRequest;
+
+/**
+ * Measures the bytes allocated per request to set up the tools in a request's context, comparing
+ * the eager creation that {@link DispatcherServlet} once performed with the lazy tool factories
+ * it now uses, for a template that uses no tools and one that uses the string and currency tools.
+ * Requires a JVM that provides <code>com.sun.management.ThreadMXBean</code>.
+ */
+public class ToolAllocationBenchmark
+{
+    public static void main (String[] args)
+    {
+        int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final HttpServletRequest req = new FakeRequest().locale(Locale.FRANCE).request();
+        final DispatcherServlet servlet = new DispatcherServlet();
+        servlet._tools = servlet.createTools();
+        servlet._cartridge.addEventHandler(servlet);
+
+        for (int pass = 0; pass < 3; pass++) {
+            for (final boolean useTools : new boolean[] { false, true }) {
+                measure("Eager" + (useTools ? " (tools used):  " : " (tools unused):"),
+                        requests, new Runnable() {
+                    public void run () {
+                        InvocationContext ctx = new InvocationContext(req, null);
+                        EventCartridge ec = new EventCartridge();
+                        ec.attachToContext(ctx);
+                        ec.addEventHandler(servlet);
+                        ctx.put("form", new FormTool(req));
+                        ctx.put("string", new StringTool());
+                        ctx.put("data", new DataTool());
+                        ctx.put("cash", new CurrencyTool(req.getLocale()));
+                        use(ctx, useTools);
+                    }
+                });
+                measure("Lazy" + (useTools ? " (tools used):   " : " (tools unused): "),
+                        requests, new Runnable() {
+                    public void run () {
+                        InvocationContext ctx = new InvocationContext(req, null);
+                        servlet._cartridge.attachToContext(ctx);
+                        ctx.setToolFactories(servlet._tools);
+                        use(ctx, useTools);
+                    }
+                });
+            }
+        }
+    }
+
+    protected static void use (InvocationContext ctx, boolean useTools)
+    {
+        if (useTools) {
+            ((StringTool)ctx.get("string")).percent(0.5f);
+            ((CurrencyTool)ctx.get("cash")).currency(10);
+        }
+    }
+
+    protected static void measure (String what, int requests, Runnable request)
+    {
+        com.sun.management.ThreadMXBean tmx =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long before = tmx.getThreadAllocatedBytes(tid), start = System.nanoTime();
+        for (int ii = 0; ii < requests; ii++) {
+            request.run();
+        }
+        long bytes = tmx.getThreadAllocatedBytes(tid) - before;
+        long elapsed = System.nanoTime() - start;
+        System.out.println(what + " " + (bytes / requests) + " bytes, " +
+                           (elapsed / requests) + "ns per request");
+    }
+}
@@ -0,0 +1,15 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity.logic;
+
+import com.samskivert.velocity.Logic;
+
+/**
+ * Abstract test logic, which should not be registered.
+ */
+public abstract class base implements Logic
+{
+}
@@ -0,0 +1,21 @@
+//
+// samskivert library - useful routines for java programs
+// Copyright (C) 2001-2012 Michael Bayne, et al.
+// http://github.com/samskivert/samskivert/blob/master/COPYING
+
+package com.samskivert.velocity.logic;
+
+import com.samskivert.velocity.Application;
+import com.samskivert.velocity.InvocationContext;
+import com.samskivert.velocity.Logic;
+
+/**
+ * Test logic for {@link com.samskivert.velocity.LogicRegistryTest}.
+ */
+public class home implements Logic
+{
+    public void invoke (Application app, InvocationContext context)
+    {
+        context.put("page", "home");
+    }
+}